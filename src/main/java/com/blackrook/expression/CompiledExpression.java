@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+/**
+ * An immutable, compiled form of an {@link Expression}, safe to share between threads.
+ * Unlike an expression, it cannot be collapsed or otherwise changed once created, and it holds no
+ * evaluation state - it is evaluated with an {@link ExpressionEvaluator}, one per thread at a time
+ * (see {@link ExpressionEvaluatorPool} for sharing them between many threads).
+ * @author Matthew Tropiano
+ */
+public final class CompiledExpression
+{
+	/** Expression structural hash, high bits. */
+	private final long hashHigh;
+	/** Expression structural hash, low bits. */
+	private final long hashLow;
+	/** Expression source, if parsed. Can be null. */
+	private final String source;
+
+	// Of the following, only one of the two will be null.
+
+	/** Expression is a single value. Never exposed. */
+	private final ExpressionValue value;
+	/** Expression is a set of nodes. */
+	private final ExpressionNode nodes;
+
+	// Private constructor.
+	private CompiledExpression(Expression expression)
+	{
+		ExpressionValue value = expression.getValue();
+		this.value = value != null ? ExpressionValue.create(value) : null;
+		this.nodes = value != null ? null : expression.getRootNode();
+		this.hashHigh = expression.getHashHigh();
+		this.hashLow = expression.getHashLow();
+		this.source = expression.getSource();
+	}
+
+	/**
+	 * Compiles an expression into an immutable expression.
+	 * The compiled expression shares the expression's nodes, which are not changed by evaluation.
+	 * @param expression the expression to compile.
+	 * @return a new compiled expression.
+	 */
+	public static CompiledExpression create(Expression expression)
+	{
+		return new CompiledExpression(expression);
+	}
+
+	/**
+	 * Evaluates this expression.
+	 * @param stack the expression stack to use.
+	 * @param context the mutable variable context to use.
+	 * @param out the output value (returned value, top of stack, or literal value encapsulated).
+	 */
+	void execute(ExpressionStack stack, ExpressionVariableContext context, ExpressionValue out)
+	{
+		if (value != null)
+		{
+			out.set(value);
+			return;
+		}
+
+		nodes.execute(stack, context);
+		ExpressionValue value;
+		if ((value = context.get(Expression.RETURN_VARIABLE)) != null)
+			out.set(value);
+		else if (stack.isEmpty())
+			out.set(false);
+		else
+			out.set(stack.peek());
+	}
+
+	/**
+	 * Checks if this expression is a single value.
+	 * @return true if so, false if not.
+	 */
+	public boolean isValue()
+	{
+		return value != null;
+	}
+
+	/**
+	 * Returns the high bits of the structural hash of the expression that this was compiled from.
+	 * @return the high 64 bits of the hash.
+	 */
+	public long getHashHigh()
+	{
+		return hashHigh;
+	}
+
+	/**
+	 * Returns the low bits of the structural hash of the expression that this was compiled from.
+	 * @return the low 64 bits of the hash.
+	 */
+	public long getHashLow()
+	{
+		return hashLow;
+	}
+
+	/**
+	 * @return the source of the expression that this was compiled from, or null if not parsed.
+	 */
+	public String getSource()
+	{
+		return source;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (!(obj instanceof CompiledExpression))
+			return false;
+		CompiledExpression other = (CompiledExpression)obj;
+		return this.hashHigh == other.hashHigh && this.hashLow == other.hashLow;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return (int)(hashLow ^ (hashLow >>> 32));
+	}
+
+	@Override
+	public String toString()
+	{
+		if (value != null)
+			return value.asString();
+		else if (source != null)
+			return source;
+		else
+			return "hash:" + String.format("%016x%016x", hashHigh, hashLow);
+	}
+
+}
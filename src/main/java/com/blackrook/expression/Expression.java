@@ -9,11 +9,14 @@ package com.blackrook.expression;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import com.blackrook.expression.exception.ExpressionException;
 import com.blackrook.expression.node.ExpressionBranch;
+import com.blackrook.expression.node.ExpressionDecision;
+import com.blackrook.expression.struct.StructuralHash;
 import com.blackrook.expression.struct.Utils;
 
 /**
@@ -26,8 +29,8 @@ public class Expression
 	/** Return variable name. */
 	public static final String RETURN_VARIABLE = "-0. Return .0-";
 
-	/** Map of internalized expressions. */
-	private static final Map<String, Expression> EXPRESSION_INTERN_MAP;
+	/** Pool of internalized expressions. */
+	private static volatile ExpressionInternPool internPool;
 
 	/** Expression: literal true. */
 	public static final Expression TRUE;
@@ -48,7 +51,7 @@ public class Expression
 
 	static
 	{
-		EXPRESSION_INTERN_MAP = new HashMap<>(32);
+		internPool = new ExpressionInternPool();
 		TRUE = Expression.create(true).intern();
 		FALSE = Expression.create(false).intern();
 		FLOAT_0 = Expression.create(0.0).intern();
@@ -59,8 +62,15 @@ public class Expression
 		NAN = Expression.create(Double.NaN).intern();
 	}
 	
-	/** Expression digest - used to find duplicate system expressions. */
-	private String digest;
+	/** Expression structural hash, high bits - used to find duplicate expressions. */
+	private long hashHigh;
+	/** Expression structural hash, low bits - used to find duplicate expressions. */
+	private long hashLow;
+	/** Expression SHA-1 digest, calculated on request. */
+	private volatile String digest;
+	/** Publisher for the digest. */
+	private static final AtomicReferenceFieldUpdater<Expression, String> DIGEST_UPDATER =
+		AtomicReferenceFieldUpdater.newUpdater(Expression.class, String.class, "digest");
 	
 	// Of the following, only one of the two will be null.
 	
@@ -70,6 +80,8 @@ public class Expression
 	private ExpressionNode nodes;
 	/** Expression source if parsed. */
 	private String source;
+	/** Deferred work, if created lazily, else null. */
+	private final Lazy lazy;
 	
 	// Private constructor.
 	private Expression(ExpressionValue value, ExpressionBranch nodes)
@@ -77,6 +89,17 @@ public class Expression
 		this.value = value;
 		this.nodes = nodes;
 		this.source = null;
+		this.lazy = null;
+		calculateHash();
+	}
+	
+	// Private constructor.
+	private Expression(Lazy lazy)
+	{
+		this.value = null;
+		this.nodes = null;
+		this.source = null;
+		this.lazy = lazy;
 	}
 	
 	/**
@@ -129,6 +152,27 @@ public class Expression
 		return new Expression(null, ExpressionBranch.create(nodes));
 	}
 
+	/**
+	 * Creates an expression from a root branch.
+	 * @param root the root branch.
+	 * @return a new expression.
+	 */
+	static Expression create(ExpressionBranch root)
+	{
+		return new Expression(null, root);
+	}
+
+	/**
+	 * Creates an expression whose optimization, collapsing, and structural hash are deferred until it is first used.
+	 * @param nodes the list of expression nodes.
+	 * @param optimize if true, the nodes are optimized via {@link ExpressionDecision#optimize(ExpressionNode[])}.
+	 * @return a new expression.
+	 */
+	static Expression createLazy(ExpressionNode[] nodes, boolean optimize)
+	{
+		return new Expression(new Lazy(nodes, optimize));
+	}
+
 	/**
 	 * Evaluates this expression.
 	 * @param stack the expression stack to use.
@@ -136,6 +180,13 @@ public class Expression
 	 * @param out the output value (returned value, top of stack, or literal value encapsulated).
 	 */
 	public void evaluate(ExpressionStack stack, ExpressionVariableContext context, ExpressionValue out)
+	{
+		prepare();
+		run(stack, context, out);
+	}
+	
+	// Evaluates this expression, once prepared.
+	private void run(ExpressionStack stack, ExpressionVariableContext context, ExpressionValue out)
 	{
 		if (value != null)
 		{
@@ -161,12 +212,13 @@ public class Expression
 	 */
 	public void evaluate(ExpressionVariableContext context, ExpressionValue out)
 	{
+		prepare();
 		if (value != null)
 		{
 			out.set(value);
 			return;
 		}
-		evaluate(new ExpressionStack(), context, out);
+		run(new ExpressionStack(), context, out);
 	}
 	
 	/**
@@ -176,12 +228,13 @@ public class Expression
 	 */
 	public void evaluate(ExpressionValue out)
 	{
+		prepare();
 		if (value != null)
 		{
 			out.set(value);
 			return;
 		}
-		evaluate(new ExpressionStack(), new ExpressionVariableContext(), out);
+		run(new ExpressionStack(), new ExpressionVariableContext(), out);
 	}
 
 	/**
@@ -191,13 +244,14 @@ public class Expression
 	 */
 	public ExpressionValue evaluate()
 	{
+		prepare();
 		ExpressionValue out = ExpressionValue.create(false);
 		if (value != null)
 		{
 			out.set(value);
 			return out;
 		}
-		evaluate(new ExpressionStack(), new ExpressionVariableContext(), out);
+		run(new ExpressionStack(), new ExpressionVariableContext(), out);
 		return out;
 	}
 	
@@ -207,13 +261,21 @@ public class Expression
 	 * @see #isCollapsible()
 	 */
 	public void collapse()
+	{
+		prepare();
+		collapseNodes();
+	}
+
+	// Collapses this expression, once prepared.
+	private void collapseNodes()
 	{
 		ExpressionValue out = ExpressionValue.create(false);
-		evaluate(out);
+		run(new ExpressionStack(), new ExpressionVariableContext(), out);
 		this.value = out;
 		this.nodes = null;
+		calculateHash();
 		if (digest != null)
-			getDigest();
+			getDigest(true);
 	}
 
 	/**
@@ -222,6 +284,7 @@ public class Expression
 	 */
 	public boolean isCollapsible()
 	{
+		prepare();
 		// already collapsed? Return true anyway. Why not?
 		if (value != null)
 			return true;
@@ -235,9 +298,28 @@ public class Expression
 	 */
 	public boolean isValue()
 	{
+		prepare();
 		return value != null;
 	}
 
+	/**
+	 * @return the literal value of this expression, or null if this is not just a value.
+	 */
+	ExpressionValue getValue()
+	{
+		prepare();
+		return value;
+	}
+	
+	/**
+	 * @return the root node of this expression, or null if this is just a value.
+	 */
+	ExpressionNode getRootNode()
+	{
+		prepare();
+		return nodes;
+	}
+	
 	/**
 	 * Sets the source code.
 	 * @param source
@@ -256,13 +338,51 @@ public class Expression
 		return source;
 	}
 	
+	// Calculates the structural hash.
+	private void calculateHash()
+	{
+		StructuralHash hash = new StructuralHash();
+		if (value != null)
+			value.writeHash(hash);
+		else
+			nodes.writeHash(hash);
+		hash.finish();
+		this.hashHigh = hash.getHigh();
+		this.hashLow = hash.getLow();
+	}
+	
 	/**
-	 * Gets the SHA-1 digest of this expression, in order to find duplicates.
-	 * Within the Universe of all expressions, this digest should be sufficient enough
-	 * to find equal expressions.
+	 * Gets the high 64 bits of this expression's 128-bit structural hash.
+	 * Expressions with the same structure have the same hash, which is calculated when this is created.
+	 * @return the high bits of the hash.
+	 * @see #getHashLow()
+	 */
+	public long getHashHigh()
+	{
+		prepare();
+		return hashHigh;
+	}
+	
+	/**
+	 * Gets the low 64 bits of this expression's 128-bit structural hash.
+	 * Expressions with the same structure have the same hash, which is calculated when this is created.
+	 * @return the low bits of the hash.
+	 * @see #getHashHigh()
+	 */
+	public long getHashLow()
+	{
+		prepare();
+		return hashLow;
+	}
+	
+	/**
+	 * Gets the SHA-1 digest of this expression.
 	 * Under the covers, this calculates the digest if it hasn't been calculated, yet.
 	 * If it has, it returns the previously calculated digest.
+	 * Finding equal expressions uses the cheaper structural hash, not this.
 	 * @return the SHA-1 digest.
+	 * @see #getHashHigh()
+	 * @see #getHashLow()
 	 */
 	public String getDigest()
 	{
@@ -270,59 +390,103 @@ public class Expression
 	}
 	
 	/**
-	 * Gets the SHA1 digest of this expression, in order to find duplicates.
+	 * Gets the SHA-1 digest of this expression's serialized form, as a hex string.
+	 * Unlike the structural hash, this is a cryptographic fingerprint of the expression's bytes,
+	 * suitable for identifying it outside of this program (for example, in stored or transmitted data).
 	 * @param forceRecalc if true, forces a recalculation before return.
-	 * @return a byte array of the digest.
+	 * @return the digest as a hex string.
 	 * @throws ExpressionException if the digest could not be calculated for some reason.
 	 */
 	public String getDigest(boolean forceRecalc)
 	{
-		if (!forceRecalc && digest != null)
-			return digest;
+		prepare();
+		String out = digest;
+		if (!forceRecalc && out != null)
+			return out;
 		
-		synchronized (this)
-		{
-			if (digest != null)
-				return digest;
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try {
+			if (value != null)
+				value.writeBytes(bos);
 			else
-			{
-				ByteArrayOutputStream bos = new ByteArrayOutputStream();
-				try {
-					if (value != null)
-						value.writeBytes(bos);
-					else
-						nodes.writeBytes(bos);
-				} catch (IOException e) {
-					throw new ExpressionException("The digest could not be calculated!", e);
-				}
-				
-				StringBuilder sb = new StringBuilder();
-				for (byte b : Utils.sha1(bos.toByteArray()))
-					sb.append(String.format("%02x", b));
-				
-				return (digest = sb.toString());
-			}
-			
+				nodes.writeBytes(bos);
+		} catch (IOException e) {
+			throw new ExpressionException("The digest could not be calculated!", e);
+		}
+		
+		StringBuilder sb = new StringBuilder();
+		for (byte b : Utils.sha1(bos.toByteArray()))
+			sb.append(String.format("%02x", b));
+		out = sb.toString();
+		
+		if (forceRecalc)
+		{
+			digest = out;
+			return out;
 		}
 		
+		// No lock: threads racing here calculate the same digest, and the first one published wins.
+		return DIGEST_UPDATER.compareAndSet(this, null, out) ? out : digest;
+	}
+	
+	/**
+	 * Writes this expression in compiled form, which can be read back without parsing.
+	 * The optimized nodes are written, plus the source, if any.
+	 * @param out the output stream to write to.
+	 * @throws IOException if a write error occurs.
+	 * @throws ExpressionException if this expression contains a node type that cannot be written.
+	 * @see #readCompiled(InputStream, ExpressionFunctionResolver)
+	 */
+	public void writeCompiled(OutputStream out) throws IOException
+	{
+		ExpressionSerializer.write(this, out);
+	}
+	
+	/**
+	 * Reads an expression written via {@link #writeCompiled(OutputStream)}.
+	 * The expression returned may be a reference to an expression read or parsed before, due to intern-ing it.
+	 * @param in the input stream to read from.
+	 * @param resolver the function resolver for the functions that the expression calls. 
+	 * 		It must have the same functions, by name, argument count, and collapsability, as the one that the expression was parsed with.
+	 * @return the expression read.
+	 * @throws IOException if a read error occurs.
+	 * @throws ExpressionException if the data is not a compiled expression, is an unsupported version, 
+	 * 		or the resolver's functions do not match.
+	 */
+	public static Expression readCompiled(InputStream in, ExpressionFunctionResolver resolver) throws IOException
+	{
+		return ExpressionSerializer.read(in, resolver).intern();
 	}
 	
 	/**
-	 * Internalizes an expression: adds this expression to an internal bank and returns it, 
+	 * Sets the pool used by {@link #intern()}, which is also used by the parser.
+	 * By default, this is an {@link ExpressionInternPool} with its default maximum size.
+	 * @param pool the new pool, or null to turn off interning.
+	 */
+	public static void setInternPool(ExpressionInternPool pool)
+	{
+		internPool = pool;
+	}
+	
+	/**
+	 * @return the pool used by {@link #intern()}, or null if interning is off.
+	 */
+	public static ExpressionInternPool getInternPool()
+	{
+		return internPool;
+	}
+	
+	/**
+	 * Internalizes an expression: adds this expression to the intern pool and returns it, 
 	 * or returns an existing reference for the same expression already stored.
 	 * @return this expression, or a reference to an equal one. 
+	 * @see #setInternPool(ExpressionInternPool)
 	 */
 	public Expression intern()
 	{
-		String digest = getDigest();
-		Expression out;
-		synchronized (EXPRESSION_INTERN_MAP)
-		{
-			if ((out = EXPRESSION_INTERN_MAP.get(digest)) != null)
-				return out;
-			EXPRESSION_INTERN_MAP.put(digest, out = this);
-		}
-		return out;
+		prepare();
+		ExpressionInternPool pool = internPool;
+		return pool != null ? pool.intern(this) : this;
 	}
 	
 	@Override
@@ -336,24 +500,84 @@ public class Expression
 	
 	/**
 	 * Tests if two expressions are the same.
-	 * Only checks the digests - SHA1 hashes should be good enough.
+	 * Only checks the structural hashes - 128 bits should be good enough.
 	 * @param other the other expression.
 	 * @return true if so, false if not.
 	 */
 	public boolean equals(Expression other)
 	{
-		return this.getDigest().equals(other.getDigest());
+		this.prepare();
+		other.prepare();
+		return this.hashHigh == other.hashHigh && this.hashLow == other.hashLow;
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		prepare();
+		return (int)(hashLow ^ (hashLow >>> 32));
 	}
 	
 	@Override
 	public String toString()
 	{
-		if (isValue())
+		prepare();
+		if (value != null)
 			return value.asString();
 		else if (source != null)
 			return source;
 		else
-			return "digest:" + getDigest();  
+			return "hash:" + String.format("%016x%016x", hashHigh, hashLow);
+	}
+	
+	/**
+	 * Checks if this expression was created lazily and is not prepared yet.
+	 * @return true if so, false if not.
+	 */
+	public boolean isLazy()
+	{
+		return lazy != null && !lazy.done;
+	}
+	
+	// Finishes a lazily created expression (optimize, hash, collapse), once.
+	private void prepare()
+	{
+		Lazy l = lazy;
+		if (l == null || l.done)
+			return;
+		synchronized (l)
+		{
+			if (l.done)
+				return;
+			ExpressionNode[] block = l.optimize ? ExpressionDecision.optimize(l.nodes) : l.nodes;
+			this.nodes = ExpressionBranch.create(block);
+			if (nodes.isCollapsable())
+				collapseNodes();
+			else
+				calculateHash();
+			l.nodes = null;
+			l.done = true;
+		}
+	}
+	
+	/**
+	 * Deferred work for a lazily created expression.
+	 */
+	private static class Lazy
+	{
+		/** The nodes parsed. Guarded by this. */
+		private ExpressionNode[] nodes;
+		/** If true, optimize the nodes. */
+		private boolean optimize;
+		/** If true, the expression is prepared. */
+		private volatile boolean done;
+		
+		Lazy(ExpressionNode[] nodes, boolean optimize)
+		{
+			this.nodes = nodes;
+			this.optimize = optimize;
+			this.done = false;
+		}
 	}
 	
 }
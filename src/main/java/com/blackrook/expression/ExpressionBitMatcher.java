@@ -0,0 +1,372 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import com.blackrook.expression.node.ExpressionDirective;
+import com.blackrook.expression.node.ExpressionDirectiveType;
+
+/**
+ * Bit-parallel rule matcher for {@link ExpressionRuleSet}.
+ * <p>The boolean structure of each rule (logical and, or, not) is rewritten as an "or" of terms,
+ * where each term is an "and" of atoms (any other node) that must be true or false.
+ * Every term gets one bit, and every atom gets a mask of the terms that fail if the atom is true,
+ * and a mask of the terms that fail if it is false. Matching evaluates each atom once,
+ * ORs together the masks for the atom results, and the terms whose bits are still clear are satisfied.
+ * <p>Rules with too many terms are not converted, and are evaluated normally.
+ * @author Matthew Tropiano
+ */
+class ExpressionBitMatcher
+{
+	/** Maximum amount of terms per rule. */
+	static final int MAX_TERMS = 64;
+
+	private static final int[] NO_WORDS = new int[0];
+	private static final long[] NO_BITS = new long[0];
+
+	/** Graph node index for each atom. */
+	private int[] atomNodes;
+	/** Word indices of the terms that fail if the atom is true. */
+	private int[][] trueFailWords;
+	/** Word bits of the terms that fail if the atom is true. */
+	private long[][] trueFailBits;
+	/** Word indices of the terms that fail if the atom is false. */
+	private int[][] falseFailWords;
+	/** Word bits of the terms that fail if the atom is false. */
+	private long[][] falseFailBits;
+	/** Rule index of each term. */
+	private int[] termRules;
+	/** Rules that were not converted. */
+	private int[] fallbackRules;
+	/** Graph nodes that need evaluating, in dependency order. */
+	private int[] evaluationNodes;
+	/** Scratch: failed terms. */
+	private long[] failed;
+
+	// Private constructor.
+	private ExpressionBitMatcher()
+	{
+		// Nothing.
+	}
+
+	/**
+	 * Compiles a matcher for a rule set graph.
+	 * @param nodes the graph nodes.
+	 * @param nodeArguments the graph node arguments.
+	 * @param nodeCount the amount of graph nodes.
+	 * @param ruleNodes the result node for each rule.
+	 * @param ruleCount the amount of rules.
+	 * @return a new matcher.
+	 */
+	static ExpressionBitMatcher compile(ExpressionNode[] nodes, int[][] nodeArguments, int nodeCount, int[] ruleNodes, int ruleCount)
+	{
+		ExpressionBitMatcher out = new ExpressionBitMatcher();
+		List<int[]> terms = new ArrayList<>();
+		List<Integer> termRuleList = new ArrayList<>();
+		List<Integer> fallbackList = new ArrayList<>();
+
+		for (int r = 0; r < ruleCount; r++)
+		{
+			List<int[]> ruleTerms = toTerms(nodes, nodeArguments, ruleNodes[r], true);
+			if (ruleTerms == null)
+			{
+				fallbackList.add(r);
+				continue;
+			}
+			for (int[] term : ruleTerms)
+			{
+				terms.add(term);
+				termRuleList.add(r);
+			}
+		}
+
+		// assign atoms.
+		int[] nodeAtoms = new int[nodeCount];
+		Arrays.fill(nodeAtoms, -1);
+		int atomCount = 0;
+		for (int[] term : terms) for (int literal : term)
+		{
+			int node = literal >>> 1;
+			if (nodeAtoms[node] < 0)
+				nodeAtoms[node] = atomCount++;
+		}
+
+		out.atomNodes = new int[atomCount];
+		for (int i = 0; i < nodeCount; i++)
+			if (nodeAtoms[i] >= 0)
+				out.atomNodes[nodeAtoms[i]] = i;
+
+		// build masks: a positive literal fails its term if the atom is false, a negative one if true.
+		List<List<Integer>> trueFails = new ArrayList<>(atomCount);
+		List<List<Integer>> falseFails = new ArrayList<>(atomCount);
+		for (int i = 0; i < atomCount; i++)
+		{
+			trueFails.add(new ArrayList<Integer>(2));
+			falseFails.add(new ArrayList<Integer>(2));
+		}
+		for (int t = 0; t < terms.size(); t++) for (int literal : terms.get(t))
+		{
+			int atom = nodeAtoms[literal >>> 1];
+			if ((literal & 1) != 0)
+				trueFails.get(atom).add(t);
+			else
+				falseFails.get(atom).add(t);
+		}
+
+		out.trueFailWords = new int[atomCount][];
+		out.trueFailBits = new long[atomCount][];
+		out.falseFailWords = new int[atomCount][];
+		out.falseFailBits = new long[atomCount][];
+		for (int i = 0; i < atomCount; i++)
+		{
+			out.trueFailWords[i] = toWords(trueFails.get(i));
+			out.trueFailBits[i] = toBits(trueFails.get(i), out.trueFailWords[i].length);
+			out.falseFailWords[i] = toWords(falseFails.get(i));
+			out.falseFailBits[i] = toBits(falseFails.get(i), out.falseFailWords[i].length);
+		}
+
+		out.termRules = new int[termRuleList.size()];
+		for (int i = 0; i < out.termRules.length; i++)
+			out.termRules[i] = termRuleList.get(i);
+		out.fallbackRules = new int[fallbackList.size()];
+		for (int i = 0; i < out.fallbackRules.length; i++)
+			out.fallbackRules[i] = fallbackList.get(i);
+		out.failed = new long[(out.termRules.length + 63) >>> 6];
+
+		// gather every node the atoms and fallback rules depend on.
+		boolean[] needed = new boolean[nodeCount];
+		int[] stack = new int[nodeCount];
+		int top = 0;
+		for (int i = 0; i < atomCount; i++)
+			top = pushNeeded(needed, stack, top, out.atomNodes[i]);
+		for (int i = 0; i < out.fallbackRules.length; i++)
+			top = pushNeeded(needed, stack, top, ruleNodes[out.fallbackRules[i]]);
+		while (top > 0)
+		{
+			int[] arguments = nodeArguments[stack[--top]];
+			for (int i = 0; i < arguments.length; i++)
+				top = pushNeeded(needed, stack, top, arguments[i]);
+		}
+		int neededCount = 0;
+		for (int i = 0; i < nodeCount; i++)
+			if (needed[i])
+				neededCount++;
+		out.evaluationNodes = new int[neededCount];
+		for (int i = 0, n = 0; i < nodeCount; i++)
+			if (needed[i])
+				out.evaluationNodes[n++] = i;
+
+		return out;
+	}
+
+	/**
+	 * @return the graph nodes that need to be evaluated before {@link #match(ExpressionValue[], int[], BitSet)}, in dependency order.
+	 */
+	int[] getEvaluationNodes()
+	{
+		return evaluationNodes;
+	}
+
+	/**
+	 * @return the amount of distinct atoms.
+	 */
+	int getAtomCount()
+	{
+		return atomNodes.length;
+	}
+
+	/**
+	 * Sets the bits of the matched rules.
+	 * @param nodeResults the evaluated graph node results.
+	 * @param ruleNodes the result node for each rule.
+	 * @param out the output set of rule bits.
+	 */
+	void match(ExpressionValue[] nodeResults, int[] ruleNodes, BitSet out)
+	{
+		Arrays.fill(failed, 0L);
+		for (int a = 0; a < atomNodes.length; a++)
+		{
+			int[] words;
+			long[] bits;
+			if (nodeResults[atomNodes[a]].asBoolean())
+			{
+				words = trueFailWords[a];
+				bits = trueFailBits[a];
+			}
+			else
+			{
+				words = falseFailWords[a];
+				bits = falseFailBits[a];
+			}
+			for (int i = 0; i < words.length; i++)
+				failed[words[i]] |= bits[i];
+		}
+
+		for (int w = 0; w < failed.length; w++)
+		{
+			long passed = ~failed[w];
+			if (w == failed.length - 1 && (termRules.length & 63) != 0)
+				passed &= (1L << (termRules.length & 63)) - 1;
+			while (passed != 0L)
+			{
+				int bit = Long.numberOfTrailingZeros(passed);
+				out.set(termRules[(w << 6) + bit]);
+				passed &= passed - 1;
+			}
+		}
+
+		for (int i = 0; i < fallbackRules.length; i++)
+			if (nodeResults[ruleNodes[fallbackRules[i]]].asBoolean())
+				out.set(fallbackRules[i]);
+	}
+
+	// Marks a node as needed and pushes it, if not already needed. Returns the new stack top.
+	private static int pushNeeded(boolean[] needed, int[] stack, int top, int node)
+	{
+		if (!needed[node])
+		{
+			needed[node] = true;
+			stack[top++] = node;
+		}
+		return top;
+	}
+
+	// Converts sorted term indices to sparse word indices.
+	private static int[] toWords(List<Integer> termList)
+	{
+		if (termList.isEmpty())
+			return NO_WORDS;
+		int count = 0;
+		int last = -1;
+		for (int t : termList)
+		{
+			if ((t >>> 6) != last)
+			{
+				last = t >>> 6;
+				count++;
+			}
+		}
+		int[] out = new int[count];
+		last = -1;
+		int i = -1;
+		for (int t : termList)
+		{
+			if ((t >>> 6) != last)
+			{
+				last = t >>> 6;
+				out[++i] = last;
+			}
+		}
+		return out;
+	}
+
+	// Converts sorted term indices to sparse word bits.
+	private static long[] toBits(List<Integer> termList, int wordCount)
+	{
+		if (termList.isEmpty())
+			return NO_BITS;
+		long[] out = new long[wordCount];
+		int last = -1;
+		int i = -1;
+		for (int t : termList)
+		{
+			if ((t >>> 6) != last)
+			{
+				last = t >>> 6;
+				i++;
+			}
+			out[i] |= 1L << (t & 63);
+		}
+		return out;
+	}
+
+	// Gets the directive type of a graph node, or null if not a directive.
+	private static ExpressionDirectiveType getDirectiveType(ExpressionNode[] nodes, int node)
+	{
+		return nodes[node] instanceof ExpressionDirective ? ((ExpressionDirective)nodes[node]).getType() : null;
+	}
+
+	/*
+	 * Converts the boolean structure under a node to a list of terms ("or" of "and"s).
+	 * Each term is a sorted array of literals (node index shifted left once, low bit set if the node must be false).
+	 * Returns null if there would be too many terms.
+	 */
+	private static List<int[]> toTerms(ExpressionNode[] nodes, int[][] nodeArguments, int node, boolean positive)
+	{
+		ExpressionDirectiveType type = getDirectiveType(nodes, node);
+		if (type == ExpressionDirectiveType.LOGICAL_NOT)
+			return toTerms(nodes, nodeArguments, nodeArguments[node][0], !positive);
+
+		if (type == ExpressionDirectiveType.LOGICAL_AND || type == ExpressionDirectiveType.LOGICAL_OR)
+		{
+			List<int[]> left = toTerms(nodes, nodeArguments, nodeArguments[node][0], positive);
+			if (left == null)
+				return null;
+			List<int[]> right = toTerms(nodes, nodeArguments, nodeArguments[node][1], positive);
+			if (right == null)
+				return null;
+
+			// and, or "not" of an or, is a product.
+			if ((type == ExpressionDirectiveType.LOGICAL_AND) == positive)
+			{
+				List<int[]> out = new ArrayList<>();
+				for (int[] a : left) for (int[] b : right)
+				{
+					int[] term = mergeTerms(a, b);
+					if (term == null)
+						continue;
+					if (out.size() == MAX_TERMS)
+						return null;
+					out.add(term);
+				}
+				return out;
+			}
+			// or, or "not" of an and, is a union.
+			else
+			{
+				if (left.size() + right.size() > MAX_TERMS)
+					return null;
+				List<int[]> out = new ArrayList<>(left);
+				out.addAll(right);
+				return out;
+			}
+		}
+
+		List<int[]> out = new ArrayList<>(1);
+		out.add(new int[]{(node << 1) | (positive ? 0 : 1)});
+		return out;
+	}
+
+	// Merges two sorted terms. Returns null if the result can never be true.
+	private static int[] mergeTerms(int[] a, int[] b)
+	{
+		int[] out = new int[a.length + b.length];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length || j < b.length)
+		{
+			int literal;
+			if (j >= b.length || (i < a.length && a[i] <= b[j]))
+				literal = a[i++];
+			else
+				literal = b[j++];
+
+			if (n > 0 && out[n - 1] == literal)
+				continue;
+			// same node, opposite polarity.
+			if (n > 0 && (out[n - 1] >>> 1) == (literal >>> 1))
+				return null;
+			out[n++] = literal;
+		}
+		return n == out.length ? out : Arrays.copyOf(out, n);
+	}
+
+}
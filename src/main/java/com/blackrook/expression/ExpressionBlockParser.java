@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.blackrook.expression.exception.ExpressionParseException;
+import com.blackrook.expression.struct.StructuralHash;
+
+/**
+ * An incremental parser for an expression block that is parsed again after each edit, like in an editor.
+ * The block is split into its top-level statements, and each statement is keyed by a digest of its source.
+ * Statements that did not change since the last parse reuse their compiled (and optimized) nodes,
+ * so only edited statements are parsed again before the block is rebuilt from its statements.
+ * Statements are only searched for between the unchanged start and end of the source.
+ * <p>The expressions returned are the same as the ones returned by
+ * {@link ExpressionFactory#parseExpressionBlock(String, ExpressionFunctionResolver)}.
+ * If a statement does not parse, the whole block is parsed, so that errors are the same as well.
+ * <p>This class is not thread-safe.
+ * @author Matthew Tropiano
+ */
+public class ExpressionBlockParser
+{
+	/** The resolver object for resolving functions. */
+	private ExpressionFunctionResolver resolver;
+	/** Compiled statements from the last parse, by digest. */
+	private Map<Key, ExpressionNode[]> statements;
+	/** Hash for statement digests. */
+	private StructuralHash hash;
+
+	/** The source of the last parse, or null to find all statements again. */
+	private String lastSource;
+	/** Start and end offsets of each statement in the last parse, two per statement. */
+	private int[] bounds;
+	/** Digest of each statement in the last parse. */
+	private Key[] keys;
+	/** Amount of offsets in bounds. */
+	private int boundCount;
+
+	/** Amount of statements in the last parse. */
+	private int statementCount;
+	/** Amount of statements reused in the last parse. */
+	private int reusedCount;
+
+	/**
+	 * Creates a new block parser.
+	 * @param resolver the resolver object for resolving functions in the script.
+	 */
+	public ExpressionBlockParser(ExpressionFunctionResolver resolver)
+	{
+		this.resolver = resolver;
+		this.statements = new HashMap<>();
+		this.hash = new StructuralHash();
+		this.lastSource = null;
+		this.bounds = new int[0];
+		this.keys = new Key[0];
+		this.boundCount = 0;
+		this.statementCount = 0;
+		this.reusedCount = 0;
+	}
+
+	/**
+	 * Parses an expression block, reusing the statements that did not change since the last parse.
+	 * The expression returned may be a reference to an expression parsed before, due to intern-ing it.
+	 * @param source the block source.
+	 * @return the expression parsed.
+	 * @throws ExpressionParseException if a parse error occurs.
+	 */
+	public Expression parse(String source)
+	{
+		findStatements(source);
+
+		Map<Key, ExpressionNode[]> current = new HashMap<>();
+		int nodeCount = 0;
+		int reused = 0;
+		ExpressionNode[][] compiled = new ExpressionNode[boundCount / 2][];
+		for (int i = 0; i < compiled.length; i++)
+		{
+			ExpressionNode[] nodes;
+			if ((nodes = current.get(keys[i])) != null || (nodes = statements.get(keys[i])) != null)
+			{
+				reused++;
+			}
+			else try {
+				nodes = ExpressionFactory.parseStatements(source.substring(bounds[i * 2], bounds[i * 2 + 1]), resolver);
+			} catch (ExpressionParseException e) {
+				// keep what was parsed for the next try, and parse the whole block for its error.
+				statements.putAll(current);
+				lastSource = null;
+				statementCount = 0;
+				reusedCount = 0;
+				return ExpressionFactory.parseExpressionBlock(source, resolver);
+			}
+			current.put(keys[i], nodes);
+			compiled[i] = nodes;
+			nodeCount += nodes.length;
+		}
+
+		ExpressionNode[] nodes = new ExpressionNode[nodeCount];
+		int n = 0;
+		for (int i = 0; i < compiled.length; i++)
+		{
+			System.arraycopy(compiled[i], 0, nodes, n, compiled[i].length);
+			n += compiled[i].length;
+		}
+
+		statements = current;
+		lastSource = source;
+		statementCount = compiled.length;
+		reusedCount = reused;
+
+		Expression expression = Expression.create(nodes);
+		if (expression.isCollapsible())
+			expression.collapse();
+		expression = expression.intern();
+		expression.setSource(source);
+		return expression;
+	}
+
+	/**
+	 * Forgets all compiled statements, so that the next parse parses every statement.
+	 */
+	public void clear()
+	{
+		statements.clear();
+		lastSource = null;
+	}
+
+	/**
+	 * @return the amount of top-level statements in the last block parsed, or 0 if it did not parse statement by statement.
+	 */
+	public int getStatementCount()
+	{
+		return statementCount;
+	}
+
+	/**
+	 * @return the amount of top-level statements reused from the parse before the last one.
+	 */
+	public int getReusedStatementCount()
+	{
+		return reusedCount;
+	}
+
+	// Finds the statements in a source and their digests.
+	// Only the source between the unchanged start and end of the last source parsed is searched.
+	private void findStatements(String source)
+	{
+		int[] lastBounds = bounds;
+		Key[] lastKeys = keys;
+		int lastCount = lastSource != null ? boundCount : 0;
+		int lastLength = lastSource != null ? lastSource.length() : 0;
+
+		// unchanged start and end.
+		int prefix = 0;
+		int suffix = 0;
+		if (lastSource != null)
+		{
+			int max = Math.min(lastLength, source.length());
+			while (prefix < max && lastSource.charAt(prefix) == source.charAt(prefix))
+				prefix++;
+			while (suffix < max - prefix && lastSource.charAt(lastLength - suffix - 1) == source.charAt(source.length() - suffix - 1))
+				suffix++;
+		}
+
+		this.bounds = new int[Math.max(lastCount + 16, 16)];
+		this.keys = new Key[bounds.length / 2];
+		this.boundCount = 0;
+
+		// keep the statements at the start if the statement after each one is unchanged, too.
+		int kept = 0;
+		while (kept + 2 < lastCount && lastBounds[kept + 3] <= prefix)
+			kept += 2;
+		System.arraycopy(lastBounds, 0, bounds, 0, kept);
+		System.arraycopy(lastKeys, 0, keys, 0, kept / 2);
+		boundCount = kept;
+
+		int offset = kept > 0 ? bounds[kept - 1] : 0;
+		int shift = source.length() - lastLength;
+		int[] found = new int[2];
+		while (ExpressionFactory.findStatement(source, offset, found))
+		{
+			// starts where a statement started in the unchanged end? The rest are the same, moved.
+			int lastStart = found[0] - shift;
+			int last;
+			if (lastStart >= lastLength - suffix && (last = findStart(lastBounds, lastCount, lastStart)) >= 0)
+			{
+				for (int i = last; i < lastCount; i += 2)
+					addStatement(lastBounds[i] + shift, lastBounds[i + 1] + shift, lastKeys[i / 2]);
+				break;
+			}
+
+			hash.reset().putString(source.substring(found[0], found[1])).finish();
+			addStatement(found[0], found[1], new Key(hash.getHigh(), hash.getLow()));
+			offset = found[1];
+		}
+	}
+
+	// Adds a found statement.
+	private void addStatement(int start, int end, Key key)
+	{
+		if (boundCount + 2 > bounds.length)
+		{
+			bounds = Arrays.copyOf(bounds, bounds.length * 2);
+			keys = Arrays.copyOf(keys, bounds.length / 2);
+		}
+		keys[boundCount / 2] = key;
+		bounds[boundCount++] = start;
+		bounds[boundCount++] = end;
+	}
+
+	// Finds the index of a statement's start offset in a bounds array, or -1.
+	private static int findStart(int[] bounds, int count, int start)
+	{
+		int lo = 0;
+		int hi = count / 2 - 1;
+		while (lo <= hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			int midStart = bounds[mid * 2];
+			if (midStart < start)
+				lo = mid + 1;
+			else if (midStart > start)
+				hi = mid - 1;
+			else
+				return mid * 2;
+		}
+		return -1;
+	}
+
+	/**
+	 * A statement digest key.
+	 */
+	private static class Key
+	{
+		private long high;
+		private long low;
+
+		Key(long high, long low)
+		{
+			this.high = high;
+			this.low = low;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (int)(low ^ (low >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key)obj;
+			return high == other.high && low == other.low;
+		}
+	}
+
+}
@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded concurrent map with hit, miss, and eviction statistics,
+ * used by {@link ExpressionInternPool} and {@link ExpressionParseCache}.
+ * <p>When the map is over its maximum size, entries are evicted via the "second chance" algorithm: a hand sweeps over
+ * the entries, and entries that were used since the hand last passed them are skipped once.
+ * Only one thread evicts at a time. Threads that add entries while another thread is evicting do not wait for it,
+ * so the map can briefly hold a few more entries than its maximum size.
+ * <p>Optionally, values can be held via weak references, so that values that are
+ * no longer used anywhere else are removed when garbage collected.
+ * <p>This class is thread-safe.
+ * @author Matthew Tropiano
+ * @param <K> the key type.
+ * @param <V> the value type.
+ */
+class ExpressionCacheMap<K, V>
+{
+	/** Maximum amount of entries. */
+	private int maxSize;
+	/** If true, values are weakly held. */
+	private boolean weak;
+	/** Map of key to entry. */
+	private ConcurrentHashMap<K, Entry<K, V>> map;
+	/** Queue of cleared weak references. */
+	private ReferenceQueue<V> referenceQueue;
+	/** Set while a thread is evicting. Guards the hand. */
+	private AtomicBoolean evicting;
+	/** Eviction hand. */
+	private Iterator<Entry<K, V>> hand;
+
+	/** Lookups that found a value. */
+	private LongAdder hitCount;
+	/** Lookups that did not find a value. */
+	private LongAdder missCount;
+	/** Entries removed to make room. */
+	private LongAdder evictionCount;
+
+	/**
+	 * Creates a new map.
+	 * @param maxSize the maximum amount of entries to hold.
+	 * @param weak if true, values are held via weak references.
+	 */
+	ExpressionCacheMap(int maxSize, boolean weak)
+	{
+		if (maxSize < 1)
+			maxSize = 1;
+		this.maxSize = maxSize;
+		this.weak = weak;
+		this.map = new ConcurrentHashMap<>();
+		this.referenceQueue = weak ? new ReferenceQueue<V>() : null;
+		this.evicting = new AtomicBoolean(false);
+		this.hand = null;
+		this.hitCount = new LongAdder();
+		this.missCount = new LongAdder();
+		this.evictionCount = new LongAdder();
+	}
+
+	/**
+	 * Gets a value, and marks it as used.
+	 * @param key the key.
+	 * @return the value, or null if there is none.
+	 */
+	V get(K key)
+	{
+		purge();
+		Entry<K, V> entry = map.get(key);
+		V out;
+		if (entry != null && (out = entry.getValue()) != null)
+		{
+			entry.referenced = true;
+			hitCount.increment();
+			return out;
+		}
+		missCount.increment();
+		return null;
+	}
+
+	/**
+	 * Adds a value if there is no value for its key, and evicts entries if this map is then over its maximum size.
+	 * @param key the key.
+	 * @param value the value.
+	 * @return the existing value, which is marked as used, or null if the value was added.
+	 */
+	V putIfAbsent(K key, V value)
+	{
+		Entry<K, V> created = new Entry<>(key, value, weak, referenceQueue);
+		Entry<K, V> entry;
+		while ((entry = map.putIfAbsent(key, created)) != null)
+		{
+			V out;
+			if ((out = entry.getValue()) != null)
+			{
+				entry.referenced = true;
+				return out;
+			}
+			// replace a garbage-collected entry.
+			if (map.replace(key, entry, created))
+				break;
+		}
+
+		if (map.size() > maxSize)
+			evict();
+		return null;
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	void clear()
+	{
+		map.clear();
+		if (weak) while (referenceQueue.poll() != null)
+			; // drain.
+	}
+
+	/**
+	 * @return the amount of entries (some values may have been garbage collected, if weakly held).
+	 */
+	int size()
+	{
+		purge();
+		return map.size();
+	}
+
+	/**
+	 * @return the maximum amount of entries.
+	 */
+	int getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * @return true if values are held via weak references, false if not.
+	 */
+	boolean isWeak()
+	{
+		return weak;
+	}
+
+	/**
+	 * @return the amount of lookups that found a value.
+	 */
+	long getHitCount()
+	{
+		return hitCount.sum();
+	}
+
+	/**
+	 * @return the amount of lookups that did not find a value.
+	 */
+	long getMissCount()
+	{
+		return missCount.sum();
+	}
+
+	/**
+	 * @return the amount of entries removed to make room for others.
+	 */
+	long getEvictionCount()
+	{
+		return evictionCount.sum();
+	}
+
+	// Evicts entries until this map is back to its maximum size, unless another thread is evicting.
+	private void evict()
+	{
+		if (!evicting.compareAndSet(false, true))
+			return;
+		try {
+			// at most two sweeps per removal: the first may only clear reference bits.
+			int steps = map.size() * 2 + 1;
+			while (map.size() > maxSize && steps-- > 0)
+			{
+				if (hand == null || !hand.hasNext())
+				{
+					hand = map.values().iterator();
+					if (!hand.hasNext())
+						return;
+				}
+				Entry<K, V> entry = hand.next();
+				if (entry.referenced)
+					entry.referenced = false;
+				else if (map.remove(entry.key, entry))
+				{
+					evictionCount.increment();
+					steps = map.size() * 2 + 1;
+				}
+			}
+		} finally {
+			evicting.set(false);
+		}
+	}
+
+	// Removes the entries of garbage-collected values.
+	@SuppressWarnings("unchecked")
+	private void purge()
+	{
+		if (!weak)
+			return;
+		Reference<? extends V> reference;
+		while ((reference = referenceQueue.poll()) != null)
+		{
+			Entry<K, V> entry = (Entry<K, V>)reference;
+			// might have been replaced already.
+			map.remove(entry.key, entry);
+		}
+	}
+
+	/**
+	 * A map entry, which keeps its key.
+	 * Always a weak reference, but also holds the value strongly if the map is not weak.
+	 */
+	private static class Entry<K, V> extends WeakReference<V>
+	{
+		private K key;
+		private V value;
+		private volatile boolean referenced;
+
+		Entry(K key, V value, boolean weak, ReferenceQueue<V> queue)
+		{
+			super(value, queue);
+			this.key = key;
+			this.value = weak ? null : value;
+			this.referenced = false;
+		}
+
+		V getValue()
+		{
+			return value != null ? value : get();
+		}
+	}
+
+}
@@ -0,0 +1,306 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.blackrook.expression.node.ExpressionBranch;
+import com.blackrook.expression.node.ExpressionDecision;
+import com.blackrook.expression.node.ExpressionDirective;
+import com.blackrook.expression.node.ExpressionDirectiveType;
+import com.blackrook.expression.node.ExpressionFunction;
+
+/**
+ * A set of expressions evaluated against one variable context, where only
+ * the expressions that read changed variables are evaluated again.
+ * <p>Each added expression is scanned for the variables that it reads, and this tracker
+ * listens to its context for changes to those variables, until {@link #detach()} is called.
+ * {@link #recompute()} evaluates only the expressions that are out of date, and keeps the last results for the rest.
+ * <p>Expressions that call functions that are not collapsable (like random number functions) are
+ * always evaluated on recompute, since their results can change without any variable changing.
+ * Variables set by an expression do not cause that expression to be out of date.
+ * @author Matthew Tropiano
+ */
+public class ExpressionDependencyTracker implements ExpressionVariableContext.Listener
+{
+	/** Default capacity. */
+	public static final int DEFAULT_CAPACITY = 16;
+
+	private static final String[] NO_VARIABLES = new String[0];
+
+	/** The variable context. */
+	private ExpressionVariableContext context;
+	/** Expression stack for evaluation. */
+	private ExpressionStack stack;
+
+	/** Expressions. */
+	private Expression[] expressions;
+	/** Last result per expression. */
+	private ExpressionValue[] results;
+	/** Variables read per expression. */
+	private String[][] variables;
+	/** Expressions that are always evaluated. */
+	private BitSet volatileExpressions;
+	/** Expressions that are out of date. */
+	private BitSet dirty;
+	/** Amount of expressions. */
+	private int expressionCount;
+	/** Map of variable name to the expressions that read it. */
+	private Map<String, int[]> dependents;
+	/** Expression currently being evaluated, or -1 if none. */
+	private int current;
+
+	/**
+	 * Creates a new tracker on a context.
+	 * @param context the variable context to evaluate against and listen to.
+	 */
+	public ExpressionDependencyTracker(ExpressionVariableContext context)
+	{
+		this(context, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new tracker on a context.
+	 * @param context the variable context to evaluate against and listen to.
+	 * @param capacity the initial expression capacity.
+	 */
+	public ExpressionDependencyTracker(ExpressionVariableContext context, int capacity)
+	{
+		if (capacity < 1)
+			capacity = 1;
+		this.context = context;
+		this.stack = new ExpressionStack();
+		this.expressions = null;
+		this.results = null;
+		this.variables = null;
+		this.volatileExpressions = new BitSet();
+		this.dirty = new BitSet();
+		this.expressionCount = 0;
+		this.dependents = new HashMap<>();
+		this.current = -1;
+		expand(capacity);
+		context.addListener(this);
+	}
+
+	/**
+	 * Stops listening to the context for variable changes.
+	 * After this, expressions are no longer marked out of date when variables change.
+	 */
+	public void detach()
+	{
+		context.removeListener(this);
+	}
+
+	// Expands this.
+	private void expand(int capacity)
+	{
+		expressions = expressions != null ? Arrays.copyOf(expressions, capacity) : new Expression[capacity];
+		variables = variables != null ? Arrays.copyOf(variables, capacity) : new String[capacity][];
+		ExpressionValue[] newResults = new ExpressionValue[capacity];
+		if (results != null)
+			System.arraycopy(results, 0, newResults, 0, results.length);
+		for (int i = results != null ? results.length : 0; i < newResults.length; i++)
+			newResults[i] = ExpressionValue.create(false);
+		results = newResults;
+	}
+
+	/**
+	 * Adds an expression to this tracker.
+	 * It is out of date until the next {@link #recompute()}.
+	 * @param expression the expression to add.
+	 * @return the index of the added expression.
+	 */
+	public int add(Expression expression)
+	{
+		if (expressionCount == expressions.length)
+			expand(expressions.length * 2);
+
+		int index = expressionCount++;
+		expressions[index] = expression;
+
+		Set<String> names = new LinkedHashSet<>();
+		if (!expression.isValue() && !scan(expression.getRootNode(), names))
+			volatileExpressions.set(index);
+
+		String[] read = names.isEmpty() ? NO_VARIABLES : names.toArray(new String[names.size()]);
+		variables[index] = read;
+		for (int i = 0; i < read.length; i++)
+		{
+			int[] list = dependents.get(read[i]);
+			if (list == null)
+				list = new int[]{index};
+			else
+			{
+				list = Arrays.copyOf(list, list.length + 1);
+				list[list.length - 1] = index;
+			}
+			dependents.put(read[i], list);
+		}
+
+		dirty.set(index);
+		return index;
+	}
+
+	/**
+	 * @return the variable context that this evaluates against.
+	 */
+	public ExpressionVariableContext getContext()
+	{
+		return context;
+	}
+
+	/**
+	 * Gets an expression by index.
+	 * @param index the expression index.
+	 * @return the expression.
+	 * @throws ArrayIndexOutOfBoundsException if the index is out of range.
+	 */
+	public Expression get(int index)
+	{
+		if (index < 0 || index >= expressionCount)
+			throw new ArrayIndexOutOfBoundsException(index);
+		return expressions[index];
+	}
+
+	/**
+	 * Gets the variables that an expression reads.
+	 * @param index the expression index.
+	 * @return the variable names. Do not modify the returned array.
+	 * @throws ArrayIndexOutOfBoundsException if the index is out of range.
+	 */
+	public String[] getVariables(int index)
+	{
+		if (index < 0 || index >= expressionCount)
+			throw new ArrayIndexOutOfBoundsException(index);
+		return variables[index];
+	}
+
+	/**
+	 * Gets the result of an expression as of the last {@link #recompute()}.
+	 * @param index the expression index.
+	 * @return the result value. Do not modify it.
+	 * @throws ArrayIndexOutOfBoundsException if the index is out of range.
+	 */
+	public ExpressionValue getResult(int index)
+	{
+		if (index < 0 || index >= expressionCount)
+			throw new ArrayIndexOutOfBoundsException(index);
+		return results[index];
+	}
+
+	/**
+	 * Checks if an expression's result is out of date.
+	 * @param index the expression index.
+	 * @return true if so, false if not.
+	 */
+	public boolean isDirty(int index)
+	{
+		return dirty.get(index) || volatileExpressions.get(index);
+	}
+
+	/**
+	 * Marks every expression as out of date.
+	 */
+	public void invalidate()
+	{
+		dirty.set(0, expressionCount);
+	}
+
+	/**
+	 * @return the amount of expressions in this tracker.
+	 */
+	public int size()
+	{
+		return expressionCount;
+	}
+
+	/**
+	 * @return true if this has no expressions, false if not.
+	 */
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	/**
+	 * Evaluates all of the out-of-date expressions, in the order that they were added.
+	 * If an expression sets a variable read by a later expression, the later one is also evaluated.
+	 * @return the amount of expressions evaluated.
+	 */
+	public int recompute()
+	{
+		dirty.or(volatileExpressions);
+		int count = 0;
+		for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1))
+		{
+			dirty.clear(i);
+			current = i;
+			try {
+				context.remove(Expression.RETURN_VARIABLE);
+				stack.clear();
+				expressions[i].evaluate(stack, context, results[i]);
+				context.remove(Expression.RETURN_VARIABLE);
+			} finally {
+				current = -1;
+			}
+			count++;
+		}
+		return count;
+	}
+
+	@Override
+	public void onVariableChange(String name)
+	{
+		int[] list = dependents.get(name);
+		if (list != null) for (int i = 0; i < list.length; i++)
+			if (list[i] != current)
+				dirty.set(list[i]);
+	}
+
+	// Adds the variables read by a node and its children.
+	// Returns false if the node's results can change without a variable changing.
+	private static boolean scan(ExpressionNode node, Set<String> names)
+	{
+		if (node instanceof ExpressionDirective)
+		{
+			ExpressionDirective directive = (ExpressionDirective)node;
+			if (directive.getType() == ExpressionDirectiveType.PUSH_VARIABLE)
+				names.add(String.valueOf(directive.getOperand()));
+			return true;
+		}
+		else if (node instanceof ExpressionFunction)
+			return ((ExpressionFunction)node).getType().isCollapsable();
+		else if (node instanceof ExpressionBranch)
+		{
+			ExpressionBranch branch = (ExpressionBranch)node;
+			boolean out = scan(branch.getConditional(), names);
+			out = scan(branch.getSuccessBlock(), names) && out;
+			out = scan(branch.getFailureBlock(), names) && out;
+			return out;
+		}
+		else if (node instanceof ExpressionDecision)
+			return scan(((ExpressionDecision)node).getSource(), names);
+		else
+			return false;
+	}
+
+	// Adds the variables read by a block of nodes.
+	private static boolean scan(ExpressionNode[] block, Set<String> names)
+	{
+		boolean out = true;
+		if (block != null) for (int i = 0; i < block.length; i++)
+			out = scan(block[i], names) && out;
+		return out;
+	}
+
+}
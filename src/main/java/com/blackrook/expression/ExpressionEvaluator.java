@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+/**
+ * The mutable state for evaluating {@link CompiledExpression}s: a calculation stack and a variable context,
+ * reused between evaluations so that evaluation does no memory allocations.
+ * Variables set in the context stay set between evaluations until {@link #reset()} is called.
+ * <p>This class is not thread-safe - use one per thread at a time, or borrow them from an {@link ExpressionEvaluatorPool}.
+ * @author Matthew Tropiano
+ */
+public class ExpressionEvaluator
+{
+	/** The calculation stack. */
+	private ExpressionStack stack;
+	/** The variable context. */
+	private ExpressionVariableContext context;
+
+	/**
+	 * Creates a new evaluator.
+	 */
+	public ExpressionEvaluator()
+	{
+		this.stack = new ExpressionStack();
+		this.context = new ExpressionVariableContext();
+	}
+
+	/**
+	 * @return the variable context that expressions are evaluated with, for setting and reading variables.
+	 */
+	public ExpressionVariableContext getContext()
+	{
+		return context;
+	}
+
+	/**
+	 * Sets the cache used for functions that are cacheable.
+	 * @param functionCache the cache, or null for no caching.
+	 * @see ExpressionStack#setFunctionCache(ExpressionFunctionCache)
+	 */
+	public void setFunctionCache(ExpressionFunctionCache functionCache)
+	{
+		stack.setFunctionCache(functionCache);
+	}
+
+	/**
+	 * Evaluates an expression.
+	 * The returned value is not left in the variable context afterward.
+	 * @param expression the expression to evaluate.
+	 * @param out the output value (returned value, top of stack, or literal value encapsulated).
+	 */
+	public void evaluate(CompiledExpression expression, ExpressionValue out)
+	{
+		stack.clear();
+		context.remove(Expression.RETURN_VARIABLE);
+		expression.execute(stack, context, out);
+		context.remove(Expression.RETURN_VARIABLE);
+	}
+
+	/**
+	 * Evaluates an expression.
+	 * Creates a new value for the result.
+	 * @param expression the expression to evaluate.
+	 * @return the output value (returned value, top of stack, or literal value encapsulated).
+	 */
+	public ExpressionValue evaluate(CompiledExpression expression)
+	{
+		ExpressionValue out = ExpressionValue.create(false);
+		evaluate(expression, out);
+		return out;
+	}
+
+	/**
+	 * Resets this evaluator: clears its stack and variables, and removes its function cache.
+	 * Listeners added to its variable context are kept.
+	 */
+	public void reset()
+	{
+		stack.clear();
+		stack.setFunctionCache(null);
+		context.clear();
+	}
+
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free pool of {@link ExpressionEvaluator}s, for sharing them between many threads.
+ * <p>The pool is a table of slots split into stripes. Each thread starts looking in its own stripe (by thread id),
+ * so threads rarely contend for the same slot: an evaluator is taken from a slot or put back into one
+ * with a single compare-and-set. If no evaluator is found, a new one is created, and if no slot is free
+ * when one is released, it is dropped.
+ * <p>Evaluators are reset when released, so variables set by one borrower are not seen by the next.
+ * <pre>
+ * ExpressionEvaluator evaluator = pool.acquire();
+ * try {
+ * 	evaluator.getContext().set("x", 5);
+ * 	evaluator.evaluate(expression, out);
+ * } finally {
+ * 	pool.release(evaluator);
+ * }
+ * </pre>
+ * @author Matthew Tropiano
+ */
+public class ExpressionEvaluatorPool
+{
+	/** Slots in a stripe. */
+	public static final int STRIPE_SIZE = 4;
+	/** Default amount of stripes, per available processor. */
+	public static final int DEFAULT_STRIPES_PER_PROCESSOR = 4;
+
+	/** The slots. */
+	private AtomicReferenceArray<ExpressionEvaluator> slots;
+	/** Stripe mask. */
+	private int mask;
+
+	/**
+	 * Creates a new pool with the default amount of stripes.
+	 * @see #DEFAULT_STRIPES_PER_PROCESSOR
+	 */
+	public ExpressionEvaluatorPool()
+	{
+		this(Runtime.getRuntime().availableProcessors() * DEFAULT_STRIPES_PER_PROCESSOR);
+	}
+
+	/**
+	 * Creates a new pool.
+	 * @param stripes the amount of stripes (rounded up to a power of two).
+	 * The pool holds at most this many times {@link #STRIPE_SIZE} idle evaluators.
+	 */
+	public ExpressionEvaluatorPool(int stripes)
+	{
+		int n = 1;
+		while (n < stripes)
+			n <<= 1;
+		this.slots = new AtomicReferenceArray<>(n * STRIPE_SIZE);
+		this.mask = n - 1;
+	}
+
+	/**
+	 * Takes an evaluator from this pool, or creates one if none are free.
+	 * It should be returned via {@link #release(ExpressionEvaluator)} when done.
+	 * @return an evaluator.
+	 */
+	public ExpressionEvaluator acquire()
+	{
+		// look in the thread's stripe and the one after it.
+		int start = stripe();
+		for (int i = 0; i < STRIPE_SIZE * 2; i++)
+		{
+			int slot = (start + i) % slots.length();
+			ExpressionEvaluator evaluator = slots.get(slot);
+			if (evaluator != null && slots.compareAndSet(slot, evaluator, null))
+				return evaluator;
+		}
+		return new ExpressionEvaluator();
+	}
+
+	/**
+	 * Returns an evaluator to this pool.
+	 * The evaluator is reset, and must not be used by the caller afterward.
+	 * @param evaluator the evaluator to return.
+	 */
+	public void release(ExpressionEvaluator evaluator)
+	{
+		evaluator.reset();
+		int start = stripe();
+		for (int i = 0; i < STRIPE_SIZE * 2; i++)
+		{
+			int slot = (start + i) % slots.length();
+			if (slots.get(slot) == null && slots.compareAndSet(slot, null, evaluator))
+				return;
+		}
+	}
+
+	/**
+	 * Empties this pool.
+	 */
+	public void clear()
+	{
+		for (int i = 0; i < slots.length(); i++)
+			slots.set(i, null);
+	}
+
+	/**
+	 * @return the amount of idle evaluators in this pool.
+	 */
+	public int size()
+	{
+		int out = 0;
+		for (int i = 0; i < slots.length(); i++)
+			if (slots.get(i) != null)
+				out++;
+		return out;
+	}
+
+	// Gets the first slot of the current thread's stripe.
+	private int stripe()
+	{
+		long id = Thread.currentThread().getId();
+		int h = (int)(id ^ (id >>> 32)) * 0x9E3779B9;
+		return ((h ^ (h >>> 16)) & mask) * STRIPE_SIZE;
+	}
+
+}
@@ -7,18 +7,25 @@
  ******************************************************************************/
 package com.blackrook.expression;
 
+import java.io.IOException;
 import java.io.Reader;
-import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.Queue;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import com.blackrook.expression.exception.ExpressionParseException;
 import com.blackrook.expression.node.ExpressionBranch;
+import com.blackrook.expression.node.ExpressionDecision;
 import com.blackrook.expression.node.ExpressionDirective;
 import com.blackrook.expression.node.ExpressionDirectiveType;
 import com.blackrook.expression.node.ExpressionFunction;
 import com.blackrook.expression.node.ExpressionFunctionType;
-import com.blackrook.expression.struct.Lexer;
 
 /**
  * Creates expression objects from input text.
@@ -41,6 +48,31 @@ public final class ExpressionFactory
 		}
 	};
 	
+	/** Maximum amount of sources parsed by one bulk parse task before it splits. */
+	private static final int PARSE_TASK_THRESHOLD = 16;
+	
+	/** Cache of expressions parsed from strings. Can be null. */
+	private static volatile ExpressionParseCache parseCache = null;
+	
+	/**
+	 * Sets the cache checked before parsing expressions from strings.
+	 * By default, there is no cache. A cache holds on to the expressions and function resolvers
+	 * that it was given until they are evicted or the cache is cleared.
+	 * @param cache the new cache, or null for no caching.
+	 */
+	public static void setParseCache(ExpressionParseCache cache)
+	{
+		parseCache = cache;
+	}
+	
+	/**
+	 * @return the cache checked before parsing expressions from strings, or null for no caching.
+	 */
+	public static ExpressionParseCache getParseCache()
+	{
+		return parseCache;
+	}
+	
 	/**
 	 * Parses a single-line expression.
 	 * The expression returned may be a reference to an expression parsed before, due to intern-ing it.
@@ -75,8 +107,14 @@ public final class ExpressionFactory
 	 */
 	public static Expression parseExpression(String inputString, ExpressionFunctionResolver resolver)
 	{
-		Expression e = (new EParser(new StringReader(inputString), resolver)).parseExpressionPhrase();
+		ExpressionParseCache cache = parseCache;
+		Expression e;
+		if (cache != null && (e = cache.get(inputString, resolver, false)) != null)
+			return e;
+		e = (new EParser(inputString, resolver)).parsePhrase();
 		e.setSource(inputString);
+		if (cache != null)
+			cache.put(inputString, resolver, false, e);
 		return e;
 	}
 
@@ -90,7 +128,57 @@ public final class ExpressionFactory
 	 */
 	public static Expression parseExpressionBlock(String inputString, ExpressionFunctionResolver resolver)
 	{
-		Expression e = (new EParser(new StringReader(inputString), resolver)).parseExpressionBlock();
+		ExpressionParseCache cache = parseCache;
+		Expression e;
+		if (cache != null && (e = cache.get(inputString, resolver, true)) != null)
+			return e;
+		e = (new EParser(inputString, resolver)).parseBlock();
+		e.setSource(inputString);
+		if (cache != null)
+			cache.put(inputString, resolver, true, e);
+		return e;
+	}
+
+	/**
+	 * Parses a single-line expression lazily: the input is checked and its nodes are built, but collapsing the expression
+	 * and calculating its structural hash are deferred until it is first used (evaluated, hashed, compared, and so on).
+	 * This is cheaper for expressions that may never be used.
+	 * Expressions parsed this way are not interned, nor added to the parse cache.
+	 * @param inputString the input string to parse from.
+	 * @param resolver the resolver object for resolving functions in the script.
+	 * @return the expression parsed.
+	 * @throws ExpressionParseException if a parse error occurs.
+	 * @see Expression#isLazy()
+	 */
+	public static Expression parseExpressionLazy(String inputString, ExpressionFunctionResolver resolver)
+	{
+		ExpressionParseCache cache = parseCache;
+		Expression e;
+		if (cache != null && (e = cache.get(inputString, resolver, false)) != null)
+			return e;
+		e = Expression.createLazy((new EParser(inputString, resolver)).parseNodes(false), false);
+		e.setSource(inputString);
+		return e;
+	}
+
+	/**
+	 * Parses an expression block (multi-line/statement expression) lazily: the input is checked and its nodes are built,
+	 * but optimizing and collapsing the expression and calculating its structural hash are deferred until it is first used
+	 * (evaluated, hashed, compared, and so on). This is cheaper for expressions that may never be used.
+	 * Expressions parsed this way are not interned, nor added to the parse cache.
+	 * @param inputString the input string to parse from.
+	 * @param resolver the resolver object for resolving functions in the script.
+	 * @return the expression parsed.
+	 * @throws ExpressionParseException if a parse error occurs.
+	 * @see Expression#isLazy()
+	 */
+	public static Expression parseExpressionBlockLazy(String inputString, ExpressionFunctionResolver resolver)
+	{
+		ExpressionParseCache cache = parseCache;
+		Expression e;
+		if (cache != null && (e = cache.get(inputString, resolver, true)) != null)
+			return e;
+		e = Expression.createLazy((new EParser(inputString, resolver)).parseNodes(true), true);
 		e.setSource(inputString);
 		return e;
 	}
@@ -105,7 +193,7 @@ public final class ExpressionFactory
 	 */
 	public static Expression parseExpression(Reader reader, ExpressionFunctionResolver resolver)
 	{
-		Expression e = (new EParser(reader, resolver)).parseExpressionPhrase();
+		Expression e = (new EParser(readAll(reader), resolver)).parsePhrase();
 		return e;
 	}
 
@@ -119,12 +207,273 @@ public final class ExpressionFactory
 	 */
 	public static Expression parseExpressionBlock(Reader reader, ExpressionFunctionResolver resolver)
 	{
-		Expression e = (new EParser(reader, resolver)).parseExpressionBlock();
+		Expression e = (new EParser(readAll(reader), resolver)).parseBlock();
 		return e;
 	}
 
-	private static class EKernel extends Lexer.Kernel
+	/**
+	 * Parses many single-line expressions in parallel, on the common ForkJoin pool.
+	 * Duplicate sources are parsed once. A source that does not parse does not stop the others.
+	 * @param sources the input strings to parse.
+	 * @return a list of results, one per source, in the same order as the sources.
+	 * @see #parseExpression(String)
+	 * @see ForkJoinPool#commonPool()
+	 */
+	public static List<ParseResult> parseAll(Collection<String> sources)
+	{
+		return parseAll(sources, EMPTY_RESOLVER, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Parses many single-line expressions in parallel, on the common ForkJoin pool.
+	 * Duplicate sources are parsed once. A source that does not parse does not stop the others.
+	 * @param sources the input strings to parse.
+	 * @param resolver the resolver object for resolving functions in the scripts.
+	 * @return a list of results, one per source, in the same order as the sources.
+	 * @see #parseExpression(String, ExpressionFunctionResolver)
+	 * @see ForkJoinPool#commonPool()
+	 */
+	public static List<ParseResult> parseAll(Collection<String> sources, ExpressionFunctionResolver resolver)
+	{
+		return parseAll(sources, resolver, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Parses many single-line expressions in parallel, on a specific ForkJoin pool.
+	 * Duplicate sources are parsed once. A source that does not parse does not stop the others.
+	 * @param sources the input strings to parse.
+	 * @param resolver the resolver object for resolving functions in the scripts.
+	 * @param pool the pool to parse on.
+	 * @return a list of results, one per source, in the same order as the sources.
+	 * @see #parseExpression(String, ExpressionFunctionResolver)
+	 */
+	public static List<ParseResult> parseAll(Collection<String> sources, ExpressionFunctionResolver resolver, ForkJoinPool pool)
+	{
+		// remove duplicates, but remember where each source went.
+		Map<String, Integer> indexMap = new HashMap<>();
+		List<String> uniqueList = new ArrayList<>();
+		int[] sourceIndex = new int[sources.size()];
+		int i = 0;
+		for (String source : sources)
+		{
+			Integer index;
+			if ((index = indexMap.get(source)) == null)
+			{
+				index = uniqueList.size();
+				indexMap.put(source, index);
+				uniqueList.add(source);
+			}
+			sourceIndex[i++] = index;
+		}
+
+		String[] uniqueSources = new String[uniqueList.size()];
+		uniqueList.toArray(uniqueSources);
+		ParseResult[] results = new ParseResult[uniqueSources.length];
+		if (uniqueSources.length > 0)
+			pool.invoke(new ParseTask(uniqueSources, resolver, results, 0, uniqueSources.length));
+
+		List<ParseResult> out = new ArrayList<>(sourceIndex.length);
+		for (int index : sourceIndex)
+			out.add(results[index]);
+		return out;
+	}
+
+	/**
+	 * The result of parsing one source via {@link ExpressionFactory#parseAll(Collection, ExpressionFunctionResolver)}.
+	 * Either the expression or the error is set.
+	 */
+	public static final class ParseResult
+	{
+		/** The source parsed. */
+		private String source;
+		/** The expression parsed, or null if error. */
+		private Expression expression;
+		/** The parse error, or null if parsed. */
+		private RuntimeException error;
+		
+		private ParseResult(String source, Expression expression, RuntimeException error)
+		{
+			this.source = source;
+			this.expression = expression;
+			this.error = error;
+		}
+		
+		/**
+		 * @return the source parsed.
+		 */
+		public String getSource()
+		{
+			return source;
+		}
+		
+		/**
+		 * @return the expression parsed, or null if the source did not parse.
+		 */
+		public Expression getExpression()
+		{
+			return expression;
+		}
+		
+		/**
+		 * @return the error thrown while parsing (usually an {@link ExpressionParseException}), or null if the source parsed.
+		 */
+		public RuntimeException getError()
+		{
+			return error;
+		}
+		
+		/**
+		 * @return true if the source did not parse, false if it did.
+		 */
+		public boolean isError()
+		{
+			return error != null;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return error != null ? "ERROR: " + error.getMessage() : String.valueOf(expression);
+		}
+		
+	}
+
+	/**
+	 * Parses a range of sources for a bulk parse.
+	 * Each parse gets its own scanner and parser; the keyword tables are static and read-only.
+	 */
+	private static class ParseTask extends RecursiveAction
 	{
+		private static final long serialVersionUID = -2871326505245326707L;
+
+		private String[] sources;
+		private ExpressionFunctionResolver resolver;
+		private ParseResult[] results;
+		private int start;
+		private int end;
+
+		ParseTask(String[] sources, ExpressionFunctionResolver resolver, ParseResult[] results, int start, int end)
+		{
+			this.sources = sources;
+			this.resolver = resolver;
+			this.results = results;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (end - start <= PARSE_TASK_THRESHOLD)
+			{
+				for (int i = start; i < end; i++)
+				{
+					try {
+						results[i] = new ParseResult(sources[i], parseExpression(sources[i], resolver), null);
+					} catch (RuntimeException e) {
+						results[i] = new ParseResult(sources[i], null, e);
+					}
+				}
+			}
+			else
+			{
+				int mid = (start + end) >>> 1;
+				invokeAll(new ParseTask(sources, resolver, results, start, mid), new ParseTask(sources, resolver, results, mid, end));
+			}
+		}
+
+	}
+
+	/**
+	 * Finds the next top-level statement in an expression block, without parsing it.
+	 * A statement ends after a ";" or "}" that is outside of parentheses and braces, unless an "else" follows it.
+	 * Where a statement ends depends only on the source from where it starts.
+	 * @param input the block source.
+	 * @param offset the offset to search from: the end of the statement before, or 0.
+	 * @param bounds the output for the start and end (exclusive) offsets of the statement.
+	 * @return true if a statement was found, false if the next token cannot start a statement.
+	 * @see ExpressionBlockParser
+	 */
+	static boolean findStatement(CharSequence input, int offset, int[] bounds)
+	{
+		EScanner scanner = new EScanner(input, offset);
+		scanner.next();
+		if (!EParser.isStatementStart(scanner.getType()))
+			return false;
+
+		int start = scanner.getStart();
+		int end = start;
+		int depth = 0;
+		boolean more = true;
+		while (more && scanner.getType() != EKernel.TYPE_END)
+		{
+			int type = scanner.getType();
+			end = scanner.getEnd();
+			scanner.next();
+			switch (type)
+			{
+				case EKernel.TYPE_LPAREN:
+				case EKernel.TYPE_LBRACE:
+					depth++;
+					break;
+				case EKernel.TYPE_RPAREN:
+					depth--;
+					break;
+				case EKernel.TYPE_RBRACE:
+					depth--;
+					more = depth > 0 || scanner.getType() == EKernel.TYPE_ELSE;
+					break;
+				case EKernel.TYPE_SEMICOLON:
+					more = depth > 0 || scanner.getType() == EKernel.TYPE_ELSE;
+					break;
+			}
+		}
+
+		bounds[0] = start;
+		bounds[1] = end;
+		return true;
+	}
+
+	/**
+	 * Parses a list of block statements into optimized nodes.
+	 * Parsing a block gives the same nodes as parsing each of its statements and joining them.
+	 * @param input the statements source. Must be only statements.
+	 * @param resolver the resolver object for resolving functions in the script.
+	 * @return the nodes parsed.
+	 * @throws ExpressionParseException if a parse error occurs, or if the input does not end after its statements.
+	 * @see ExpressionBlockParser
+	 */
+	static ExpressionNode[] parseStatements(CharSequence input, ExpressionFunctionResolver resolver)
+	{
+		return (new EParser(input, resolver)).parseStatements();
+	}
+
+	// Reads all characters from a reader.
+	private static CharSequence readAll(Reader reader)
+	{
+		StringBuilder sb = new StringBuilder();
+		char[] buffer = new char[4096];
+		int n;
+		try {
+			while ((n = reader.read(buffer)) >= 0)
+				sb.append(buffer, 0, n);
+		} catch (IOException e) {
+			throw new ExpressionParseException(e.getMessage(), e);
+		}
+		return sb;
+	}
+
+	/**
+	 * Token types.
+	 */
+	private static final class EKernel
+	{
+		public static final int TYPE_END = -1;
+		public static final int TYPE_NUMBER = -3;
+		public static final int TYPE_IDENTIFIER = -10;
+		public static final int TYPE_ILLEGAL = -12;
+		public static final int TYPE_STRING = -15;
+
 		public static final int TYPE_COMMENT = 0;
 		public static final int TYPE_LPAREN = 1;
 		public static final int TYPE_RPAREN = 2;
@@ -167,198 +516,752 @@ public final class ExpressionFactory
 		public static final int TYPE_ABSOLUTE = 44; // not scanned
 		public static final int TYPE_NEGATE = 45; // not scanned
 
+		// Private constructor.
 		private EKernel()
 		{
-			addStringDelimiter('"', '"');
-			setDecimalSeparator('.');
-			
-			addCommentStartDelimiter("/*", TYPE_COMMENT);
-			addCommentLineDelimiter("//", TYPE_COMMENT);
-			addCommentEndDelimiter("*/", TYPE_COMMENT);
-
-			addDelimiter("(", TYPE_LPAREN);
-			addDelimiter(")", TYPE_RPAREN);
-			addDelimiter("{", TYPE_LBRACE);
-			addDelimiter("}", TYPE_RBRACE);
-			addDelimiter(",", TYPE_COMMA);
-			addDelimiter(";", TYPE_SEMICOLON);
-
-			addDelimiter("+", TYPE_PLUS);
-			addDelimiter("-", TYPE_DASH);
-			addDelimiter("*", TYPE_STAR);
-			addDelimiter("/", TYPE_SLASH);
-			addDelimiter("%", TYPE_PERCENT);
-			addDelimiter("&", TYPE_AMPERSAND);
-			addDelimiter("&&", TYPE_DOUBLEAMPERSAND);
-			addDelimiter("|", TYPE_PIPE);
-			addDelimiter("||", TYPE_DOUBLEPIPE);
-			addDelimiter(">", TYPE_GREATER);
-			addDelimiter(">>", TYPE_DOUBLEGREATER);
-			addDelimiter(">>>", TYPE_TRIPLEGREATER);
-			addDelimiter(">=", TYPE_GREATEREQUAL);
-			addDelimiter("<", TYPE_LESS);
-			addDelimiter("<=", TYPE_LESSEQUAL);
-			addDelimiter("<<", TYPE_DOUBLELESS);
-			addDelimiter("=", TYPE_EQUAL);
-			addDelimiter("==", TYPE_DOUBLEEQUAL);
-			addDelimiter("===", TYPE_TRIPLEEQUAL);
-			addDelimiter("!", TYPE_EXCLAMATION);
-			addDelimiter("!=", TYPE_NOTEQUAL);
-			addDelimiter("!==", TYPE_NOTDOUBLEEQUAL);
-			addDelimiter("~", TYPE_TILDE);
-			
-			addCaseInsensitiveKeyword("true", TYPE_TRUE);
-			addCaseInsensitiveKeyword("false", TYPE_FALSE);
-			addCaseInsensitiveKeyword("infinity", TYPE_INFINITY);
-			addCaseInsensitiveKeyword("nan", TYPE_NAN);
-			addCaseInsensitiveKeyword("if", TYPE_IF);
-			addCaseInsensitiveKeyword("else", TYPE_ELSE);
-			addCaseInsensitiveKeyword("return", TYPE_RETURN);
-			
 		}
 		
 	}
 	
 	/**
-	 * Parser. 
+	 * Scanner for the expression grammar.
+	 * Reads straight from a character sequence and keeps the current token as an offset and length into it,
+	 * so Strings are only made for identifier and number lexemes, and only when asked for.
+	 * Tokens are split the same way that the general-purpose {@link com.blackrook.expression.struct.Lexer} splits them.
 	 */
-	private static class EParser extends Lexer.Parser
+	private static final class EScanner
 	{
-		private static final EKernel KERNEL = new EKernel();
+		private static final byte CHAR_OTHER = 0;
+		private static final byte CHAR_WHITESPACE = 1;
+		private static final byte CHAR_DELIMITER = 2;
+		private static final byte CHAR_QUOTE = 3;
+		private static final byte CHAR_POINT = 4;
+		private static final byte CHAR_DIGIT = 5;
+		private static final byte CHAR_LETTER = 6;
+		private static final byte CHAR_UNDERSCORE = 7;
+
+		/** Character classes for ASCII characters. */
+		private static final byte[] ASCII_CLASS = new byte[128];
+		/** Keywords by perfect hash. */
+		private static final String[] KEYWORD_TABLE = new String[16];
+		/** Keyword types by perfect hash. */
+		private static final int[] KEYWORD_TYPE_TABLE = new int[16];
 		
-		private ExpressionFunctionResolver functionResolver;
-		private LinkedList<String> errorMessages;
+		static
+		{
+			for (char c = 0; c < ASCII_CLASS.length; c++)
+				ASCII_CLASS[c] = classify(c);
+			
+			addKeyword("true", EKernel.TYPE_TRUE);
+			addKeyword("false", EKernel.TYPE_FALSE);
+			addKeyword("infinity", EKernel.TYPE_INFINITY);
+			addKeyword("nan", EKernel.TYPE_NAN);
+			addKeyword("if", EKernel.TYPE_IF);
+			addKeyword("else", EKernel.TYPE_ELSE);
+			addKeyword("return", EKernel.TYPE_RETURN);
+		}
+		
+		/** The input. */
+		private CharSequence input;
+		/** The input length. */
+		private int length;
+		/** Current token type. */
+		private int type;
+		/** Current token start. */
+		private int start;
+		/** Current token end (exclusive), and where scanning continues. */
+		private int end;
 		
-		private EParser(Reader reader, ExpressionFunctionResolver resolver)
+		EScanner(CharSequence input)
 		{
-			super(new Lexer(KERNEL, reader));
-			this.functionResolver = resolver;
+			this(input, 0);
 		}
-
+		
+		EScanner(CharSequence input, int offset)
+		{
+			this.input = input;
+			this.length = input.length();
+			this.type = EKernel.TYPE_END;
+			this.start = offset;
+			this.end = offset;
+		}
+		
 		/**
-		 * Parses an expression block.
-		 * @return the expression parsed.
+		 * @return the current token type, or {@link EKernel#TYPE_END} if no more tokens.
 		 */
-		Expression parseExpressionBlock()
+		int getType()
 		{
-			nextToken();
-			Queue<ExpressionNode> nodeList = new LinkedList<>();
-			if (!parseExpressionStatementList(nodeList))
+			return type;
+		}
+		
+		/**
+		 * @return the current token start offset.
+		 */
+		int getStart()
+		{
+			return start;
+		}
+		
+		/**
+		 * @return the current token end offset (exclusive).
+		 */
+		int getEnd()
+		{
+			return end;
+		}
+		
+		/**
+		 * @return the current token lexeme.
+		 */
+		String getLexeme()
+		{
+			return input.subSequence(start, end).toString();
+		}
+		
+		/**
+		 * Scans the next token.
+		 */
+		void next()
+		{
+			int p = start = skip(end);
+			if (p >= length)
+			{
+				type = EKernel.TYPE_END;
+				end = p;
+				return;
+			}
+			
+			char c = input.charAt(p);
+			switch (charClass(c))
 			{
-				String[] errors = getErrorMessages();
-				if (errors.length > 0)
+				case CHAR_DELIMITER:
+					end = scanDelimiter(p, c);
+					break;
+				case CHAR_QUOTE:
+					end = scanString(p + 1);
+					break;
+				case CHAR_POINT:
+					end = scanFloat(p + 1);
+					break;
+				case CHAR_DIGIT:
+					end = c == '0' ? scanZero(p + 1) : scanNumber(p + 1);
+					break;
+				// anything else starts an identifier.
+				default:
+					end = scanIdentifier(p + 1);
+					break;
+			}
+		}
+		
+		// Skips whitespace and comments. Returns the next token start.
+		private int skip(int p)
+		{
+			while (p < length)
+			{
+				char c = input.charAt(p);
+				if (charClass(c) == CHAR_WHITESPACE)
+					p++;
+				else if (c == '/' && charAt(p + 1) == '*')
+				{
+					p += 2;
+					while (p < length && !(input.charAt(p) == '*' && charAt(p + 1) == '/'))
+						p++;
+					p += 2;
+				}
+				else if (c == '/' && charAt(p + 1) == '/')
 				{
-					StringBuilder sb = new StringBuilder();
-					for (int i = 0; i < errors.length; i++)
+					p += 2;
+					while (p < length && (c = input.charAt(p)) != '\n' && c != '\r')
+						p++;
+				}
+				else
+					return p;
+			}
+			return length;
+		}
+		
+		// Scans a delimiter (longest match).
+		private int scanDelimiter(int p, char c)
+		{
+			switch (c)
+			{
+				case '(':
+					return token(p + 1, EKernel.TYPE_LPAREN);
+				case ')':
+					return token(p + 1, EKernel.TYPE_RPAREN);
+				case '{':
+					return token(p + 1, EKernel.TYPE_LBRACE);
+				case '}':
+					return token(p + 1, EKernel.TYPE_RBRACE);
+				case ',':
+					return token(p + 1, EKernel.TYPE_COMMA);
+				case ';':
+					return token(p + 1, EKernel.TYPE_SEMICOLON);
+				case '+':
+					return token(p + 1, EKernel.TYPE_PLUS);
+				case '-':
+					return token(p + 1, EKernel.TYPE_DASH);
+				case '/':
+					return token(p + 1, EKernel.TYPE_SLASH);
+				case '%':
+					return token(p + 1, EKernel.TYPE_PERCENT);
+				case '~':
+					return token(p + 1, EKernel.TYPE_TILDE);
+				case '*':
+					// a stray comment end is its own token.
+					if (charAt(p + 1) == '/')
+						return token(p + 2, EKernel.TYPE_COMMENT);
+					return token(p + 1, EKernel.TYPE_STAR);
+				case '&':
+					if (charAt(p + 1) == '&')
+						return token(p + 2, EKernel.TYPE_DOUBLEAMPERSAND);
+					return token(p + 1, EKernel.TYPE_AMPERSAND);
+				case '|':
+					if (charAt(p + 1) == '|')
+						return token(p + 2, EKernel.TYPE_DOUBLEPIPE);
+					return token(p + 1, EKernel.TYPE_PIPE);
+				case '>':
+					if (charAt(p + 1) == '>')
 					{
-						sb.append(errors[i]);
-						if (i < errors.length-1)
-							sb.append('\n');
+						if (charAt(p + 2) == '>')
+							return token(p + 3, EKernel.TYPE_TRIPLEGREATER);
+						return token(p + 2, EKernel.TYPE_DOUBLEGREATER);
 					}
-					throw new ExpressionParseException(sb.toString());
-				}
+					else if (charAt(p + 1) == '=')
+						return token(p + 2, EKernel.TYPE_GREATEREQUAL);
+					return token(p + 1, EKernel.TYPE_GREATER);
+				case '<':
+					if (charAt(p + 1) == '<')
+						return token(p + 2, EKernel.TYPE_DOUBLELESS);
+					else if (charAt(p + 1) == '=')
+						return token(p + 2, EKernel.TYPE_LESSEQUAL);
+					return token(p + 1, EKernel.TYPE_LESS);
+				case '=':
+					if (charAt(p + 1) == '=')
+					{
+						if (charAt(p + 2) == '=')
+							return token(p + 3, EKernel.TYPE_TRIPLEEQUAL);
+						return token(p + 2, EKernel.TYPE_DOUBLEEQUAL);
+					}
+					return token(p + 1, EKernel.TYPE_EQUAL);
+				case '!':
+					if (charAt(p + 1) == '=')
+					{
+						if (charAt(p + 2) == '=')
+							return token(p + 3, EKernel.TYPE_NOTDOUBLEEQUAL);
+						return token(p + 2, EKernel.TYPE_NOTEQUAL);
+					}
+					return token(p + 1, EKernel.TYPE_EXCLAMATION);
+				default:
+					return scanIllegal(p + 1);
+			}
+		}
+
+		// Scans an identifier or keyword.
+		private int scanIdentifier(int p)
+		{
+			while (p < length)
+			{
+				byte cc = charClass(input.charAt(p));
+				if (isBreak(cc))
+					break;
+				else if (cc == CHAR_LETTER || cc == CHAR_DIGIT || cc == CHAR_UNDERSCORE)
+					p++;
+				else
+					return scanIllegal(p + 1);
+			}
+			return token(p, getKeywordType(start, p));
+		}
+
+		// Scans a number that started with "0".
+		private int scanZero(int p)
+		{
+			if (p >= length)
+				return token(p, EKernel.TYPE_NUMBER);
+			char c = input.charAt(p);
+			byte cc = charClass(c);
+			if (isBreak(cc))
+				return token(p, EKernel.TYPE_NUMBER);
+			else if (cc == CHAR_POINT)
+				return scanFloat(p + 1);
+			else if (c == 'x' || c == 'X')
+				return scanHexStart(p + 1);
+			else if (cc == CHAR_DIGIT)
+				return scanNumber(p + 1);
+			else
+				return scanIllegal(p + 1);
+		}
+
+		// Scans the first digit of a hex number.
+		private int scanHexStart(int p)
+		{
+			if (p >= length)
+				return token(p, EKernel.TYPE_ILLEGAL);
+			char c = input.charAt(p);
+			byte cc = charClass(c);
+			if (isBreak(cc) || cc == CHAR_POINT)
+				return token(p, EKernel.TYPE_ILLEGAL);
+			else if (isHexDigit(c))
+				return scanHex(p + 1);
+			else
+				return scanIllegal(p + 1);
+		}
+
+		// Scans the rest of a hex number.
+		private int scanHex(int p)
+		{
+			while (p < length)
+			{
+				char c = input.charAt(p);
+				if (isBreak(charClass(c)))
+					break;
+				else if (isHexDigit(c))
+					p++;
+				else
+					return scanIllegal(p + 1);
+			}
+			return token(p, EKernel.TYPE_NUMBER);
+		}
+
+		// Scans the rest of an integer.
+		private int scanNumber(int p)
+		{
+			while (p < length)
+			{
+				char c = input.charAt(p);
+				byte cc = charClass(c);
+				if (isBreak(cc))
+					break;
+				else if (cc == CHAR_POINT)
+					return scanFloat(p + 1);
+				else if (c == 'e' || c == 'E')
+					return scanExponent(p + 1);
+				else if (cc == CHAR_DIGIT)
+					p++;
+				else
+					return scanIllegal(p + 1);
+			}
+			return token(p, EKernel.TYPE_NUMBER);
+		}
+
+		// Scans the rest of a number after the decimal point.
+		private int scanFloat(int p)
+		{
+			while (p < length)
+			{
+				char c = input.charAt(p);
+				byte cc = charClass(c);
+				if (isBreak(cc))
+					break;
+				else if (c == 'e' || c == 'E')
+					return scanExponent(p + 1);
+				else if (cc == CHAR_DIGIT)
+					p++;
+				else
+					return scanIllegal(p + 1);
+			}
+			return token(p, EKernel.TYPE_NUMBER);
+		}
+
+		// Scans the start of a number's exponent.
+		private int scanExponent(int p)
+		{
+			if (p >= length)
+				return token(p, EKernel.TYPE_ILLEGAL);
+			char c = input.charAt(p);
+			byte cc = charClass(c);
+			if (c == '+' || c == '-' || cc == CHAR_DIGIT)
+				return scanExponentPower(p + 1);
+			else if (isBreak(cc))
+				return token(p, EKernel.TYPE_ILLEGAL);
+			else
+				return scanIllegal(p + 1);
+		}
+
+		// Scans the rest of a number's exponent.
+		private int scanExponentPower(int p)
+		{
+			while (p < length)
+			{
+				byte cc = charClass(input.charAt(p));
+				if (isBreak(cc))
+					break;
+				else if (cc == CHAR_DIGIT)
+					p++;
+				else
+					return scanIllegal(p + 1);
+			}
+			return token(p, EKernel.TYPE_NUMBER);
+		}
+
+		// Scans the rest of a string. Strings are not part of the grammar, so escapes are skipped, not decoded.
+		private int scanString(int p)
+		{
+			while (p < length)
+			{
+				char c = input.charAt(p);
+				if (c == '"')
+					return token(p + 1, EKernel.TYPE_STRING);
+				else if (c == '\n' || c == '\r')
+					return token(p, EKernel.TYPE_ILLEGAL);
+				else if (c == '\\')
+					p += 2;
 				else
-					throw new ExpressionParseException("Some error happened, but you shouldn't see this.");
+					p++;
 			}
+			return token(length, EKernel.TYPE_ILLEGAL);
+		}
+
+		// Scans the rest of an illegal token.
+		private int scanIllegal(int p)
+		{
+			while (p < length && !isBreak(charClass(input.charAt(p))))
+				p++;
+			return token(p, EKernel.TYPE_ILLEGAL);
+		}
+
+		// Sets the token type, returns the end.
+		private int token(int end, int type)
+		{
+			this.type = type;
+			return end;
+		}
+
+		// Gets a character, or '\0' past the end.
+		private char charAt(int p)
+		{
+			return p < length ? input.charAt(p) : '\0';
+		}
+
+		// Gets the type of an identifier, which may be a keyword.
+		private int getKeywordType(int start, int end)
+		{
+			int len = end - start;
+			int index = keywordHash(input.charAt(start), len);
+			String keyword = KEYWORD_TABLE[index];
+			if (keyword == null || keyword.length() != len)
+				return EKernel.TYPE_IDENTIFIER;
+			for (int i = 0; i < len; i++)
+				if (toLowerCase(input.charAt(start + i)) != keyword.charAt(i))
+					return EKernel.TYPE_IDENTIFIER;
+			return KEYWORD_TYPE_TABLE[index];
+		}
+
+		// Adds a keyword to the keyword tables.
+		private static void addKeyword(String keyword, int type)
+		{
+			int index = keywordHash(keyword.charAt(0), keyword.length());
+			if (KEYWORD_TABLE[index] != null)
+				throw new IllegalStateException("Keyword hash collision: " + keyword + ", " + KEYWORD_TABLE[index]);
+			KEYWORD_TABLE[index] = keyword;
+			KEYWORD_TYPE_TABLE[index] = type;
+		}
+
+		// Perfect hash for the keywords: first character and length.
+		private static int keywordHash(char first, int length)
+		{
+			return (toLowerCase(first) + 5 * length) & 15;
+		}
+
+		// Keywords are case-insensitive, but only ASCII letters fold.
+		private static char toLowerCase(char c)
+		{
+			return c >= 'A' && c <= 'Z' ? (char)(c + ('a' - 'A')) : c;
+		}
+
+		private static boolean isHexDigit(char c)
+		{
+			return (c >= '0' && c <= '9') || (c >= 'A' && c <= 'F') || (c >= 'a' && c <= 'f');
+		}
+
+		// True if this character class ends a token.
+		private static boolean isBreak(byte charClass)
+		{
+			return charClass >= CHAR_WHITESPACE && charClass <= CHAR_QUOTE;
+		}
+
+		private static byte charClass(char c)
+		{
+			return c < 128 ? ASCII_CLASS[c] : classify(c);
+		}
+
+		private static byte classify(char c)
+		{
+			if (Character.isWhitespace(c))
+				return CHAR_WHITESPACE;
+			else if ("(){},;+-*/%&|><=!~".indexOf(c) >= 0)
+				return CHAR_DELIMITER;
+			else if (c == '"')
+				return CHAR_QUOTE;
+			else if (c == '.')
+				return CHAR_POINT;
+			else if (Character.isDigit(c))
+				return CHAR_DIGIT;
+			else if (Character.isLetter(c))
+				return CHAR_LETTER;
+			else if (c == '_')
+				return CHAR_UNDERSCORE;
+			else
+				return CHAR_OTHER;
+		}
 		
-			ExpressionNode[] nodes = new ExpressionNode[nodeList.size()];
-			nodeList.toArray(nodes);
-			
-			Expression expression = Expression.create(nodes);
+	}
+	
+	/**
+	 * Parser.
+	 * Nodes are written to one growable buffer as they are parsed, and operators are kept on one primitive stack.
+	 * Nested blocks (branch conditionals, success and failure blocks) are parsed onto the end of the buffer,
+	 * then cut from it into their branch, so the buffer only ever holds the blocks still being parsed.
+	 * Statements and branches are parsed in a loop, so the call stack does not grow with the size of a block.
+	 */
+	private static class EParser
+	{
+		private static final int INITIAL_NODE_CAPACITY = 16;
+		private static final int INITIAL_OPERATOR_CAPACITY = 8;
+		private static final int INITIAL_BRANCH_CAPACITY = 4;
+
+		private static final int BRANCH_CONDITIONAL = 0;
+		private static final int BRANCH_SUCCESS = 1;
+		private static final int BRANCH_FAILURE = 2;
+		private static final int BRANCH_BRACED = 3;
+		private static final int BRANCH_SIZE = 4;
+
+		private EScanner scanner;
+		private ExpressionFunctionResolver functionResolver;
+		private LinkedList<String> errorMessages;
+
+		/** Node buffer. */
+		private ExpressionNode[] nodes;
+		/** Amount of nodes in the buffer. */
+		private int nodeCount;
+		/** Operator stack. Each phrase uses the operators above where it started. */
+		private int[] operators;
+		/** Amount of operators on the stack. */
+		private int operatorCount;
+		/** Amount of values on the value stack of the phrase being parsed. */
+		private int valueCount;
+		/**
+		 * Open branches, {@value #BRANCH_SIZE} ints each: node buffer offsets of the conditional, success block,
+		 * and failure block (-1 until "else"), then 1 if the block being parsed is in braces, 0 if not.
+		 */
+		private int[] branches;
+		/** Amount of open branches. */
+		private int branchCount;
+
+		private EParser(CharSequence input, ExpressionFunctionResolver resolver)
+		{
+			this.scanner = new EScanner(input);
+			this.functionResolver = resolver;
+			this.errorMessages = new LinkedList<>();
+			this.nodes = new ExpressionNode[INITIAL_NODE_CAPACITY];
+			this.nodeCount = 0;
+			this.operators = new int[INITIAL_OPERATOR_CAPACITY];
+			this.operatorCount = 0;
+			this.valueCount = 0;
+			this.branches = new int[INITIAL_BRANCH_CAPACITY * BRANCH_SIZE];
+			this.branchCount = 0;
+		}
+
+		/**
+		 * Parses an expression block.
+		 * @return the expression parsed.
+		 */
+		Expression parseBlock()
+		{
+			nextToken();
+			if (!parseExpressionStatementList())
+				throw getParseException();
+
+			Expression expression = Expression.create(ExpressionDecision.optimize(takeNodes(0)));
 			if (expression.isCollapsible())
 				expression.collapse();
-			
+
 			return expression.intern();
 		}
 
-		private void addErrorMessage(String message)
+		/**
+		 * Parses an expression block or phrase into nodes, but does not optimize them nor make an expression.
+		 * @param block if true, parse a block, else parse a phrase.
+		 * @return the nodes parsed.
+		 */
+		ExpressionNode[] parseNodes(boolean block)
 		{
-			errorMessages.add(message);
+			nextToken();
+			if (!(block ? parseExpressionStatementList() : parseExpressionPhrase()))
+				throw getParseException();
+			return takeNodes(0);
 		}
 
-		private String[] getErrorMessages()
+		/**
+		 * Parses a list of statements that must be the whole input.
+		 * @return the optimized nodes parsed.
+		 */
+		ExpressionNode[] parseStatements()
 		{
-			String[] out = new String[errorMessages.size()];
-			errorMessages.toArray(out);
-			return out; 
+			nextToken();
+			if (!parseExpressionStatementList())
+				throw getParseException();
+			if (!currentType(EKernel.TYPE_END))
+				throw new ExpressionParseException("Expected expression statement.");
+
+			return ExpressionDecision.optimize(takeNodes(0));
 		}
-		
+
 		/**
 		 * Parses an expression phrase.
 		 * @return the expression parsed.
 		 */
-		Expression parseExpressionPhrase()
+		Expression parsePhrase()
 		{
 			nextToken();
-			Queue<ExpressionNode> nodeList = new LinkedList<>();
-			if (!parseExpressionPhrase(nodeList))
-			{
-				String[] errors = getErrorMessages();
-				if (errors.length > 0)
-				{
-					StringBuilder sb = new StringBuilder();
-					for (int i = 0; i < errors.length; i++)
-					{
-						sb.append(errors[i]);
-						if (i < errors.length-1)
-							sb.append('\n');
-					}
-					throw new ExpressionParseException(sb.toString());
-				}
-				else
-					throw new ExpressionParseException("Some error happened, but you shouldn't see this.");
-			}
-		
-			ExpressionNode[] nodes = new ExpressionNode[nodeList.size()];
-			nodeList.toArray(nodes);
-			
-			Expression expression = Expression.create(nodes);
+			if (!parseExpressionPhrase())
+				throw getParseException();
+
+			Expression expression = Expression.create(takeNodes(0));
 			if (expression.isCollapsible())
 				expression.collapse();
-			
+
 			return expression.intern();
 		}
 
-		/*
-		 * <ExpressionBlock> :
-		 * 		"{" <ExpressionStatementList> "}"
-		 * 		<ExpressionStatement>
-		 */
-		private boolean parseExpressionBlock(Queue<ExpressionNode> nodeList)
+		// Scans the next token.
+		private void nextToken()
+		{
+			scanner.next();
+		}
+
+		// Returns true if the current token is a type.
+		private boolean currentType(int tokenType)
+		{
+			return scanner.getType() == tokenType;
+		}
+
+		// Returns true and scans the next token if the current token is a type.
+		private boolean matchType(int tokenType)
 		{
-			if (matchType(EKernel.TYPE_LBRACE))
+			if (scanner.getType() == tokenType)
 			{
-				if (!parseExpressionStatementList(nodeList))
-					return false;
-				
-				if (!matchType(EKernel.TYPE_RBRACE))
-				{
-					addErrorMessage("Expected ending brace \"}\" to terminate multi-line expression block.");
-					return false;
-				}
-				
+				scanner.next();
 				return true;
 			}
-			else
-				return parseExpressionStatement(nodeList);
+			return false;
+		}
+
+		private void addErrorMessage(String message)
+		{
+			errorMessages.add(message);
+		}
+
+		// Makes the exception to throw for the collected error messages.
+		private ExpressionParseException getParseException()
+		{
+			if (errorMessages.isEmpty())
+				return new ExpressionParseException("Some error happened, but you shouldn't see this.");
+
+			StringBuilder sb = new StringBuilder();
+			for (String message : errorMessages)
+			{
+				if (sb.length() > 0)
+					sb.append('\n');
+				sb.append(message);
+			}
+			return new ExpressionParseException(sb.toString());
+		}
+
+		// Adds a node to the end of the buffer.
+		private void addNode(ExpressionNode node)
+		{
+			if (nodeCount == nodes.length)
+				nodes = Arrays.copyOf(nodes, nodes.length * 2);
+			nodes[nodeCount++] = node;
+		}
+
+		// Removes the nodes from a starting index to the end of the buffer and returns them.
+		private ExpressionNode[] takeNodes(int start)
+		{
+			ExpressionNode[] out = Arrays.copyOfRange(nodes, start, nodeCount);
+			Arrays.fill(nodes, start, nodeCount, null);
+			nodeCount = start;
+			return out;
+		}
+
+		// Returns the nodes from a starting index to an ending index.
+		private ExpressionNode[] getNodes(int start, int end)
+		{
+			return Arrays.copyOfRange(nodes, start, end);
+		}
+
+		// Pushes an operator.
+		private void pushOperator(int operator)
+		{
+			if (operatorCount == operators.length)
+				operators = Arrays.copyOf(operators, operators.length * 2);
+			operators[operatorCount++] = operator;
 		}
 
 		/*
 		 * <ExpressionStatementList> :
 		 * 		<ExpressionStatement> <ExpressionStatementList>
 		 * 		[e]
+		 *
+		 * <ExpressionBlock> :
+		 * 		"{" <ExpressionStatementList> "}"
+		 * 		<ExpressionStatement>
+		 *
+		 * <ExpressionIfBranch> :
+		 * 		"(" <ExpressionPhrase> ")" <ExpressionBlock> <ExpressionElseClause>
+		 *
+		 * Parsed in one loop: the branches being parsed are kept on a stack instead of the call stack,
+		 * so long statement lists and deeply nested branches use no more call stack than one statement.
 		 */
-		private boolean parseExpressionStatementList(Queue<ExpressionNode> nodeList)
+		private boolean parseExpressionStatementList()
 		{
-			if (currentType(EKernel.TYPE_IF, EKernel.TYPE_RETURN, EKernel.TYPE_IDENTIFIER))
+			while (true)
 			{
-				if (!parseExpressionStatement(nodeList))
+				// in a block that is a single statement?
+				boolean single = branchCount > 0 && branches[(branchCount - 1) * BRANCH_SIZE + BRANCH_BRACED] == 0;
+				if (single || isStatementStart(scanner.getType()))
+				{
+					if (matchType(EKernel.TYPE_IF))
+					{
+						if (!parseExpressionIfConditional())
+							return false;
+						continue;
+					}
+
+					if (!parseExpressionStatement())
+						return false;
+
+					if (!single)
+						continue;
+				}
+				else if (branchCount == 0)
+				{
+					return true;
+				}
+				else if (!matchType(EKernel.TYPE_RBRACE))
+				{
+					addErrorMessage("Expected ending brace \"}\" to terminate multi-line expression block.");
 					return false;
-				
-				return parseExpressionStatementList(nodeList);
+				}
+
+				// a block ended: start the branch's failure block, or end the branch.
+				// ending a branch ends the block around it, if that block is a single statement.
+				while (true)
+				{
+					int top = (branchCount - 1) * BRANCH_SIZE;
+					if (branches[top + BRANCH_FAILURE] < 0 && matchType(EKernel.TYPE_ELSE))
+					{
+						branches[top + BRANCH_FAILURE] = nodeCount;
+						branches[top + BRANCH_BRACED] = matchType(EKernel.TYPE_LBRACE) ? 1 : 0;
+						break;
+					}
+
+					endBranch();
+					if (branchCount == 0 || branches[(branchCount - 1) * BRANCH_SIZE + BRANCH_BRACED] != 0)
+						break;
+				}
 			}
-			
-			return true;
 		}
 
 		/*
@@ -366,54 +1269,52 @@ public final class ExpressionFactory
 		 * 		"if" <ExpressionIfBranch>
 		 * 		"return" <ExpressionPhrase> ";"
 		 * 		<VARIABLE> "=" <ExpressionPhrase> ";"
+		 *
+		 * The "if" statement is handled by the statement list.
 		 */
-		private boolean parseExpressionStatement(Queue<ExpressionNode> nodeList)
+		private boolean parseExpressionStatement()
 		{
-			if (matchType(EKernel.TYPE_IF))
+			if (matchType(EKernel.TYPE_RETURN))
 			{
-				return parseExpressionIfBranch(nodeList);
-			}
-			else if (matchType(EKernel.TYPE_RETURN))
-			{
-				if (!parseExpressionPhrase(nodeList))
+				if (!parseExpressionPhrase())
 					return false;
-		
+
 				if (!matchType(EKernel.TYPE_SEMICOLON))
 				{
 					addErrorMessage("Expected \";\" to terminate return clause.");
 					return false;
 				}
-		
-				nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.RETURN));
+
+				addNode(ExpressionDirective.create(ExpressionDirectiveType.RETURN));
 				return true;
 			}
 			else if (currentType(EKernel.TYPE_IDENTIFIER))
 			{
-				String name = currentToken().getLexeme();
+				String name = scanner.getLexeme();
 				nextToken();
-				
+
 				if (functionResolver.containsFunctionByName(name))
 				{
 					addErrorMessage("Expected variable or expression statement - can't use function names.");
 					return false;
 				}
-				
+
 				if (!matchType(EKernel.TYPE_EQUAL))
 				{
 					addErrorMessage("Expected \"=\" assignment operator after variable.");
 					return false;
 				}
-				
-				if (!parseExpressionPhrase(nodeList))
+
+				if (!parseExpressionPhrase())
 					return false;
-		
+
 				if (!matchType(EKernel.TYPE_SEMICOLON))
 				{
 					addErrorMessage("Expected \";\" to terminate assignment statement.");
 					return false;
 				}
-				
-				nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.POP, name));
+
+				addNode(ExpressionDirective.create(ExpressionDirectiveType.POP, name));
 				return true;
 			}
 			else
@@ -423,109 +1324,88 @@ public final class ExpressionFactory
 			}
 		}
 
-		/*
-		 * <ExpressionIfBranch> :
-		 * 		"(" <ExpressionPhrase> ")" <ExpressionBlock> <ExpressionElseClause>
-		 */
-		private boolean parseExpressionIfBranch(Queue<ExpressionNode> nodeList)
+		// Return true if token type can start a statement.
+		private static boolean isStatementStart(int tokenType)
+		{
+			return tokenType == EKernel.TYPE_IF || tokenType == EKernel.TYPE_RETURN || tokenType == EKernel.TYPE_IDENTIFIER;
+		}
+
+		// Parses an if statement's conditional, and opens its branch.
+		// 		"(" <ExpressionPhrase> ")"
+		private boolean parseExpressionIfConditional()
 		{
 			if (!matchType(EKernel.TYPE_LPAREN))
 			{
 				addErrorMessage("Expected \"(\" after 'if'.");
 				return false;
 			}
-		
-			Queue<ExpressionNode> conditionalList = new LinkedList<>();
-			if (!parseExpressionPhrase(conditionalList))
+
+			int conditionalStart = nodeCount;
+			if (!parseExpressionPhrase())
 				return false;
-			
+
 			if (!matchType(EKernel.TYPE_RPAREN))
 			{
 				addErrorMessage("Expected \")\" after 'if' conditional.");
 				return false;
 			}
-		
-			Queue<ExpressionNode> successList = new LinkedList<>();
-			if (!parseExpressionBlock(successList))
-				return false;
-			
-			ExpressionNode[] failureNodes = null;
-			if (matchType(EKernel.TYPE_ELSE))
-			{
-				Queue<ExpressionNode> failureList = new LinkedList<>();
-				if (!parseExpressionBlock(failureList))
-					return false;
-				
-				failureNodes = getNodeArray(failureList);
-			}
-			
-			nodeList.add(ExpressionBranch.create(getNodeArray(conditionalList), getNodeArray(successList), failureNodes));
+
+			if (branchCount * BRANCH_SIZE == branches.length)
+				branches = Arrays.copyOf(branches, branches.length * 2);
+			int top = branchCount++ * BRANCH_SIZE;
+			branches[top + BRANCH_CONDITIONAL] = conditionalStart;
+			branches[top + BRANCH_SUCCESS] = nodeCount;
+			branches[top + BRANCH_FAILURE] = -1;
+			branches[top + BRANCH_BRACED] = matchType(EKernel.TYPE_LBRACE) ? 1 : 0;
 			return true;
 		}
 
+		// Ends the top open branch: cuts its blocks from the node buffer into a branch node.
+		private void endBranch()
+		{
+			int top = --branchCount * BRANCH_SIZE;
+			int conditionalStart = branches[top + BRANCH_CONDITIONAL];
+			int successStart = branches[top + BRANCH_SUCCESS];
+			int failureStart = branches[top + BRANCH_FAILURE];
+
+			ExpressionNode[] conditionalNodes = getNodes(conditionalStart, successStart);
+			ExpressionNode[] successNodes = getNodes(successStart, failureStart < 0 ? nodeCount : failureStart);
+			ExpressionNode[] failureNodes = failureStart < 0 ? null : getNodes(failureStart, nodeCount);
+			takeNodes(conditionalStart);
+			addNode(ExpressionBranch.create(conditionalNodes, successNodes, failureNodes));
+		}
+
 		// <ExpressionPhrase>
-		// If null, bad parse.
-		private boolean parseExpressionPhrase(Queue<ExpressionNode> nodeList)
+		// If false, bad parse.
+		private boolean parseExpressionPhrase()
 		{
-			// make stacks.
-			LinkedList<Integer> operatorStack = new LinkedList<>();
-			int[] expressionValueCounter = new int[1];
-		    
+			// operators below this belong to an enclosing phrase.
+			int operatorStart = operatorCount;
+			int enclosingValueCount = valueCount;
+			valueCount = 0;
+
 		    // was the last read token a value?
 			boolean lastWasValue = false;
-		    boolean keepGoing = true;		
-		
+		    boolean keepGoing = true;
+
 		    while (keepGoing)
 		    {
 		    	// if no more tokens...
-		    	if (currentToken() == null)
+		    	if (currentType(EKernel.TYPE_END))
 		    	{
 		    		keepGoing = false;
 		    	}
 		    	// if the last thing seen was a value....
 		    	else if (lastWasValue)
 		    	{
-		    		int type = currentToken().getType();
+		    		int type = scanner.getType();
 		    		if (isBinaryOperatorType(type))
 		    		{
-		    			int nextOperator;
-		    	        switch (type)
-		    	        {
-		    	            case EKernel.TYPE_PLUS:
-		    	            case EKernel.TYPE_DASH:
-		    	            case EKernel.TYPE_STAR:
-		    	            case EKernel.TYPE_SLASH:
-		    	            case EKernel.TYPE_PERCENT:
-		    	            case EKernel.TYPE_AMPERSAND:
-		    	            case EKernel.TYPE_DOUBLEAMPERSAND:
-		    	            case EKernel.TYPE_PIPE:
-		    	            case EKernel.TYPE_DOUBLEPIPE:
-		    	            case EKernel.TYPE_CARAT:
-		    	            case EKernel.TYPE_GREATER:
-		    	            case EKernel.TYPE_GREATEREQUAL:
-		    	            case EKernel.TYPE_DOUBLEGREATER:
-		    	            case EKernel.TYPE_TRIPLEGREATER:
-		    	            case EKernel.TYPE_LESS:
-		    	            case EKernel.TYPE_DOUBLELESS:
-		    	            case EKernel.TYPE_LESSEQUAL:
-		    	            case EKernel.TYPE_DOUBLEEQUAL:
-		    	            case EKernel.TYPE_TRIPLEEQUAL:
-		    	            case EKernel.TYPE_NOTEQUAL:
-		    	            case EKernel.TYPE_NOTDOUBLEEQUAL:
-		    	            	nextOperator = type;
-		    	            	break;
-		    	            default:
-		            		{
-		        				addErrorMessage("Unexpected binary operator miss.");
-		        				return false;
-		            		}
-		    	        }
-		    	        
 		    	        nextToken();
-		    	        if (!operatorReduce(nodeList, operatorStack, expressionValueCounter, nextOperator))
+		    	        if (!operatorReduce(operatorStart, type))
 		    	        	return false;
-		    	        
-		    	        operatorStack.addFirst(nextOperator);
+
+		    	        pushOperator(type);
 		    	        lastWasValue = false;
 		    		}
 		    		else
@@ -537,23 +1417,23 @@ public final class ExpressionFactory
 		    	// if the last thing seen was an operator (or nothing)...
 		    	else
 		    	{
-		    		int type = currentToken().getType();
+		    		int type = scanner.getType();
 		    		// unary operator
 		    		if (isUnaryOperatorType(type))
 		    		{
 		    			switch (type)
 		        		{
 			                case EKernel.TYPE_PLUS:
-			                	operatorStack.push(EKernel.TYPE_ABSOLUTE);
+			                	pushOperator(EKernel.TYPE_ABSOLUTE);
 			                	break;
 			                case EKernel.TYPE_DASH:
-			                	operatorStack.push(EKernel.TYPE_NEGATE);
+			                	pushOperator(EKernel.TYPE_NEGATE);
 			                	break;
 			                case EKernel.TYPE_EXCLAMATION:
-			                	operatorStack.push(EKernel.TYPE_EXCLAMATION);
+			                	pushOperator(EKernel.TYPE_EXCLAMATION);
 			                	break;
 			                case EKernel.TYPE_TILDE:
-			                	operatorStack.push(EKernel.TYPE_TILDE);
+			                	pushOperator(EKernel.TYPE_TILDE);
 			                	break;
 			                default:
 			                	throw new ExpressionParseException("Unexpected unary operator miss.");
@@ -564,91 +1444,92 @@ public final class ExpressionFactory
 		    		// parens.
 		    		else if (matchType(EKernel.TYPE_LPAREN))
 		    		{
-		    			if (!parseExpressionPhrase(nodeList))
+		    			if (!parseExpressionPhrase())
 		    				return false;
-		    			
+
 		    			if (!matchType(EKernel.TYPE_RPAREN))
 		    			{
 		    				addErrorMessage("Expected ending \")\".");
 		    				return false;
 		    			}
-		    			
-		    			expressionValueCounter[0] += 1;
+
+		    			valueCount++;
 		    			lastWasValue = true;
 		    		}
 		    		// identifier - may be host function.
 		    		else if (currentType(EKernel.TYPE_IDENTIFIER))
 		    		{
-		    			String lexeme = currentToken().getLexeme();
-		
+		    			String lexeme = scanner.getLexeme();
+
 		    			// is function?
 		    			ExpressionFunctionType functionType;
 		    			if ((functionType = functionResolver.getFunctionByName(lexeme)) != null)
 		    			{
 		    				nextToken();
-		    				if (!parseExpressionFunctionCall(nodeList, functionType))
+		    				if (!parseExpressionFunctionCall(functionType))
 		    					return false;
-		    				
-		    				nodeList.add(ExpressionFunction.create(functionType));
+
+		    				addNode(ExpressionFunction.create(functionType));
 		    			}
 		    			// must be variable?
 		    			else
 		    			{
-		    				nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.PUSH_VARIABLE, lexeme));
+		    				addNode(ExpressionDirective.create(ExpressionDirectiveType.PUSH_VARIABLE, lexeme));
 		    				nextToken();
 		    			}
-		    			
-		    			expressionValueCounter[0] += 1;
+
+		    			valueCount++;
 		    			lastWasValue = true;
 		    		}
 		    		// literal value?
 		    		else if (isValidLiteralType(type))
 		    		{
-		    			if (!parseExpressionSingleValue(nodeList))
+		    			if (!parseExpressionSingleValue())
 		                	return false;
-		
-		    			expressionValueCounter[0] += 1;
+
+		    			valueCount++;
 		    			lastWasValue = true;
 		    		}
 		    		else
 		            	throw new ExpressionParseException("Expression - Expected value.");
-		    		
+
 		    	}
-		    	
+
 		    }
-			
+
 		    // end of expression - reduce.
-		    while (!operatorStack.isEmpty())
+		    while (operatorCount > operatorStart)
 		    {
-		        if (!expressionReduce(nodeList, operatorStack, expressionValueCounter))
+		        if (!expressionReduce())
 		            return false;
 		    }
-		    
-		    if (expressionValueCounter[0] != 1)
+
+		    if (valueCount != 1)
 		    {
 		        addErrorMessage("Expected valid expression.");
 		        return false;
 		    }
-		
+
+		    valueCount = enclosingValueCount;
 		    return true;
 		}
 
 		// Parses a function call.
 		// 		( .... , .... )
-		private boolean parseExpressionFunctionCall(Queue<ExpressionNode> nodeList, ExpressionFunctionType functionType)
+		private boolean parseExpressionFunctionCall(ExpressionFunctionType functionType)
 		{
 			if (!matchType(EKernel.TYPE_LPAREN))
 			{
 				addErrorMessage("Expected \"(\" after a function name.");
 				return false;
 			}
-			
+
 			int argCount = functionType.getArgumentCount();
 			while (argCount-- > 0)
 			{
-				if (!parseExpressionPhrase(nodeList))
+				if (!parseExpressionPhrase())
 					return false;
-				
+
 				if (argCount > 0)
 				{
 					if (!matchType(EKernel.TYPE_COMMA))
@@ -658,58 +1539,58 @@ public final class ExpressionFactory
 					}
 				}
 			}
-		
+
 			if (!matchType(EKernel.TYPE_RPAREN))
 			{
 				addErrorMessage("Expected \")\" after a function call's parameters.");
 				return false;
 			}
-			
+
 			return true;
 		}
 
 		// <ExpressionValue> :
-		//		
-		// If null, bad parse.
-		private boolean parseExpressionSingleValue(Queue<ExpressionNode> nodeList)
+		//
+		// If false, bad parse.
+		private boolean parseExpressionSingleValue()
 		{
 			if (matchType(EKernel.TYPE_TRUE))
 			{
-				nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.PUSH, true));
+				addNode(ExpressionDirective.create(ExpressionDirectiveType.PUSH, true));
 				return true;
 			}
 			else if (matchType(EKernel.TYPE_FALSE))
 			{
-				nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.PUSH, false));
+				addNode(ExpressionDirective.create(ExpressionDirectiveType.PUSH, false));
 				return true;
 			}
 			else if (matchType(EKernel.TYPE_INFINITY))
 			{
-				nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.PUSH, Double.POSITIVE_INFINITY));
+				addNode(ExpressionDirective.create(ExpressionDirectiveType.PUSH, Double.POSITIVE_INFINITY));
 				return true;
 			}
 			else if (matchType(EKernel.TYPE_NAN))
 			{
-				nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.PUSH, Double.NaN));
+				addNode(ExpressionDirective.create(ExpressionDirectiveType.PUSH, Double.NaN));
 				return true;
 			}
 			else if (currentType(EKernel.TYPE_NUMBER))
 			{
-				String lexeme = currentToken().getLexeme();
+				String lexeme = scanner.getLexeme();
 				nextToken();
 				if (lexeme.startsWith("0X") || lexeme.startsWith("0x"))
 				{
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.PUSH, Long.parseLong(lexeme.substring(2), 16)));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.PUSH, Long.parseLong(lexeme.substring(2), 16)));
 					return true;
 				}
 				else if (lexeme.contains("."))
 				{
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.PUSH, Double.parseDouble(lexeme)));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.PUSH, Double.parseDouble(lexeme)));
 					return true;
 				}
 				else
 				{
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.PUSH, Long.parseLong(lexeme)));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.PUSH, Long.parseLong(lexeme)));
 					return true;
 				}
 			}
@@ -720,119 +1601,121 @@ public final class ExpressionFactory
 			}
 		}
 
-		// Operator reduce.
-		private boolean operatorReduce(Queue<ExpressionNode> nodeList, LinkedList<Integer> operatorStack, int[] expressionValueCounter, int nextOperator) 
+		// Operator reduce: reduces the operators (above the phrase's first) that bind tighter than the next one.
+		private boolean operatorReduce(int operatorStart, int nextOperator)
 		{
-			Integer top = operatorStack.peek();
-			while (top != null && (getOperatorPrecedence(top) > getOperatorPrecedence(nextOperator) || (getOperatorPrecedence(top) == getOperatorPrecedence(nextOperator) && !isOperatorRightAssociative(nextOperator))))
+			int nextPrecedence = getOperatorPrecedence(nextOperator);
+			while (operatorCount > operatorStart)
 			{
-				if (!expressionReduce(nodeList, operatorStack, expressionValueCounter))
+				int topPrecedence = getOperatorPrecedence(operators[operatorCount - 1]);
+				if (topPrecedence < nextPrecedence || (topPrecedence == nextPrecedence && isOperatorRightAssociative(nextOperator)))
+					break;
+				if (!expressionReduce())
 					return false;
-				top = operatorStack.peek();
 			}
-			
+
 			return true;
 		}
 
 		// Reduces an expression by operator.
-		private boolean expressionReduce(Queue<ExpressionNode> nodeList, LinkedList<Integer> operatorStack, int[] expressionValueCounter)
+		private boolean expressionReduce()
 		{
-			if (operatorStack.isEmpty())
+			if (operatorCount == 0)
 		        throw new ExpressionParseException("Internal error - operator stack must have one operator in it.");
-		
-		    int operator = operatorStack.pollFirst();
-		    
+
+		    int operator = operators[--operatorCount];
+
 		    if (isBinaryOperatorType(operator))
-		        expressionValueCounter[0] -= 2;
+		        valueCount -= 2;
 		    else
-		        expressionValueCounter[0] -= 1;
-		    
-		    if (expressionValueCounter[0] < 0)
+		        valueCount -= 1;
+
+		    if (valueCount < 0)
 		        throw new ExpressionParseException("Internal error - value counter did not have enough counter.");
-		    
-		    expressionValueCounter[0] += 1; // the "push"
-		
+
+		    valueCount += 1; // the "push"
+
 		    switch (operator)
 		    {
 		    	case EKernel.TYPE_ABSOLUTE:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.ABSOLUTE));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.ABSOLUTE));
 		            return true;
-		    	case EKernel.TYPE_EXCLAMATION: 
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.LOGICAL_NOT));
+		    	case EKernel.TYPE_EXCLAMATION:
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.LOGICAL_NOT));
 		            return true;
-		    	case EKernel.TYPE_TILDE: 
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.NOT));
+		    	case EKernel.TYPE_TILDE:
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.NOT));
 		            return true;
 		    	case EKernel.TYPE_NEGATE:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.NEGATE));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.NEGATE));
 		            return true;
 		        case EKernel.TYPE_PLUS:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.ADD));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.ADD));
 		            return true;
 		        case EKernel.TYPE_DASH:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.SUBTRACT));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.SUBTRACT));
 		            return true;
 		        case EKernel.TYPE_STAR:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.MULTIPLY));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.MULTIPLY));
 		            return true;
 		        case EKernel.TYPE_SLASH:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.DIVIDE));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.DIVIDE));
 		            return true;
 		        case EKernel.TYPE_PERCENT:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.MODULO));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.MODULO));
 		            return true;
 		        case EKernel.TYPE_AMPERSAND:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.AND));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.AND));
 		            return true;
 		        case EKernel.TYPE_DOUBLEAMPERSAND:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.LOGICAL_AND));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.LOGICAL_AND));
 		            return true;
 		        case EKernel.TYPE_PIPE:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.OR));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.OR));
 		            return true;
 		        case EKernel.TYPE_DOUBLEPIPE:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.LOGICAL_OR));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.LOGICAL_OR));
 		            return true;
 		        case EKernel.TYPE_CARAT:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.XOR));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.XOR));
 		            return true;
 		        case EKernel.TYPE_GREATER:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.GREATER));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.GREATER));
 		            return true;
 		        case EKernel.TYPE_GREATEREQUAL:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.GREATER_OR_EQUAL));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.GREATER_OR_EQUAL));
 		            return true;
 		        case EKernel.TYPE_DOUBLEGREATER:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.RIGHT_SHIFT));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.RIGHT_SHIFT));
 		            return true;
 		        case EKernel.TYPE_TRIPLEGREATER:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.RIGHT_SHIFT_PADDED));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.RIGHT_SHIFT_PADDED));
 		            return true;
 		        case EKernel.TYPE_LESS:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.LESS));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.LESS));
 		            return true;
 		        case EKernel.TYPE_DOUBLELESS:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.LEFT_SHIFT));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.LEFT_SHIFT));
 		            return true;
 		        case EKernel.TYPE_LESSEQUAL:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.LESS_OR_EQUAL));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.LESS_OR_EQUAL));
 		            return true;
 		        case EKernel.TYPE_DOUBLEEQUAL:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.EQUAL));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.EQUAL));
 		            return true;
 		        case EKernel.TYPE_TRIPLEEQUAL:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.STRICT_EQUAL));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.STRICT_EQUAL));
 		            return true;
 		        case EKernel.TYPE_NOTEQUAL:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.NOT_EQUAL));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.NOT_EQUAL));
 		            return true;
 		        case EKernel.TYPE_NOTDOUBLEEQUAL:
-					nodeList.add(ExpressionDirective.create(ExpressionDirectiveType.STRICT_NOT_EQUAL));
+					addNode(ExpressionDirective.create(ExpressionDirectiveType.STRICT_NOT_EQUAL));
 		            return true;
 		    	default:
 		            throw new ExpressionParseException("Internal error - Bad operator pushed for expression.");
 		    }
-		    
+
 		}
 
 		// Return true if token type can be a unary operator.
@@ -961,12 +1844,5 @@ public final class ExpressionFactory
 		
 		}
 
-		// Get node array.
-		private ExpressionNode[] getNodeArray(Queue<ExpressionNode> nodeList)
-		{
-			ExpressionNode[] nodes = new ExpressionNode[nodeList.size()];
-			nodeList.toArray(nodes);
-			return nodes;
-		}
 	}
 }
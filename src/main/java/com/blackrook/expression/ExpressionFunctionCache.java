@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import java.util.Arrays;
+
+import com.blackrook.expression.node.ExpressionFunctionType;
+
+/**
+ * A cache of recent function results, keyed on the function and its argument values.
+ * Only functions that are {@link ExpressionFunctionType#isCacheable() cacheable} are cached.
+ * A cache is attached to an evaluation stack via {@link ExpressionStack#setFunctionCache(ExpressionFunctionCache)},
+ * and is used by every expression evaluated with that stack.
+ * <p>The cache is direct-mapped: each function call hashes to one entry, and replaces what was there on a miss.
+ * Argument and result values are stored in primitive arrays.
+ * <p>This class is not thread-safe - use one per stack.
+ * @author Matthew Tropiano
+ */
+public class ExpressionFunctionCache
+{
+	/** Default capacity. */
+	public static final int DEFAULT_CAPACITY = 256;
+	/** Maximum amount of arguments for a function call to be cached. */
+	public static final int MAX_ARGUMENTS = 4;
+
+	private static final ExpressionValue.Type[] TYPES = ExpressionValue.Type.values();
+
+	/** Function per entry. Null if empty. */
+	private ExpressionFunctionType[] functions;
+	/** Argument value bits, per entry, per argument. */
+	private long[] argumentBits;
+	/** Argument value types, per entry, per argument. */
+	private byte[] argumentTypes;
+	/** Result value bits, per entry. */
+	private long[] resultBits;
+	/** Result value types, per entry. */
+	private byte[] resultTypes;
+	/** Entry mask. */
+	private int mask;
+
+	/** Current call argument bits. */
+	private long[] currentBits;
+	/** Current call argument types. */
+	private byte[] currentTypes;
+
+	/** Calls that found a result. */
+	private long hitCount;
+	/** Calls that did not find a result. */
+	private long missCount;
+
+	/**
+	 * Creates a new function cache with the default capacity.
+	 * @see #DEFAULT_CAPACITY
+	 */
+	public ExpressionFunctionCache()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new function cache.
+	 * @param capacity the amount of entries. Rounded up to the next power of two.
+	 */
+	public ExpressionFunctionCache(int capacity)
+	{
+		int entries = 1;
+		while (entries < capacity)
+			entries *= 2;
+		this.functions = new ExpressionFunctionType[entries];
+		this.argumentBits = new long[entries * MAX_ARGUMENTS];
+		this.argumentTypes = new byte[entries * MAX_ARGUMENTS];
+		this.resultBits = new long[entries];
+		this.resultTypes = new byte[entries];
+		this.mask = entries - 1;
+		this.currentBits = new long[MAX_ARGUMENTS];
+		this.currentTypes = new byte[MAX_ARGUMENTS];
+		this.hitCount = 0L;
+		this.missCount = 0L;
+	}
+
+	/**
+	 * Executes a function, or pushes its cached result for the arguments on the stack.
+	 * Calls that do not leave exactly one result are not cached.
+	 * @param function the function to call.
+	 * @param stack the stack to use.
+	 * @param context the context for added variables.
+	 * @return if false, this halts script execution, else if true, continue.
+	 */
+	public boolean execute(ExpressionFunctionType function, ExpressionStack stack, ExpressionVariableContext context)
+	{
+		int argumentCount = function.getArgumentCount();
+		if (argumentCount > MAX_ARGUMENTS || stack.size() < argumentCount)
+			return function.execute(stack, context);
+
+		int hash = function.hashCode() * 0x9e3779b9;
+		for (int i = 0; i < argumentCount; i++)
+		{
+			ExpressionValue value = stack.peek(argumentCount - 1 - i);
+			currentTypes[i] = (byte)value.getType().ordinal();
+			currentBits[i] = value.getRawBits();
+			long h = (currentBits[i] + currentTypes[i]) * 0xbf58476d1ce4e5b9L;
+			hash = (hash ^ (int)(h ^ (h >>> 32))) * 0x85ebca6b;
+		}
+		int entry = (hash ^ (hash >>> 16)) & mask;
+
+		if (functions[entry] == function && argumentsEqual(entry, argumentCount))
+		{
+			for (int i = 0; i < argumentCount; i++)
+				stack.pop();
+			switch (TYPES[resultTypes[entry]])
+			{
+				case BOOLEAN:
+					stack.push(resultBits[entry] != 0L);
+					break;
+				case LONG:
+					stack.push(resultBits[entry]);
+					break;
+				case DOUBLE:
+					stack.push(Double.longBitsToDouble(resultBits[entry]));
+					break;
+			}
+			hitCount++;
+			return true;
+		}
+
+		missCount++;
+		int expectedSize = stack.size() - argumentCount + 1;
+		if (!function.execute(stack, context))
+			return false;
+		if (stack.size() != expectedSize)
+			return true;
+
+		ExpressionValue result = stack.peek();
+		int offset = entry * MAX_ARGUMENTS;
+		functions[entry] = function;
+		System.arraycopy(currentBits, 0, argumentBits, offset, argumentCount);
+		System.arraycopy(currentTypes, 0, argumentTypes, offset, argumentCount);
+		resultBits[entry] = result.getRawBits();
+		resultTypes[entry] = (byte)result.getType().ordinal();
+		return true;
+	}
+
+	/**
+	 * Removes all cached results.
+	 */
+	public void clear()
+	{
+		Arrays.fill(functions, null);
+	}
+
+	/**
+	 * @return the amount of entries in this cache.
+	 */
+	public int getCapacity()
+	{
+		return functions.length;
+	}
+
+	/**
+	 * @return the amount of calls that used a cached result.
+	 */
+	public long getHitCount()
+	{
+		return hitCount;
+	}
+
+	/**
+	 * @return the amount of calls that called the function.
+	 */
+	public long getMissCount()
+	{
+		return missCount;
+	}
+
+	// Checks if an entry's arguments are the current arguments.
+	private boolean argumentsEqual(int entry, int argumentCount)
+	{
+		int offset = entry * MAX_ARGUMENTS;
+		for (int i = 0; i < argumentCount; i++)
+			if (argumentBits[offset + i] != currentBits[i] || argumentTypes[offset + i] != currentTypes[i])
+				return false;
+		return true;
+	}
+
+}
@@ -0,0 +1,513 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.blackrook.expression.exception.ExpressionException;
+import com.blackrook.expression.node.ExpressionBranch;
+import com.blackrook.expression.node.ExpressionDecision;
+import com.blackrook.expression.node.ExpressionDirective;
+import com.blackrook.expression.node.ExpressionDirectiveType;
+import com.blackrook.expression.struct.SerialWriter;
+
+/**
+ * A graph of named expressions ("cells"), where each cell's result can be read by other cells as a variable.
+ * Variables that are not cell names are inputs, read from the variable set passed to {@link #evaluate(ExpressionVariableSet)}.
+ * <p>Cells are ordered into levels, where each cell only reads cells in earlier levels, and the cells in
+ * each level are evaluated in parallel on a {@link ForkJoinPool}. Cell and input values are read from shared
+ * value slots, not looked up by name.
+ * <p>Each cell is evaluated with its own variable context, so variables set by a cell are not seen by other cells.
+ * If a cell sets a variable that is a cell or input name, it starts with that cell's or input's current value.
+ * @author Matthew Tropiano
+ */
+public class ExpressionGraph
+{
+	/** Minimum amount of cells in a level for it to be evaluated in parallel. */
+	public static final int PARALLEL_THRESHOLD = 8;
+
+	/** ForkJoin pool to evaluate on. */
+	private ForkJoinPool pool;
+	/** Map of cell name to cell, in order added. */
+	private Map<String, Cell> cellMap;
+	/** Map of input name to input slot. Null if not compiled. */
+	private Map<String, ExpressionValue> inputMap;
+	/** Input names, parallel to input slots. */
+	private String[] inputNames;
+	/** Input slots. */
+	private ExpressionValue[] inputSlots;
+	/** Cells per level. Null if not compiled. */
+	private Cell[][] levels;
+
+	/**
+	 * Creates a new graph that evaluates on the common ForkJoin pool.
+	 * @see ForkJoinPool#commonPool()
+	 */
+	public ExpressionGraph()
+	{
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Creates a new graph that evaluates on a specific ForkJoin pool.
+	 * @param pool the pool to use.
+	 */
+	public ExpressionGraph(ForkJoinPool pool)
+	{
+		this.pool = pool;
+		this.cellMap = new LinkedHashMap<>();
+		this.inputMap = null;
+		this.inputNames = null;
+		this.inputSlots = null;
+		this.levels = null;
+	}
+
+	/**
+	 * Adds a cell to this graph.
+	 * @param name the cell name, read as a variable by other cells.
+	 * @param expression the cell expression.
+	 * @throws IllegalArgumentException if a cell with this name already exists.
+	 */
+	public void add(String name, Expression expression)
+	{
+		if (cellMap.containsKey(name))
+			throw new IllegalArgumentException("Cell \"" + name + "\" already exists.");
+		cellMap.put(name, new Cell(name, expression));
+		levels = null;
+	}
+
+	/**
+	 * Checks if this graph contains a cell.
+	 * @param name the cell name.
+	 * @return true if so, false if not.
+	 */
+	public boolean contains(String name)
+	{
+		return cellMap.containsKey(name);
+	}
+
+	/**
+	 * Gets the result of a cell as of the last evaluation.
+	 * @param name the cell name.
+	 * @return the result value, or null if no such cell. Do not modify it.
+	 */
+	public ExpressionValue get(String name)
+	{
+		Cell cell = cellMap.get(name);
+		return cell != null ? cell.result : null;
+	}
+
+	/**
+	 * @return the amount of cells in this graph.
+	 */
+	public int size()
+	{
+		return cellMap.size();
+	}
+
+	/**
+	 * @return true if this has no cells, false if not.
+	 */
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	/**
+	 * Gets the names of the variables read by the cells that are not cells themselves.
+	 * @return the input names.
+	 * @throws ExpressionException if the cells depend on each other in a cycle.
+	 */
+	public String[] getInputNames()
+	{
+		if (levels == null)
+			compile();
+		return Arrays.copyOf(inputNames, inputNames.length);
+	}
+
+	/**
+	 * Gets the amount of levels that cells are evaluated in.
+	 * Cells in the same level do not depend on each other.
+	 * @return the level count.
+	 * @throws ExpressionException if the cells depend on each other in a cycle.
+	 */
+	public int getLevelCount()
+	{
+		if (levels == null)
+			compile();
+		return levels.length;
+	}
+
+	/**
+	 * Evaluates all cells.
+	 * @param inputs the input variables. Missing inputs are read as false.
+	 * @throws ExpressionException if the cells depend on each other in a cycle, or a cell could not be evaluated.
+	 */
+	public void evaluate(ExpressionVariableSet inputs)
+	{
+		if (levels == null)
+			compile();
+
+		for (int i = 0; i < inputNames.length; i++)
+		{
+			ExpressionValue value = inputs.get(inputNames[i]);
+			if (value != null)
+				inputSlots[i].set(value);
+			else
+				inputSlots[i].set(false);
+		}
+
+		for (int i = 0; i < levels.length; i++)
+		{
+			Cell[] level = levels[i];
+			if (level.length < PARALLEL_THRESHOLD)
+			{
+				for (int c = 0; c < level.length; c++)
+					level[c].evaluate();
+			}
+			else
+				pool.invoke(new LevelTask(level, 0, level.length));
+		}
+	}
+
+	// Finds the dependencies, orders the cells, and rewrites variable reads into slot reads.
+	private void compile()
+	{
+		inputMap = new LinkedHashMap<>();
+		Map<Cell, List<Cell>> dependents = new HashMap<>();
+		Map<Cell, Integer> pending = new HashMap<>();
+
+		for (Cell cell : cellMap.values())
+		{
+			Set<String> reads = new LinkedHashSet<>();
+			Set<String> assigns = new LinkedHashSet<>();
+			ExpressionNode root = cell.expression.getRootNode();
+			if (root != null)
+				scan(root, reads, assigns);
+
+			Map<String, ExpressionValue> slots = new HashMap<>();
+			List<String> seedNames = new ArrayList<>();
+			List<ExpressionValue> seedSlots = new ArrayList<>();
+			int dependencyCount = 0;
+			for (String name : reads)
+			{
+				Cell source = cellMap.get(name);
+				ExpressionValue slot;
+				if (source == cell)
+				{
+					if (!assigns.contains(name))
+						throw new ExpressionException("Cell \"%s\" reads itself.", name);
+					continue;
+				}
+				else if (source != null)
+				{
+					slot = source.result;
+					List<Cell> list;
+					if ((list = dependents.get(source)) == null)
+						dependents.put(source, list = new ArrayList<>(2));
+					list.add(cell);
+					dependencyCount++;
+				}
+				else if ((slot = inputMap.get(name)) == null)
+					inputMap.put(name, slot = ExpressionValue.create(false));
+
+				if (assigns.contains(name))
+				{
+					seedNames.add(name);
+					seedSlots.add(slot);
+				}
+				else
+					slots.put(name, slot);
+			}
+			pending.put(cell, dependencyCount);
+
+			cell.seedNames = seedNames.toArray(new String[seedNames.size()]);
+			cell.seedSlots = seedSlots.toArray(new ExpressionValue[seedSlots.size()]);
+			if (root != null && !slots.isEmpty())
+				cell.compiled = Expression.create((ExpressionBranch)rewrite(root, slots));
+			else
+				cell.compiled = cell.expression;
+		}
+
+		inputNames = new String[inputMap.size()];
+		inputSlots = new ExpressionValue[inputMap.size()];
+		int n = 0;
+		for (Map.Entry<String, ExpressionValue> entry : inputMap.entrySet())
+		{
+			inputNames[n] = entry.getKey();
+			inputSlots[n] = entry.getValue();
+			n++;
+		}
+
+		// sort into levels.
+		List<Cell[]> levelList = new ArrayList<>();
+		List<Cell> current = new ArrayList<>();
+		for (Cell cell : cellMap.values())
+			if (pending.get(cell) == 0)
+				current.add(cell);
+
+		int placed = 0;
+		while (!current.isEmpty())
+		{
+			levelList.add(current.toArray(new Cell[current.size()]));
+			placed += current.size();
+			List<Cell> next = new ArrayList<>();
+			for (Cell cell : current)
+			{
+				List<Cell> list = dependents.get(cell);
+				if (list != null) for (Cell dependent : list)
+				{
+					int count = pending.get(dependent) - 1;
+					pending.put(dependent, count);
+					if (count == 0)
+						next.add(dependent);
+				}
+			}
+			current = next;
+		}
+
+		if (placed != cellMap.size())
+			throw new ExpressionException("Cells depend on each other in a cycle.");
+
+		levels = new Cell[levelList.size()][];
+		levelList.toArray(levels);
+	}
+
+	// Adds the variables read and set by a node and its children.
+	private static void scan(ExpressionNode node, Set<String> reads, Set<String> assigns)
+	{
+		if (node instanceof ExpressionDirective)
+		{
+			ExpressionDirective directive = (ExpressionDirective)node;
+			if (directive.getType() == ExpressionDirectiveType.PUSH_VARIABLE)
+				reads.add(String.valueOf(directive.getOperand()));
+			else if (directive.getType() == ExpressionDirectiveType.POP)
+				assigns.add(String.valueOf(directive.getOperand()));
+		}
+		else if (node instanceof ExpressionBranch)
+		{
+			ExpressionBranch branch = (ExpressionBranch)node;
+			scan(branch.getConditional(), reads, assigns);
+			scan(branch.getSuccessBlock(), reads, assigns);
+			scan(branch.getFailureBlock(), reads, assigns);
+		}
+		else if (node instanceof ExpressionDecision)
+			scan(((ExpressionDecision)node).getSource(), reads, assigns);
+	}
+
+	// Adds the variables read and set by a block of nodes.
+	private static void scan(ExpressionNode[] block, Set<String> reads, Set<String> assigns)
+	{
+		if (block != null) for (int i = 0; i < block.length; i++)
+			scan(block[i], reads, assigns);
+	}
+
+	// Replaces variable reads with slot reads. Returns the same node if nothing was replaced.
+	private static ExpressionNode rewrite(ExpressionNode node, Map<String, ExpressionValue> slots)
+	{
+		if (node instanceof ExpressionDirective)
+		{
+			ExpressionDirective directive = (ExpressionDirective)node;
+			if (directive.getType() != ExpressionDirectiveType.PUSH_VARIABLE)
+				return node;
+			String name = String.valueOf(directive.getOperand());
+			ExpressionValue slot = slots.get(name);
+			return slot != null ? new SlotRead(name, slot) : node;
+		}
+		else if (node instanceof ExpressionBranch)
+		{
+			ExpressionBranch branch = (ExpressionBranch)node;
+			ExpressionNode[] conditional = rewrite(branch.getConditional(), slots);
+			ExpressionNode[] successBlock = rewrite(branch.getSuccessBlock(), slots);
+			ExpressionNode[] failureBlock = rewrite(branch.getFailureBlock(), slots);
+			if (conditional == branch.getConditional() && successBlock == branch.getSuccessBlock() && failureBlock == branch.getFailureBlock())
+				return branch;
+			else if (branch.isUnconditional())
+				return ExpressionBranch.create(successBlock);
+			else
+				return ExpressionBranch.create(conditional, successBlock, failureBlock);
+		}
+		else if (node instanceof ExpressionDecision)
+		{
+			ExpressionDecision decision = (ExpressionDecision)node;
+			ExpressionNode[][] blocks = decision.getBlocks();
+			ExpressionNode[][] newBlocks = new ExpressionNode[blocks.length][];
+			boolean changed = false;
+			for (int i = 0; i < blocks.length; i++)
+				changed = (newBlocks[i] = rewrite(blocks[i], slots)) != blocks[i] || changed;
+			ExpressionNode[] subject = rewrite(decision.getSubject(), slots);
+			ExpressionNode[] defaultBlock = rewrite(decision.getDefaultBlock(), slots);
+			if (!changed && subject == decision.getSubject() && defaultBlock == decision.getDefaultBlock())
+				return decision;
+			ExpressionBranch source = (ExpressionBranch)rewrite(decision.getSource(), slots);
+			return ExpressionDecision.create(decision, source, subject, newBlocks, defaultBlock);
+		}
+		else
+			return node;
+	}
+
+	// Replaces variable reads in a block. Returns the same block if nothing was replaced.
+	private static ExpressionNode[] rewrite(ExpressionNode[] block, Map<String, ExpressionValue> slots)
+	{
+		if (block == null)
+			return null;
+		ExpressionNode[] out = block;
+		for (int i = 0; i < block.length; i++)
+		{
+			ExpressionNode node = rewrite(block[i], slots);
+			if (node != block[i])
+			{
+				if (out == block)
+					out = Arrays.copyOf(block, block.length);
+				out[i] = node;
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * A single cell.
+	 */
+	private static class Cell
+	{
+		/** Cell name. */
+		private String name;
+		/** Original expression. */
+		private Expression expression;
+		/** Expression with slot reads. */
+		private Expression compiled;
+		/** Result slot. */
+		private ExpressionValue result;
+		/** Names of variables that the cell sets and reads, and need starting values. */
+		private String[] seedNames;
+		/** Slots for the starting values. */
+		private ExpressionValue[] seedSlots;
+		/** Evaluation stack. */
+		private ExpressionStack stack;
+		/** Variable context. */
+		private ExpressionVariableContext context;
+
+		Cell(String name, Expression expression)
+		{
+			this.name = name;
+			this.expression = expression;
+			this.compiled = expression;
+			this.result = ExpressionValue.create(false);
+			this.seedNames = null;
+			this.seedSlots = null;
+			this.stack = new ExpressionStack();
+			this.context = new ExpressionVariableContext();
+		}
+
+		void evaluate()
+		{
+			stack.clear();
+			context.clear();
+			for (int i = 0; i < seedNames.length; i++)
+				context.set(seedNames[i], seedSlots[i]);
+			compiled.evaluate(stack, context, result);
+		}
+
+		@Override
+		public String toString()
+		{
+			return name + ": " + result;
+		}
+
+	}
+
+	/**
+	 * Evaluates a range of cells in one level.
+	 */
+	private static class LevelTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 4011851373475962235L;
+
+		private Cell[] cells;
+		private int start;
+		private int end;
+
+		LevelTask(Cell[] cells, int start, int end)
+		{
+			this.cells = cells;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (end - start <= PARALLEL_THRESHOLD)
+			{
+				for (int i = start; i < end; i++)
+					cells[i].evaluate();
+			}
+			else
+			{
+				int mid = (start + end) >>> 1;
+				invokeAll(new LevelTask(cells, start, mid), new LevelTask(cells, mid, end));
+			}
+		}
+
+	}
+
+	/**
+	 * Pushes the value in a slot.
+	 */
+	private static class SlotRead implements ExpressionNode
+	{
+		/** Variable name that this replaced. */
+		private String name;
+		/** Slot to read from. */
+		private ExpressionValue slot;
+
+		SlotRead(String name, ExpressionValue slot)
+		{
+			this.name = name;
+			this.slot = slot;
+		}
+
+		@Override
+		public boolean isCollapsable()
+		{
+			return false;
+		}
+
+		@Override
+		public boolean execute(ExpressionStack stack, ExpressionVariableContext context)
+		{
+			stack.push(slot);
+			return true;
+		}
+
+		@Override
+		public void writeBytes(OutputStream out) throws IOException
+		{
+			(new SerialWriter(SerialWriter.LITTLE_ENDIAN)).writeString(out, name);
+		}
+
+		@Override
+		public String toString()
+		{
+			return "SLOT " + name;
+		}
+
+	}
+
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the
+ * terms of the GNU Lesser Public License v2.1 which accompanies this
+ * distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+/**
+ * A bounded pool of interned expressions, keyed by structural hash.
+ * When the pool is full, an expression is evicted via the "second chance" algorithm: a hand sweeps over
+ * the entries, and expressions that were interned again since the hand last passed them are skipped once.
+ * Optionally, the pool can hold expressions via weak references, so that expressions that are
+ * no longer used anywhere else are removed when garbage collected.
+ * <p>This class is thread-safe. Interning does not lock: one thread at a time evicts, and the others
+ * do not wait for it, so the pool can briefly hold a few more expressions than its maximum size.
+ * @author Matthew Tropiano
+ * @see Expression#intern()
+ */
+public class ExpressionInternPool
+{
+	/** Default maximum size. */
+	public static final int DEFAULT_MAX_SIZE = 4096;
+
+	/** Map of hash to expression. */
+	private ExpressionCacheMap<Key, Expression> map;
+
+	/**
+	 * Creates a new pool with the default maximum size and strong references.
+	 * @see #DEFAULT_MAX_SIZE
+	 */
+	public ExpressionInternPool()
+	{
+		this(DEFAULT_MAX_SIZE, false);
+	}
+
+	/**
+	 * Creates a new pool.
+	 * @param maxSize the maximum amount of expressions to hold.
+	 * @param weak if true, expressions are held via weak references.
+	 */
+	public ExpressionInternPool(int maxSize, boolean weak)
+	{
+		this.map = new ExpressionCacheMap<>(maxSize, weak);
+	}
+
+	/**
+	 * Adds an expression to this pool and returns it,
+	 * or returns an existing expression with the same structural hash.
+	 * @param expression the expression to intern.
+	 * @return the expression, or an equal one already in the pool.
+	 */
+	public Expression intern(Expression expression)
+	{
+		Key key = new Key(expression.getHashHigh(), expression.getHashLow());
+		Expression out;
+		if ((out = map.get(key)) != null)
+			return out;
+		// another thread may have added an equal one since.
+		if ((out = map.putIfAbsent(key, expression)) != null)
+			return out;
+		return expression;
+	}
+
+	/**
+	 * Removes all expressions from this pool.
+	 */
+	public void clear()
+	{
+		map.clear();
+	}
+
+	/**
+	 * @return the amount of expressions in this pool (some may have been garbage collected, if weakly held).
+	 */
+	public int size()
+	{
+		return map.size();
+	}
+
+	/**
+	 * @return the maximum amount of expressions in this pool.
+	 */
+	public int getMaxSize()
+	{
+		return map.getMaxSize();
+	}
+
+	/**
+	 * @return true if this pool holds expressions via weak references, false if not.
+	 */
+	public boolean isWeak()
+	{
+		return map.isWeak();
+	}
+
+	/**
+	 * @return the amount of interns that returned an existing expression.
+	 */
+	public long getHitCount()
+	{
+		return map.getHitCount();
+	}
+
+	/**
+	 * @return the amount of interns that did not find an existing expression.
+	 */
+	public long getMissCount()
+	{
+		return map.getMissCount();
+	}
+
+	/**
+	 * @return the amount of expressions removed to make room for others.
+	 */
+	public long getEvictionCount()
+	{
+		return map.getEvictionCount();
+	}
+
+	/**
+	 * A structural hash key.
+	 */
+	private static class Key
+	{
+		private long high;
+		private long low;
+
+		Key(long high, long low)
+		{
+			this.high = high;
+			this.low = low;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (int)(low ^ (low >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key)obj;
+			return high == other.high && low == other.low;
+		}
+	}
+
+}
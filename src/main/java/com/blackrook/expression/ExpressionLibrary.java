@@ -0,0 +1,453 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.blackrook.expression.exception.ExpressionException;
+import com.blackrook.expression.struct.SerialWriter;
+import com.blackrook.expression.struct.StructuralHash;
+
+/**
+ * A read-only library of named, compiled expressions in a single file.
+ * The file is memory-mapped when opened, and each expression is decoded the first time it is requested,
+ * so opening a library reads only its header, and heap use grows only with the expressions used.
+ * <p>The file, all little-endian:
+ * <ul>
+ * <li>Header: magic number <code>BRXL</code>, version, name count, expression count, and the offsets of the sections below.</li>
+ * <li>Name index: fixed-width entries, sorted by name hash: name hash, name offset, expression index.</li>
+ * <li>Hash index: fixed-width entries, sorted by structural hash: hash high bits, hash low bits, expression index.</li>
+ * <li>Expression table: fixed-width entries: body offset, body length.</li>
+ * <li>Names: length-prefixed UTF-8.</li>
+ * <li>Bodies: expressions as written by {@link Expression#writeCompiled(OutputStream)}.
+ * Equal expressions under different names share a body.</li>
+ * </ul>
+ * <p>This class is thread-safe.
+ * @author Matthew Tropiano
+ */
+public class ExpressionLibrary
+{
+	/** Magic number. */
+	private static final byte[] MAGIC = {'B', 'R', 'X', 'L'};
+	/** Format version. */
+	private static final int VERSION = 1;
+	/** Header size in bytes. */
+	private static final int HEADER_SIZE = 36;
+	/** Name index entry size in bytes. */
+	private static final int NAME_ENTRY_SIZE = 16;
+	/** Hash index entry size in bytes. */
+	private static final int HASH_ENTRY_SIZE = 20;
+	/** Expression table entry size in bytes. */
+	private static final int BODY_ENTRY_SIZE = 8;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** The mapped file. */
+	private ByteBuffer buffer;
+	/** The function resolver for decoding. */
+	private ExpressionFunctionResolver resolver;
+	/** Amount of names. */
+	private int nameCount;
+	/** Amount of distinct expressions. */
+	private int expressionCount;
+	/** Name index offset. */
+	private int nameIndexOffset;
+	/** Hash index offset. */
+	private int hashIndexOffset;
+	/** Expression table offset. */
+	private int bodyTableOffset;
+	/** Decoded expressions, by expression index. */
+	private AtomicReferenceArray<Expression> decoded;
+
+	// Private constructor.
+	private ExpressionLibrary(ByteBuffer buffer, ExpressionFunctionResolver resolver)
+	{
+		for (int i = 0; i < MAGIC.length; i++)
+			if (buffer.limit() < HEADER_SIZE || buffer.get(i) != MAGIC[i])
+				throw new ExpressionException("Not an expression library.");
+		int version = buffer.getInt(4);
+		if (version != VERSION)
+			throw new ExpressionException("Unsupported expression library version: %d", version);
+
+		this.buffer = buffer;
+		this.resolver = resolver;
+		this.nameCount = buffer.getInt(8);
+		this.expressionCount = buffer.getInt(12);
+		this.nameIndexOffset = buffer.getInt(16);
+		this.hashIndexOffset = buffer.getInt(20);
+		this.bodyTableOffset = buffer.getInt(24);
+		this.decoded = new AtomicReferenceArray<>(expressionCount);
+	}
+
+	/**
+	 * Opens an expression library file.
+	 * The file is mapped into memory - nothing is decoded until requested.
+	 * @param file the file to open.
+	 * @param resolver the function resolver for the functions that the expressions call.
+	 * @return the opened library.
+	 * @throws IOException if the file could not be read, or is too large to map.
+	 * @throws ExpressionException if the file is not an expression library.
+	 */
+	public static ExpressionLibrary open(File file, ExpressionFunctionResolver resolver) throws IOException
+	{
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel())
+		{
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Expression library is too large to map: " + file.getPath());
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			// mapping stays valid after the channel is closed.
+			return new ExpressionLibrary(buffer, resolver);
+		}
+	}
+
+	/**
+	 * Writes an expression library file.
+	 * @param file the file to write.
+	 * @param expressions the map of name to expression.
+	 * @throws IOException if the file could not be written.
+	 * @throws ExpressionException if an expression contains a node type that cannot be written.
+	 */
+	public static void write(File file, Map<String, Expression> expressions) throws IOException
+	{
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file)))
+		{
+			write(out, expressions);
+		}
+	}
+
+	/**
+	 * Writes an expression library.
+	 * @param out the output stream to write to.
+	 * @param expressions the map of name to expression.
+	 * @throws IOException if a write error occurs.
+	 * @throws ExpressionException if an expression contains a node type that cannot be written.
+	 */
+	public static void write(OutputStream out, Map<String, Expression> expressions) throws IOException
+	{
+		int nameCount = expressions.size();
+		String[] names = new String[nameCount];
+		long[] nameHashes = new long[nameCount];
+		int[] nameBodies = new int[nameCount];
+
+		// compile each distinct expression once.
+		List<Expression> bodies = new ArrayList<>();
+		Map<Expression, Integer> bodyMap = new HashMap<>();
+		ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+		List<int[]> bodyTable = new ArrayList<>();
+
+		int n = 0;
+		for (Map.Entry<String, Expression> entry : expressions.entrySet())
+		{
+			Integer body;
+			if ((body = bodyMap.get(entry.getValue())) == null)
+			{
+				bodyMap.put(entry.getValue(), body = bodies.size());
+				bodies.add(entry.getValue());
+				int start = bodyBytes.size();
+				entry.getValue().writeCompiled(bodyBytes);
+				bodyTable.add(new int[]{start, bodyBytes.size() - start});
+			}
+			names[n] = entry.getKey();
+			nameHashes[n] = nameHash(entry.getKey());
+			nameBodies[n] = body;
+			n++;
+		}
+		int expressionCount = bodies.size();
+
+		Integer[] nameOrder = order(nameCount);
+		Arrays.sort(nameOrder, (a, b) -> Long.compare(nameHashes[a], nameHashes[b]));
+		Integer[] hashOrder = order(expressionCount);
+		Arrays.sort(hashOrder, (a, b) -> compareHash(
+			bodies.get(a).getHashHigh(), bodies.get(a).getHashLow(),
+			bodies.get(b).getHashHigh(), bodies.get(b).getHashLow()
+		));
+
+		ByteArrayOutputStream nameBytes = new ByteArrayOutputStream();
+		SerialWriter sw = new SerialWriter(SerialWriter.LITTLE_ENDIAN);
+		int[] nameOffsets = new int[nameCount];
+		for (int i = 0; i < nameCount; i++)
+		{
+			nameOffsets[i] = nameBytes.size();
+			sw.writeByteArray(nameBytes, names[i].getBytes(UTF_8));
+		}
+
+		long nameIndexOffset = HEADER_SIZE;
+		long hashIndexOffset = nameIndexOffset + (long)nameCount * NAME_ENTRY_SIZE;
+		long bodyTableOffset = hashIndexOffset + (long)expressionCount * HASH_ENTRY_SIZE;
+		long namesOffset = bodyTableOffset + (long)expressionCount * BODY_ENTRY_SIZE;
+		long bodiesOffset = namesOffset + nameBytes.size();
+		if (bodiesOffset + bodyBytes.size() > Integer.MAX_VALUE)
+			throw new IOException("Expression library is too large.");
+
+		sw.writeBytes(out, MAGIC);
+		sw.writeInt(out, VERSION);
+		sw.writeInt(out, nameCount);
+		sw.writeInt(out, expressionCount);
+		sw.writeInt(out, (int)nameIndexOffset);
+		sw.writeInt(out, (int)hashIndexOffset);
+		sw.writeInt(out, (int)bodyTableOffset);
+		sw.writeInt(out, (int)namesOffset);
+		sw.writeInt(out, (int)bodiesOffset);
+
+		for (int i : nameOrder)
+		{
+			sw.writeLong(out, nameHashes[i]);
+			sw.writeInt(out, (int)namesOffset + nameOffsets[i]);
+			sw.writeInt(out, nameBodies[i]);
+		}
+		for (int i : hashOrder)
+		{
+			sw.writeLong(out, bodies.get(i).getHashHigh());
+			sw.writeLong(out, bodies.get(i).getHashLow());
+			sw.writeInt(out, i);
+		}
+		for (int[] entry : bodyTable)
+		{
+			sw.writeInt(out, (int)bodiesOffset + entry[0]);
+			sw.writeInt(out, entry[1]);
+		}
+		nameBytes.writeTo(out);
+		bodyBytes.writeTo(out);
+	}
+
+	/**
+	 * Gets an expression by name, decoding it if this is the first request for it.
+	 * @param name the expression name.
+	 * @return the expression, or null if there is no expression with that name.
+	 * @throws ExpressionException if the expression could not be decoded.
+	 */
+	public Expression get(String name)
+	{
+		int entry = findName(name);
+		return entry >= 0 ? getExpression(buffer.getInt(nameIndexOffset + entry * NAME_ENTRY_SIZE + 12)) : null;
+	}
+
+	/**
+	 * Gets an expression by its structural hash, decoding it if this is the first request for it.
+	 * @param hashHigh the high bits of the hash.
+	 * @param hashLow the low bits of the hash.
+	 * @return the expression, or null if there is no expression with that hash.
+	 * @throws ExpressionException if the expression could not be decoded.
+	 * @see Expression#getHashHigh()
+	 * @see Expression#getHashLow()
+	 */
+	public Expression get(long hashHigh, long hashLow)
+	{
+		int lo = 0;
+		int hi = expressionCount - 1;
+		while (lo <= hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			int offset = hashIndexOffset + mid * HASH_ENTRY_SIZE;
+			int c = compareHash(buffer.getLong(offset), buffer.getLong(offset + 8), hashHigh, hashLow);
+			if (c < 0)
+				lo = mid + 1;
+			else if (c > 0)
+				hi = mid - 1;
+			else
+				return getExpression(buffer.getInt(offset + 16));
+		}
+		return null;
+	}
+
+	/**
+	 * Checks if this library has an expression by name. Does not decode it.
+	 * @param name the expression name.
+	 * @return true if so, false if not.
+	 */
+	public boolean contains(String name)
+	{
+		return findName(name) >= 0;
+	}
+
+	/**
+	 * Gets a name in this library, in index order.
+	 * @param index the index, from 0 to {@link #size()} - 1.
+	 * @return the name.
+	 * @throws IndexOutOfBoundsException if the index is out of range.
+	 */
+	public String getName(int index)
+	{
+		if (index < 0 || index >= nameCount)
+			throw new IndexOutOfBoundsException("Index: " + index);
+		return readName(buffer.getInt(nameIndexOffset + index * NAME_ENTRY_SIZE + 8));
+	}
+
+	/**
+	 * @return the amount of names in this library.
+	 */
+	public int size()
+	{
+		return nameCount;
+	}
+
+	/**
+	 * @return true if this library has no expressions, false if not.
+	 */
+	public boolean isEmpty()
+	{
+		return nameCount == 0;
+	}
+
+	/**
+	 * @return the amount of distinct expressions in this library.
+	 */
+	public int getExpressionCount()
+	{
+		return expressionCount;
+	}
+
+	/**
+	 * @return the amount of distinct expressions decoded so far.
+	 */
+	public int getDecodedCount()
+	{
+		int out = 0;
+		for (int i = 0; i < expressionCount; i++)
+			if (decoded.get(i) != null)
+				out++;
+		return out;
+	}
+
+	// Finds a name index entry. Returns -1 if not found.
+	private int findName(String name)
+	{
+		long hash = nameHash(name);
+		int lo = 0;
+		int hi = nameCount - 1;
+		while (lo <= hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			long h = buffer.getLong(nameIndexOffset + mid * NAME_ENTRY_SIZE);
+			if (h < hash)
+				lo = mid + 1;
+			else if (h > hash)
+				hi = mid - 1;
+			else
+			{
+				// scan the run of equal hashes.
+				while (mid > 0 && buffer.getLong(nameIndexOffset + (mid - 1) * NAME_ENTRY_SIZE) == hash)
+					mid--;
+				for (; mid < nameCount && buffer.getLong(nameIndexOffset + mid * NAME_ENTRY_SIZE) == hash; mid++)
+					if (name.equals(readName(buffer.getInt(nameIndexOffset + mid * NAME_ENTRY_SIZE + 8))))
+						return mid;
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	// Reads a name.
+	private String readName(int offset)
+	{
+		byte[] b = new byte[buffer.getInt(offset)];
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset + 4);
+		view.get(b);
+		return new String(b, UTF_8);
+	}
+
+	// Gets or decodes an expression.
+	private Expression getExpression(int index)
+	{
+		Expression out;
+		if ((out = decoded.get(index)) != null)
+			return out;
+
+		int offset = buffer.getInt(bodyTableOffset + index * BODY_ENTRY_SIZE);
+		int length = buffer.getInt(bodyTableOffset + index * BODY_ENTRY_SIZE + 4);
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.limit(offset + length);
+		try {
+			out = Expression.readCompiled(new BufferInputStream(view), resolver);
+		} catch (IOException e) {
+			throw new ExpressionException("Expression could not be decoded.", e);
+		}
+		// another thread may have decoded it first.
+		return decoded.compareAndSet(index, null, out) ? out : decoded.get(index);
+	}
+
+	// Hashes a name.
+	private static long nameHash(String name)
+	{
+		return (new StructuralHash()).putString(name).finish().getHigh();
+	}
+
+	// Compares two structural hashes.
+	private static int compareHash(long high1, long low1, long high2, long low2)
+	{
+		int c = Long.compare(high1, high2);
+		return c != 0 ? c : Long.compare(low1, low2);
+	}
+
+	// Makes an array of indices.
+	private static Integer[] order(int length)
+	{
+		Integer[] out = new Integer[length];
+		for (int i = 0; i < length; i++)
+			out[i] = i;
+		return out;
+	}
+
+	/**
+	 * Input stream over a buffer.
+	 */
+	private static class BufferInputStream extends InputStream
+	{
+		private ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read()
+		{
+			return buffer.hasRemaining() ? buffer.get() & 0x0ff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len)
+		{
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available()
+		{
+			return buffer.remaining();
+		}
+	}
+
+}
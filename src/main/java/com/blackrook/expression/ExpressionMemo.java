@@ -0,0 +1,395 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.blackrook.expression.node.ExpressionBranch;
+import com.blackrook.expression.node.ExpressionDecision;
+import com.blackrook.expression.node.ExpressionDirective;
+import com.blackrook.expression.node.ExpressionDirectiveType;
+import com.blackrook.expression.node.ExpressionFunction;
+
+/**
+ * A bounded cache of results for one expression, keyed on the values of the variables that it reads.
+ * The expression must be memoizable: every node must be collapsable other than variable reads, and it
+ * must not set variables (see {@link #isMemoizable(Expression)}).
+ * <p>Keys are the exact types and bits of the variable values, stored in an open-addressing table.
+ * When the cache is full, an entry is evicted via the CLOCK algorithm: entries that were used since the
+ * clock hand last passed them get a second chance.
+ * <p>This class is not thread-safe.
+ * @author Matthew Tropiano
+ */
+public class ExpressionMemo
+{
+	/** Default capacity. */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/** The expression. */
+	private Expression expression;
+	/** Variables read by the expression. */
+	private String[] variables;
+	/** Maximum amount of entries. */
+	private int capacity;
+	/** Current amount of entries. */
+	private int size;
+	/** Slot mask. */
+	private int mask;
+
+	/** Slot in use, per slot. */
+	private boolean[] used;
+	/** Slot was used since the clock hand passed it, per slot. */
+	private boolean[] referenced;
+	/** Key hash, per slot. */
+	private int[] hashes;
+	/** Key value bits, per slot, per variable. */
+	private long[] keyBits;
+	/** Key value types, per slot, per variable. */
+	private byte[] keyTypes;
+	/** Result, per slot. */
+	private ExpressionValue[] results;
+	/** Clock hand slot. */
+	private int hand;
+
+	/** Current key bits. */
+	private long[] currentBits;
+	/** Current key types. */
+	private byte[] currentTypes;
+	/** Stack for evaluation. */
+	private ExpressionStack stack;
+
+	/** Lookups that found a result. */
+	private long hitCount;
+	/** Lookups that did not find a result. */
+	private long missCount;
+	/** Evicted entries. */
+	private long evictionCount;
+
+	/**
+	 * Creates a new memo for an expression with the default capacity.
+	 * @param expression the expression to cache the results of.
+	 * @throws IllegalArgumentException if the expression is not memoizable.
+	 * @see #isMemoizable(Expression)
+	 * @see #DEFAULT_CAPACITY
+	 */
+	public ExpressionMemo(Expression expression)
+	{
+		this(expression, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new memo for an expression.
+	 * @param expression the expression to cache the results of.
+	 * @param capacity the maximum amount of results to keep.
+	 * @throws IllegalArgumentException if the expression is not memoizable.
+	 * @see #isMemoizable(Expression)
+	 */
+	public ExpressionMemo(Expression expression, int capacity)
+	{
+		Set<String> names = new LinkedHashSet<>();
+		if (!expression.isValue() && !scan(expression.getRootNode(), names))
+			throw new IllegalArgumentException("Expression is not memoizable.");
+		if (capacity < 1)
+			capacity = 1;
+
+		this.expression = expression;
+		this.variables = names.toArray(new String[names.size()]);
+		this.capacity = capacity;
+		this.size = 0;
+
+		int slots = 2;
+		while (slots < capacity * 2)
+			slots *= 2;
+		this.mask = slots - 1;
+
+		int n = variables.length;
+		this.used = new boolean[slots];
+		this.referenced = new boolean[slots];
+		this.hashes = new int[slots];
+		this.keyBits = new long[slots * n];
+		this.keyTypes = new byte[slots * n];
+		this.results = new ExpressionValue[slots];
+		for (int i = 0; i < slots; i++)
+			this.results[i] = ExpressionValue.create(false);
+		this.hand = 0;
+
+		this.currentBits = new long[n];
+		this.currentTypes = new byte[n];
+		this.stack = new ExpressionStack();
+
+		this.hitCount = 0L;
+		this.missCount = 0L;
+		this.evictionCount = 0L;
+	}
+
+	/**
+	 * Checks if an expression's results can be cached by the values of the variables that it reads.
+	 * This is true if every node is collapsable other than variable reads, and it does not set variables.
+	 * @param expression the expression to check.
+	 * @return true if so, false if not.
+	 */
+	public static boolean isMemoizable(Expression expression)
+	{
+		return expression.isValue() || scan(expression.getRootNode(), new LinkedHashSet<String>());
+	}
+
+	/**
+	 * @return the expression whose results are cached.
+	 */
+	public Expression getExpression()
+	{
+		return expression;
+	}
+
+	/**
+	 * @return the variables read by the expression (the key). Do not modify the returned array.
+	 */
+	public String[] getVariables()
+	{
+		return variables;
+	}
+
+	/**
+	 * Evaluates the expression, or gets the cached result for the current variable values.
+	 * The return variable is removed from the context before and after evaluation.
+	 * @param context the variable context to use.
+	 * @param out the output value.
+	 */
+	public void evaluate(ExpressionVariableContext context, ExpressionValue out)
+	{
+		int n = variables.length;
+		for (int i = 0; i < n; i++)
+		{
+			ExpressionValue value = context.get(variables[i]);
+			// missing variables are pushed as false.
+			if (value == null)
+			{
+				currentTypes[i] = (byte)ExpressionValue.Type.BOOLEAN.ordinal();
+				currentBits[i] = 0L;
+			}
+			else
+			{
+				currentTypes[i] = (byte)value.getType().ordinal();
+				currentBits[i] = value.getRawBits();
+			}
+		}
+
+		int hash = hash();
+		int slot = find(hash);
+		if (slot >= 0)
+		{
+			referenced[slot] = true;
+			out.set(results[slot]);
+			hitCount++;
+			return;
+		}
+
+		missCount++;
+		stack.clear();
+		context.remove(Expression.RETURN_VARIABLE);
+		expression.evaluate(stack, context, out);
+		context.remove(Expression.RETURN_VARIABLE);
+
+		if (size == capacity)
+		{
+			evict();
+			slot = find(hash);
+		}
+		slot = ~slot;
+
+		used[slot] = true;
+		referenced[slot] = false;
+		hashes[slot] = hash;
+		System.arraycopy(currentBits, 0, keyBits, slot * n, n);
+		System.arraycopy(currentTypes, 0, keyTypes, slot * n, n);
+		results[slot].set(out);
+		size++;
+	}
+
+	/**
+	 * Removes all cached results.
+	 */
+	public void clear()
+	{
+		Arrays.fill(used, false);
+		Arrays.fill(referenced, false);
+		size = 0;
+		hand = 0;
+	}
+
+	/**
+	 * @return the amount of cached results.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the maximum amount of cached results.
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * @return the amount of evaluations that used a cached result.
+	 */
+	public long getHitCount()
+	{
+		return hitCount;
+	}
+
+	/**
+	 * @return the amount of evaluations that evaluated the expression.
+	 */
+	public long getMissCount()
+	{
+		return missCount;
+	}
+
+	/**
+	 * @return the amount of cached results that were evicted to make room for others.
+	 */
+	public long getEvictionCount()
+	{
+		return evictionCount;
+	}
+
+	// Hashes the current key.
+	private int hash()
+	{
+		long h = 0x9e3779b97f4a7c15L;
+		for (int i = 0; i < currentBits.length; i++)
+		{
+			h ^= currentBits[i] + currentTypes[i];
+			h *= 0xbf58476d1ce4e5b9L;
+			h ^= h >>> 31;
+		}
+		return (int)(h ^ (h >>> 32));
+	}
+
+	// Finds the slot of the current key. Returns the inverted empty slot to insert into if not found.
+	private int find(int hash)
+	{
+		int slot = hash & mask;
+		while (used[slot])
+		{
+			if (hashes[slot] == hash && keyEquals(slot))
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+		return ~slot;
+	}
+
+	// Checks if a slot's key is the current key.
+	private boolean keyEquals(int slot)
+	{
+		int n = currentBits.length;
+		int offset = slot * n;
+		for (int i = 0; i < n; i++)
+			if (keyBits[offset + i] != currentBits[i] || keyTypes[offset + i] != currentTypes[i])
+				return false;
+		return true;
+	}
+
+	// Evicts one entry via CLOCK.
+	private void evict()
+	{
+		while (true)
+		{
+			int slot = hand;
+			hand = (hand + 1) & mask;
+			if (!used[slot])
+				continue;
+			if (referenced[slot])
+				referenced[slot] = false;
+			else
+			{
+				remove(slot);
+				evictionCount++;
+				return;
+			}
+		}
+	}
+
+	// Removes an entry, shifting later entries in its probe run back into the gap.
+	private void remove(int slot)
+	{
+		int n = currentBits.length;
+		int gap = slot;
+		int next = slot;
+		while (true)
+		{
+			next = (next + 1) & mask;
+			if (!used[next])
+				break;
+
+			// stays put if its home slot is cyclically in (gap, next].
+			int home = hashes[next] & mask;
+			if (gap <= next ? (gap < home && home <= next) : (gap < home || home <= next))
+				continue;
+
+			hashes[gap] = hashes[next];
+			referenced[gap] = referenced[next];
+			System.arraycopy(keyBits, next * n, keyBits, gap * n, n);
+			System.arraycopy(keyTypes, next * n, keyTypes, gap * n, n);
+			results[gap].set(results[next]);
+			gap = next;
+		}
+		used[gap] = false;
+		referenced[gap] = false;
+		size--;
+	}
+
+	// Adds the variables read by a node and its children.
+	// Returns false if the node is not memoizable.
+	private static boolean scan(ExpressionNode node, Set<String> names)
+	{
+		if (node instanceof ExpressionDirective)
+		{
+			ExpressionDirective directive = (ExpressionDirective)node;
+			ExpressionDirectiveType type = directive.getType();
+			if (type == ExpressionDirectiveType.PUSH_VARIABLE)
+			{
+				names.add(String.valueOf(directive.getOperand()));
+				return true;
+			}
+			else if (type == ExpressionDirectiveType.POP)
+				return false;
+			else
+				return type.isCollapsable();
+		}
+		else if (node instanceof ExpressionFunction)
+			return ((ExpressionFunction)node).isCollapsable();
+		else if (node instanceof ExpressionBranch)
+		{
+			ExpressionBranch branch = (ExpressionBranch)node;
+			return scan(branch.getConditional(), names)
+				&& scan(branch.getSuccessBlock(), names)
+				&& scan(branch.getFailureBlock(), names);
+		}
+		else if (node instanceof ExpressionDecision)
+			return scan(((ExpressionDecision)node).getSource(), names);
+		else
+			return false;
+	}
+
+	// Adds the variables read by a block of nodes.
+	private static boolean scan(ExpressionNode[] block, Set<String> names)
+	{
+		if (block != null) for (int i = 0; i < block.length; i++)
+			if (!scan(block[i], names))
+				return false;
+		return true;
+	}
+
+}
@@ -10,6 +10,9 @@ package com.blackrook.expression;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import com.blackrook.expression.exception.ExpressionException;
+import com.blackrook.expression.struct.StructuralHash;
+
 /**
  * A single node in a compiled expression.
  * @author Matthew Tropiano
@@ -37,4 +40,18 @@ public interface ExpressionNode
 	 */
 	public void writeBytes(OutputStream out) throws IOException;
 
+	/**
+	 * Adds this node's structure to a hash (for finding equal expressions).
+	 * By default, this adds the output of {@link #writeBytes(OutputStream)}.
+	 * @param hash the hash to add to.
+	 */
+	public default void writeHash(StructuralHash hash)
+	{
+		try {
+			writeBytes(hash);
+		} catch (IOException e) {
+			throw new ExpressionException("The hash could not be calculated!", e);
+		}
+	}
+
 }
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+/**
+ * A bounded cache of parsed expressions, keyed by source text, function resolver (by identity), and parse mode.
+ * {@link ExpressionFactory} checks this before parsing a string, if one is set (there is none by default).
+ * <p>Entries strongly reference their expressions and resolvers until evicted, so a long-lived cache
+ * keeps resolvers alive - clear it when a resolver is discarded.
+ * <p>When the cache is full, an entry is evicted via the "second chance" algorithm: a hand sweeps over
+ * the entries, and entries that were used since the hand last passed them are skipped once.
+ * <p>This class is thread-safe. Lookups and additions do not lock: one thread at a time evicts, and the others
+ * do not wait for it, so the cache can briefly hold a few more entries than its maximum size.
+ * @author Matthew Tropiano
+ * @see ExpressionFactory#setParseCache(ExpressionParseCache)
+ */
+public class ExpressionParseCache
+{
+	/** Default maximum size. */
+	public static final int DEFAULT_MAX_SIZE = 1024;
+
+	/** Map of key to expression. */
+	private ExpressionCacheMap<Key, Expression> map;
+
+	/**
+	 * Creates a new cache with the default maximum size.
+	 * @see #DEFAULT_MAX_SIZE
+	 */
+	public ExpressionParseCache()
+	{
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Creates a new cache.
+	 * @param maxSize the maximum amount of expressions to hold.
+	 */
+	public ExpressionParseCache(int maxSize)
+	{
+		this.map = new ExpressionCacheMap<>(maxSize, false);
+	}
+
+	/**
+	 * Gets a cached expression.
+	 * @param source the expression source.
+	 * @param resolver the function resolver used to parse it.
+	 * @param block true if parsed as a block, false if parsed as a phrase.
+	 * @return the cached expression, or null if not cached.
+	 */
+	Expression get(String source, ExpressionFunctionResolver resolver, boolean block)
+	{
+		return map.get(new Key(source, resolver, block));
+	}
+
+	/**
+	 * Adds an expression to the cache.
+	 * @param source the expression source.
+	 * @param resolver the function resolver used to parse it.
+	 * @param block true if parsed as a block, false if parsed as a phrase.
+	 * @param expression the parsed expression.
+	 */
+	void put(String source, ExpressionFunctionResolver resolver, boolean block, Expression expression)
+	{
+		map.putIfAbsent(new Key(source, resolver, block), expression);
+	}
+
+	/**
+	 * Removes all cached expressions.
+	 */
+	public void clear()
+	{
+		map.clear();
+	}
+
+	/**
+	 * @return the amount of cached expressions.
+	 */
+	public int size()
+	{
+		return map.size();
+	}
+
+	/**
+	 * @return the maximum amount of cached expressions.
+	 */
+	public int getMaxSize()
+	{
+		return map.getMaxSize();
+	}
+
+	/**
+	 * @return the amount of lookups that found an expression.
+	 */
+	public long getHitCount()
+	{
+		return map.getHitCount();
+	}
+
+	/**
+	 * @return the amount of lookups that did not find an expression.
+	 */
+	public long getMissCount()
+	{
+		return map.getMissCount();
+	}
+
+	/**
+	 * @return the amount of expressions removed to make room for others.
+	 */
+	public long getEvictionCount()
+	{
+		return map.getEvictionCount();
+	}
+
+	/**
+	 * @return the fraction of lookups that found an expression, from 0 to 1, or 0 if no lookups.
+	 */
+	public double getHitRate()
+	{
+		long hits = getHitCount();
+		long total = hits + getMissCount();
+		return total == 0L ? 0.0 : (double)hits / total;
+	}
+
+	/**
+	 * Cache key.
+	 */
+	private static class Key
+	{
+		private String source;
+		private ExpressionFunctionResolver resolver;
+		private boolean block;
+		private int hash;
+
+		Key(String source, ExpressionFunctionResolver resolver, boolean block)
+		{
+			this.source = source;
+			this.resolver = resolver;
+			this.block = block;
+			this.hash = (source.hashCode() * 31 + System.identityHashCode(resolver)) * 2 + (block ? 1 : 0);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key)obj;
+			return hash == other.hash
+				&& block == other.block
+				&& resolver == other.resolver
+				&& source.equals(other.source);
+		}
+	}
+
+}
@@ -0,0 +1,363 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.blackrook.expression.node.ExpressionDirectiveType;
+
+/**
+ * An index of comparisons between variables and constants ("atoms"), used by {@link ExpressionRuleSet}
+ * to find the rules that can still be true for a set of variables.
+ * Each indexed rule is added with one atom that must be true for the rule to be true.
+ * <p>Equality atoms are stored in hash tables, and the others are stored in arrays sorted by constant,
+ * so that finding the atoms that are true for a variable value is a lookup or a binary search.
+ * @author Matthew Tropiano
+ */
+class ExpressionPredicateIndex
+{
+	private static final int OP_EQUAL = 0;
+	private static final int OP_LESS = 1;
+	private static final int OP_LESS_OR_EQUAL = 2;
+	private static final int OP_GREATER = 3;
+	private static final int OP_GREATER_OR_EQUAL = 4;
+	private static final int OP_COUNT = 5;
+
+	/** Map of variable name to variable index. */
+	private Map<String, VariableIndex> variableMap;
+	/** Variable indices. */
+	private VariableIndex[] variables;
+	/** Rules that are not indexed. */
+	private int[] unindexedRules;
+	/** Amount of rules that are not indexed. */
+	private int unindexedCount;
+
+	/**
+	 * Creates a new, empty index.
+	 */
+	ExpressionPredicateIndex()
+	{
+		this.variableMap = new HashMap<>();
+		this.variables = null;
+		this.unindexedRules = new int[8];
+		this.unindexedCount = 0;
+	}
+
+	/**
+	 * Checks if a directive type can be indexed.
+	 * @param type the comparison type.
+	 * @return true if so, false if not.
+	 */
+	static boolean isIndexable(ExpressionDirectiveType type)
+	{
+		return getOperation(type) >= 0;
+	}
+
+	/**
+	 * Gets the comparison that is equivalent to a comparison with its operands swapped.
+	 * @param type the comparison type.
+	 * @return the flipped type.
+	 */
+	static ExpressionDirectiveType flip(ExpressionDirectiveType type)
+	{
+		switch (type)
+		{
+			case LESS:
+				return ExpressionDirectiveType.GREATER;
+			case LESS_OR_EQUAL:
+				return ExpressionDirectiveType.GREATER_OR_EQUAL;
+			case GREATER:
+				return ExpressionDirectiveType.LESS;
+			case GREATER_OR_EQUAL:
+				return ExpressionDirectiveType.LESS_OR_EQUAL;
+			default:
+				return type;
+		}
+	}
+
+	// Gets the index operation for a type, or -1 if not indexable.
+	private static int getOperation(ExpressionDirectiveType type)
+	{
+		switch (type)
+		{
+			case EQUAL:
+				return OP_EQUAL;
+			case LESS:
+				return OP_LESS;
+			case LESS_OR_EQUAL:
+				return OP_LESS_OR_EQUAL;
+			case GREATER:
+				return OP_GREATER;
+			case GREATER_OR_EQUAL:
+				return OP_GREATER_OR_EQUAL;
+			default:
+				return -1;
+		}
+	}
+
+	/**
+	 * Adds a rule that can only be true if <code>variable type constant</code> is true.
+	 * @param variable the variable name.
+	 * @param type the comparison type (must be indexable).
+	 * @param constant the constant value.
+	 * @param rule the rule index.
+	 */
+	void add(String variable, ExpressionDirectiveType type, double constant, int rule)
+	{
+		// NaN never compares true, so the rule can never be true.
+		if (Double.isNaN(constant))
+			return;
+		VariableIndex index;
+		if ((index = variableMap.get(variable)) == null)
+			variableMap.put(variable, index = new VariableIndex(variable));
+		index.add(getOperation(type), constant, rule);
+		variables = null;
+	}
+
+	/**
+	 * Adds a rule that is always a candidate.
+	 * @param rule the rule index.
+	 */
+	void addUnindexed(int rule)
+	{
+		if (unindexedCount == unindexedRules.length)
+			unindexedRules = Arrays.copyOf(unindexedRules, unindexedRules.length * 2);
+		unindexedRules[unindexedCount++] = rule;
+	}
+
+	/**
+	 * @return the amount of indexed variables.
+	 */
+	int getVariableCount()
+	{
+		return variableMap.size();
+	}
+
+	/**
+	 * Sets the bits for all rules that may be true for a set of variables.
+	 * @param context the variable context.
+	 * @param out the output set of rule bits. Bits are only set, not cleared.
+	 */
+	void collect(ExpressionVariableContext context, BitSet out)
+	{
+		if (variables == null)
+		{
+			variables = new VariableIndex[variableMap.size()];
+			variableMap.values().toArray(variables);
+			for (int i = 0; i < variables.length; i++)
+				variables[i].prepare();
+		}
+
+		for (int i = 0; i < unindexedCount; i++)
+			out.set(unindexedRules[i]);
+
+		for (int i = 0; i < variables.length; i++)
+		{
+			// missing variables are pushed as false.
+			ExpressionValue value = context.get(variables[i].name);
+			variables[i].collect(value != null ? value.asDouble() : 0.0, out);
+		}
+	}
+
+	// Adds a range of rule indices to a bit set.
+	private static void setRules(BitSet out, int[] rules, int start, int end)
+	{
+		for (int i = start; i < end; i++)
+			out.set(rules[i]);
+	}
+
+	// First index whose value is greater than or equal to x.
+	private static int lowerBound(double[] values, int count, double x)
+	{
+		int lo = 0, hi = count;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (values[mid] < x)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	// First index whose value is greater than x.
+	private static int upperBound(double[] values, int count, double x)
+	{
+		int lo = 0, hi = count;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (values[mid] <= x)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	// Normalized bits for equality keys (-0.0 is the same as 0.0).
+	private static long equalityKey(double value)
+	{
+		return Double.doubleToLongBits(value + 0.0);
+	}
+
+	// Slot hash for equality keys.
+	private static int hash(long key)
+	{
+		key *= 0x9e3779b97f4a7c15L;
+		return (int)(key ^ (key >>> 32));
+	}
+
+	/**
+	 * Index of atoms for a single variable.
+	 */
+	private static class VariableIndex
+	{
+		/** Variable name. */
+		private String name;
+		/** Constants per operation. Sorted after prepare. */
+		private double[][] constants;
+		/** Rules per operation, parallel to constants. */
+		private int[][] rules;
+		/** Atom count per operation. */
+		private int[] counts;
+
+		/** Equality table keys (open addressing). */
+		private long[] equalKeys;
+		/** Equality table rule start offsets, or -1 for empty slots. */
+		private int[] equalStart;
+		/** Equality table rule end offsets. */
+		private int[] equalEnd;
+
+		VariableIndex(String name)
+		{
+			this.name = name;
+			this.constants = new double[OP_COUNT][];
+			this.rules = new int[OP_COUNT][];
+			this.counts = new int[OP_COUNT];
+			for (int i = 0; i < OP_COUNT; i++)
+			{
+				this.constants[i] = new double[4];
+				this.rules[i] = new int[4];
+			}
+		}
+
+		void add(int op, double constant, int rule)
+		{
+			if (counts[op] == constants[op].length)
+			{
+				constants[op] = Arrays.copyOf(constants[op], Math.max(4, counts[op] * 2));
+				rules[op] = Arrays.copyOf(rules[op], Math.max(4, counts[op] * 2));
+			}
+			constants[op][counts[op]] = op == OP_EQUAL ? Double.longBitsToDouble(equalityKey(constant)) : constant;
+			rules[op][counts[op]] = rule;
+			counts[op]++;
+		}
+
+		// Sorts the atoms and builds the equality table.
+		void prepare()
+		{
+			for (int op = 0; op < OP_COUNT; op++)
+				sort(op);
+
+			int count = counts[OP_EQUAL];
+			int capacity = 4;
+			while (capacity < count * 2)
+				capacity *= 2;
+			equalKeys = new long[capacity];
+			equalStart = new int[capacity];
+			equalEnd = new int[capacity];
+			Arrays.fill(equalStart, -1);
+
+			double[] values = constants[OP_EQUAL];
+			int i = 0;
+			while (i < count)
+			{
+				long key = Double.doubleToLongBits(values[i]);
+				int end = i + 1;
+				while (end < count && Double.doubleToLongBits(values[end]) == key)
+					end++;
+				int slot = hash(key) & (capacity - 1);
+				while (equalStart[slot] >= 0)
+					slot = (slot + 1) & (capacity - 1);
+				equalKeys[slot] = key;
+				equalStart[slot] = i;
+				equalEnd[slot] = end;
+				i = end;
+			}
+		}
+
+		// Sorts an operation's atoms by constant.
+		private void sort(int op)
+		{
+			final double[] values = constants[op];
+			int count = counts[op];
+			Integer[] order = new Integer[count];
+			for (int i = 0; i < count; i++)
+				order[i] = i;
+			Arrays.sort(order, new Comparator<Integer>()
+			{
+				@Override
+				public int compare(Integer a, Integer b)
+				{
+					return Double.compare(values[a], values[b]);
+				}
+			});
+
+			double[] sortedValues = new double[count];
+			int[] sortedRules = new int[count];
+			for (int i = 0; i < count; i++)
+			{
+				sortedValues[i] = values[order[i]];
+				sortedRules[i] = rules[op][order[i]];
+			}
+			constants[op] = sortedValues;
+			rules[op] = sortedRules;
+		}
+
+		// Sets the rule bits of all atoms that are true for a value.
+		void collect(double x, BitSet out)
+		{
+			// NaN never compares true.
+			if (Double.isNaN(x))
+				return;
+
+			if (counts[OP_EQUAL] > 0)
+			{
+				long key = equalityKey(x);
+				int mask = equalKeys.length - 1;
+				int slot = hash(key) & mask;
+				while (equalStart[slot] >= 0)
+				{
+					if (equalKeys[slot] == key)
+					{
+						setRules(out, rules[OP_EQUAL], equalStart[slot], equalEnd[slot]);
+						break;
+					}
+					slot = (slot + 1) & mask;
+				}
+			}
+
+			// x < c, where c > x
+			setRules(out, rules[OP_LESS], upperBound(constants[OP_LESS], counts[OP_LESS], x), counts[OP_LESS]);
+			// x <= c, where c >= x
+			setRules(out, rules[OP_LESS_OR_EQUAL], lowerBound(constants[OP_LESS_OR_EQUAL], counts[OP_LESS_OR_EQUAL], x), counts[OP_LESS_OR_EQUAL]);
+			// x > c, where c < x
+			setRules(out, rules[OP_GREATER], 0, lowerBound(constants[OP_GREATER], counts[OP_GREATER], x));
+			// x >= c, where c <= x
+			setRules(out, rules[OP_GREATER_OR_EQUAL], 0, upperBound(constants[OP_GREATER_OR_EQUAL], counts[OP_GREATER_OR_EQUAL], x));
+		}
+
+	}
+
+}
@@ -0,0 +1,695 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.blackrook.expression.exception.ExpressionException;
+import com.blackrook.expression.node.ExpressionBranch;
+import com.blackrook.expression.node.ExpressionDirective;
+import com.blackrook.expression.node.ExpressionDirectiveType;
+import com.blackrook.expression.node.ExpressionFunction;
+
+/**
+ * A set of rule expressions that are all evaluated against the same variable context.
+ * <p>The node programs of all added rules are merged into one graph. Subtrees that are the same across rules
+ * (found via keys made from each node's {@link ExpressionNode#writeBytes(java.io.OutputStream)} output, its operand type, and its arguments' graph nodes)
+ * are only stored once, and so are only calculated once per evaluation, including variable reads.
+ * <p>Rules that are not single phrases (blocks with branches, assignments, or returns) are kept whole and evaluated as-is.
+ * <p>Rules are also indexed by their simple comparisons: if a rule is an "and" of terms, and one of those terms compares
+ * a variable to a constant (<code>==</code>, <code>&lt;</code>, <code>&lt;=</code>, <code>&gt;</code>, <code>&gt;=</code>), 
+ * the rule is only evaluated if that comparison is true, which is found via lookup or binary search for all rules at once.
+ * <p>Alternatively, in {@link Mode#BIT_PARALLEL} mode, every distinct term under the rules' logical and/or/not operators 
+ * is evaluated once, and the rules are matched via word-wide bit operations over all of the term results.
+ * Rules should not depend on each other's assignments - the order that they are evaluated in is not defined.
+ * <p>This class is not thread-safe - it uses internal scratch space for evaluation.
+ * @author Matthew Tropiano
+ */
+public class ExpressionRuleSet
+{
+	/** Default capacity. */
+	public static final int DEFAULT_CAPACITY = 16;
+
+	/**
+	 * Rule matching modes.
+	 */
+	public static enum Mode
+	{
+		/** 
+		 * Candidate rules are found via an index of simple comparisons, and only those are evaluated.
+		 * Best for large sets of rules where few match.
+		 */
+		INDEXED,
+		/** 
+		 * Every distinct term under the logical operators is evaluated once into a bit set, 
+		 * and rule results are calculated from those bits, 64 at a time.
+		 * Best when rules share many terms, or many rules match.
+		 */
+		BIT_PARALLEL;
+	}
+
+	/** Matching mode. */
+	private Mode mode;
+
+	/** List of rules. */
+	private Expression[] rules;
+	/** Graph node index of each rule's result. */
+	private int[] ruleNodes;
+	/** Rule count. */
+	private int ruleCount;
+
+	/** Graph nodes: node to execute, or null if whole expression. */
+	private ExpressionNode[] nodes;
+	/** Graph nodes: whole expressions, for rules that could not be split. */
+	private Expression[] nodeExpressions;
+	/** Graph nodes: indices of the nodes that provide the arguments, in push order. */
+	private int[][] nodeArguments;
+	/** Graph nodes: true if the subtree can be shared. */
+	private boolean[] nodeShared;
+	/** Graph nodes: evaluation results. */
+	private ExpressionValue[] nodeResults;
+	/** Graph node count. */
+	private int nodeCount;
+
+	/** Map of subtree keys to graph node indices. */
+	private Map<Key, Integer> nodeMap;
+	/** Map of whole expressions to graph node indices. */
+	private Map<Expression, Integer> expressionMap;
+	/** Buffer for building subtree keys. */
+	private KeyBuffer keyBuffer;
+	/** Key for lookups in the node map. */
+	private Key lookupKey;
+	/** Predicate index of the rules, or null if it needs to be built. */
+	private ExpressionPredicateIndex index;
+	/** Bit-parallel matcher for the rules, or null if it needs to be built. */
+	private ExpressionBitMatcher bitMatcher;
+
+	/** Evaluation stack. */
+	private ExpressionStack stack;
+	/** Evaluation scratch: rules to evaluate. */
+	private BitSet candidates;
+	/** Evaluation scratch: node marks (node needs evaluation if equal to current mark). */
+	private int[] nodeMarks;
+	/** Evaluation scratch: current node mark. */
+	private int currentMark;
+	/** Evaluation scratch: node index stack for marking. */
+	private int[] markStack;
+
+	/**
+	 * Creates a new, empty rule set.
+	 */
+	public ExpressionRuleSet()
+	{
+		this(Mode.INDEXED, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new, empty rule set.
+	 * @param capacity the initial rule capacity.
+	 */
+	public ExpressionRuleSet(int capacity)
+	{
+		this(Mode.INDEXED, capacity);
+	}
+
+	/**
+	 * Creates a new, empty rule set.
+	 * @param mode the matching mode.
+	 */
+	public ExpressionRuleSet(Mode mode)
+	{
+		this(mode, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new, empty rule set.
+	 * @param mode the matching mode.
+	 * @param capacity the initial rule capacity.
+	 */
+	public ExpressionRuleSet(Mode mode, int capacity)
+	{
+		if (capacity < 1)
+			capacity = 1;
+		this.mode = mode;
+		this.rules = null;
+		this.ruleNodes = null;
+		this.ruleCount = 0;
+		this.nodes = null;
+		this.nodeCount = 0;
+		this.nodeMap = new HashMap<>(capacity * 4);
+		this.expressionMap = new HashMap<>();
+		this.keyBuffer = new KeyBuffer();
+		this.lookupKey = new Key();
+		this.index = null;
+		this.bitMatcher = null;
+		this.stack = new ExpressionStack();
+		this.candidates = new BitSet(capacity);
+		this.nodeMarks = null;
+		this.currentMark = 0;
+		expandRules(capacity);
+		expandNodes(capacity * 4);
+	}
+
+	// Expands the rule list.
+	private void expandRules(int capacity)
+	{
+		Expression[] newRules = new Expression[capacity];
+		int[] newRuleNodes = new int[capacity];
+		if (rules != null)
+		{
+			System.arraycopy(rules, 0, newRules, 0, ruleCount);
+			System.arraycopy(ruleNodes, 0, newRuleNodes, 0, ruleCount);
+		}
+		rules = newRules;
+		ruleNodes = newRuleNodes;
+	}
+
+	// Expands the node graph.
+	private void expandNodes(int capacity)
+	{
+		ExpressionNode[] newNodes = new ExpressionNode[capacity];
+		Expression[] newNodeExpressions = new Expression[capacity];
+		int[][] newNodeArguments = new int[capacity][];
+		boolean[] newNodeShared = new boolean[capacity];
+		ExpressionValue[] newNodeResults = new ExpressionValue[capacity];
+		int[] newNodeMarks = new int[capacity];
+		if (nodes != null)
+		{
+			System.arraycopy(nodes, 0, newNodes, 0, nodeCount);
+			System.arraycopy(nodeExpressions, 0, newNodeExpressions, 0, nodeCount);
+			System.arraycopy(nodeArguments, 0, newNodeArguments, 0, nodeCount);
+			System.arraycopy(nodeShared, 0, newNodeShared, 0, nodeCount);
+			System.arraycopy(nodeResults, 0, newNodeResults, 0, nodeCount);
+			System.arraycopy(nodeMarks, 0, newNodeMarks, 0, nodeCount);
+		}
+		for (int i = nodeCount; i < capacity; i++)
+			newNodeResults[i] = ExpressionValue.create(false);
+		nodes = newNodes;
+		nodeExpressions = newNodeExpressions;
+		nodeArguments = newNodeArguments;
+		nodeShared = newNodeShared;
+		nodeResults = newNodeResults;
+		nodeMarks = newNodeMarks;
+		markStack = new int[capacity];
+	}
+
+	/**
+	 * Adds a rule to this set.
+	 * @param rule the rule expression to add.
+	 * @return the index of the added rule, used in match results.
+	 * @throws ExpressionException if the rule could not be serialized for comparison.
+	 */
+	public int add(Expression rule)
+	{
+		int node = -1;
+		ExpressionNode root = rule.getRootNode();
+		if (root instanceof ExpressionBranch)
+		{
+			ExpressionBranch branch = (ExpressionBranch)root;
+			if (branch.isUnconditional() && branch.getFailureBlock() == null)
+				node = addPhrase(branch.getSuccessBlock());
+		}
+
+		if (node < 0)
+			node = addExpression(rule);
+
+		if (ruleCount == rules.length)
+			expandRules(rules.length * 2);
+		rules[ruleCount] = rule;
+		ruleNodes[ruleCount] = node;
+		index = null;
+		bitMatcher = null;
+		return ruleCount++;
+	}
+
+	/**
+	 * @return the matching mode.
+	 */
+	public Mode getMode()
+	{
+		return mode;
+	}
+
+	/**
+	 * Sets the matching mode.
+	 * @param mode the new matching mode.
+	 */
+	public void setMode(Mode mode)
+	{
+		this.mode = mode;
+	}
+
+	/**
+	 * Gets a rule by index.
+	 * @param index the rule index.
+	 * @return the corresponding rule.
+	 * @throws ArrayIndexOutOfBoundsException if the index is out of range.
+	 */
+	public Expression getRule(int index)
+	{
+		if (index < 0 || index >= ruleCount)
+			throw new ArrayIndexOutOfBoundsException(index);
+		return rules[index];
+	}
+
+	/**
+	 * @return the amount of rules in this set.
+	 */
+	public int size()
+	{
+		return ruleCount;
+	}
+
+	/**
+	 * @return true if this set has no rules, false if not.
+	 */
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	/**
+	 * Gets the amount of distinct nodes in this set's graph.
+	 * This is the amount of calculations done per evaluation.
+	 * @return the node count.
+	 */
+	public int getNodeCount()
+	{
+		return nodeCount;
+	}
+
+	/**
+	 * Evaluates all rules and returns the rules whose results are <code>true</code>.
+	 * @param context the variable context to use.
+	 * @return a new set of bits, one set bit per matched rule index.
+	 * @see ExpressionValue#asBoolean()
+	 */
+	public BitSet match(ExpressionVariableContext context)
+	{
+		BitSet out = new BitSet(ruleCount);
+		match(context, out);
+		return out;
+	}
+
+	/**
+	 * Evaluates all rules and returns the rules whose results are <code>true</code>.
+	 * @param context the variable context to use.
+	 * @param out the output set of bits. This is cleared, and then one bit is set per matched rule index.
+	 * @see ExpressionValue#asBoolean()
+	 */
+	public void match(ExpressionVariableContext context, BitSet out)
+	{
+		out.clear();
+		if (mode == Mode.BIT_PARALLEL)
+		{
+			if (bitMatcher == null)
+				bitMatcher = ExpressionBitMatcher.compile(nodes, nodeArguments, nodeCount, ruleNodes, ruleCount);
+			int[] evaluationNodes = bitMatcher.getEvaluationNodes();
+			for (int i = 0; i < evaluationNodes.length; i++)
+				evaluateNode(evaluationNodes[i], context);
+			bitMatcher.match(nodeResults, ruleNodes, out);
+			return;
+		}
+
+		if (index == null)
+			index = buildIndex();
+
+		candidates.clear();
+		index.collect(context, candidates);
+
+		// mark the nodes that the candidate rules need.
+		if (++currentMark == 0)
+		{
+			Arrays.fill(nodeMarks, 0);
+			currentMark = 1;
+		}
+		for (int r = candidates.nextSetBit(0); r >= 0; r = candidates.nextSetBit(r + 1))
+			markNodes(ruleNodes[r]);
+
+		// nodes are always added after their arguments, so this is in dependency order.
+		for (int i = 0; i < nodeCount; i++)
+			if (nodeMarks[i] == currentMark)
+				evaluateNode(i, context);
+
+		for (int r = candidates.nextSetBit(0); r >= 0; r = candidates.nextSetBit(r + 1))
+			if (nodeResults[ruleNodes[r]].asBoolean())
+				out.set(r);
+	}
+
+	// Marks a node and all of the nodes it depends on.
+	private void markNodes(int node)
+	{
+		if (nodeMarks[node] == currentMark)
+			return;
+		int top = 0;
+		nodeMarks[node] = currentMark;
+		markStack[top++] = node;
+		while (top > 0)
+		{
+			int[] arguments = nodeArguments[markStack[--top]];
+			for (int i = 0; i < arguments.length; i++)
+			{
+				if (nodeMarks[arguments[i]] != currentMark)
+				{
+					nodeMarks[arguments[i]] = currentMark;
+					markStack[top++] = arguments[i];
+				}
+			}
+		}
+	}
+
+	// Evaluates a single node, assuming its arguments were evaluated.
+	private void evaluateNode(int index, ExpressionVariableContext context)
+	{
+		stack.clear();
+		if (nodes[index] == null)
+		{
+			context.remove(Expression.RETURN_VARIABLE);
+			nodeExpressions[index].evaluate(stack, context, nodeResults[index]);
+			context.remove(Expression.RETURN_VARIABLE);
+			return;
+		}
+
+		int[] arguments = nodeArguments[index];
+		for (int i = 0; i < arguments.length; i++)
+			stack.push(nodeResults[arguments[i]]);
+		nodes[index].execute(stack, context);
+		ExpressionValue value = stack.pop();
+		if (value == null)
+			throw new ExpressionException("Stack underflow!");
+		nodeResults[index].set(value);
+	}
+
+	// Builds the predicate index for all rules.
+	private ExpressionPredicateIndex buildIndex()
+	{
+		ExpressionPredicateIndex out = new ExpressionPredicateIndex();
+		int[] termStack = new int[16];
+		for (int r = 0; r < ruleCount; r++)
+		{
+			// find the best comparison among the "and" terms: equality is more selective than a range.
+			int best = -1;
+			ExpressionDirectiveType bestType = null;
+			int top = 0;
+			termStack[top++] = ruleNodes[r];
+			while (top > 0)
+			{
+				int node = termStack[--top];
+				ExpressionDirectiveType type = getDirectiveType(node);
+				if (type == ExpressionDirectiveType.LOGICAL_AND)
+				{
+					if (top + 2 > termStack.length)
+						termStack = Arrays.copyOf(termStack, termStack.length * 2);
+					termStack[top++] = nodeArguments[node][1];
+					termStack[top++] = nodeArguments[node][0];
+				}
+				else if (type != null && ExpressionPredicateIndex.isIndexable(type) && getIndexVariable(node) >= 0)
+				{
+					if (best < 0 || (bestType != ExpressionDirectiveType.EQUAL && type == ExpressionDirectiveType.EQUAL))
+					{
+						best = node;
+						bestType = type;
+					}
+				}
+			}
+
+			if (best < 0)
+			{
+				out.addUnindexed(r);
+				continue;
+			}
+
+			int variable = getIndexVariable(best);
+			int constant = nodeArguments[best][1 - variable];
+			ExpressionDirectiveType type = variable == 0 ? bestType : ExpressionPredicateIndex.flip(bestType);
+			String name = String.valueOf(((ExpressionDirective)nodes[nodeArguments[best][variable]]).getOperand());
+			out.add(name, type, getConstant((ExpressionDirective)nodes[constant]), r);
+		}
+		return out;
+	}
+
+	// Gets the directive type of a graph node, or null if not a directive.
+	private ExpressionDirectiveType getDirectiveType(int node)
+	{
+		return nodes[node] instanceof ExpressionDirective ? ((ExpressionDirective)nodes[node]).getType() : null;
+	}
+
+	// Gets which argument of a comparison node is a variable compared to a constant (0 or 1), or -1 if neither.
+	private int getIndexVariable(int node)
+	{
+		int[] arguments = nodeArguments[node];
+		ExpressionDirectiveType left = getDirectiveType(arguments[0]);
+		ExpressionDirectiveType right = getDirectiveType(arguments[1]);
+		if (left == ExpressionDirectiveType.PUSH_VARIABLE && right == ExpressionDirectiveType.PUSH && isConstant(arguments[1]))
+			return 0;
+		else if (right == ExpressionDirectiveType.PUSH_VARIABLE && left == ExpressionDirectiveType.PUSH && isConstant(arguments[0]))
+			return 1;
+		else
+			return -1;
+	}
+
+	// Checks if a PUSH node pushes a literal.
+	private boolean isConstant(int node)
+	{
+		Object operand = ((ExpressionDirective)nodes[node]).getOperand();
+		return operand instanceof Number || operand instanceof Boolean;
+	}
+
+	// Gets the value of a PUSH literal as it is compared.
+	private static double getConstant(ExpressionDirective directive)
+	{
+		Object operand = directive.getOperand();
+		if (operand instanceof Boolean)
+			return ((Boolean)operand) ? 1.0 : 0.0;
+		else if (operand instanceof Long)
+			return (double)((Long)operand);
+		else
+			return ((Number)operand).doubleValue();
+	}
+
+	// Adds a phrase to the graph.
+	// Returns the index of the resultant node, or -1 if this phrase cannot be split.
+	private int addPhrase(ExpressionNode[] phrase)
+	{
+		int depth = 0;
+		for (int i = 0; i < phrase.length; i++)
+		{
+			int argumentCount = getArgumentCount(phrase[i]);
+			if (argumentCount < 0 || argumentCount > depth)
+				return -1;
+			depth = depth - argumentCount + 1;
+		}
+		if (depth != 1)
+			return -1;
+
+		int[] nodeStack = new int[phrase.length];
+		int top = 0;
+		for (int i = 0; i < phrase.length; i++)
+		{
+			int[] arguments = new int[getArgumentCount(phrase[i])];
+			top -= arguments.length;
+			System.arraycopy(nodeStack, top, arguments, 0, arguments.length);
+			nodeStack[top++] = addNode(phrase[i], null, arguments);
+		}
+		return nodeStack[0];
+	}
+
+	// Adds a whole expression to the graph.
+	private int addExpression(Expression expression)
+	{
+		return addNode(null, expression, new int[0]);
+	}
+
+	// Adds a node to the graph, or returns an equal one already in it.
+	private int addNode(ExpressionNode node, Expression expression, int[] arguments)
+	{
+		boolean shareable = node != null ? isDeterministic(node) : (expression.isValue() || isDeterministic(expression.getRootNode()));
+		for (int i = 0; shareable && i < arguments.length; i++)
+			shareable = nodeShared[arguments[i]];
+		if (shareable)
+		{
+			Integer existing;
+			if (node != null)
+			{
+				// the arguments are already shared, so their node indices stand in for their subtrees.
+				keyBuffer.reset();
+				keyBuffer.writeInt(getOperandTag(node));
+				keyBuffer.writeInt(arguments.length);
+				for (int i = 0; i < arguments.length; i++)
+					keyBuffer.writeInt(arguments[i]);
+				try {
+					node.writeBytes(keyBuffer);
+				} catch (IOException e) {
+					throw new ExpressionException("The node could not be serialized!", e);
+				}
+				existing = nodeMap.get(lookupKey.set(keyBuffer.getBuffer(), keyBuffer.size()));
+			}
+			else
+			{
+				// whole expressions are never arguments, so they are keyed apart from nodes.
+				existing = expressionMap.get(expression);
+			}
+			if (existing != null)
+				return existing;
+		}
+
+		if (nodeCount == nodes.length)
+			expandNodes(nodes.length * 2);
+		int index = nodeCount++;
+		nodes[index] = node;
+		nodeExpressions[index] = expression;
+		nodeArguments[index] = arguments;
+		nodeShared[index] = shareable;
+		if (shareable && node != null)
+			nodeMap.put(lookupKey.copy(), index);
+		else if (shareable)
+			expressionMap.put(expression, index);
+		return index;
+	}
+
+	// Gets a tag for the type of a directive's operand, which writeBytes() does not write (0 and 0.0 write the same bytes).
+	private static int getOperandTag(ExpressionNode node)
+	{
+		if (!(node instanceof ExpressionDirective))
+			return 0;
+		Object operand = ((ExpressionDirective)node).getOperand();
+		if (operand instanceof Long)
+			return 1;
+		else if (operand instanceof Double)
+			return 2;
+		else if (operand instanceof Boolean)
+			return 3;
+		else if (operand instanceof String)
+			return 4;
+		else
+			return 0;
+	}
+
+	// Gets how many values a phrase node pops off the stack before pushing its one result.
+	// Returns -1 if this is not a phrase node.
+	private static int getArgumentCount(ExpressionNode node)
+	{
+		if (node instanceof ExpressionDirective)
+		{
+			ExpressionDirectiveType type = ((ExpressionDirective)node).getType();
+			if (type == ExpressionDirectiveType.RETURN || type == ExpressionDirectiveType.POP)
+				return -1;
+			return type.getArgumentCount();
+		}
+		else if (node instanceof ExpressionFunction)
+			return ((ExpressionFunction)node).getType().getArgumentCount();
+		else
+			return -1;
+	}
+
+	// Checks if a node always produces the same results given the same variables.
+	private static boolean isDeterministic(ExpressionNode node)
+	{
+		if (node instanceof ExpressionDirective)
+			return true;
+		else if (node instanceof ExpressionFunction)
+			return ((ExpressionFunction)node).getType().isCollapsable();
+		else if (node instanceof ExpressionBranch)
+		{
+			ExpressionBranch branch = (ExpressionBranch)node;
+			return isDeterministic(branch.getConditional())
+				&& isDeterministic(branch.getSuccessBlock())
+				&& isDeterministic(branch.getFailureBlock());
+		}
+		else
+			return false;
+	}
+
+	// Checks if a block always produces the same results given the same variables.
+	private static boolean isDeterministic(ExpressionNode[] block)
+	{
+		if (block != null) for (int i = 0; i < block.length; i++)
+			if (!isDeterministic(block[i]))
+				return false;
+		return true;
+	}
+
+	/**
+	 * A subtree key: the graph nodes of a node's arguments, followed by the node's serialized bytes.
+	 */
+	private static class Key
+	{
+		private byte[] data;
+		private int length;
+		private int hash;
+
+		// Sets this key, for lookups. Does not copy the data.
+		Key set(byte[] data, int length)
+		{
+			int h = 1;
+			for (int i = 0; i < length; i++)
+				h = 31 * h + data[i];
+			this.data = data;
+			this.length = length;
+			this.hash = h;
+			return this;
+		}
+
+		// Copies this key, for storing.
+		Key copy()
+		{
+			Key out = new Key();
+			out.data = Arrays.copyOf(data, length);
+			out.length = length;
+			out.hash = hash;
+			return out;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key)obj;
+			if (hash != other.hash || length != other.length)
+				return false;
+			for (int i = 0; i < length; i++)
+				if (data[i] != other.data[i])
+					return false;
+			return true;
+		}
+	}
+
+	/**
+	 * A byte buffer for building subtree keys, which can be read without copying.
+	 */
+	private static class KeyBuffer extends ByteArrayOutputStream
+	{
+		// Writes an integer, big-endian.
+		void writeInt(int value)
+		{
+			write(value >>> 24);
+			write(value >>> 16);
+			write(value >>> 8);
+			write(value);
+		}
+
+		// Gets the internal buffer.
+		byte[] getBuffer()
+		{
+			return buf;
+		}
+	}
+
+}
@@ -0,0 +1,508 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.blackrook.expression.exception.ExpressionException;
+import com.blackrook.expression.node.ExpressionBranch;
+import com.blackrook.expression.node.ExpressionDecision;
+import com.blackrook.expression.node.ExpressionDirective;
+import com.blackrook.expression.node.ExpressionDirectiveType;
+import com.blackrook.expression.node.ExpressionFunction;
+import com.blackrook.expression.node.ExpressionFunctionType;
+import com.blackrook.expression.struct.SerialReader;
+import com.blackrook.expression.struct.SerialWriter;
+import com.blackrook.expression.struct.StructuralHash;
+
+/**
+ * Writes and reads compiled expressions.
+ * <p>The format, all little-endian, with variable-length ints:
+ * <ul>
+ * <li>Magic number, <code>BRXC</code>, and the format version.</li>
+ * <li>The fingerprint of the functions called (names, argument counts, collapsability).</li>
+ * <li>The string table (variable names, function names, source), the function table (string indices),
+ * and the constant table (tagged values).</li>
+ * <li>The expression: a single constant index, or a tree of tagged nodes that refer to the tables.</li>
+ * </ul>
+ * @author Matthew Tropiano
+ */
+final class ExpressionSerializer
+{
+	/** Magic number. */
+	static final byte[] MAGIC = {'B', 'R', 'X', 'C'};
+	/** Format version. */
+	static final int VERSION = 1;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final ExpressionDirectiveType[] DIRECTIVE_TYPES = ExpressionDirectiveType.values();
+
+	private static final int EXPRESSION_VALUE = 0;
+	private static final int EXPRESSION_NODES = 1;
+
+	private static final int CONSTANT_FALSE = 0;
+	private static final int CONSTANT_TRUE = 1;
+	private static final int CONSTANT_LONG_SMALL = 2;
+	private static final int CONSTANT_LONG = 3;
+	private static final int CONSTANT_DOUBLE = 4;
+
+	private static final int NODE_DIRECTIVE = 0;
+	private static final int NODE_DIRECTIVE_CONSTANT = 1;
+	private static final int NODE_DIRECTIVE_STRING = 2;
+	private static final int NODE_FUNCTION = 3;
+	private static final int NODE_BRANCH = 4;
+	private static final int NODE_BRANCH_UNCONDITIONAL = 5;
+	private static final int NODE_DECISION = 6;
+
+	/** String table. */
+	private List<String> strings;
+	/** String table index by string. */
+	private Map<String, Integer> stringMap;
+	/** Function table. */
+	private List<ExpressionFunctionType> functions;
+	/** Function table index by function. */
+	private Map<ExpressionFunctionType, Integer> functionMap;
+	/** Constant table (Boolean, Long, or Double). */
+	private List<Object> constants;
+	/** Constant table index by constant. */
+	private Map<Object, Integer> constantMap;
+
+	// Private constructor.
+	private ExpressionSerializer()
+	{
+		this.strings = new ArrayList<>();
+		this.stringMap = new HashMap<>();
+		this.functions = new ArrayList<>();
+		this.functionMap = new HashMap<>();
+		this.constants = new ArrayList<>();
+		this.constantMap = new HashMap<>();
+	}
+
+	/**
+	 * Writes a compiled expression.
+	 * @param expression the expression to write.
+	 * @param out the output stream.
+	 * @throws IOException if a write error occurs.
+	 * @throws ExpressionException if the expression contains a node type that cannot be written.
+	 */
+	static void write(Expression expression, OutputStream out) throws IOException
+	{
+		(new ExpressionSerializer()).writeExpression(expression, out);
+	}
+
+	/**
+	 * Reads a compiled expression.
+	 * @param in the input stream.
+	 * @param resolver the function resolver to resolve function names with.
+	 * @return the expression read.
+	 * @throws IOException if a read error occurs.
+	 * @throws ExpressionException if the data is not a compiled expression, is a different version,
+	 * or the resolver does not have the same functions as the one it was written with.
+	 */
+	static Expression read(InputStream in, ExpressionFunctionResolver resolver) throws IOException
+	{
+		return (new ExpressionSerializer()).readExpression(in, resolver);
+	}
+
+	// Writes an expression.
+	private void writeExpression(Expression expression, OutputStream out) throws IOException
+	{
+		// gather tables first.
+		int root;
+		if (expression.isValue())
+			root = constant(valueOperand(expression.getValue()));
+		else
+		{
+			root = -1;
+			gather(expression.getRootNode());
+		}
+		int source = expression.getSource() != null ? string(expression.getSource()) : -1;
+
+		SerialWriter sw = new SerialWriter(SerialWriter.LITTLE_ENDIAN);
+		sw.writeBytes(out, MAGIC);
+		sw.writeVariableLengthInt(out, VERSION);
+		sw.writeLong(out, fingerprint(functions));
+
+		sw.writeVariableLengthInt(out, strings.size());
+		for (String s : strings)
+			sw.writeByteArray(out, s.getBytes(UTF_8));
+		sw.writeVariableLengthInt(out, functions.size());
+		for (ExpressionFunctionType function : functions)
+			sw.writeVariableLengthInt(out, stringMap.get(function.name()));
+		sw.writeVariableLengthInt(out, constants.size());
+		for (Object constant : constants)
+			writeConstant(sw, out, constant);
+
+		sw.writeVariableLengthInt(out, source + 1);
+		if (root >= 0)
+		{
+			sw.writeVariableLengthInt(out, EXPRESSION_VALUE);
+			sw.writeVariableLengthInt(out, root);
+		}
+		else
+		{
+			sw.writeVariableLengthInt(out, EXPRESSION_NODES);
+			writeNode(sw, out, expression.getRootNode());
+		}
+	}
+
+	// Reads an expression.
+	private Expression readExpression(InputStream in, ExpressionFunctionResolver resolver) throws IOException
+	{
+		SerialReader sr = new SerialReader(SerialReader.LITTLE_ENDIAN);
+		for (int i = 0; i < MAGIC.length; i++)
+			if (sr.readByte(in) != MAGIC[i])
+				throw new ExpressionException("Not a compiled expression.");
+		int version = sr.readVariableLengthInt(in);
+		if (version != VERSION)
+			throw new ExpressionException("Unsupported compiled expression version: %d", version);
+		long fingerprint = sr.readLong(in);
+
+		int stringCount = sr.readVariableLengthInt(in);
+		for (int i = 0; i < stringCount; i++)
+			strings.add(new String(sr.readByteArray(in), UTF_8));
+		int functionCount = sr.readVariableLengthInt(in);
+		for (int i = 0; i < functionCount; i++)
+		{
+			String name = strings.get(sr.readVariableLengthInt(in));
+			ExpressionFunctionType function = resolver.getFunctionByName(name);
+			if (function == null)
+				throw new ExpressionException("Function \"%s\" could not be resolved.", name);
+			functions.add(function);
+		}
+		if (fingerprint(functions) != fingerprint)
+			throw new ExpressionException("Resolver functions do not match the ones that the expression was compiled with.");
+		int constantCount = sr.readVariableLengthInt(in);
+		for (int i = 0; i < constantCount; i++)
+			constants.add(readConstant(sr, in));
+
+		int source = sr.readVariableLengthInt(in) - 1;
+		Expression out;
+		switch (sr.readVariableLengthInt(in))
+		{
+			case EXPRESSION_VALUE:
+				out = Expression.create(operandValue(constants.get(sr.readVariableLengthInt(in))));
+				break;
+			case EXPRESSION_NODES:
+			{
+				ExpressionNode node = readNode(sr, in);
+				if (!(node instanceof ExpressionBranch))
+					throw new ExpressionException("Compiled expression root is not a branch.");
+				out = Expression.create((ExpressionBranch)node);
+				break;
+			}
+			default:
+				throw new ExpressionException("Bad compiled expression type.");
+		}
+		if (source >= 0)
+			out.setSource(strings.get(source));
+		return out;
+	}
+
+	// Adds the strings, functions, and constants that a node uses to the tables.
+	private void gather(ExpressionNode node)
+	{
+		if (node instanceof ExpressionDirective)
+		{
+			Object operand = ((ExpressionDirective)node).getOperand();
+			if (operand instanceof String)
+				string((String)operand);
+			else if (operand != null)
+				constant(operand);
+		}
+		else if (node instanceof ExpressionFunction)
+		{
+			ExpressionFunctionType type = ((ExpressionFunction)node).getType();
+			if (!functionMap.containsKey(type))
+			{
+				string(type.name());
+				functionMap.put(type, functions.size());
+				functions.add(type);
+			}
+		}
+		else if (node instanceof ExpressionBranch)
+		{
+			ExpressionBranch branch = (ExpressionBranch)node;
+			gather(branch.getConditional());
+			gather(branch.getSuccessBlock());
+			gather(branch.getFailureBlock());
+		}
+		else if (node instanceof ExpressionDecision)
+			gather(((ExpressionDecision)node).getSource());
+		else
+			throw new ExpressionException("Node type %s cannot be written.", node.getClass().getName());
+	}
+
+	// Adds the strings, functions, and constants that a block uses to the tables.
+	private void gather(ExpressionNode[] block)
+	{
+		if (block != null) for (int i = 0; i < block.length; i++)
+			gather(block[i]);
+	}
+
+	// Writes a node.
+	private void writeNode(SerialWriter sw, OutputStream out, ExpressionNode node) throws IOException
+	{
+		if (node instanceof ExpressionDirective)
+		{
+			ExpressionDirective directive = (ExpressionDirective)node;
+			Object operand = directive.getOperand();
+			if (operand == null)
+			{
+				sw.writeVariableLengthInt(out, NODE_DIRECTIVE);
+				sw.writeVariableLengthInt(out, directive.getType().ordinal());
+			}
+			else if (operand instanceof String)
+			{
+				sw.writeVariableLengthInt(out, NODE_DIRECTIVE_STRING);
+				sw.writeVariableLengthInt(out, directive.getType().ordinal());
+				sw.writeVariableLengthInt(out, stringMap.get(operand));
+			}
+			else
+			{
+				sw.writeVariableLengthInt(out, NODE_DIRECTIVE_CONSTANT);
+				sw.writeVariableLengthInt(out, directive.getType().ordinal());
+				sw.writeVariableLengthInt(out, constantMap.get(operand));
+			}
+		}
+		else if (node instanceof ExpressionFunction)
+		{
+			sw.writeVariableLengthInt(out, NODE_FUNCTION);
+			sw.writeVariableLengthInt(out, functionMap.get(((ExpressionFunction)node).getType()));
+		}
+		else if (node instanceof ExpressionBranch)
+		{
+			ExpressionBranch branch = (ExpressionBranch)node;
+			if (branch.isUnconditional())
+			{
+				sw.writeVariableLengthInt(out, NODE_BRANCH_UNCONDITIONAL);
+				writeBlock(sw, out, branch.getSuccessBlock());
+			}
+			else
+			{
+				sw.writeVariableLengthInt(out, NODE_BRANCH);
+				writeBlock(sw, out, branch.getConditional());
+				writeBlock(sw, out, branch.getSuccessBlock());
+				writeBlock(sw, out, branch.getFailureBlock());
+			}
+		}
+		else if (node instanceof ExpressionDecision)
+		{
+			// tables are rebuilt from the source chain on read.
+			sw.writeVariableLengthInt(out, NODE_DECISION);
+			writeNode(sw, out, ((ExpressionDecision)node).getSource());
+		}
+		else
+			throw new ExpressionException("Node type %s cannot be written.", node.getClass().getName());
+	}
+
+	// Writes a block: its length plus one (0 is null), then each node.
+	private void writeBlock(SerialWriter sw, OutputStream out, ExpressionNode[] block) throws IOException
+	{
+		if (block == null)
+		{
+			sw.writeVariableLengthInt(out, 0);
+			return;
+		}
+		sw.writeVariableLengthInt(out, block.length + 1);
+		for (int i = 0; i < block.length; i++)
+			writeNode(sw, out, block[i]);
+	}
+
+	// Reads a node.
+	private ExpressionNode readNode(SerialReader sr, InputStream in) throws IOException
+	{
+		int tag = sr.readVariableLengthInt(in);
+		switch (tag)
+		{
+			case NODE_DIRECTIVE:
+				return ExpressionDirective.create(directiveType(sr.readVariableLengthInt(in)));
+			case NODE_DIRECTIVE_STRING:
+			{
+				ExpressionDirectiveType type = directiveType(sr.readVariableLengthInt(in));
+				return ExpressionDirective.create(type, strings.get(sr.readVariableLengthInt(in)));
+			}
+			case NODE_DIRECTIVE_CONSTANT:
+			{
+				ExpressionDirectiveType type = directiveType(sr.readVariableLengthInt(in));
+				Object constant = constants.get(sr.readVariableLengthInt(in));
+				if (constant instanceof Boolean)
+					return ExpressionDirective.create(type, (Boolean)constant);
+				else if (constant instanceof Long)
+					return ExpressionDirective.create(type, (Long)constant);
+				else
+					return ExpressionDirective.create(type, (Double)constant);
+			}
+			case NODE_FUNCTION:
+				return ExpressionFunction.create(functions.get(sr.readVariableLengthInt(in)));
+			case NODE_BRANCH_UNCONDITIONAL:
+				return ExpressionBranch.create(readBlock(sr, in));
+			case NODE_BRANCH:
+			{
+				ExpressionNode[] conditional = readBlock(sr, in);
+				ExpressionNode[] successBlock = readBlock(sr, in);
+				ExpressionNode[] failureBlock = readBlock(sr, in);
+				return ExpressionBranch.create(conditional, successBlock, failureBlock);
+			}
+			case NODE_DECISION:
+			{
+				ExpressionNode source = readNode(sr, in);
+				if (!(source instanceof ExpressionBranch))
+					throw new ExpressionException("Compiled decision source is not a branch.");
+				ExpressionDecision decision = ExpressionDecision.create((ExpressionBranch)source);
+				return decision != null ? decision : source;
+			}
+			default:
+				throw new ExpressionException("Bad compiled node tag: %d", tag);
+		}
+	}
+
+	// Reads a block.
+	private ExpressionNode[] readBlock(SerialReader sr, InputStream in) throws IOException
+	{
+		int length = sr.readVariableLengthInt(in) - 1;
+		if (length < 0)
+			return null;
+		ExpressionNode[] out = new ExpressionNode[length];
+		for (int i = 0; i < length; i++)
+			out[i] = readNode(sr, in);
+		return out;
+	}
+
+	// Writes a constant.
+	private static void writeConstant(SerialWriter sw, OutputStream out, Object constant) throws IOException
+	{
+		if (constant instanceof Boolean)
+			sw.writeVariableLengthInt(out, (Boolean)constant ? CONSTANT_TRUE : CONSTANT_FALSE);
+		else if (constant instanceof Long)
+		{
+			long v = (Long)constant;
+			long zigzag = (v << 1) ^ (v >> 63);
+			if (zigzag >= 0L)
+			{
+				sw.writeVariableLengthInt(out, CONSTANT_LONG_SMALL);
+				sw.writeVariableLengthLong(out, zigzag);
+			}
+			else
+			{
+				sw.writeVariableLengthInt(out, CONSTANT_LONG);
+				sw.writeLong(out, v);
+			}
+		}
+		else
+		{
+			sw.writeVariableLengthInt(out, CONSTANT_DOUBLE);
+			sw.writeLong(out, Double.doubleToRawLongBits((Double)constant));
+		}
+	}
+
+	// Reads a constant.
+	private static Object readConstant(SerialReader sr, InputStream in) throws IOException
+	{
+		int tag = sr.readVariableLengthInt(in);
+		switch (tag)
+		{
+			case CONSTANT_FALSE:
+				return Boolean.FALSE;
+			case CONSTANT_TRUE:
+				return Boolean.TRUE;
+			case CONSTANT_LONG_SMALL:
+			{
+				long zigzag = sr.readVariableLengthLong(in);
+				return (zigzag >>> 1) ^ -(zigzag & 1L);
+			}
+			case CONSTANT_LONG:
+				return sr.readLong(in);
+			case CONSTANT_DOUBLE:
+				return Double.longBitsToDouble(sr.readLong(in));
+			default:
+				throw new ExpressionException("Bad compiled constant tag: %d", tag);
+		}
+	}
+
+	// Gets or adds a string table index.
+	private int string(String s)
+	{
+		Integer out;
+		if ((out = stringMap.get(s)) == null)
+		{
+			stringMap.put(s, out = strings.size());
+			strings.add(s);
+		}
+		return out;
+	}
+
+	// Gets or adds a constant table index.
+	private int constant(Object constant)
+	{
+		Integer out;
+		if ((out = constantMap.get(constant)) == null)
+		{
+			constantMap.put(constant, out = constants.size());
+			constants.add(constant);
+		}
+		return out;
+	}
+
+	// Gets a value as a constant.
+	private static Object valueOperand(ExpressionValue value)
+	{
+		switch (value.getType())
+		{
+			case BOOLEAN:
+				return value.asBoolean();
+			case LONG:
+				return value.asLong();
+			default:
+				return value.asDouble();
+		}
+	}
+
+	// Gets a constant as a value.
+	private static ExpressionValue operandValue(Object operand)
+	{
+		if (operand instanceof Boolean)
+			return ExpressionValue.create((Boolean)operand);
+		else if (operand instanceof Long)
+			return ExpressionValue.create((Long)operand);
+		else if (operand instanceof Double)
+			return ExpressionValue.create((Double)operand);
+		else
+			throw new ExpressionException("Bad directive operand type: %s", operand.getClass().getName());
+	}
+
+	// Gets a directive type by ordinal.
+	private static ExpressionDirectiveType directiveType(int ordinal)
+	{
+		if (ordinal >= DIRECTIVE_TYPES.length)
+			throw new ExpressionException("Bad compiled directive type: %d", ordinal);
+		return DIRECTIVE_TYPES[ordinal];
+	}
+
+	// Calculates the fingerprint of a function table.
+	private static long fingerprint(List<ExpressionFunctionType> functions)
+	{
+		StructuralHash hash = new StructuralHash();
+		hash.putInt(functions.size());
+		for (ExpressionFunctionType function : functions)
+		{
+			hash.putString(function.name());
+			hash.putInt(function.getArgumentCount());
+			hash.putBoolean(function.isCollapsable());
+		}
+		return hash.finish().getHigh();
+	}
+
+}
@@ -0,0 +1,725 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.blackrook.expression.exception.ExpressionException;
+import com.blackrook.expression.node.ExpressionBranch;
+import com.blackrook.expression.node.ExpressionDecision;
+import com.blackrook.expression.node.ExpressionDirective;
+import com.blackrook.expression.node.ExpressionDirectiveType;
+import com.blackrook.expression.node.ExpressionFunction;
+import com.blackrook.expression.node.ExpressionFunctionType;
+
+/**
+ * Generates Java source from expressions, ahead of time.
+ * Each expression library becomes one class with a static <code>evaluate</code> method per expression,
+ * so that nothing is lexed or parsed at runtime, and the JIT sees plain Java code.
+ * <p>The generated code still uses this library's stack, context, and directive types, so results
+ * are the same as evaluating the parsed expression. Functions must be enum constants
+ * (like {@link com.blackrook.expression.functions.CommonFunctions}) so that generated code can refer to them.
+ * <p>Expression library source files have one expression per entry:
+ * <ul>
+ * <li><code>name = expression</code> on one line, for a single expression.</li>
+ * <li><code>name {</code> on one line, then statements, then <code>}</code> alone on a line, for a block.</li>
+ * <li>Blank lines and lines starting with <code>#</code> are skipped.</li>
+ * </ul>
+ * <p>Class files have limits: a method's code must be under 64KB, and a class can only have so many constants.
+ * Blocks too large for one method are split into helper methods (see {@link #MAX_METHOD_NODES}), and
+ * libraries too large for one class are split into several classes (see {@link #split(Map)}).
+ * <p>Command line: <code>ExpressionSourceGenerator -d outputDir [-p package] [-f functionEnumClass]... files...</code>
+ * <br>Each file becomes a class named after the file (minus extension), or, if split, classes named after the file
+ * with the part number appended after the first one (<code>Name</code>, <code>Name2</code>, <code>Name3</code>...).
+ * If a file is a directory, each <code>.expr</code> file in it is used.
+ * @author Matthew Tropiano
+ */
+public final class ExpressionSourceGenerator
+{
+	/** Expression library source file extension. */
+	public static final String FILE_EXTENSION = ".expr";
+	/** Most nodes generated into one method. Larger blocks are split into helper methods. */
+	public static final int MAX_METHOD_NODES = 512;
+	/** Most expressions generated into one class. */
+	public static final int MAX_CLASS_EXPRESSIONS = 1024;
+	/** Most nodes generated into one class. */
+	public static final int MAX_CLASS_NODES = 16384;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** Output. */
+	private PrintWriter out;
+	/** Function field names by function. */
+	private Map<ExpressionFunctionType, String> functionFields;
+	/** Blocks waiting to be generated into helper methods, by method name. */
+	private Map<String, ExpressionNode[]> helperBlocks;
+	/** Prefix for the current expression's helper method names. */
+	private String helperPrefix;
+	/** Amount of helper methods for the current expression. */
+	private int helperCount;
+
+	// Private constructor.
+	private ExpressionSourceGenerator(PrintWriter out)
+	{
+		this.out = out;
+		this.functionFields = new LinkedHashMap<>();
+		this.helperBlocks = new LinkedHashMap<>();
+		this.helperPrefix = null;
+		this.helperCount = 0;
+	}
+
+	/**
+	 * Reads an expression library source.
+	 * @param in the reader to read from.
+	 * @param resolver the function resolver to parse with.
+	 * @return the map of name to expression, in file order.
+	 * @throws IOException if a read error occurs.
+	 * @throws ExpressionException if an entry is malformed or a name is used twice.
+	 * @throws com.blackrook.expression.exception.ExpressionParseException if an expression could not be parsed.
+	 */
+	public static Map<String, Expression> readSource(Reader in, ExpressionFunctionResolver resolver) throws IOException
+	{
+		Map<String, Expression> outMap = new LinkedHashMap<>();
+		BufferedReader br = new BufferedReader(in);
+		String line;
+		int lineNumber = 0;
+		while ((line = br.readLine()) != null)
+		{
+			lineNumber++;
+			String trimmed = line.trim();
+			if (trimmed.isEmpty() || trimmed.startsWith("#"))
+				continue;
+
+			String name;
+			Expression expression;
+			int equals = trimmed.indexOf('=');
+			if (trimmed.endsWith("{") && (equals < 0 || equals > trimmed.indexOf('{')))
+			{
+				name = trimmed.substring(0, trimmed.length() - 1).trim();
+				int start = lineNumber;
+				StringBuilder sb = new StringBuilder();
+				while (true)
+				{
+					if ((line = br.readLine()) == null)
+						throw new ExpressionException("Line %d: block \"%s\" is not closed.", start, name);
+					lineNumber++;
+					if (line.trim().equals("}"))
+						break;
+					sb.append(line).append('\n');
+				}
+				expression = ExpressionFactory.parseExpressionBlock(sb.toString(), resolver);
+			}
+			else if (equals > 0)
+			{
+				name = trimmed.substring(0, equals).trim();
+				expression = ExpressionFactory.parseExpression(trimmed.substring(equals + 1).trim(), resolver);
+			}
+			else
+				throw new ExpressionException("Line %d: expected \"name = expression\" or \"name {\".", lineNumber);
+
+			if (name.isEmpty())
+				throw new ExpressionException("Line %d: missing expression name.", lineNumber);
+			if (outMap.containsKey(name))
+				throw new ExpressionException("Line %d: expression \"%s\" is already defined.", lineNumber, name);
+			outMap.put(name, expression);
+		}
+		return outMap;
+	}
+
+	/**
+	 * Generates the Java source for a class that evaluates a set of expressions.
+	 * For each expression, the class gets an <code>evaluate<i>Name</i>(ExpressionStack, ExpressionVariableContext, ExpressionValue)</code>
+	 * method and an <code>evaluate<i>Name</i>(ExpressionVariableContext, ExpressionValue)</code> method, with the name changed into a valid identifier.
+	 * @param writer the writer to write the source to.
+	 * @param packageName the package name, or null for the default package.
+	 * @param className the class name.
+	 * @param expressions the map of name to expression.
+	 * @throws ExpressionException if an expression calls a function that is not an enum constant, or has a node type that cannot be generated,
+	 * 		or if there are too many expressions or nodes for one class (see {@link #split(Map)}).
+	 */
+	public static void generate(Writer writer, String packageName, String className, Map<String, Expression> expressions)
+	{
+		int nodes = 0;
+		for (Map.Entry<String, Expression> entry : expressions.entrySet())
+			nodes += countNodes(entry.getValue());
+		if (expressions.size() > MAX_CLASS_EXPRESSIONS || nodes > MAX_CLASS_NODES)
+		{
+			throw new ExpressionException("Too large for one class: %d expressions (at most %d), %d nodes (at most %d). Split the expressions first.",
+				expressions.size(), MAX_CLASS_EXPRESSIONS, nodes, MAX_CLASS_NODES);
+		}
+
+		PrintWriter pw = new PrintWriter(writer);
+		(new ExpressionSourceGenerator(pw)).generateClass(packageName, className, expressions);
+		pw.flush();
+	}
+
+	/**
+	 * Splits a set of expressions into sets small enough to generate into one class each, in order.
+	 * Each set has at most {@link #MAX_CLASS_EXPRESSIONS} expressions and {@link #MAX_CLASS_NODES} nodes.
+	 * @param expressions the map of name to expression.
+	 * @return the list of sets, at least one.
+	 * @throws ExpressionException if one expression alone has more than {@link #MAX_CLASS_NODES} nodes.
+	 */
+	public static List<Map<String, Expression>> split(Map<String, Expression> expressions)
+	{
+		List<Map<String, Expression>> outList = new ArrayList<>();
+		Map<String, Expression> current = new LinkedHashMap<>();
+		int currentNodes = 0;
+		for (Map.Entry<String, Expression> entry : expressions.entrySet())
+		{
+			int nodes = countNodes(entry.getValue());
+			if (nodes > MAX_CLASS_NODES)
+				throw new ExpressionException("Expression \"%s\" is too large to generate: %d nodes (at most %d).", entry.getKey(), nodes, MAX_CLASS_NODES);
+			if (current.size() == MAX_CLASS_EXPRESSIONS || currentNodes + nodes > MAX_CLASS_NODES)
+			{
+				outList.add(current);
+				current = new LinkedHashMap<>();
+				currentNodes = 0;
+			}
+			current.put(entry.getKey(), entry.getValue());
+			currentNodes += nodes;
+		}
+		outList.add(current);
+		return outList;
+	}
+
+	/**
+	 * Generates Java source files from expression library source files.
+	 * @param args <code>-d outputDir [-p package] [-f functionEnumClass]... files...</code>
+	 * @throws Exception if anything goes wrong.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		File outputDir = null;
+		String packageName = null;
+		Map<String, ExpressionFunctionType> functions = new HashMap<>();
+		List<File> files = new ArrayList<>();
+
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("-d") && i + 1 < args.length)
+				outputDir = new File(args[++i]);
+			else if (args[i].equals("-p") && i + 1 < args.length)
+				packageName = args[++i];
+			else if (args[i].equals("-f") && i + 1 < args.length)
+				addFunctions(functions, args[++i]);
+			else
+				addFiles(files, new File(args[i]));
+		}
+
+		if (outputDir == null || files.isEmpty())
+		{
+			System.err.println("Usage: ExpressionSourceGenerator -d outputDir [-p package] [-f functionEnumClass]... files...");
+			System.exit(1);
+			return;
+		}
+
+		ExpressionFunctionResolver resolver = new ExpressionFunctionResolver()
+		{
+			@Override
+			public boolean containsFunctionByName(String name)
+			{
+				return functions.containsKey(name);
+			}
+
+			@Override
+			public ExpressionFunctionType getFunctionByName(String name)
+			{
+				return functions.get(name);
+			}
+		};
+		File packageDir = packageName != null ? new File(outputDir, packageName.replace('.', File.separatorChar)) : outputDir;
+		if (!packageDir.exists() && !packageDir.mkdirs())
+			throw new IOException("Could not create directory: " + packageDir.getPath());
+
+		for (File file : files)
+		{
+			String className = toIdentifier(file.getName().endsWith(FILE_EXTENSION)
+				? file.getName().substring(0, file.getName().length() - FILE_EXTENSION.length())
+				: file.getName(), true);
+
+			Map<String, Expression> expressions;
+			try (Reader reader = new InputStreamReader(new FileInputStream(file), UTF_8))
+			{
+				expressions = readSource(reader, resolver);
+			}
+
+			List<Map<String, Expression>> parts = split(expressions);
+			for (int i = 0; i < parts.size(); i++)
+			{
+				String partName = i == 0 ? className : className + (i + 1);
+				File outFile = new File(packageDir, partName + ".java");
+				try (Writer writer = new OutputStreamWriter(new FileOutputStream(outFile), UTF_8))
+				{
+					generate(writer, packageName, partName, parts.get(i));
+				}
+				System.out.println(file.getPath() + " -> " + outFile.getPath() + " (" + parts.get(i).size() + " expressions)");
+			}
+		}
+	}
+
+	// Adds the constants of a function enum by class name, by name.
+	private static void addFunctions(Map<String, ExpressionFunctionType> functions, String className) throws ClassNotFoundException
+	{
+		Class<?> type = Class.forName(className);
+		if (!type.isEnum() || !ExpressionFunctionType.class.isAssignableFrom(type))
+			throw new ExpressionException("%s is not an enum of ExpressionFunctionType.", className);
+		for (Object constant : type.getEnumConstants())
+			functions.put(((Enum<?>)constant).name(), (ExpressionFunctionType)constant);
+	}
+
+	// Adds a file, or the library source files in a directory.
+	private static void addFiles(List<File> files, File file)
+	{
+		if (!file.isDirectory())
+		{
+			files.add(file);
+			return;
+		}
+		File[] children = file.listFiles();
+		if (children != null) for (File child : children)
+			if (child.isFile() && child.getName().endsWith(FILE_EXTENSION))
+				files.add(child);
+	}
+
+	// Generates the class.
+	private void generateClass(String packageName, String className, Map<String, Expression> expressions)
+	{
+		// gather functions first, for the fields.
+		for (Expression expression : expressions.values())
+			if (!expression.isValue())
+				gatherFunctions(expression.getRootNode());
+
+		out.println("// Generated by " + ExpressionSourceGenerator.class.getName() + ". Do not edit.");
+		if (packageName != null && !packageName.isEmpty())
+		{
+			out.println("package " + packageName + ";");
+			out.println();
+		}
+		out.println("import com.blackrook.expression.Expression;");
+		out.println("import com.blackrook.expression.ExpressionStack;");
+		out.println("import com.blackrook.expression.ExpressionValue;");
+		out.println("import com.blackrook.expression.ExpressionVariableContext;");
+		out.println("import com.blackrook.expression.node.ExpressionDirectiveType;");
+		out.println("import com.blackrook.expression.node.ExpressionFunction;");
+		out.println();
+		out.println("/**");
+		out.println(" * Generated expression library.");
+		out.println(" */");
+		out.println("@SuppressWarnings(\"unused\")");
+		out.println("public final class " + className);
+		out.println("{");
+		for (Map.Entry<ExpressionFunctionType, String> entry : functionFields.entrySet())
+		{
+			Enum<?> constant = (Enum<?>)entry.getKey();
+			out.println("\tprivate static final ExpressionFunction " + entry.getValue() + " = ExpressionFunction.create("
+				+ constant.getDeclaringClass().getCanonicalName() + "." + constant.name() + ");");
+		}
+		if (!functionFields.isEmpty())
+			out.println();
+		out.println("\t// Private constructor.");
+		out.println("\tprivate " + className + "()");
+		out.println("\t{");
+		out.println("\t}");
+
+		Set<String> used = new HashSet<>();
+		for (Map.Entry<String, Expression> entry : expressions.entrySet())
+		{
+			String identifier = toIdentifier(entry.getKey(), true);
+			String unique = identifier;
+			for (int i = 2; !used.add(unique.toLowerCase()); i++)
+				unique = identifier + "_" + i;
+			generateExpression(entry.getKey(), unique, entry.getValue());
+		}
+
+		out.println();
+		out.println("}");
+	}
+
+	// Generates the methods for one expression.
+	private void generateExpression(String name, String identifier, Expression expression)
+	{
+		String comment = commentText(expression.getSource() != null ? expression.getSource() : expression.toString());
+
+		out.println();
+		out.println("\t/**");
+		out.println("\t * Evaluates <code>" + commentText(name) + "</code>:");
+		out.println("\t * <pre>" + comment.replace("\n", "\n\t * ") + "</pre>");
+		out.println("\t * @param stack the expression stack to use.");
+		out.println("\t * @param context the mutable variable context to use.");
+		out.println("\t * @param out the output value (returned value, top of stack, or literal value encapsulated).");
+		out.println("\t */");
+		out.println("\tpublic static void evaluate" + identifier + "(ExpressionStack stack, ExpressionVariableContext context, ExpressionValue out)");
+		out.println("\t{");
+		if (expression.isValue())
+			out.println("\t\tout.set(" + constant(expression.getValue()) + ");");
+		else
+		{
+			out.println("\t\trun" + identifier + "(stack, context);");
+			out.println("\t\tExpressionValue value;");
+			out.println("\t\tif ((value = context.get(Expression.RETURN_VARIABLE)) != null)");
+			out.println("\t\t\tout.set(value);");
+			out.println("\t\telse if (stack.isEmpty())");
+			out.println("\t\t\tout.set(false);");
+			out.println("\t\telse");
+			out.println("\t\t\tout.set(stack.peek());");
+		}
+		out.println("\t}");
+
+		out.println();
+		out.println("\t/**");
+		out.println("\t * Evaluates <code>" + commentText(name) + "</code>.");
+		out.println("\t * Creates a new stack.");
+		out.println("\t * @param context the mutable variable context to use.");
+		out.println("\t * @param out the output value (returned value, top of stack, or literal value encapsulated).");
+		out.println("\t */");
+		out.println("\tpublic static void evaluate" + identifier + "(ExpressionVariableContext context, ExpressionValue out)");
+		out.println("\t{");
+		out.println("\t\tevaluate" + identifier + "(new ExpressionStack(), context, out);");
+		out.println("\t}");
+
+		if (!expression.isValue())
+		{
+			out.println();
+			out.println("\t// Runs the nodes of " + commentText(name).replace("\n", " ") + ".");
+			out.println("\tprivate static boolean run" + identifier + "(ExpressionStack stack, ExpressionVariableContext context)");
+			out.println("\t{");
+			out.println("\t\tExpressionValue value;");
+			helperPrefix = "run" + identifier + "$";
+			helperCount = 0;
+			if (generateNode(expression.getRootNode(), 2))
+				out.println("\t\treturn true;");
+			out.println("\t}");
+
+			// helpers can add more helpers.
+			while (!helperBlocks.isEmpty())
+			{
+				Map.Entry<String, ExpressionNode[]> entry = helperBlocks.entrySet().iterator().next();
+				helperBlocks.remove(entry.getKey());
+				out.println();
+				out.println("\t// Runs part of the nodes of " + commentText(name).replace("\n", " ") + ".");
+				out.println("\tprivate static boolean " + entry.getKey() + "(ExpressionStack stack, ExpressionVariableContext context)");
+				out.println("\t{");
+				out.println("\t\tExpressionValue value;");
+				if (generateNodes(entry.getValue(), 2))
+					out.println("\t\treturn true;");
+				out.println("\t}");
+			}
+		}
+	}
+
+	// Generates a block, or calls to helper methods for it if it is too large for one method.
+	// Returns true if the generated code can continue past it.
+	private boolean generateBlock(ExpressionNode[] block, int depth)
+	{
+		if (block == null || countNodes(block) <= MAX_METHOD_NODES)
+			return generateNodes(block, depth);
+
+		String indent = indent(depth);
+		int start = 0;
+		while (start < block.length)
+		{
+			// at least one node per helper: a single large branch splits its own blocks.
+			int end = start + 1;
+			int size = countNodes(block[start]);
+			while (end < block.length && size + countNodes(block[end]) <= MAX_METHOD_NODES)
+				size += countNodes(block[end++]);
+
+			String helper = helperPrefix + (++helperCount);
+			helperBlocks.put(helper, Arrays.copyOfRange(block, start, end));
+			out.println(indent + "if (!" + helper + "(stack, context))");
+			out.println(indent + "\treturn false;");
+			start = end;
+		}
+		return true;
+	}
+
+	// Generates the nodes of a block in place. Returns true if the generated code can continue past it.
+	private boolean generateNodes(ExpressionNode[] block, int depth)
+	{
+		if (block != null) for (int i = 0; i < block.length; i++)
+			if (!generateNode(block[i], depth))
+				return false;
+		return true;
+	}
+
+	// Generates a node. Returns true if the generated code can continue past it.
+	private boolean generateNode(ExpressionNode node, int depth)
+	{
+		String indent = indent(depth);
+		if (node instanceof ExpressionDirective)
+		{
+			ExpressionDirective directive = (ExpressionDirective)node;
+			ExpressionDirectiveType type = directive.getType();
+			Object operand = directive.getOperand();
+			switch (type)
+			{
+				case PUSH:
+					out.println(indent + "stack.push(" + (operand != null ? constant(operand) : "false") + ");");
+					return true;
+				case PUSH_VARIABLE:
+					out.println(indent + "if ((value = context.get(" + stringLiteral(String.valueOf(operand)) + ")) == null)");
+					out.println(indent + "\tstack.push(false);");
+					out.println(indent + "else");
+					out.println(indent + "\tstack.push(value);");
+					return true;
+				case RETURN:
+					out.println(indent + "ExpressionDirectiveType.RETURN.execute(stack, context, null);");
+					out.println(indent + "return false;");
+					return false;
+				default:
+					out.println(indent + "ExpressionDirectiveType." + type.name() + ".execute(stack, context, "
+						+ (operand instanceof String ? stringLiteral((String)operand) : operand != null ? constant(operand) : "null") + ");");
+					return true;
+			}
+		}
+		else if (node instanceof ExpressionFunction)
+		{
+			out.println(indent + "if (!" + functionFields.get(((ExpressionFunction)node).getType()) + ".execute(stack, context))");
+			out.println(indent + "\treturn false;");
+			return true;
+		}
+		else if (node instanceof ExpressionBranch)
+		{
+			ExpressionBranch branch = (ExpressionBranch)node;
+			if (branch.isUnconditional())
+				return generateBlock(branch.getSuccessBlock(), depth);
+			if (!generateBlock(branch.getConditional(), depth))
+				return false;
+
+			out.println(indent + "if (stack.pop().asBoolean())");
+			out.println(indent + "{");
+			boolean successContinues = generateBlock(branch.getSuccessBlock(), depth + 1);
+			out.println(indent + "}");
+			boolean failureContinues = true;
+			ExpressionNode[] failureBlock = branch.getFailureBlock();
+			if (failureBlock != null && failureBlock.length > 0)
+			{
+				out.println(indent + "else");
+				out.println(indent + "{");
+				failureContinues = generateBlock(failureBlock, depth + 1);
+				out.println(indent + "}");
+			}
+			return successContinues || failureContinues;
+		}
+		else if (node instanceof ExpressionDecision)
+		{
+			// the source chain compiles to if/else-if, which the JIT handles well.
+			return generateNode(((ExpressionDecision)node).getSource(), depth);
+		}
+		else
+			throw new ExpressionException("Node type %s cannot be generated.", node.getClass().getName());
+	}
+
+	// Counts the nodes of an expression.
+	private static int countNodes(Expression expression)
+	{
+		return expression.isValue() ? 1 : countNodes(expression.getRootNode());
+	}
+
+	// Counts the nodes in a block, recursively.
+	private static int countNodes(ExpressionNode[] block)
+	{
+		int out = 0;
+		if (block != null) for (int i = 0; i < block.length; i++)
+			out += countNodes(block[i]);
+		return out;
+	}
+
+	// Counts a node and the nodes in it, recursively.
+	private static int countNodes(ExpressionNode node)
+	{
+		if (node instanceof ExpressionBranch)
+		{
+			ExpressionBranch branch = (ExpressionBranch)node;
+			return 1 + countNodes(branch.getConditional()) + countNodes(branch.getSuccessBlock()) + countNodes(branch.getFailureBlock());
+		}
+		else if (node instanceof ExpressionDecision)
+			return countNodes(((ExpressionDecision)node).getSource());
+		else
+			return 1;
+	}
+
+	// Adds the functions that a node calls.
+	private void gatherFunctions(ExpressionNode node)
+	{
+		if (node instanceof ExpressionFunction)
+		{
+			ExpressionFunctionType type = ((ExpressionFunction)node).getType();
+			if (!(type instanceof Enum))
+				throw new ExpressionException("Function %s is not an enum constant, and cannot be referenced from generated code.", type.name());
+			if (!functionFields.containsKey(type))
+				functionFields.put(type, "FUNCTION_" + functionFields.size());
+		}
+		else if (node instanceof ExpressionBranch)
+		{
+			ExpressionBranch branch = (ExpressionBranch)node;
+			gatherFunctions(branch.getConditional());
+			gatherFunctions(branch.getSuccessBlock());
+			gatherFunctions(branch.getFailureBlock());
+		}
+		else if (node instanceof ExpressionDecision)
+			gatherFunctions(((ExpressionDecision)node).getSource());
+	}
+
+	// Adds the functions that a block calls.
+	private void gatherFunctions(ExpressionNode[] block)
+	{
+		if (block != null) for (int i = 0; i < block.length; i++)
+			gatherFunctions(block[i]);
+	}
+
+	// Makes a Java literal for a constant.
+	private static String constant(Object operand)
+	{
+		if (operand instanceof ExpressionValue)
+		{
+			ExpressionValue value = (ExpressionValue)operand;
+			switch (value.getType())
+			{
+				case BOOLEAN:
+					return String.valueOf(value.asBoolean());
+				case LONG:
+					return constant(value.asLong());
+				default:
+					return constant(value.asDouble());
+			}
+		}
+		else if (operand instanceof Long)
+			return operand + "L";
+		else if (operand instanceof Double)
+		{
+			double d = (Double)operand;
+			if (Double.isNaN(d))
+				return "Double.NaN";
+			else if (d == Double.POSITIVE_INFINITY)
+				return "Double.POSITIVE_INFINITY";
+			else if (d == Double.NEGATIVE_INFINITY)
+				return "Double.NEGATIVE_INFINITY";
+			else
+				return Double.toString(d);
+		}
+		else
+			return String.valueOf(operand);
+	}
+
+	// Makes a Java String literal.
+	private static String stringLiteral(String s)
+	{
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			switch (c)
+			{
+				case '"':
+					sb.append("\\\"");
+					break;
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				default:
+					if (c < 0x20 || c > 0x7e)
+						sb.append(String.format("\\u%04x", (int)c));
+					else
+						sb.append(c);
+					break;
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	// Makes text safe for a comment.
+	private static String commentText(String s)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			switch (c)
+			{
+				case '<':
+					sb.append("&lt;");
+					break;
+				case '>':
+					sb.append("&gt;");
+					break;
+				case '&':
+					sb.append("&amp;");
+					break;
+				case '/':
+					// no "*/".
+					sb.append(i > 0 && s.charAt(i - 1) == '*' ? "&#47;" : "/");
+					break;
+				case '\\':
+					// no unicode escapes.
+					sb.append("&#92;");
+					break;
+				case '\r':
+					break;
+				default:
+					sb.append(c);
+					break;
+			}
+		}
+		return sb.toString();
+	}
+
+	// Makes a Java identifier out of a name.
+	private static String toIdentifier(String name, boolean capitalize)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < name.length(); i++)
+		{
+			char c = name.charAt(i);
+			sb.append(Character.isJavaIdentifierPart(c) && c != '$' ? c : '_');
+		}
+		if (sb.length() == 0 || !Character.isJavaIdentifierStart(sb.charAt(0)))
+			sb.insert(0, '_');
+		if (capitalize)
+			sb.setCharAt(0, Character.toUpperCase(sb.charAt(0)));
+		return sb.toString();
+	}
+
+	// Makes an indent.
+	private static String indent(int depth)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < depth; i++)
+			sb.append('\t');
+		return sb.toString();
+	}
+
+}
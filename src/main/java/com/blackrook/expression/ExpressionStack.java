@@ -20,6 +20,8 @@ public class ExpressionStack
 	private ExpressionValue[] stack;
 	/** Position. */
 	private int count;
+	/** Function result cache. Can be null. */
+	private ExpressionFunctionCache functionCache;
 
 	/**
 	 * Creates a stack with a default size.
@@ -40,6 +42,7 @@ public class ExpressionStack
 			capacity = 1;
 		expand(capacity);
 		this.count = 0;
+		this.functionCache = null;
 	}
 	
 	// Expands this.
@@ -123,6 +126,37 @@ public class ExpressionStack
 			return stack[count-1];
 	}
 	
+	/**
+	 * Peeks at a value below the top of the stack.
+	 * @param depth the depth from the top (0 is the top).
+	 * @return the value at the depth, or null if the stack is not that deep.
+	 */
+	ExpressionValue peek(int depth)
+	{
+		if (depth < 0 || depth >= count)
+			return null;
+		else
+			return stack[count-1-depth];
+	}
+	
+	/**
+	 * Sets the cache used for functions that are cacheable, when evaluated with this stack.
+	 * @param functionCache the cache, or null for no caching.
+	 * @see com.blackrook.expression.node.ExpressionFunctionType#isCacheable()
+	 */
+	public void setFunctionCache(ExpressionFunctionCache functionCache)
+	{
+		this.functionCache = functionCache;
+	}
+	
+	/**
+	 * @return the cache used for functions that are cacheable, or null for no caching.
+	 */
+	public ExpressionFunctionCache getFunctionCache()
+	{
+		return functionCache;
+	}
+	
 	/**
 	 * Clears the context.
 	 */
@@ -11,9 +11,11 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 import com.blackrook.expression.struct.SerialWriter;
+import com.blackrook.expression.struct.StructuralHash;
 
 /**
  * Expression value encapsulation.
+ * The calculation methods read their operands before writing their output, so the output can be one of the operands.
  * @author Matthew Tropiano
  */
 public class ExpressionValue implements Comparable<ExpressionValue>
@@ -117,6 +119,22 @@ public class ExpressionValue implements Comparable<ExpressionValue>
 		rawbits = Double.doubleToRawLongBits(value);
 	}
 	
+	/**
+	 * @return the internal value type.
+	 */
+	Type getType()
+	{
+		return type;
+	}
+	
+	/**
+	 * @return the raw internal value bits.
+	 */
+	long getRawBits()
+	{
+		return rawbits;
+	}
+	
 	/**
 	 * @return true if this value is NaN.
 	 */
@@ -462,26 +480,18 @@ public class ExpressionValue implements Comparable<ExpressionValue>
 	 */
 	public static void add(ExpressionValue operand, ExpressionValue operand2, ExpressionValue out)
 	{
-		Cache cacheValue = CACHE.get();
-		cacheValue.value1.set(operand);
-		cacheValue.value2.set(operand2);
-		if (operand.type.ordinal() < operand2.type.ordinal())
-			cacheValue.value1.convertTo(operand2.type);
-		else if (operand.type.ordinal() > operand2.type.ordinal())
-			cacheValue.value2.convertTo(operand.type);
-		
-		switch (cacheValue.value2.type)
+		switch (widerType(operand, operand2))
 		{
 			default:
 				throw new RuntimeException("Bad internal type.");
 			case BOOLEAN:
-				out.set(cacheValue.value1.asBoolean() || cacheValue.value2.asBoolean());
+				out.set(operand.asBoolean() || operand2.asBoolean());
 				return;
 			case LONG:
-				out.set(cacheValue.value1.asLong() + cacheValue.value2.asLong());
+				out.set(operand.asLong() + operand2.asLong());
 				return;
 			case DOUBLE:
-				out.set(cacheValue.value1.asDouble() + cacheValue.value2.asDouble());
+				out.set(operand.asDouble() + operand2.asDouble());
 				return;
 		}
 	}
@@ -494,27 +504,19 @@ public class ExpressionValue implements Comparable<ExpressionValue>
 	 */
 	public static void subtract(ExpressionValue operand, ExpressionValue operand2, ExpressionValue out)
 	{
-		Cache cacheValue = CACHE.get();
-		cacheValue.value1.set(operand);
-		cacheValue.value2.set(operand2);
-		if (operand.type.ordinal() < operand2.type.ordinal())
-			cacheValue.value1.convertTo(operand2.type);
-		else if (operand.type.ordinal() > operand2.type.ordinal())
-			cacheValue.value2.convertTo(operand.type);
-		
-		switch (cacheValue.value2.type)
+		switch (widerType(operand, operand2))
 		{
 			default:
 				throw new RuntimeException("Bad internal type.");
 			case BOOLEAN:
-				boolean v1 = cacheValue.value1.asBoolean();
-				out.set(!v1 ? false : (cacheValue.value2.asBoolean() ? false : v1));
+				boolean v1 = operand.asBoolean();
+				out.set(!v1 ? false : (operand2.asBoolean() ? false : v1));
 				return;
 			case LONG:
-				out.set(cacheValue.value1.asLong() - cacheValue.value2.asLong());
+				out.set(operand.asLong() - operand2.asLong());
 				return;
 			case DOUBLE:
-				out.set(cacheValue.value1.asDouble() - cacheValue.value2.asDouble());
+				out.set(operand.asDouble() - operand2.asDouble());
 				return;
 		}
 	}
@@ -527,26 +529,18 @@ public class ExpressionValue implements Comparable<ExpressionValue>
 	 */
 	public static void multiply(ExpressionValue operand, ExpressionValue operand2, ExpressionValue out)
 	{
-		Cache cacheValue = CACHE.get();
-		cacheValue.value1.set(operand);
-		cacheValue.value2.set(operand2);
-		if (operand.type.ordinal() < operand2.type.ordinal())
-			cacheValue.value1.convertTo(operand2.type);
-		else if (operand.type.ordinal() > operand2.type.ordinal())
-			cacheValue.value2.convertTo(operand.type);
-		
-		switch (cacheValue.value2.type)
+		switch (widerType(operand, operand2))
 		{
 			default:
 				throw new RuntimeException("Bad internal type.");
 			case BOOLEAN:
-				out.set(cacheValue.value1.asBoolean() && cacheValue.value2.asBoolean());
+				out.set(operand.asBoolean() && operand2.asBoolean());
 				return;
 			case LONG:
-				out.set(cacheValue.value1.asLong() * cacheValue.value2.asLong());
+				out.set(operand.asLong() * operand2.asLong());
 				return;
 			case DOUBLE:
-				out.set(cacheValue.value1.asDouble() * cacheValue.value2.asDouble());
+				out.set(operand.asDouble() * operand2.asDouble());
 				return;
 		}
 	}
@@ -559,30 +553,22 @@ public class ExpressionValue implements Comparable<ExpressionValue>
 	 */
 	public static void divide(ExpressionValue operand, ExpressionValue operand2, ExpressionValue out)
 	{
-		Cache cacheValue = CACHE.get();
-		cacheValue.value1.set(operand);
-		cacheValue.value2.set(operand2);
-		if (operand.type.ordinal() < operand2.type.ordinal())
-			cacheValue.value1.convertTo(operand2.type);
-		else if (operand.type.ordinal() > operand2.type.ordinal())
-			cacheValue.value2.convertTo(operand.type);
-		
-		switch (cacheValue.value2.type)
+		switch (widerType(operand, operand2))
 		{
 			default:
 				throw new RuntimeException("Bad internal type.");
 			case BOOLEAN:
-				out.set(cacheValue.value1.asBoolean());
+				out.set(operand.asBoolean());
 				return;
 			case LONG:
-				long dividend = cacheValue.value2.asLong();
+				long dividend = operand2.asLong();
 				if (dividend != 0)
-					out.set(cacheValue.value1.asLong() / dividend);
+					out.set(operand.asLong() / dividend);
 				else
 					out.set(Double.NaN);
 				return;
 			case DOUBLE:
-				out.set(cacheValue.value1.asDouble() / cacheValue.value2.asDouble());
+				out.set(operand.asDouble() / operand2.asDouble());
 				return;
 		}
 	}
@@ -595,30 +581,22 @@ public class ExpressionValue implements Comparable<ExpressionValue>
 	 */
 	public static void modulo(ExpressionValue operand, ExpressionValue operand2, ExpressionValue out)
 	{
-		Cache cacheValue = CACHE.get();
-		cacheValue.value1.set(operand);
-		cacheValue.value2.set(operand2);
-		if (operand.type.ordinal() < operand2.type.ordinal())
-			cacheValue.value1.convertTo(operand2.type);
-		else if (operand.type.ordinal() > operand2.type.ordinal())
-			cacheValue.value2.convertTo(operand.type);
-		
-		switch (cacheValue.value2.type)
+		switch (widerType(operand, operand2))
 		{
 			default:
 				throw new RuntimeException("Bad internal type.");
 			case BOOLEAN:
-				out.set(cacheValue.value1.asBoolean());
+				out.set(operand.asBoolean());
 				return;
 			case LONG:
-				long dividend = cacheValue.value2.asLong();
+				long dividend = operand2.asLong();
 				if (dividend != 0)
-					out.set(cacheValue.value1.asLong() % dividend);
+					out.set(operand.asLong() % dividend);
 				else
 					out.set(Double.NaN);
 				return;
 			case DOUBLE:
-				out.set(cacheValue.value1.asDouble() % cacheValue.value2.asDouble());
+				out.set(operand.asDouble() % operand2.asDouble());
 				return;
 		}
 	}
@@ -631,24 +609,18 @@ public class ExpressionValue implements Comparable<ExpressionValue>
 	 */
 	public static void and(ExpressionValue operand, ExpressionValue operand2, ExpressionValue out)
 	{
-		Cache cacheValue = CACHE.get();
-		cacheValue.value1.set(operand);
-		cacheValue.value2.set(operand2);
-		if (operand.type.ordinal() < operand2.type.ordinal())
-			cacheValue.value1.convertTo(operand2.type);
-		else if (operand.type.ordinal() > operand2.type.ordinal())
-			cacheValue.value2.convertTo(operand.type);
-		
-		switch (cacheValue.value2.type)
+		switch (widerType(operand, operand2))
 		{
 			default:
 				throw new RuntimeException("Bad internal type.");
 			case BOOLEAN:
-				out.set(cacheValue.value1.asBoolean() && cacheValue.value2.asBoolean());
+				out.set(operand.asBoolean() && operand2.asBoolean());
 				return;
 			case LONG:
+				out.set(operand.asLong() & operand2.asLong());
+				return;
 			case DOUBLE:
-				out.set(cacheValue.value1.rawbits & cacheValue.value2.rawbits);
+				out.set(Double.doubleToRawLongBits(operand.asDouble()) & Double.doubleToRawLongBits(operand2.asDouble()));
 				return;
 		}
 	}
@@ -661,24 +633,18 @@ public class ExpressionValue implements Comparable<ExpressionValue>
 	 */
 	public static void or(ExpressionValue operand, ExpressionValue operand2, ExpressionValue out)
 	{
-		Cache cacheValue = CACHE.get();
-		cacheValue.value1.set(operand);
-		cacheValue.value2.set(operand2);
-		if (operand.type.ordinal() < operand2.type.ordinal())
-			cacheValue.value1.convertTo(operand2.type);
-		else if (operand.type.ordinal() > operand2.type.ordinal())
-			cacheValue.value2.convertTo(operand.type);
-		
-		switch (cacheValue.value2.type)
+		switch (widerType(operand, operand2))
 		{
 			default:
 				throw new RuntimeException("Bad internal type.");
 			case BOOLEAN:
-				out.set(cacheValue.value1.asBoolean() || cacheValue.value2.asBoolean());
+				out.set(operand.asBoolean() || operand2.asBoolean());
 				return;
 			case LONG:
+				out.set(operand.asLong() | operand2.asLong());
+				return;
 			case DOUBLE:
-				out.set(cacheValue.value1.rawbits | cacheValue.value2.rawbits);
+				out.set(Double.doubleToRawLongBits(operand.asDouble()) | Double.doubleToRawLongBits(operand2.asDouble()));
 				return;
 		}
 	}
@@ -691,24 +657,18 @@ public class ExpressionValue implements Comparable<ExpressionValue>
 	 */
 	public static void xor(ExpressionValue operand, ExpressionValue operand2, ExpressionValue out)
 	{
-		Cache cacheValue = CACHE.get();
-		cacheValue.value1.set(operand);
-		cacheValue.value2.set(operand2);
-		if (operand.type.ordinal() < operand2.type.ordinal())
-			cacheValue.value1.convertTo(operand2.type);
-		else if (operand.type.ordinal() > operand2.type.ordinal())
-			cacheValue.value2.convertTo(operand.type);
-		
-		switch (cacheValue.value2.type)
+		switch (widerType(operand, operand2))
 		{
 			default:
 				throw new RuntimeException("Bad internal type.");
 			case BOOLEAN:
-				out.set(cacheValue.value1.asBoolean() ^ cacheValue.value2.asBoolean());
+				out.set(operand.asBoolean() ^ operand2.asBoolean());
 				return;
 			case LONG:
+				out.set(operand.asLong() ^ operand2.asLong());
+				return;
 			case DOUBLE:
-				out.set(cacheValue.value1.rawbits ^ cacheValue.value2.rawbits);
+				out.set(Double.doubleToRawLongBits(operand.asDouble()) ^ Double.doubleToRawLongBits(operand2.asDouble()));
 				return;
 		}
 	}
@@ -907,20 +867,20 @@ public class ExpressionValue implements Comparable<ExpressionValue>
 		sw.writeLong(out, rawbits);
 	}
 	
-	private static final ThreadLocal<Cache> CACHE = ThreadLocal.withInitial(()->new Cache());
-
-	// Mathematics cache.
-	private static class Cache
+	/**
+	 * Adds this value to a hash (for finding equal expressions).
+	 * @param hash the hash to add to.
+	 */
+	public void writeHash(StructuralHash hash)
 	{
-		private ExpressionValue value1;
-		private ExpressionValue value2;
-		
-		public Cache()
-		{
-			this.value1 = ExpressionValue.create(false);
-			this.value2 = ExpressionValue.create(false);
-		}
-		
+		hash.putInt(type.ordinal()).putLong(rawbits);
+	}
+	
+	// Gets the wider of two values' types, which binary calculations are done in.
+	// Values converted to a wider type keep their value, so the operands are read as that type instead.
+	private static Type widerType(ExpressionValue operand, ExpressionValue operand2)
+	{
+		return operand.type.ordinal() < operand2.type.ordinal() ? operand2.type : operand.type;
 	}
 	
 }
@@ -7,6 +7,7 @@
  ******************************************************************************/
 package com.blackrook.expression;
 
+import java.util.Arrays;
 import java.util.Comparator;
 
 import com.blackrook.expression.struct.Utils;
@@ -21,6 +22,8 @@ public class ExpressionVariableContext implements ExpressionVariableSet
 	/** Default capacity. */
 	public static final int DEFAULT_CAPACITY = 4;
 
+	private static final Listener[] NO_LISTENERS = new Listener[0];
+
 	private static final Comparator<Entry> ENTRY_COMPARATOR = new Comparator<Entry>()
 	{
 		@Override
@@ -35,6 +38,10 @@ public class ExpressionVariableContext implements ExpressionVariableSet
 	private Entry[] entries;
 	/** Count. */
 	private int entryCount;
+	/** Change listeners. */
+	private Listener[] listeners;
+	/** Previous value, for change detection. */
+	private ExpressionValue previousValue;
 
 	/**
 	 * Creates a context with a default size.
@@ -55,6 +62,8 @@ public class ExpressionVariableContext implements ExpressionVariableSet
 			capacity = 1;
 		expand(capacity);
 		this.entryCount = 0;
+		this.listeners = NO_LISTENERS;
+		this.previousValue = ExpressionValue.create(false);
 	}
 	
 	// Expands this.
@@ -68,16 +77,94 @@ public class ExpressionVariableContext implements ExpressionVariableSet
 		entries = newEntries;
 	}
 	
+	/**
+	 * Adds a listener that is notified of variable changes.
+	 * Adding a listener that was already added does nothing.
+	 * @param listener the listener to add.
+	 * @throws NullPointerException if listener is null.
+	 */
+	public void addListener(Listener listener)
+	{
+		if (listener == null)
+			throw new NullPointerException("listener is null");
+		if (indexOfListener(listener) >= 0)
+			return;
+		Listener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+		newListeners[listeners.length] = listener;
+		this.listeners = newListeners;
+	}
+	
+	/**
+	 * Removes a listener that is notified of variable changes.
+	 * @param listener the listener to remove.
+	 * @return true if it was removed, false if it was not added.
+	 */
+	public boolean removeListener(Listener listener)
+	{
+		int i = indexOfListener(listener);
+		if (i < 0)
+			return false;
+		Listener[] newListeners = new Listener[listeners.length - 1];
+		System.arraycopy(listeners, 0, newListeners, 0, i);
+		System.arraycopy(listeners, i + 1, newListeners, i, newListeners.length - i);
+		this.listeners = newListeners;
+		return true;
+	}
+	
+	// Finds the index of a listener, or -1 if not found.
+	private int indexOfListener(Listener listener)
+	{
+		for (int i = 0; i < listeners.length; i++)
+			if (listeners[i] == listener)
+				return i;
+		return -1;
+	}
+	
+	// Notifies the listeners of a variable change.
+	private void notifyChange(String name)
+	{
+		for (int i = 0; i < listeners.length; i++)
+			listeners[i].onVariableChange(name);
+	}
+	
 	/**
 	 * Clears the context.
 	 */
 	public void clear()
 	{
+		if (listeners.length > 0) for (int i = 0; i < entryCount; i++)
+			notifyChange(entries[i].name);
 		this.entryCount = 0;
 	}
 	
 	@Override
 	public ExpressionValue get(String name)
+	{
+		int i = indexOf(name);
+		return i < 0 ? null : entries[i].value;
+	}
+
+	/**
+	 * Removes a variable from this context.
+	 * @param name the name of the variable.
+	 * @return true if a variable was removed, false if no such variable.
+	 */
+	public boolean remove(String name)
+	{
+		int i = indexOf(name);
+		if (i < 0)
+			return false;
+		
+		// keep the entry object around for reuse.
+		Entry removed = entries[i];
+		System.arraycopy(entries, i + 1, entries, i, entryCount - i - 1);
+		entries[--entryCount] = removed;
+		notifyChange(name);
+		return true;
+	}
+
+	// Finds the index of a variable entry, or -1 if not found.
+	private int indexOf(String name)
 	{
 		int u = entryCount, l = 0;
 		int i = (u+l)/2;
@@ -86,14 +173,14 @@ public class ExpressionVariableContext implements ExpressionVariableSet
 		while (i != prev)
 		{
 			if (entries[i].name.equals(name))
-				return entries[i].value;
+				return i;
 
 			int c = entries[i].name.compareTo(name); 
 			
 			if (c < 0)
 				l = i;
 			else if (c == 0)
-				return entries[i].value;
+				return i;
 			else
 				u = i;
 			
@@ -101,7 +188,7 @@ public class ExpressionVariableContext implements ExpressionVariableSet
 			i = (u+l)/2;
 		}
 		
-		return null;
+		return -1;
 	}
 
 	/**
@@ -114,7 +201,9 @@ public class ExpressionVariableContext implements ExpressionVariableSet
 		ExpressionValue ev = get(name); 
 		if (ev != null)
 		{
+			beforeChange(ev);
 			ev.set(value);
+			afterChange(name, ev);
 			return;
 		}
 		
@@ -124,6 +213,7 @@ public class ExpressionVariableContext implements ExpressionVariableSet
 		entries[entryCount].value.set(value);
 		Utils.sortFrom(entries, entryCount, ENTRY_COMPARATOR);
 		entryCount++;
+		notifyChange(name);
 	}
 
 	/**
@@ -136,7 +226,9 @@ public class ExpressionVariableContext implements ExpressionVariableSet
 		ExpressionValue ev = get(name); 
 		if (ev != null)
 		{
+			beforeChange(ev);
 			ev.set(value);
+			afterChange(name, ev);
 			return;
 		}
 		
@@ -146,6 +238,7 @@ public class ExpressionVariableContext implements ExpressionVariableSet
 		entries[entryCount].value.set(value);
 		Utils.sortFrom(entries, entryCount, ENTRY_COMPARATOR);
 		entryCount++;
+		notifyChange(name);
 	}
 
 	/**
@@ -158,7 +251,9 @@ public class ExpressionVariableContext implements ExpressionVariableSet
 		ExpressionValue ev = get(name); 
 		if (ev != null)
 		{
+			beforeChange(ev);
 			ev.set(value);
+			afterChange(name, ev);
 			return;
 		}
 		
@@ -168,6 +263,7 @@ public class ExpressionVariableContext implements ExpressionVariableSet
 		entries[entryCount].value.set(value);
 		Utils.sortFrom(entries, entryCount, ENTRY_COMPARATOR);
 		entryCount++;
+		notifyChange(name);
 	}
 
 	/**
@@ -180,7 +276,9 @@ public class ExpressionVariableContext implements ExpressionVariableSet
 		ExpressionValue ev = get(name); 
 		if (ev != null)
 		{
+			beforeChange(ev);
 			ev.set(value);
+			afterChange(name, ev);
 			return;
 		}
 		
@@ -190,8 +288,23 @@ public class ExpressionVariableContext implements ExpressionVariableSet
 		entries[entryCount].value.set(value);
 		Utils.sortFrom(entries, entryCount, ENTRY_COMPARATOR);
 		entryCount++;
+		notifyChange(name);
 	}
 
+	// Saves a variable value before it is changed.
+	private void beforeChange(ExpressionValue value)
+	{
+		if (listeners.length > 0)
+			previousValue.set(value);
+	}
+	
+	// Notifies the listeners if a variable value was changed.
+	private void afterChange(String name, ExpressionValue value)
+	{
+		if (listeners.length > 0 && !previousValue.equals(value))
+			notifyChange(name);
+	}
+	
 	/**
 	 * @return the amount of variables maintained by this context.
 	 */
@@ -225,6 +338,19 @@ public class ExpressionVariableContext implements ExpressionVariableSet
 		return sb.toString();
 	}
 	
+	/**
+	 * Listener for variable changes in a context.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called when a variable is added, removed, or set to a different value.
+		 * Setting a variable to the same value (and type) does not call this.
+		 * @param name the name of the variable.
+		 */
+		void onVariableChange(String name);
+	}
+	
 	/**
 	 * A single entry.
 	 */
@@ -15,6 +15,7 @@ import com.blackrook.expression.ExpressionNode;
 import com.blackrook.expression.ExpressionStack;
 import com.blackrook.expression.ExpressionValue;
 import com.blackrook.expression.ExpressionVariableContext;
+import com.blackrook.expression.struct.StructuralHash;
 import com.blackrook.expression.struct.Utils;
 
 /**
@@ -73,6 +74,40 @@ public class ExpressionBranch implements ExpressionNode
 		return new ExpressionBranch(conditional, successBlock, failureBlock);
 	}
 	
+	/**
+	 * @return the conditional block. Do not modify the returned array.
+	 */
+	public ExpressionNode[] getConditional()
+	{
+		return conditional;
+	}
+	
+	/**
+	 * @return the block used on conditional success. Do not modify the returned array.
+	 */
+	public ExpressionNode[] getSuccessBlock()
+	{
+		return successBlock;
+	}
+	
+	/**
+	 * @return the block used on conditional failure, or null if no failure block. Do not modify the returned array.
+	 */
+	public ExpressionNode[] getFailureBlock()
+	{
+		return failureBlock;
+	}
+	
+	/**
+	 * Checks if this branch always takes its success block (no real conditional).
+	 * Expressions created via {@link #create(ExpressionNode[])} are unconditional. 
+	 * @return true if so, false if not.
+	 */
+	public boolean isUnconditional()
+	{
+		return conditional == ALWAYS_TRUE_CONDITIONAL;
+	}
+	
 	@Override
 	public boolean isCollapsable()
 	{
@@ -127,6 +162,26 @@ public class ExpressionBranch implements ExpressionNode
 			node.writeBytes(out);
 	}
 
+	@Override
+	public void writeHash(StructuralHash hash)
+	{
+		// block lengths keep the boundaries between blocks.
+		hash.putInt(conditional.length);
+		for (ExpressionNode node : conditional)
+			node.writeHash(hash);
+		hash.putInt(successBlock.length);
+		for (ExpressionNode node : successBlock)
+			node.writeHash(hash);
+		if (!Utils.isEmpty(failureBlock))
+		{
+			hash.putInt(failureBlock.length);
+			for (ExpressionNode node : failureBlock)
+				node.writeHash(hash);
+		}
+		else
+			hash.putInt(0);
+	}
+
 	@Override
 	public String toString()
 	{
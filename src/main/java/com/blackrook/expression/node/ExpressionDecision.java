@@ -0,0 +1,604 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression.node;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.blackrook.expression.ExpressionNode;
+import com.blackrook.expression.ExpressionStack;
+import com.blackrook.expression.ExpressionValue;
+import com.blackrook.expression.ExpressionVariableContext;
+import com.blackrook.expression.exception.ExpressionException;
+import com.blackrook.expression.struct.StructuralHash;
+import com.blackrook.expression.struct.Utils;
+
+/**
+ * Expression decision - a compiled chain of branches that compare the same value to constants,
+ * like <code>if (x &lt; 10) ... else if (x &lt; 20) ... else ...</code>.
+ * <p>The value is calculated once, and the first branch whose comparison is true is found
+ * via binary search over the sorted constants, or via a jump table if every comparison
+ * is an equality check against a close range of integers.
+ * @author Matthew Tropiano
+ */
+public class ExpressionDecision implements ExpressionNode
+{
+	/** Minimum amount of branches in a chain to compile. */
+	public static final int MIN_CHAIN_LENGTH = 3;
+	/** Maximum jump table size, relative to the amount of branches. */
+	private static final int MAX_JUMP_TABLE_SCALE = 4;
+	/** Minimum jump table size allowed, regardless of the amount of branches. */
+	private static final int MIN_JUMP_TABLE_SIZE = 16;
+
+	/** The branch chain that this decision was compiled from. */
+	private ExpressionBranch source;
+	/** Subject block - leaves the compared value on the stack. */
+	private ExpressionNode[] subject;
+	/** Blocks per branch, in chain order. */
+	private ExpressionNode[][] blocks;
+	/** Block to use if no comparison is true. Can be null. */
+	private ExpressionNode[] defaultBlock;
+	/** Sorted, distinct constants. */
+	private double[] thresholds;
+	/**
+	 * Branch index per region of values, or -1 for the default block.
+	 * Region <code>2i</code> is all values between threshold <code>i-1</code> and <code>i</code>, exclusive,
+	 * and region <code>2i+1</code> is threshold <code>i</code> itself.
+	 */
+	private int[] regionBranches;
+	/** Branch index for NaN, or -1 for the default block. */
+	private int nanBranch;
+	/** Branch index per integer value starting from {@link #jumpStart}, or null if no jump table. */
+	private int[] jumpTable;
+	/** First jump table value. */
+	private long jumpStart;
+
+	// Private constructor.
+	private ExpressionDecision(ExpressionBranch source, ExpressionNode[] subject, ExpressionNode[][] blocks, ExpressionNode[] defaultBlock)
+	{
+		this.source = source;
+		this.subject = subject;
+		this.blocks = blocks;
+		this.defaultBlock = defaultBlock;
+	}
+
+	/**
+	 * Creates a new decision from a branch chain, if it can be compiled into one.
+	 * Each branch's conditional must compare the same side-effect-free value to a literal
+	 * (less, less or equal, greater, greater or equal, equal, not equal), and each branch after the first
+	 * must be the only node in the previous branch's failure block. The rest of the chain is the default block.
+	 * @param branch the first branch in the chain.
+	 * @return a new decision node, or null if the chain is shorter than {@link #MIN_CHAIN_LENGTH}.
+	 */
+	public static ExpressionDecision create(ExpressionBranch branch)
+	{
+		ExpressionNode[] subject = null;
+		byte[] subjectBytes = null;
+		List<ExpressionDirectiveType> typeList = new ArrayList<>();
+		List<Double> constantList = new ArrayList<>();
+		List<ExpressionNode[]> blockList = new ArrayList<>();
+
+		ExpressionBranch current = branch;
+		ExpressionNode[] defaultBlock = null;
+		while (current != null)
+		{
+			if (current.isUnconditional())
+				break;
+
+			ExpressionNode[] conditional = current.getConditional();
+			int length = conditional.length;
+			if (length < 3 || !(conditional[length - 1] instanceof ExpressionDirective))
+				break;
+
+			ExpressionDirectiveType type = ((ExpressionDirective)conditional[length - 1]).getType();
+			if (!isComparison(type))
+				break;
+
+			ExpressionNode[] currentSubject;
+			double constant;
+			if (isLiteral(conditional[length - 2]))
+			{
+				currentSubject = Arrays.copyOf(conditional, length - 2);
+				constant = getConstant((ExpressionDirective)conditional[length - 2]);
+			}
+			else if (isLiteral(conditional[0]))
+			{
+				currentSubject = Arrays.copyOfRange(conditional, 1, length - 1);
+				constant = getConstant((ExpressionDirective)conditional[0]);
+				type = flip(type);
+			}
+			else
+				break;
+
+			if (Double.isNaN(constant) || !isSideEffectFree(currentSubject) || !isSingleValue(currentSubject))
+				break;
+
+			byte[] currentBytes = getBytes(currentSubject);
+			if (subject == null)
+			{
+				subject = currentSubject;
+				subjectBytes = currentBytes;
+			}
+			else if (!Arrays.equals(subjectBytes, currentBytes))
+				break;
+
+			typeList.add(type);
+			constantList.add(constant);
+			blockList.add(current.getSuccessBlock());
+
+			ExpressionNode[] failureBlock = current.getFailureBlock();
+			if (failureBlock != null && failureBlock.length == 1 && failureBlock[0] instanceof ExpressionBranch)
+				current = (ExpressionBranch)failureBlock[0];
+			else
+			{
+				defaultBlock = failureBlock;
+				current = null;
+			}
+		}
+
+		// chain ended on a branch that does not compare the subject.
+		if (current != null)
+			defaultBlock = new ExpressionNode[]{current};
+
+		int count = typeList.size();
+		if (count < MIN_CHAIN_LENGTH)
+			return null;
+
+		ExpressionNode[][] blocks = new ExpressionNode[count][];
+		blockList.toArray(blocks);
+		ExpressionDecision out = new ExpressionDecision(branch, subject, blocks, defaultBlock);
+
+		ExpressionDirectiveType[] types = new ExpressionDirectiveType[count];
+		typeList.toArray(types);
+		double[] constants = new double[count];
+		for (int i = 0; i < count; i++)
+			constants[i] = constantList.get(i);
+
+		out.compile(types, constants);
+		return out;
+	}
+
+	/**
+	 * Creates a new decision with the same comparisons as another, but with different blocks.
+	 * The new blocks must behave the same as the old ones, other than where they get their values.
+	 * @param decision the decision to copy the comparisons from.
+	 * @param source the new source branch chain.
+	 * @param subject the new subject block.
+	 * @param blocks the new blocks per branch. Must be the same length as the source decision's.
+	 * @param defaultBlock the new default block. Can be null.
+	 * @return a new decision node.
+	 * @throws IllegalArgumentException if the amount of blocks does not match.
+	 */
+	public static ExpressionDecision create(ExpressionDecision decision, ExpressionBranch source, ExpressionNode[] subject, ExpressionNode[][] blocks, ExpressionNode[] defaultBlock)
+	{
+		if (blocks.length != decision.blocks.length)
+			throw new IllegalArgumentException("Block count does not match the decision.");
+		ExpressionDecision out = new ExpressionDecision(source, subject, blocks, defaultBlock);
+		out.thresholds = decision.thresholds;
+		out.regionBranches = decision.regionBranches;
+		out.nanBranch = decision.nanBranch;
+		out.jumpTable = decision.jumpTable;
+		out.jumpStart = decision.jumpStart;
+		return out;
+	}
+
+	/**
+	 * Compiles all of the compilable branch chains in a block, including in nested blocks.
+	 * @param block the block of nodes.
+	 * @return the resultant block, or the same block if nothing was compiled.
+	 * @see #create(ExpressionBranch)
+	 */
+	public static ExpressionNode[] optimize(ExpressionNode[] block)
+	{
+		if (block == null)
+			return null;
+
+		ExpressionNode[] out = block;
+		for (int i = 0; i < block.length; i++)
+		{
+			ExpressionNode node = optimize(block[i]);
+			if (node != block[i])
+			{
+				if (out == block)
+					out = Arrays.copyOf(block, block.length);
+				out[i] = node;
+			}
+		}
+		return out;
+	}
+
+	// Compiles the branch chains in and under a node.
+	private static ExpressionNode optimize(ExpressionNode node)
+	{
+		if (!(node instanceof ExpressionBranch))
+			return node;
+
+		ExpressionBranch branch = (ExpressionBranch)node;
+		ExpressionDecision decision;
+		if ((decision = create(branch)) != null)
+		{
+			for (int i = 0; i < decision.blocks.length; i++)
+				decision.blocks[i] = optimize(decision.blocks[i]);
+			decision.defaultBlock = optimize(decision.defaultBlock);
+			return decision;
+		}
+
+		ExpressionNode[] successBlock = optimize(branch.getSuccessBlock());
+		ExpressionNode[] failureBlock = optimize(branch.getFailureBlock());
+		if (successBlock == branch.getSuccessBlock() && failureBlock == branch.getFailureBlock())
+			return branch;
+		else if (branch.isUnconditional())
+			return ExpressionBranch.create(successBlock);
+		else
+			return ExpressionBranch.create(branch.getConditional(), successBlock, failureBlock);
+	}
+
+	// Builds the lookup tables.
+	private void compile(ExpressionDirectiveType[] types, double[] constants)
+	{
+		double[] sorted = Arrays.copyOf(constants, constants.length);
+		Arrays.sort(sorted);
+		int n = 0;
+		for (int i = 0; i < sorted.length; i++)
+			if (n == 0 || sorted[n - 1] != sorted[i]) // also merges -0.0 and 0.0
+				sorted[n++] = sorted[i];
+		thresholds = Arrays.copyOf(sorted, n);
+
+		regionBranches = new int[n * 2 + 1];
+		for (int r = 0; r < regionBranches.length; r++)
+		{
+			regionBranches[r] = -1;
+			for (int i = 0; i < types.length; i++)
+			{
+				if (isTrue(types[i], constants[i], r))
+				{
+					regionBranches[r] = i;
+					break;
+				}
+			}
+		}
+
+		// NaN is only not-equal to things.
+		nanBranch = -1;
+		for (int i = 0; i < types.length; i++)
+		{
+			if (types[i] == ExpressionDirectiveType.NOT_EQUAL)
+			{
+				nanBranch = i;
+				break;
+			}
+		}
+
+		jumpTable = null;
+		for (int i = 0; i < types.length; i++)
+			if (types[i] != ExpressionDirectiveType.EQUAL || !isSmallInteger(constants[i]))
+				return;
+
+		long start = (long)thresholds[0];
+		long size = (long)thresholds[n - 1] - start + 1;
+		if (size > Math.max(MIN_JUMP_TABLE_SIZE, types.length * MAX_JUMP_TABLE_SCALE))
+			return;
+
+		jumpStart = start;
+		jumpTable = new int[(int)size];
+		Arrays.fill(jumpTable, -1);
+		for (int i = types.length - 1; i >= 0; i--)
+			jumpTable[(int)((long)constants[i] - start)] = i;
+	}
+
+	// Checks if a comparison is true for all values in a region.
+	private boolean isTrue(ExpressionDirectiveType type, double constant, int region)
+	{
+		int i = region >> 1;
+		// a single threshold.
+		if ((region & 1) != 0)
+		{
+			double value = thresholds[i];
+			switch (type)
+			{
+				case LESS:
+					return value < constant;
+				case LESS_OR_EQUAL:
+					return value <= constant;
+				case GREATER:
+					return value > constant;
+				case GREATER_OR_EQUAL:
+					return value >= constant;
+				case EQUAL:
+					return value == constant;
+				case NOT_EQUAL:
+					return value != constant;
+				default:
+					return false;
+			}
+		}
+		// between thresholds: every constant is one of the thresholds, so it is above or below the whole region.
+		else
+		{
+			switch (type)
+			{
+				case LESS:
+				case LESS_OR_EQUAL:
+					return i < thresholds.length && constant >= thresholds[i];
+				case GREATER:
+				case GREATER_OR_EQUAL:
+					return i > 0 && constant <= thresholds[i - 1];
+				case EQUAL:
+					return false;
+				case NOT_EQUAL:
+					return true;
+				default:
+					return false;
+			}
+		}
+	}
+
+	/**
+	 * Gets the index of the branch taken for a value.
+	 * @param value the compared value.
+	 * @return the branch index (in chain order), or -1 for the default block.
+	 */
+	public int getBranch(double value)
+	{
+		if (Double.isNaN(value))
+			return nanBranch;
+
+		if (jumpTable != null)
+		{
+			long l = (long)value;
+			if (l != value)
+				return -1;
+			l -= jumpStart;
+			return l >= 0 && l < jumpTable.length ? jumpTable[(int)l] : -1;
+		}
+
+		// first threshold greater than or equal to the value.
+		int lo = 0, hi = thresholds.length;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (thresholds[mid] < value)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+
+		if (lo < thresholds.length && thresholds[lo] == value)
+			return regionBranches[lo * 2 + 1];
+		else
+			return regionBranches[lo * 2];
+	}
+
+	/**
+	 * @return the branch chain that this decision was compiled from.
+	 */
+	public ExpressionBranch getSource()
+	{
+		return source;
+	}
+
+	/**
+	 * @return the subject block, which leaves the compared value on the stack. Do not modify the returned array.
+	 */
+	public ExpressionNode[] getSubject()
+	{
+		return subject;
+	}
+
+	/**
+	 * @return the blocks per branch, in chain order. Do not modify the returned array.
+	 */
+	public ExpressionNode[][] getBlocks()
+	{
+		return blocks;
+	}
+
+	/**
+	 * @return the block used if no comparison is true, or null if no default block. Do not modify the returned array.
+	 */
+	public ExpressionNode[] getDefaultBlock()
+	{
+		return defaultBlock;
+	}
+
+	/**
+	 * @return true if this decision uses a jump table, false if it uses binary search.
+	 */
+	public boolean hasJumpTable()
+	{
+		return jumpTable != null;
+	}
+
+	@Override
+	public boolean isCollapsable()
+	{
+		for (ExpressionNode node : subject)
+			if (!node.isCollapsable())
+				return false;
+
+		for (ExpressionNode[] block : blocks)
+			for (ExpressionNode node : block)
+				if (!node.isCollapsable())
+					return false;
+
+		if (!Utils.isEmpty(defaultBlock))
+		{
+			for (ExpressionNode node : defaultBlock)
+				if (!node.isCollapsable())
+					return false;
+		}
+
+		return true;
+	}
+
+	@Override
+	public boolean execute(ExpressionStack stack, ExpressionVariableContext context)
+	{
+		for (int i = 0; i < subject.length; i++)
+			if (!subject[i].execute(stack, context))
+				return false;
+		ExpressionValue value = stack.pop();
+		if (value == null)
+			throw new ExpressionException("Stack underflow!");
+
+		int branch = getBranch(value.asDouble());
+		ExpressionNode[] block = branch >= 0 ? blocks[branch] : defaultBlock;
+		if (block != null) for (int i = 0; i < block.length; i++)
+			if (!block[i].execute(stack, context))
+				return false;
+		return true;
+	}
+
+	@Override
+	public void writeBytes(OutputStream out) throws IOException
+	{
+		source.writeBytes(out);
+	}
+
+	@Override
+	public void writeHash(StructuralHash hash)
+	{
+		source.writeHash(hash);
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("DECISION: ").append(Arrays.toString(subject));
+		sb.append(" THRESHOLDS: ").append(Arrays.toString(thresholds));
+		for (int i = 0; i < blocks.length; i++)
+			sb.append(" BRANCH ").append(i).append(": ").append(Arrays.toString(blocks[i]));
+		if (defaultBlock != null)
+			sb.append(" DEFAULT: ").append(Arrays.toString(defaultBlock));
+		return sb.toString();
+	}
+
+	// Checks if a directive type is a comparison that this can compile.
+	private static boolean isComparison(ExpressionDirectiveType type)
+	{
+		switch (type)
+		{
+			case LESS:
+			case LESS_OR_EQUAL:
+			case GREATER:
+			case GREATER_OR_EQUAL:
+			case EQUAL:
+			case NOT_EQUAL:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	// Gets the comparison that is equivalent to a comparison with its operands swapped.
+	private static ExpressionDirectiveType flip(ExpressionDirectiveType type)
+	{
+		switch (type)
+		{
+			case LESS:
+				return ExpressionDirectiveType.GREATER;
+			case LESS_OR_EQUAL:
+				return ExpressionDirectiveType.GREATER_OR_EQUAL;
+			case GREATER:
+				return ExpressionDirectiveType.LESS;
+			case GREATER_OR_EQUAL:
+				return ExpressionDirectiveType.LESS_OR_EQUAL;
+			default:
+				return type;
+		}
+	}
+
+	// Checks if a node pushes a literal.
+	private static boolean isLiteral(ExpressionNode node)
+	{
+		if (!(node instanceof ExpressionDirective))
+			return false;
+		ExpressionDirective directive = (ExpressionDirective)node;
+		Object operand = directive.getOperand();
+		return directive.getType() == ExpressionDirectiveType.PUSH && (operand instanceof Number || operand instanceof Boolean);
+	}
+
+	// Gets the value of a PUSH literal as it is compared.
+	private static double getConstant(ExpressionDirective directive)
+	{
+		Object operand = directive.getOperand();
+		if (operand instanceof Boolean)
+			return ((Boolean)operand) ? 1.0 : 0.0;
+		else if (operand instanceof Long)
+			return (double)((Long)operand);
+		else
+			return ((Number)operand).doubleValue();
+	}
+
+	// Checks if a value is an integer that can be used in a jump table.
+	private static boolean isSmallInteger(double value)
+	{
+		return value == Math.rint(value) && Math.abs(value) < (1L << 52);
+	}
+
+	// Checks if a phrase can be calculated once instead of once per branch.
+	private static boolean isSideEffectFree(ExpressionNode[] phrase)
+	{
+		for (int i = 0; i < phrase.length; i++)
+		{
+			ExpressionNode node = phrase[i];
+			if (node instanceof ExpressionDirective)
+			{
+				ExpressionDirectiveType type = ((ExpressionDirective)node).getType();
+				if (type == ExpressionDirectiveType.RETURN || type == ExpressionDirectiveType.POP)
+					return false;
+			}
+			else if (node instanceof ExpressionFunction)
+			{
+				if (!((ExpressionFunction)node).getType().isCollapsable())
+					return false;
+			}
+			else
+				return false;
+		}
+		return true;
+	}
+
+	// Checks if a side-effect-free phrase leaves exactly one value on an empty stack.
+	private static boolean isSingleValue(ExpressionNode[] phrase)
+	{
+		int depth = 0;
+		for (int i = 0; i < phrase.length; i++)
+		{
+			ExpressionNode node = phrase[i];
+			if (node instanceof ExpressionDirective)
+				depth -= ((ExpressionDirective)node).getType().getArgumentCount();
+			else
+				depth -= ((ExpressionFunction)node).getType().getArgumentCount();
+			if (depth < 0)
+				return false;
+			depth++;
+		}
+		return depth == 1;
+	}
+
+	// Gets the digest bytes of a phrase.
+	private static byte[] getBytes(ExpressionNode[] phrase)
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try {
+			for (int i = 0; i < phrase.length; i++)
+				phrase[i].writeBytes(bos);
+		} catch (IOException e) {
+			// Should not happen - writing to memory.
+			throw new ExpressionException("Could not write phrase bytes.", e);
+		}
+		return bos.toByteArray();
+	}
+
+}
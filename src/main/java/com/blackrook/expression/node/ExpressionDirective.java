@@ -9,22 +9,51 @@ package com.blackrook.expression.node;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.blackrook.expression.ExpressionNode;
 import com.blackrook.expression.ExpressionStack;
 import com.blackrook.expression.ExpressionVariableContext;
 import com.blackrook.expression.struct.SerialWriter;
+import com.blackrook.expression.struct.StructuralHash;
 
 /**
  * Single expression directive.
+ * Directives are immutable, so equal directives are shared: the <code>create</code> methods return
+ * one instance per type for directives without an operand, and a canonical instance for directives
+ * with an operand, for as long as that instance is in use.
+ * <p>The most recently created directives are also kept in a small table that is checked first,
+ * so creating a directive that already exists usually allocates nothing.
  * @author Matthew Tropiano
  */
 public class ExpressionDirective implements ExpressionNode
 {
+	/** Directives without an operand, by type ordinal. */
+	private static final ExpressionDirective[] NO_OPERAND;
+	/** Canonical directives with an operand. */
+	private static final ConcurrentHashMap<Key, Canonical> CANONICAL = new ConcurrentHashMap<>();
+	/** Queue of collected canonical directives. */
+	private static final ReferenceQueue<ExpressionDirective> CANONICAL_QUEUE = new ReferenceQueue<>();
+	/** Size of the table of recent directives (power of two). */
+	private static final int RECENT_SIZE = 256;
+	/** Recently created directives with an operand, by operand hash. Racy, but directives are immutable. */
+	private static final ExpressionDirective[] RECENT = new ExpressionDirective[RECENT_SIZE];
+	
+	static
+	{
+		ExpressionDirectiveType[] types = ExpressionDirectiveType.values();
+		NO_OPERAND = new ExpressionDirective[types.length];
+		for (int i = 0; i < types.length; i++)
+			NO_OPERAND[i] = new ExpressionDirective(types[i], null);
+	}
+	
 	/** Directive type. */
-	private ExpressionDirectiveType type;
+	private final ExpressionDirectiveType type;
 	/** Operand. */
-	private Object operand;
+	private final Object operand;
 	
 	// Private constructor.
 	private ExpressionDirective(ExpressionDirectiveType type, Object operand)
@@ -34,57 +63,75 @@ public class ExpressionDirective implements ExpressionNode
 	}
 	
 	/**
-	 * Creates a new Expression directive.
+	 * Gets an Expression directive without an operand.
 	 * @param type the directive type.
-	 * @return a new expression directive.
+	 * @return the shared expression directive for the type.
 	 */
 	public static ExpressionDirective create(ExpressionDirectiveType type)
 	{
-		return new ExpressionDirective(type, null);
+		return NO_OPERAND[type.ordinal()];
 	}
 
 	/**
 	 * Creates a new Expression directive.
 	 * @param type the directive type.
 	 * @param operand the operand.
-	 * @return a new expression directive.
+	 * @return a canonical expression directive.
 	 */
 	public static ExpressionDirective create(ExpressionDirectiveType type, boolean operand)
 	{
-		return new ExpressionDirective(type, operand);
+		int slot = recentSlot(type, Boolean.hashCode(operand));
+		ExpressionDirective out = RECENT[slot];
+		if (out != null && out.type == type && out.operand instanceof Boolean && (Boolean)out.operand == operand)
+			return out;
+		return canonical(type, operand, slot);
 	}
 	
 	/**
 	 * Creates a new Expression directive.
 	 * @param type the directive type.
 	 * @param operand the operand.
-	 * @return a new expression directive.
+	 * @return a canonical expression directive.
 	 */
 	public static ExpressionDirective create(ExpressionDirectiveType type, long operand)
 	{
-		return new ExpressionDirective(type, operand);
+		int slot = recentSlot(type, Long.hashCode(operand));
+		ExpressionDirective out = RECENT[slot];
+		if (out != null && out.type == type && out.operand instanceof Long && (Long)out.operand == operand)
+			return out;
+		return canonical(type, operand, slot);
 	}
 	
 	/**
 	 * Creates a new Expression directive.
 	 * @param type the directive type.
 	 * @param operand the operand.
-	 * @return a new expression directive.
+	 * @return a canonical expression directive.
 	 */
 	public static ExpressionDirective create(ExpressionDirectiveType type, double operand)
 	{
-		return new ExpressionDirective(type, operand);
+		// compared by bits, like Double.equals().
+		long bits = Double.doubleToLongBits(operand);
+		int slot = recentSlot(type, Long.hashCode(bits));
+		ExpressionDirective out = RECENT[slot];
+		if (out != null && out.type == type && out.operand instanceof Double && Double.doubleToLongBits((Double)out.operand) == bits)
+			return out;
+		return canonical(type, operand, slot);
 	}
 	
 	/**
 	 * Creates a new Expression directive.
 	 * @param type the directive type.
 	 * @param operand the operand.
-	 * @return a new expression directive.
+	 * @return a canonical expression directive.
 	 */
 	public static ExpressionDirective create(ExpressionDirectiveType type, String operand)
 	{
-		return new ExpressionDirective(type, operand);
+		int slot = recentSlot(type, operand.hashCode());
+		ExpressionDirective out = RECENT[slot];
+		if (out != null && out.type == type && operand.equals(out.operand))
+			return out;
+		return canonical(type, operand, slot);
 	}
 	
 	public ExpressionDirectiveType getType()
@@ -128,6 +175,24 @@ public class ExpressionDirective implements ExpressionNode
 		}
 	}
 
+	@Override
+	public void writeHash(StructuralHash hash)
+	{
+		hash.putInt(type.ordinal());
+		if (operand == null)
+			hash.putInt(0);
+		else if (operand instanceof Long)
+			hash.putInt(1).putLong((Long)operand);
+		else if (operand instanceof Double)
+			hash.putInt(2).putDouble((Double)operand);
+		else if (operand instanceof Boolean)
+			hash.putInt(3).putBoolean((Boolean)operand);
+		else if (operand instanceof String)
+			hash.putInt(4).putString((String)operand);
+		else
+			hash.putInt(5);
+	}
+
 	@Override
 	public String toString()
 	{
@@ -136,4 +201,102 @@ public class ExpressionDirective implements ExpressionNode
 		return sb.toString();
 	}
 	
+	// Gets the slot in the recent table for a type and operand hash.
+	private static int recentSlot(ExpressionDirectiveType type, int operandHash)
+	{
+		int h = type.ordinal() * 31 + operandHash;
+		return (h ^ (h >>> 16)) & (RECENT_SIZE - 1);
+	}
+	
+	// Gets or adds the canonical directive for a type and operand, and remembers it as recent.
+	private static ExpressionDirective canonical(ExpressionDirectiveType type, Object operand, int slot)
+	{
+		ExpressionDirective out = canonical(type, operand);
+		RECENT[slot] = out;
+		return out;
+	}
+	
+	// Gets or adds the canonical directive for a type and operand.
+	private static ExpressionDirective canonical(ExpressionDirectiveType type, Object operand)
+	{
+		Key key = new Key(type, operand);
+		Canonical reference = CANONICAL.get(key);
+		ExpressionDirective out;
+		if (reference != null && (out = reference.get()) != null)
+			return out;
+		
+		// only purge when adding: the map can only grow here.
+		purge();
+		out = new ExpressionDirective(type, operand);
+		Canonical created = new Canonical(key, out);
+		while (true)
+		{
+			if ((reference = CANONICAL.putIfAbsent(key, created)) == null)
+				return out;
+			ExpressionDirective existing;
+			if ((existing = reference.get()) != null)
+				return existing;
+			// replace a garbage-collected directive.
+			if (CANONICAL.replace(key, reference, created))
+				return out;
+		}
+	}
+	
+	// Removes the entries of garbage-collected directives.
+	private static void purge()
+	{
+		Reference<? extends ExpressionDirective> reference;
+		while ((reference = CANONICAL_QUEUE.poll()) != null)
+		{
+			Canonical canonical = (Canonical)reference;
+			// might have been replaced already.
+			CANONICAL.remove(canonical.key, canonical);
+		}
+	}
+	
+	/**
+	 * Canonical directive key.
+	 */
+	private static class Key
+	{
+		private final ExpressionDirectiveType type;
+		private final Object operand;
+		
+		Key(ExpressionDirectiveType type, Object operand)
+		{
+			this.type = type;
+			this.operand = operand;
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return type.hashCode() * 31 + operand.hashCode();
+		}
+		
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key)obj;
+			// boxed equals() is exact: no Long/Double mixing, and Double compares bits.
+			return type == other.type && operand.equals(other.operand);
+		}
+	}
+	
+	/**
+	 * A weak reference to a canonical directive, which keeps its key.
+	 */
+	private static class Canonical extends WeakReference<ExpressionDirective>
+	{
+		private final Key key;
+		
+		Canonical(Key key, ExpressionDirective directive)
+		{
+			super(directive, CANONICAL_QUEUE);
+			this.key = key;
+		}
+	}
+	
 }
@@ -23,7 +23,7 @@ public enum ExpressionDirectiveType
 	 * Return value.
 	 * No operand.
 	 */
-	RETURN
+	RETURN(1)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -40,21 +40,19 @@ public enum ExpressionDirectiveType
 	 * PUSH value.
 	 * Operand is Boolean, Double, or Long.
 	 */
-	PUSH
+	PUSH(0)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
 		{
-			Cache cache = CACHE.get();
 			if (operand instanceof Long)
-				cache.tempValue.set((Long)operand);
+				stack.push((Long)operand);
 			else if (operand instanceof Double)
-				cache.tempValue.set((Double)operand);
+				stack.push((Double)operand);
 			else if (operand instanceof Boolean)
-				cache.tempValue.set((Boolean)operand);
+				stack.push((Boolean)operand);
 			else
-				cache.tempValue.set(false);
-			stack.push(cache.tempValue);
+				stack.push(false);
 			return true;
 		}
 	},
@@ -63,7 +61,7 @@ public enum ExpressionDirectiveType
 	 * PUSH variable.
 	 * Operand is String.
 	 */
-	PUSH_VARIABLE
+	PUSH_VARIABLE(0)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -89,7 +87,7 @@ public enum ExpressionDirectiveType
 	 * POP into variable.
 	 * Operand is String.
 	 */
-	POP
+	POP(1)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -106,7 +104,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Bitwise NOT.
 	 */
-	NOT
+	NOT(1)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -114,9 +112,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value = stack.pop();
 			if (value == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.logicalNot(value, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.logicalNot(value, value);
+			stack.push(value);
 			return true;
 		}
 	},
@@ -124,7 +121,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Negate.
 	 */
-	NEGATE
+	NEGATE(1)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -132,9 +129,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value = stack.pop();
 			if (value == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.negate(value, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.negate(value, value);
+			stack.push(value);
 			return true;
 		}
 	},
@@ -142,7 +138,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Absolute.
 	 */
-	ABSOLUTE
+	ABSOLUTE(1)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -150,9 +146,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value = stack.pop();
 			if (value == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.absolute(value, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.absolute(value, value);
+			stack.push(value);
 			return true;
 		}
 	},
@@ -160,7 +155,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Logical Not.
 	 */
-	LOGICAL_NOT
+	LOGICAL_NOT(1)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -168,9 +163,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value = stack.pop();
 			if (value == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.logicalNot(value, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.logicalNot(value, value);
+			stack.push(value);
 			return true;
 		}
 	},
@@ -178,7 +172,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Add.
 	 */
-	ADD
+	ADD(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -189,9 +183,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.add(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.add(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
@@ -199,7 +192,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Subtract.
 	 */
-	SUBTRACT
+	SUBTRACT(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -210,9 +203,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.subtract(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.subtract(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
@@ -220,7 +212,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Multiply.
 	 */
-	MULTIPLY
+	MULTIPLY(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -231,9 +223,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.multiply(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.multiply(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
@@ -241,7 +232,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Divide.
 	 */
-	DIVIDE
+	DIVIDE(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -252,9 +243,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.divide(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.divide(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
@@ -262,7 +252,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Modulo.
 	 */
-	MODULO
+	MODULO(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -273,9 +263,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.modulo(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.modulo(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
@@ -283,7 +272,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Bitwise And.
 	 */
-	AND
+	AND(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -294,9 +283,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.and(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.and(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
@@ -304,7 +292,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Bitwise Or.
 	 */
-	OR
+	OR(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -315,9 +303,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.or(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.or(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
@@ -325,7 +312,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Bitwise Xor.
 	 */
-	XOR
+	XOR(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -336,9 +323,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.xor(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.xor(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
@@ -346,7 +332,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Logical And.
 	 */
-	LOGICAL_AND
+	LOGICAL_AND(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -357,9 +343,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.logicalAnd(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.logicalAnd(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
@@ -367,7 +352,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Logical Or.
 	 */
-	LOGICAL_OR
+	LOGICAL_OR(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -378,9 +363,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.logicalOr(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.logicalOr(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
@@ -388,7 +372,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Left Bit Shift.
 	 */
-	LEFT_SHIFT
+	LEFT_SHIFT(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -399,9 +383,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.leftShift(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.leftShift(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
@@ -409,7 +392,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Right Bit Shift.
 	 */
-	RIGHT_SHIFT
+	RIGHT_SHIFT(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -420,9 +403,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.rightShift(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.rightShift(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
@@ -430,7 +412,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Right Bit Shift Padded.
 	 */
-	RIGHT_SHIFT_PADDED
+	RIGHT_SHIFT_PADDED(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -441,9 +423,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.rightShiftPadded(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.rightShiftPadded(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
@@ -451,7 +432,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Less than.
 	 */
-	LESS
+	LESS(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -462,9 +443,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.less(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.less(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
@@ -472,7 +452,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Less than or equal.
 	 */
-	LESS_OR_EQUAL
+	LESS_OR_EQUAL(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -483,9 +463,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.lessOrEqual(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.lessOrEqual(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
@@ -493,7 +472,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Greater than.
 	 */
-	GREATER
+	GREATER(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -504,9 +483,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.greater(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.greater(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
@@ -514,7 +492,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Greater than or equal.
 	 */
-	GREATER_OR_EQUAL
+	GREATER_OR_EQUAL(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -525,9 +503,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.greaterOrEqual(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.greaterOrEqual(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
@@ -535,7 +512,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Equal.
 	 */
-	EQUAL
+	EQUAL(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -546,9 +523,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.equal(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.equal(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
@@ -556,7 +532,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Not Equal.
 	 */
-	NOT_EQUAL
+	NOT_EQUAL(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -567,9 +543,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.notEqual(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.notEqual(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
@@ -577,7 +552,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Strict Equal.
 	 */
-	STRICT_EQUAL
+	STRICT_EQUAL(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -588,9 +563,8 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.strictEqual(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.strictEqual(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
@@ -598,7 +572,7 @@ public enum ExpressionDirectiveType
 	/**
 	 * Strict Not Equal.
 	 */
-	STRICT_NOT_EQUAL
+	STRICT_NOT_EQUAL(2)
 	{
 		@Override
 		public boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand)
@@ -609,15 +583,28 @@ public enum ExpressionDirectiveType
 			ExpressionValue value1 = stack.pop();
 			if (value1 == null)
 				throw new ExpressionException("Stack underflow!");
-			Cache cache = CACHE.get();
-			ExpressionValue.strictNotEqual(value1, value2, cache.tempValue);
-			stack.push(cache.tempValue);
+			ExpressionValue.strictNotEqual(value1, value2, value1);
+			stack.push(value1);
 			return true;
 		}
 	},
 	
 	;
 	
+	private int argumentCount;
+	private ExpressionDirectiveType(int argumentCount)
+	{
+		this.argumentCount = argumentCount;
+	}
+	
+	/**
+	 * @return the amount of values this directive pops off of the stack.
+	 */
+	public int getArgumentCount()
+	{
+		return argumentCount;
+	}
+	
 	/**
 	 * Checks if this node type is collapsable.
 	 * @return true if so, false if not.
@@ -629,6 +616,7 @@ public enum ExpressionDirectiveType
 	
 	/**
 	 * Executes this node.
+	 * Results are calculated into the values popped off of the stack, so no other scratch values are kept.
 	 * @param stack the stack to use.
 	 * @param context the context for added variables.
 	 * @param operand the operand, if any.
@@ -636,18 +624,4 @@ public enum ExpressionDirectiveType
 	 */
 	public abstract boolean execute(ExpressionStack stack, ExpressionVariableContext context, Object operand);
 
-	private static final ThreadLocal<Cache> CACHE = ThreadLocal.withInitial(()->new Cache());
-
-	// Expression cache.
-	private static class Cache
-	{
-		private ExpressionValue tempValue;
-		
-		public Cache()
-		{
-			this.tempValue = ExpressionValue.create(false);
-		}
-		
-	}
-
 }
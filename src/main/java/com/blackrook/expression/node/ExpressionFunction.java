@@ -10,10 +10,12 @@ package com.blackrook.expression.node;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import com.blackrook.expression.ExpressionFunctionCache;
 import com.blackrook.expression.ExpressionNode;
 import com.blackrook.expression.ExpressionStack;
 import com.blackrook.expression.ExpressionVariableContext;
 import com.blackrook.expression.struct.SerialWriter;
+import com.blackrook.expression.struct.StructuralHash;
 
 /**
  * Single expression function.
@@ -40,6 +42,14 @@ public class ExpressionFunction implements ExpressionNode
 		return new ExpressionFunction(type);
 	}
 
+	/**
+	 * @return the function type that this calls.
+	 */
+	public ExpressionFunctionType getType()
+	{
+		return type;
+	}
+	
 	@Override
 	public boolean isCollapsable()
 	{
@@ -49,6 +59,9 @@ public class ExpressionFunction implements ExpressionNode
 	@Override
 	public boolean execute(ExpressionStack stack, ExpressionVariableContext context)
 	{
+		ExpressionFunctionCache cache;
+		if (type.isCacheable() && (cache = stack.getFunctionCache()) != null)
+			return cache.execute(type, stack, context);
 		return type.execute(stack, context);
 	}
 
@@ -58,6 +71,12 @@ public class ExpressionFunction implements ExpressionNode
 		(new SerialWriter(SerialWriter.LITTLE_ENDIAN)).writeString(out, type.name());
 	}
 
+	@Override
+	public void writeHash(StructuralHash hash)
+	{
+		hash.putInt(-1).putString(type.name());
+	}
+
 	@Override
 	public String toString()
 	{
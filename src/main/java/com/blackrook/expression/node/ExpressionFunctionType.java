@@ -7,6 +7,7 @@
  ******************************************************************************/
 package com.blackrook.expression.node;
 
+import com.blackrook.expression.ExpressionFunctionCache;
 import com.blackrook.expression.ExpressionStack;
 import com.blackrook.expression.ExpressionVariableContext;
 
@@ -36,6 +37,20 @@ public interface ExpressionFunctionType
 	 */
 	public boolean isCollapsable();
 
+	/**
+	 * Checks if the results of this function can be cached by argument values.
+	 * "Cacheable" functions should be deterministic (like collapsable functions), and expensive enough
+	 * that looking up a previous result is cheaper than calling them.
+	 * Calls are only cached if the evaluating stack has an {@link ExpressionFunctionCache}.
+	 * By default, this returns false.
+	 * @return true if so, false if not.
+	 * @see ExpressionStack#setFunctionCache(ExpressionFunctionCache)
+	 */
+	public default boolean isCacheable()
+	{
+		return false;
+	}
+
 	/**
 	 * Executes this function.
 	 * @param stack the stack to use.
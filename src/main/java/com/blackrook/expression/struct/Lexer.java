@@ -12,11 +12,16 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
 import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 
 /**
  * Breaks up a stream of characters into lexicographical tokens.
@@ -31,6 +36,13 @@ import java.util.Set;
  * <p>
  * Other implementations of this class may manipulate the stack as well (such as ones that do in-language stream inclusion).
  * <p>
+ * The {@link Kernel} compiles its character classes, delimiters and state transitions into tables
+ * the first time it is used (and again after it is changed), so that scanning a character is
+ * usually a single table lookup instead of a series of character tests.
+ * If a subclass overrides any of the character tests that the tables are built from (such as {@link #isLetter(char)}),
+ * tables are built from its overridden tests instead, once per subclass and kernel change. Overridden tests
+ * should therefore give the same results for every lexer of the subclass that uses the same kernel.
+ * <p>
  * If the system property <code>com.blackrook.expression.util.Lexer.debug</code> is set to <code>true</code>, this does debugging output to {@link System#out}.
  * <p>
  * Lexer functions are NOT thread-safe.
@@ -47,10 +59,44 @@ public class Lexer
 	/** Lexer newline char. */
 	public static final char NEWLINE = '\n';
 	
+	/** Names of the character tests that the kernel tables are built from. */
+	private static final String[] TABLE_PREDICATES = {
+		"isUnderscore", "isLetter", "isDigit", "isHexDigit", "isWhitespace", "isPoint", "isExponent", "isExponentSign",
+		"isSpace", "isTab", "isStringStart", "isRawStringStart", "isDelimiterStart", "isStreamEnd", "isLexerEnd", "isNewline"
+	};
+	
+	/** Tables built from overridden character tests, by lexer class, then by kernel table. Null if the class overrides none. */
+	private static final ClassValue<Map<Kernel.Table, Kernel.Table>> CLASS_TABLES = new ClassValue<Map<Kernel.Table, Kernel.Table>>()
+	{
+		@Override
+		protected Map<Kernel.Table, Kernel.Table> computeValue(Class<?> type)
+		{
+			for (Class<?> c = type; c != null && c != Lexer.class; c = c.getSuperclass())
+			{
+				for (String name : TABLE_PREDICATES)
+				{
+					try {
+						c.getDeclaredMethod(name, char.class);
+						return Collections.synchronizedMap(new WeakHashMap<Kernel.Table, Kernel.Table>(2));
+					} catch (NoSuchMethodException e) {
+						// not overridden here.
+					}
+				}
+			}
+			return null;
+		}
+	};
+	
 	/** The current stream stack. */
 	private ReaderStack readerStack;
 	/** The lexer kernel to use. */
 	private Kernel kernel;
+	/** Tables built from this lexer's class's character tests, by kernel table. Null if it uses the kernel's. */
+	private Map<Kernel.Table, Kernel.Table> classTables;
+	/** The last tables used from the class tables. Can be null. */
+	private Kernel.Table table;
+	/** The kernel's tables that the last class tables were built for. */
+	private Kernel.Table kernelTable;
 	
 	// ============ STATE =============
 	
@@ -103,6 +149,9 @@ public class Lexer
 	public Lexer(Kernel kernel, String name, Reader in)
 	{
 		this.kernel = kernel;
+		this.classTables = CLASS_TABLES.get(getClass());
+		this.table = null;
+		this.kernelTable = null;
 		readerStack = new ReaderStack();
 		state = Kernel.TYPE_UNKNOWN;
 		tokenBuffer = new StringBuilder();
@@ -158,1078 +207,372 @@ public class Lexer
 	 */
 	public Token nextToken() throws IOException
 	{
+		Kernel.Table table = getTable();
 		int lineNumber = -1;
 		int charIndex = 0;
 		boolean breakloop = false;
 		while (!breakloop)
 		{
 			char c = readChar();
-			
-			switch (getState())
+			int action = table.getAction(state, c);
+			switch (action & Kernel.Table.ACTION_MASK)
 			{
-				case Kernel.TYPE_END_OF_LEXER:
+				case Kernel.Table.ACTION_NONE:
+					break;
+				
+				case Kernel.Table.ACTION_SAVE:
+				{
+					state = Kernel.Table.getActionState(action);
+					tokenBuffer.append(c);
+					break;
+				}
+				
+				case Kernel.Table.ACTION_BREAK:
+				{
+					state = Kernel.Table.getActionState(action);
+					setDelimBreak(c);
+					breakloop = true;
+					break;
+				}
+				
+				case Kernel.Table.ACTION_START:
 				{
+					state = Kernel.Table.getActionState(action);
+					charIndex = readerStack.getCurrentLineCharacterIndex();
+					lineNumber = readerStack.getCurrentLineNumber();
+					tokenBuffer.append(c);
+					break;
+				}
+				
+				case Kernel.Table.ACTION_EMIT:
+				{
+					state = Kernel.Table.getActionState(action);
+					charIndex = readerStack.getCurrentLineCharacterIndex();
+					lineNumber = readerStack.getCurrentLineNumber();
 					breakloop = true;
 					break;
 				}
 
-				case Kernel.TYPE_UNKNOWN:
+				case Kernel.Table.ACTION_STRING:
 				{
-					if (isLexerEnd(c))
-					{
-						setState(Kernel.TYPE_END_OF_LEXER);
-						breakloop = true;
-					}
-					else if (isStreamEnd(c))
-					{
-						if (kernel.willEmitStreamBreak())
-						{
-							setState(Kernel.TYPE_END_OF_STREAM);
-							charIndex = readerStack.getCurrentLineCharacterIndex();
-							lineNumber = readerStack.getCurrentLineNumber();
-							breakloop = true;
-						}
-						close(readerStack.pop());
-					}
-					else if (isNewline(c))
-					{
-						if (kernel.willEmitNewlines())
-						{
-							setState(Kernel.TYPE_DELIM_NEWLINE);
-							charIndex = readerStack.getCurrentLineCharacterIndex();
-							lineNumber = readerStack.getCurrentLineNumber();
-							breakloop = true;
-						}
-					}
-					else if (isSpace(c))
-					{
-						if (kernel.willEmitSpaces())
-						{
-							setState(Kernel.TYPE_DELIM_SPACE);
-							charIndex = readerStack.getCurrentLineCharacterIndex();
-							lineNumber = readerStack.getCurrentLineNumber();
-							breakloop = true;
-						}
-					}
-					else if (isTab(c))
-					{
-						if (kernel.willEmitTabs())
-						{
-							setState(Kernel.TYPE_DELIM_TAB);
-							charIndex = readerStack.getCurrentLineCharacterIndex();
-							lineNumber = readerStack.getCurrentLineNumber();
-							breakloop = true;
-						}
-					}
-					else if (isWhitespace(c))
-					{
-					}
-					else if (isPoint(c) && isDelimiterStart(c))
-					{
-						setState(Kernel.TYPE_POINT);
-						charIndex = readerStack.getCurrentLineCharacterIndex();
-						lineNumber = readerStack.getCurrentLineNumber();
-						saveChar(c);
-					}
-					else if (isPoint(c) && !isDelimiterStart(c))
-					{
-						setState(Kernel.TYPE_FLOAT);
-						charIndex = readerStack.getCurrentLineCharacterIndex();
-						lineNumber = readerStack.getCurrentLineNumber();
-						saveChar(c);
-					}
-					else if (isStringStart(c))
-					{
-						setState(Kernel.TYPE_STRING);
-						charIndex = readerStack.getCurrentLineCharacterIndex();
-						lineNumber = readerStack.getCurrentLineNumber();
+					state = Kernel.Table.getActionState(action);
+					charIndex = readerStack.getCurrentLineCharacterIndex();
+					lineNumber = readerStack.getCurrentLineNumber();
+					if (state == Kernel.TYPE_STRING)
 						setStringStartAndEnd(c);
-					}
-					else if (isRawStringStart(c))
-					{
-						setState(Kernel.TYPE_RAWSTRING);
-						charIndex = readerStack.getCurrentLineCharacterIndex();
-						lineNumber = readerStack.getCurrentLineNumber();
-						setMultilineStringStartAndEnd(c);
-					}
-					else if (isDelimiterStart(c))
-					{
-						setState(Kernel.TYPE_DELIMITER);
-						charIndex = readerStack.getCurrentLineCharacterIndex();
-						lineNumber = readerStack.getCurrentLineNumber();
-						saveChar(c);
-					}
-					else if (c == '0')
-					{
-						setState(Kernel.TYPE_HEX_INTEGER0);
-						charIndex = readerStack.getCurrentLineCharacterIndex();
-						lineNumber = readerStack.getCurrentLineNumber();
-						saveChar(c);
-					}
-					else if (isDigit(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						charIndex = readerStack.getCurrentLineCharacterIndex();
-						lineNumber = readerStack.getCurrentLineNumber();
-						saveChar(c);
-					}
-					// anything else starts an identifier.
 					else
+						setMultilineStringStartAndEnd(c);
+					break;
+				}
+
+				case Kernel.Table.ACTION_LEXER_END:
+				{
+					state = Kernel.TYPE_END_OF_LEXER;
+					breakloop = true;
+					break;
+				}
+
+				case Kernel.Table.ACTION_STREAM_END:
+				{
+					if (kernel.willEmitStreamBreak())
 					{
-						setState(Kernel.TYPE_IDENTIFIER);
+						state = Kernel.TYPE_END_OF_STREAM;
 						charIndex = readerStack.getCurrentLineCharacterIndex();
 						lineNumber = readerStack.getCurrentLineNumber();
-						saveChar(c);
+						breakloop = true;
 					}
-					break; // end Kernel.TYPE_START_OF_LEXER
+					close(readerStack.pop());
+					break;
 				}
-				
-				case Kernel.TYPE_ILLEGAL:
+
+				default:
 				{
-					if (isStreamEnd(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isNewline(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isSpace(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isTab(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isWhitespace(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isStringStart(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isRawStringStart(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isDelimiterStart(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isLetter(c))
-					{
-						saveChar(c);
-					}
-					else if (isDigit(c))
-					{
-						saveChar(c);
-					}
-					else
-					{
-						saveChar(c);
-					}
+					breakloop = nextSpecial(table, c);
+					break;
+				}
+			}
+		}
+
+		// send token.
+		int type = getState();
+		String lexeme = getCurrentLexeme();
+		clearCurrentLexeme();
+		
+		Token out = null;
+		if (getState() != Kernel.TYPE_END_OF_LEXER)
+		{
+			String streamName = readerStack.getCurrentStreamName();
+			out = new Token(streamName, type, lexeme, lineNumber, charIndex);
+			modifyType(out);
+			setState(Kernel.TYPE_UNKNOWN);
+		}
+		
+		if (DEBUG)
+			System.out.println(out);
+		return out;
+	}
+
+	// Gets the tables to scan with: the kernel's, or ones built from this lexer's class's character tests.
+	private Kernel.Table getTable()
+	{
+		Kernel.Table out = kernel.getTable();
+		if (classTables == null)
+			return out;
+		if (table != null && kernelTable == out)
+			return table;
+		
+		Kernel.Table built;
+		if ((built = classTables.get(out)) == null)
+			classTables.put(out, built = new Kernel.Table(kernel, Kernel.Table.getProperties(this)));
+		table = built;
+		kernelTable = out;
+		return built;
+	}
 
-					break; // end Kernel.TYPE_ILLEGAL
+	// Handles a character in a state that is not table-driven (strings, delimiters, comments).
+	// Returns true if the token ends.
+	private boolean nextSpecial(Kernel.Table table, char c) throws IOException
+	{
+		switch (state)
+		{
+			case Kernel.TYPE_END_OF_LEXER:
+				return true;
+
+			case Kernel.TYPE_POINT: // decimal point is seen, but it is a delimiter, and this is not a number.
+			{
+				state = Kernel.TYPE_DELIMITER;
+				if (table.getDelimiterType(tokenBuffer, c) != Kernel.Table.NONE)
+				{
+					saveChar(c);
+					return false;
 				}
+				setDelimBreak(c);
+				return true;
+			}
 
-				case Kernel.TYPE_POINT: // decimal point is seen, but it is a delimiter.
+			case Kernel.TYPE_STRING:
+			{
+				if (isStreamEnd(c))
 				{
-					if (isStreamEnd(c))
-					{
-						setState(Kernel.TYPE_DELIMITER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isNewline(c))
-					{
-						setState(Kernel.TYPE_DELIMITER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isSpace(c))
-					{
-						setState(Kernel.TYPE_DELIMITER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isTab(c))
-					{
-						setState(Kernel.TYPE_DELIMITER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isWhitespace(c))
-					{
-						setState(Kernel.TYPE_DELIMITER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isStringStart(c))
-					{
-						setState(Kernel.TYPE_DELIMITER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isRawStringStart(c))
-					{
-						setState(Kernel.TYPE_DELIMITER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isDigit(c))
-					{
-						setState(Kernel.TYPE_FLOAT);
-						saveChar(c);
-					}
-					else
-					{
-						setState(Kernel.TYPE_DELIMITER);
-						if (kernel.getDelimTable().containsKey(getCurrentLexeme() + c))
-							saveChar(c);
-						else
-						{
-							setDelimBreak(c);
-							breakloop = true;
-						}
-					}
-					break; // end Kernel.TYPE_POINT
+					setState(Kernel.TYPE_ILLEGAL);
+					setDelimBreak(c);
+					return true;
 				}
-					
-				case Kernel.TYPE_FLOAT:
+				else if (isStringEnd(c))
 				{
-					if (isStreamEnd(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isNewline(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isSpace(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isTab(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isWhitespace(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isExponent(c))
-					{
-						setState(Kernel.TYPE_EXPONENT);
-						saveChar(c);
-					}
-					else if (isStringStart(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isRawStringStart(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isDigit(c))
-					{
-						saveChar(c);
-					}
-					else if (isDelimiterStart(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						saveChar(c);
-					}
-					break; // end Kernel.TYPE_FLOAT
+					return true;
 				}
-					
-				case Kernel.TYPE_IDENTIFIER:
+				else if (isNewline(c))
 				{
-					if (isStreamEnd(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isNewline(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isSpace(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isTab(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isWhitespace(c))
+					setState(Kernel.TYPE_ILLEGAL);
+					setDelimBreak(c);
+					return true;
+				}
+				else if (isStringEscape(c))
+				{
+					boolean breakloop = false;
+					c = readChar();
+					if (isStringEnd(c))
+						saveChar(c);
+					else if (isStringEscape(c))
+						saveChar(c);
+					else switch (c)
 					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isStringStart(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isRawStringStart(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isDelimiterStart(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isLetter(c))
-					{
-						saveChar(c);
-					}
-					else if (isDigit(c))
-					{
-						saveChar(c);
-					}
-					else if (isUnderscore(c))
-					{
-						saveChar(c);
-					}
-					else
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						saveChar(c);
-					}
-					break; // end Kernel.TYPE_IDENTIFIER
-				}
-					
-				case Kernel.TYPE_HEX_INTEGER0:
-				{
-					if (isStreamEnd(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isNewline(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isSpace(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isTab(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isWhitespace(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isPoint(c))
-					{
-						setState(Kernel.TYPE_FLOAT);
-						saveChar(c);
-					}
-					else if (isStringStart(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isRawStringStart(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isDelimiterStart(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (c == 'x' || c == 'X')
-					{
-						setState(Kernel.TYPE_HEX_INTEGER1);
-						saveChar(c);
-					}
-					else if (isLetter(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						saveChar(c);
-					}
-					else if (isDigit(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						saveChar(c);
-					}
-					else
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						saveChar(c);
-					}
-					break; // end Kernel.TYPE_HEX_INTEGER0
-				}
-
-				case Kernel.TYPE_HEX_INTEGER1:
-				{
-					if (isStreamEnd(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isNewline(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isSpace(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isTab(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isWhitespace(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isPoint(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isStringStart(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isRawStringStart(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isDelimiterStart(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isHexDigit(c))
-					{
-						setState(Kernel.TYPE_HEX_INTEGER);
-						saveChar(c);
-					}
-					else if (isLetter(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						saveChar(c);
-					}
-					else
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						saveChar(c);
-					}
-					break; // end Kernel.TYPE_HEX_INTEGER1
-				}
-
-				case Kernel.TYPE_HEX_INTEGER:
-				{
-					if (isStreamEnd(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isNewline(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isSpace(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isTab(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isWhitespace(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isStringStart(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isRawStringStart(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isDelimiterStart(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isHexDigit(c))
-					{
-						saveChar(c);
-					}
-					else if (isLetter(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						saveChar(c);
-					}
-					else
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						saveChar(c);
-					}
-					break; // end Kernel.TYPE_HEX_INTEGER
-				}
-
-				case Kernel.TYPE_NUMBER:
-				{
-					if (isStreamEnd(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isNewline(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isSpace(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isTab(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isWhitespace(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isPoint(c))
-					{
-						setState(Kernel.TYPE_FLOAT);
-						saveChar(c);
-					}
-					else if (isExponent(c))
-					{
-						setState(Kernel.TYPE_EXPONENT);
-						saveChar(c);
-					}
-					else if (isStringStart(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isRawStringStart(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isDelimiterStart(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isLetter(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						saveChar(c);
-					}
-					else if (isDigit(c))
-					{
-						saveChar(c);
-					}
-					else
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						saveChar(c);
-					}
-					break; // end Kernel.TYPE_NUMBER
-				}
-
-				case Kernel.TYPE_EXPONENT:
-				{
-					if (isStreamEnd(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isNewline(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isSpace(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isTab(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isWhitespace(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isExponentSign(c))
-					{
-						setState(Kernel.TYPE_EXPONENT_POWER);
-						saveChar(c);
-					}
-					else if (isStringStart(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isRawStringStart(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isDelimiterStart(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isLetter(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						saveChar(c);
-					}
-					else if (isDigit(c))
-					{
-						setState(Kernel.TYPE_EXPONENT_POWER);
-						saveChar(c);
-					}
-					else
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						saveChar(c);
-					}
-					break; // end Kernel.TYPE_EXPONENT
-				}
-					
-				case Kernel.TYPE_EXPONENT_POWER:
-				{
-					if (isStreamEnd(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isNewline(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isSpace(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isTab(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isWhitespace(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isStringStart(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isRawStringStart(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isDigit(c))
-					{
-						saveChar(c);
-					}
-					else if (isDelimiterStart(c))
-					{
-						setState(Kernel.TYPE_NUMBER);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						saveChar(c);
-					}
-					break; // end Kernel.TYPE_EXPONENT_POWER
-				}
-
-				case Kernel.TYPE_STRING:
-				{
-					if (isStreamEnd(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isStringEnd(c))
-					{
-						breakloop = true;
-					}
-					else if (isNewline(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isStringEscape(c))
-					{
-						c = readChar();
-						if (isStringEnd(c))
-							saveChar(c);
-						else if (isStringEscape(c))
-							saveChar(c);
-						else switch (c)
-						{
-							case '0':
-								saveChar('\0');
-								break;
-							case 'b':
-								saveChar('\b');
-								break;
-							case 't':
-								saveChar('\t');
-								break;
-							case 'n':
-								saveChar('\n');
-								break;
-							case 'f':
-								saveChar('\f');
-								break;
-							case 'r':
-								saveChar('\r');
-								break;
-							case '/':
-								saveChar('/');
-								break;
-							case 'u':
-							{
-								StringBuilder sb = new StringBuilder();
-								for (int i = 0; i < 4; i++)
-								{
-									c = readChar();
-									if (!isHexDigit(c))
-									{
-										setState(Kernel.TYPE_ILLEGAL);
-										setDelimBreak(c);
-										breakloop = true;
-									}
-									else
-										sb.append(c);
-								}
-								
-								if (!breakloop)
-								{
-									saveChar((char)(Integer.parseInt(sb.toString(), 16) & 0x0ffff));
-								}
-							}
+						case '0':
+							saveChar('\0');
 							break;
-							
-							case 'x':
+						case 'b':
+							saveChar('\b');
+							break;
+						case 't':
+							saveChar('\t');
+							break;
+						case 'n':
+							saveChar('\n');
+							break;
+						case 'f':
+							saveChar('\f');
+							break;
+						case 'r':
+							saveChar('\r');
+							break;
+						case '/':
+							saveChar('/');
+							break;
+						case 'u':
+						{
+							StringBuilder sb = new StringBuilder();
+							for (int i = 0; i < 4; i++)
 							{
-								StringBuilder sb = new StringBuilder();
-								for (int i = 0; i < 2; i++)
+								c = readChar();
+								if (!isHexDigit(c))
 								{
-									c = readChar();
-									if (!isHexDigit(c))
-									{
-										setState(Kernel.TYPE_ILLEGAL);
-										setDelimBreak(c);
-										breakloop = true;
-									}
-									else
-										sb.append(c);
+									setState(Kernel.TYPE_ILLEGAL);
+									setDelimBreak(c);
+									breakloop = true;
 								}
-								
-								if (!breakloop)
-								{
-									saveChar((char)(Integer.parseInt(sb.toString(), 16) & 0x0ff));
-								}
-							}
-							break;
-						}
-						
-					}
-					else
-					{
-						saveChar(c);
-					}
-					break; // end Kernel.TYPE_STRING
-				}
-
-				case Kernel.TYPE_RAWSTRING:
-				{
-					if (isStreamEnd(c))
-					{
-						setState(Kernel.TYPE_ILLEGAL);
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isStringEnd(c))
-					{
-						setState(Kernel.TYPE_STRING);
-						breakloop = true;
-					}
-					else
-					{
-						saveChar(c);
-					}
-					break; // end Kernel.TYPE_RAWSTRING
-				}
-				
-				case Kernel.TYPE_DELIMITER:
-				{
-					if (isStreamEnd(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (kernel.getCommentStartTable().containsKey(getCurrentLexeme()+c))
-					{
-						clearCurrentLexeme();
-						setState(Kernel.TYPE_COMMENT);
-					}
-					else if (kernel.getCommentLineTable().containsKey(getCurrentLexeme()+c))
-					{
-						clearCurrentLexeme();
-						setState(Kernel.TYPE_LINE_COMMENT);
-					}
-					else if (kernel.getDelimTable().containsKey(getCurrentLexeme()+c))
-					{
-						saveChar(c);
-					}
-					else if (isNewline(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isSpace(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isTab(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isWhitespace(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isStringStart(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else if (isRawStringStart(c))
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					else
-					{
-						setDelimBreak(c);
-						breakloop = true;
-					}
-					break; // end Kernel.TYPE_DELIMITER
-				}
-					
-				case Kernel.TYPE_COMMENT:
-				{
-					if (isStreamEnd(c))
-					{
-						if (!kernel.willEmitComments())
-						{
-							clearCurrentLexeme();
-							setState(Kernel.TYPE_UNKNOWN);
+								else
+									sb.append(c);
+							}
+							
+							if (!breakloop)
+							{
+								saveChar((char)(Integer.parseInt(sb.toString(), 16) & 0x0ffff));
+							}
 						}
-					}
-					else if (kernel.getCommentEndTable().containsKey(getCurrentLexeme()))
-					{
-						if (!kernel.willEmitComments())
+						break;
+						
+						case 'x':
 						{
-							clearCurrentLexeme();
-							setState(Kernel.TYPE_UNKNOWN);
+							StringBuilder sb = new StringBuilder();
+							for (int i = 0; i < 2; i++)
+							{
+								c = readChar();
+								if (!isHexDigit(c))
+								{
+									setState(Kernel.TYPE_ILLEGAL);
+									setDelimBreak(c);
+									breakloop = true;
+								}
+								else
+									sb.append(c);
+							}
+							
+							if (!breakloop)
+							{
+								saveChar((char)(Integer.parseInt(sb.toString(), 16) & 0x0ff));
+							}
 						}
+						break;
 					}
-					else if (isCommentEndDelimiterStart(c))
-					{
-						setState(Kernel.TYPE_DELIM_COMMENT);
-						saveChar(c);
-					}
-					break; // end Kernel.TYPE_COMMENT
+					return breakloop;
+				}
+				else
+				{
+					saveChar(c);
+					return false;
 				}
+			}
 
-				case Kernel.TYPE_DELIM_COMMENT:
+			case Kernel.TYPE_RAWSTRING:
+			{
+				if (isStreamEnd(c))
 				{
-					if (isStreamEnd(c))
-					{
-						clearCurrentLexeme();
-						setState(Kernel.TYPE_COMMENT);
-					}
-					else if (kernel.getCommentEndTable().containsKey(getCurrentLexeme()+c))
+					setState(Kernel.TYPE_ILLEGAL);
+					setDelimBreak(c);
+					return true;
+				}
+				else if (isStringEnd(c))
+				{
+					setState(Kernel.TYPE_STRING);
+					return true;
+				}
+				else
+				{
+					saveChar(c);
+					return false;
+				}
+			}
+			
+			case Kernel.TYPE_DELIMITER:
+			{
+				int node;
+				if (isStreamEnd(c) || (node = table.findDelimiter(tokenBuffer, c)) < 0)
+				{
+					setDelimBreak(c);
+					return true;
+				}
+				else if (table.isCommentStart(node))
+				{
+					clearCurrentLexeme();
+					setState(Kernel.TYPE_COMMENT);
+					return false;
+				}
+				else if (table.isCommentLine(node))
+				{
+					clearCurrentLexeme();
+					setState(Kernel.TYPE_LINE_COMMENT);
+					return false;
+				}
+				else if (table.isDelimiter(node))
+				{
+					saveChar(c);
+					return false;
+				}
+				else
+				{
+					setDelimBreak(c);
+					return true;
+				}
+			}
+				
+			case Kernel.TYPE_COMMENT:
+			{
+				if (isStreamEnd(c))
+				{
+					if (!kernel.willEmitComments())
 					{
 						clearCurrentLexeme();
 						setState(Kernel.TYPE_UNKNOWN);
 					}
-					else if (isWhitespace(c))
-					{
-						clearCurrentLexeme();
-						setState(Kernel.TYPE_COMMENT);
-					}
-					else
+				}
+				else if (table.isCommentEnd(table.findDelimiter(tokenBuffer)))
+				{
+					if (!kernel.willEmitComments())
 					{
 						clearCurrentLexeme();
-						saveChar(c);
+						setState(Kernel.TYPE_UNKNOWN);
 					}
-					break; // end Kernel.TYPE_DELIM_COMMENT
 				}
-					
-				case Kernel.TYPE_LINE_COMMENT:
+				else if (isCommentEndDelimiterStart(c))
 				{
-					if (isStreamEnd(c))
-					{
-						if (!kernel.willEmitComments())
-						{
-							clearCurrentLexeme();
-							setState(Kernel.TYPE_UNKNOWN);
-						}
-					}
-					else if (isNewline(c))
+					setState(Kernel.TYPE_DELIM_COMMENT);
+					saveChar(c);
+				}
+				return false;
+			}
+
+			case Kernel.TYPE_DELIM_COMMENT:
+			{
+				if (isStreamEnd(c))
+				{
+					clearCurrentLexeme();
+					setState(Kernel.TYPE_COMMENT);
+				}
+				else if (table.isCommentEnd(table.findDelimiter(tokenBuffer, c)))
+				{
+					clearCurrentLexeme();
+					setState(Kernel.TYPE_UNKNOWN);
+				}
+				else if (isWhitespace(c))
+				{
+					clearCurrentLexeme();
+					setState(Kernel.TYPE_COMMENT);
+				}
+				else
+				{
+					clearCurrentLexeme();
+					saveChar(c);
+				}
+				return false;
+			}
+				
+			case Kernel.TYPE_LINE_COMMENT:
+			{
+				if (isStreamEnd(c) || isNewline(c))
+				{
+					if (!kernel.willEmitComments())
 					{
-						if (!kernel.willEmitComments())
-						{
-							clearCurrentLexeme();
-							setState(Kernel.TYPE_UNKNOWN);
-						}
+						clearCurrentLexeme();
+						setState(Kernel.TYPE_UNKNOWN);
 					}
-					break; // end Kernel.TYPE_DELIM_COMMENT
 				}
+				return false;
 			}
+			
+			default:
+				return false;
 		}
-
-		// send token.
-		int type = getState();
-		String lexeme = getCurrentLexeme();
-		clearCurrentLexeme();
-		
-		Token out = null;
-		if (getState() != Kernel.TYPE_END_OF_LEXER)
-		{
-			String streamName = readerStack.getCurrentStreamName();
-			out = new Token(streamName, type, lexeme, lineNumber, charIndex);
-			modifyType(out);
-			setState(Kernel.TYPE_UNKNOWN);
-		}
-		
-		if (DEBUG)
-			System.out.println(out);
-		return out;
 	}
 
 	/**
@@ -1999,6 +1342,9 @@ public class Lexer
 		/** Decimal separator. */
 		private char decimalSeparator;
 		
+		/** Compiled tables, or null if they need to be built. */
+		private volatile Table table;
+		
 		/**
 		 * Creates a new, blank LexerKernel with default settings.
 		 */
@@ -2021,6 +1367,7 @@ public class Lexer
 			emitNewlines = false;
 			emitStreamBreak = false;
 			emitComments = false;
+			table = null;
 		}
 	
 		/**
@@ -2036,6 +1383,7 @@ public class Lexer
 			if (!delimStartTable.contains(delimiter.charAt(0)))
 				delimStartTable.add(delimiter.charAt(0));
 			delimTable.put(delimiter, type);
+			table = null;
 		}
 	
 		private void typeCheck(int type)
@@ -2058,6 +1406,7 @@ public class Lexer
 		public void addStringDelimiter(char delimiterStart, char delimiterEnd)
 		{
 			stringDelimTable.put(delimiterStart, delimiterEnd);
+			table = null;
 		}
 	
 		/**
@@ -2068,6 +1417,7 @@ public class Lexer
 		public void addRawStringDelimiter(char delimiterStart, char delimiterEnd)
 		{
 			rawStringDelimTable.put(delimiterStart, delimiterEnd);
+			table = null;
 		}
 
 		/**
@@ -2080,6 +1430,7 @@ public class Lexer
 		{
 			addDelimiter(delimiter, type);
 			commentStartTable.put(delimiter, type);
+			table = null;
 		}
 	
 		/**
@@ -2094,6 +1445,7 @@ public class Lexer
 			if (!endCommentDelimStartTable.contains(delimiter.charAt(0)))
 				endCommentDelimStartTable.add(delimiter.charAt(0));
 			commentEndTable.put(delimiter, type);
+			table = null;
 		}
 	
 		/**
@@ -2106,6 +1458,7 @@ public class Lexer
 		{
 			addDelimiter(delimiter, type);
 			commentLineTable.put(delimiter, type);
+			table = null;
 		}
 	
 		/**
@@ -2150,6 +1503,7 @@ public class Lexer
 		public void setEmitSpaces(boolean includeSpaces)
 		{
 			this.emitSpaces = includeSpaces;
+			table = null;
 		}
 	
 		/** 
@@ -2168,6 +1522,7 @@ public class Lexer
 		public void setEmitTabs(boolean includeTabs)
 		{
 			this.emitTabs = includeTabs;
+			table = null;
 		}
 	
 		/** 
@@ -2186,6 +1541,7 @@ public class Lexer
 		public void setEmitNewlines(boolean includeNewlines)
 		{
 			this.emitNewlines = includeNewlines;
+			table = null;
 		}
 	
 		/** 
@@ -2204,6 +1560,7 @@ public class Lexer
 		public void setEmitStreamBreak(boolean emitStreamBreak)
 		{
 			this.emitStreamBreak = emitStreamBreak;
+			table = null;
 		}
 	
 		/** 
@@ -2222,6 +1579,7 @@ public class Lexer
 		public void setEmitComments(boolean emitComments)
 		{
 			this.emitComments = emitComments;
+			table = null;
 		}
 	
 		/**
@@ -2232,6 +1590,7 @@ public class Lexer
 		public void setDecimalSeparator(char c)
 		{
 			decimalSeparator = c;
+			table = null;
 		}
 	
 		/**
@@ -2294,6 +1653,545 @@ public class Lexer
 			return rawStringDelimTable;
 		}
 	
+		// Gets the compiled tables, building them if this kernel changed.
+		private Table getTable()
+		{
+			Table out;
+			if ((out = table) == null)
+				table = out = new Table(this, Table.getProperties(this));
+			return out;
+		}
+		
+		/**
+		 * A kernel compiled into tables: a class for each character (characters that pass the same tests share a class),
+		 * an action for each table-driven state and character class, and a trie of delimiters.
+		 */
+		private static final class Table
+		{
+			/** No type. */
+			static final int NONE = -1;
+			
+			static final int ACTION_NONE = 0;
+			static final int ACTION_SAVE = 1;
+			static final int ACTION_BREAK = 2;
+			static final int ACTION_START = 3;
+			static final int ACTION_EMIT = 4;
+			static final int ACTION_STRING = 5;
+			static final int ACTION_LEXER_END = 6;
+			static final int ACTION_STREAM_END = 7;
+			static final int ACTION_SPECIAL = 8;
+			static final int ACTION_MASK = 0x0f;
+			private static final int ACTION_STATE_SHIFT = 4;
+			
+			private static final int IS_STREAM_END = 1;
+			private static final int IS_LEXER_END = 1 << 1;
+			private static final int IS_NEWLINE = 1 << 2;
+			private static final int IS_SPACE = 1 << 3;
+			private static final int IS_TAB = 1 << 4;
+			private static final int IS_WHITESPACE = 1 << 5;
+			private static final int IS_POINT = 1 << 6;
+			private static final int IS_STRING_START = 1 << 7;
+			private static final int IS_RAW_STRING_START = 1 << 8;
+			private static final int IS_DELIMITER_START = 1 << 9;
+			private static final int IS_LETTER = 1 << 10;
+			private static final int IS_DIGIT = 1 << 11;
+			private static final int IS_HEX_DIGIT = 1 << 12;
+			private static final int IS_UNDERSCORE = 1 << 13;
+			private static final int IS_EXPONENT = 1 << 14;
+			private static final int IS_EXPONENT_SIGN = 1 << 15;
+			private static final int IS_ZERO = 1 << 16;
+			private static final int IS_HEX_X = 1 << 17;
+			/** Characters that end most tokens. */
+			private static final int IS_BREAK = IS_STREAM_END | IS_NEWLINE | IS_SPACE | IS_TAB | IS_WHITESPACE;
+			/** Characters that end most tokens, or start another one. */
+			private static final int IS_BREAK_OR_START = IS_BREAK | IS_STRING_START | IS_RAW_STRING_START | IS_DELIMITER_START;
+			
+			/** Character tests that do not depend on a kernel, by character. Built once. */
+			private static volatile int[] characterProperties = null;
+			
+			/** Class of each character. */
+			private byte[] charClass;
+			/** Actions by negated state, then character class. */
+			private int[][] actions;
+			
+			/** Delimiter trie: child characters by node. */
+			private char[][] trieChars;
+			/** Delimiter trie: child nodes by node. */
+			private int[][] trieNodes;
+			/** Delimiter type by node. */
+			private int[] delimiterType;
+			/** Comment start type by node. */
+			private int[] commentStartType;
+			/** Line comment type by node. */
+			private int[] commentLineType;
+			/** Comment end type by node. */
+			private int[] commentEndType;
+			
+			private Table(Kernel kernel, int[] properties)
+			{
+				int[] classProperties = new int[256];
+				int classCount = 0;
+				int id = -1;
+				this.charClass = new byte[properties.length];
+				for (int i = 0; i < properties.length; i++)
+				{
+					// neighboring characters are likely in the same class.
+					if (id < 0 || classProperties[id] != properties[i])
+					{
+						id = 0;
+						while (id < classCount && classProperties[id] != properties[i])
+							id++;
+						if (id == classCount)
+						{
+							if (classCount == classProperties.length)
+								throw new IllegalStateException("Too many character classes.");
+							classProperties[classCount++] = properties[i];
+						}
+					}
+					charClass[i] = (byte)id;
+				}
+
+				this.actions = new int[-TYPE_EXPONENT_POWER + 1][classCount];
+				for (int s = 1; s < actions.length; s++)
+					for (int c = 0; c < classCount; c++)
+						actions[s][c] = getAction(kernel, -s, classProperties[c]);
+				
+				buildTrie(kernel);
+			}
+			
+			/**
+			 * Gets the action for a state and character.
+			 * @param state the current state.
+			 * @param c the character.
+			 * @return the action.
+			 */
+			int getAction(int state, char c)
+			{
+				int s = -state;
+				if (s <= 0 || s >= actions.length)
+					return ACTION_SPECIAL;
+				return actions[s][charClass[c] & 0x0ff];
+			}
+			
+			/**
+			 * Gets the state to change to from an action.
+			 * @param action the action.
+			 * @return the new state.
+			 */
+			static int getActionState(int action)
+			{
+				return -(action >>> ACTION_STATE_SHIFT);
+			}
+			
+			/**
+			 * Finds the trie node for a delimiter.
+			 * @param lexeme the delimiter.
+			 * @return the node, or -1 if the lexeme does not start any delimiter.
+			 */
+			int findDelimiter(CharSequence lexeme)
+			{
+				int node = 0;
+				for (int i = 0; i < lexeme.length() && node >= 0; i++)
+					node = getChild(node, lexeme.charAt(i));
+				return node;
+			}
+			
+			/**
+			 * Finds the trie node for a delimiter plus one more character.
+			 * @param lexeme the delimiter start.
+			 * @param c the next character.
+			 * @return the node, or -1 if the characters do not start any delimiter.
+			 */
+			int findDelimiter(CharSequence lexeme, char c)
+			{
+				int node = findDelimiter(lexeme);
+				return node >= 0 ? getChild(node, c) : -1;
+			}
+
+			/**
+			 * Gets the type of a delimiter plus one more character.
+			 * @param lexeme the delimiter start.
+			 * @param c the next character.
+			 * @return the delimiter type, or {@link #NONE} if not a delimiter.
+			 */
+			int getDelimiterType(CharSequence lexeme, char c)
+			{
+				int node = findDelimiter(lexeme, c);
+				return node >= 0 ? delimiterType[node] : NONE;
+			}
+
+			boolean isDelimiter(int node)
+			{
+				return node >= 0 && delimiterType[node] != NONE;
+			}
+
+			boolean isCommentStart(int node)
+			{
+				return node >= 0 && commentStartType[node] != NONE;
+			}
+
+			boolean isCommentLine(int node)
+			{
+				return node >= 0 && commentLineType[node] != NONE;
+			}
+
+			boolean isCommentEnd(int node)
+			{
+				return node >= 0 && commentEndType[node] != NONE;
+			}
+
+			private int getChild(int node, char c)
+			{
+				char[] chars = trieChars[node];
+				for (int i = 0; i < chars.length; i++)
+					if (chars[i] == c)
+						return trieNodes[node][i];
+				return -1;
+			}
+
+			// Builds the delimiter trie. Every comment delimiter is also a delimiter.
+			private void buildTrie(Kernel kernel)
+			{
+				List<Map<Character, Integer>> children = new ArrayList<>();
+				children.add(new HashMap<Character, Integer>());
+				for (String delimiter : kernel.getDelimTable().keySet())
+				{
+					int node = 0;
+					for (int i = 0; i < delimiter.length(); i++)
+					{
+						Integer next;
+						if ((next = children.get(node).get(delimiter.charAt(i))) == null)
+						{
+							next = children.size();
+							children.add(new HashMap<Character, Integer>());
+							children.get(node).put(delimiter.charAt(i), next);
+						}
+						node = next;
+					}
+				}
+				
+				int count = children.size();
+				this.trieChars = new char[count][];
+				this.trieNodes = new int[count][];
+				for (int n = 0; n < count; n++)
+				{
+					Map<Character, Integer> map = children.get(n);
+					trieChars[n] = new char[map.size()];
+					trieNodes[n] = new int[map.size()];
+					int i = 0;
+					for (Map.Entry<Character, Integer> entry : map.entrySet())
+					{
+						trieChars[n][i] = entry.getKey();
+						trieNodes[n][i] = entry.getValue();
+						i++;
+					}
+				}
+
+				this.delimiterType = getTypes(kernel.getDelimTable(), count);
+				this.commentStartType = getTypes(kernel.getCommentStartTable(), count);
+				this.commentLineType = getTypes(kernel.getCommentLineTable(), count);
+				this.commentEndType = getTypes(kernel.getCommentEndTable(), count);
+			}
+			
+			// Makes a type table by trie node.
+			private int[] getTypes(Map<String, Integer> map, int count)
+			{
+				int[] out = new int[count];
+				for (int i = 0; i < count; i++)
+					out[i] = NONE;
+				for (Map.Entry<String, Integer> entry : map.entrySet())
+					out[findDelimiter(entry.getKey())] = entry.getValue();
+				return out;
+			}
+			
+			// Gets the character tests that each character passes.
+			private static int[] getProperties(Kernel kernel)
+			{
+				int[] out = Arrays.copyOf(getCharacterProperties(), 65536);
+				out[END_OF_STREAM] |= IS_STREAM_END;
+				out[END_OF_LEXER] |= IS_LEXER_END;
+				out[kernel.getDecimalSeparator()] |= IS_POINT;
+				for (Character c : kernel.getStringDelimTable().keySet())
+					out[c] |= IS_STRING_START;
+				for (Character c : kernel.getRawStringDelimTable().keySet())
+					out[c] |= IS_RAW_STRING_START;
+				for (Character c : kernel.getDelimStartTable())
+					out[c] |= IS_DELIMITER_START;
+				return out;
+			}
+			
+			// Gets the character tests that each character passes, using a lexer's tests.
+			private static int[] getProperties(Lexer lexer)
+			{
+				int[] out = new int[65536];
+				for (int i = 0; i < out.length; i++)
+				{
+					char c = (char)i;
+					int p = 0;
+					if (lexer.isStreamEnd(c))
+						p |= IS_STREAM_END;
+					if (lexer.isLexerEnd(c))
+						p |= IS_LEXER_END;
+					if (lexer.isNewline(c))
+						p |= IS_NEWLINE;
+					if (lexer.isSpace(c))
+						p |= IS_SPACE;
+					if (lexer.isTab(c))
+						p |= IS_TAB;
+					if (lexer.isWhitespace(c))
+						p |= IS_WHITESPACE;
+					if (lexer.isPoint(c))
+						p |= IS_POINT;
+					if (lexer.isStringStart(c))
+						p |= IS_STRING_START;
+					if (lexer.isRawStringStart(c))
+						p |= IS_RAW_STRING_START;
+					if (lexer.isDelimiterStart(c))
+						p |= IS_DELIMITER_START;
+					if (lexer.isLetter(c))
+						p |= IS_LETTER;
+					if (lexer.isDigit(c))
+						p |= IS_DIGIT;
+					if (lexer.isHexDigit(c))
+						p |= IS_HEX_DIGIT;
+					if (lexer.isUnderscore(c))
+						p |= IS_UNDERSCORE;
+					if (lexer.isExponent(c))
+						p |= IS_EXPONENT;
+					if (lexer.isExponentSign(c))
+						p |= IS_EXPONENT_SIGN;
+					if (c == '0')
+						p |= IS_ZERO;
+					if (c == 'x' || c == 'X')
+						p |= IS_HEX_X;
+					out[i] = p;
+				}
+				return out;
+			}
+			
+			// Gets the character tests that do not depend on a kernel.
+			private static int[] getCharacterProperties()
+			{
+				int[] out;
+				if ((out = characterProperties) != null)
+					return out;
+				
+				out = new int[65536];
+				for (int i = 0; i < out.length; i++)
+				{
+					char c = (char)i;
+					if (c == NEWLINE)
+						out[i] |= IS_NEWLINE;
+					if (c == ' ')
+						out[i] |= IS_SPACE;
+					if (c == '\t')
+						out[i] |= IS_TAB;
+					if (Character.isWhitespace(c))
+						out[i] |= IS_WHITESPACE;
+					if (Character.isLetter(c))
+						out[i] |= IS_LETTER;
+					if (Character.isDigit(c))
+						out[i] |= IS_DIGIT;
+					if ((c >= '0' && c <= '9') || (c >= 'A' && c <= 'F') || (c >= 'a' && c <= 'f'))
+						out[i] |= IS_HEX_DIGIT;
+					if (c == '_')
+						out[i] |= IS_UNDERSCORE;
+					if (c == 'e' || c == 'E')
+						out[i] |= IS_EXPONENT;
+					if (c == '+' || c == '-')
+						out[i] |= IS_EXPONENT_SIGN;
+					if (c == '0')
+						out[i] |= IS_ZERO;
+					if (c == 'x' || c == 'X')
+						out[i] |= IS_HEX_X;
+				}
+				return characterProperties = out;
+			}
+			
+			// Gets the action for a state and a set of character tests, in the order that the tests are done.
+			private static int getAction(Kernel kernel, int state, int p)
+			{
+				switch (state)
+				{
+					case TYPE_UNKNOWN:
+					{
+						if (is(p, IS_LEXER_END))
+							return ACTION_LEXER_END;
+						else if (is(p, IS_STREAM_END))
+							return ACTION_STREAM_END;
+						else if (is(p, IS_NEWLINE))
+							return kernel.willEmitNewlines() ? action(ACTION_EMIT, TYPE_DELIM_NEWLINE) : ACTION_NONE;
+						else if (is(p, IS_SPACE))
+							return kernel.willEmitSpaces() ? action(ACTION_EMIT, TYPE_DELIM_SPACE) : ACTION_NONE;
+						else if (is(p, IS_TAB))
+							return kernel.willEmitTabs() ? action(ACTION_EMIT, TYPE_DELIM_TAB) : ACTION_NONE;
+						else if (is(p, IS_WHITESPACE))
+							return ACTION_NONE;
+						else if (is(p, IS_POINT) && is(p, IS_DELIMITER_START))
+							return action(ACTION_START, TYPE_POINT);
+						else if (is(p, IS_POINT))
+							return action(ACTION_START, TYPE_FLOAT);
+						else if (is(p, IS_STRING_START))
+							return action(ACTION_STRING, TYPE_STRING);
+						else if (is(p, IS_RAW_STRING_START))
+							return action(ACTION_STRING, TYPE_RAWSTRING);
+						else if (is(p, IS_DELIMITER_START))
+							return action(ACTION_START, TYPE_DELIMITER);
+						else if (is(p, IS_ZERO))
+							return action(ACTION_START, TYPE_HEX_INTEGER0);
+						else if (is(p, IS_DIGIT))
+							return action(ACTION_START, TYPE_NUMBER);
+						// anything else starts an identifier.
+						else
+							return action(ACTION_START, TYPE_IDENTIFIER);
+					}
+					
+					case TYPE_ILLEGAL:
+					{
+						if (is(p, IS_BREAK_OR_START))
+							return action(ACTION_BREAK, TYPE_ILLEGAL);
+						else
+							return action(ACTION_SAVE, TYPE_ILLEGAL);
+					}
+					
+					case TYPE_POINT:
+					{
+						if (is(p, IS_BREAK | IS_STRING_START | IS_RAW_STRING_START))
+							return action(ACTION_BREAK, TYPE_DELIMITER);
+						else if (is(p, IS_DIGIT))
+							return action(ACTION_SAVE, TYPE_FLOAT);
+						else
+							return ACTION_SPECIAL;
+					}
+					
+					case TYPE_FLOAT:
+					{
+						if (is(p, IS_BREAK))
+							return action(ACTION_BREAK, TYPE_NUMBER);
+						else if (is(p, IS_EXPONENT))
+							return action(ACTION_SAVE, TYPE_EXPONENT);
+						else if (is(p, IS_STRING_START | IS_RAW_STRING_START))
+							return action(ACTION_BREAK, TYPE_NUMBER);
+						else if (is(p, IS_DIGIT))
+							return action(ACTION_SAVE, TYPE_FLOAT);
+						else if (is(p, IS_DELIMITER_START))
+							return action(ACTION_BREAK, TYPE_NUMBER);
+						else
+							return action(ACTION_SAVE, TYPE_ILLEGAL);
+					}
+					
+					case TYPE_IDENTIFIER:
+					{
+						if (is(p, IS_BREAK_OR_START))
+							return action(ACTION_BREAK, TYPE_IDENTIFIER);
+						else if (is(p, IS_LETTER | IS_DIGIT | IS_UNDERSCORE))
+							return action(ACTION_SAVE, TYPE_IDENTIFIER);
+						else
+							return action(ACTION_SAVE, TYPE_ILLEGAL);
+					}
+					
+					case TYPE_HEX_INTEGER0:
+					{
+						if (is(p, IS_BREAK))
+							return action(ACTION_BREAK, TYPE_NUMBER);
+						else if (is(p, IS_POINT))
+							return action(ACTION_SAVE, TYPE_FLOAT);
+						else if (is(p, IS_STRING_START | IS_RAW_STRING_START | IS_DELIMITER_START))
+							return action(ACTION_BREAK, TYPE_NUMBER);
+						else if (is(p, IS_HEX_X))
+							return action(ACTION_SAVE, TYPE_HEX_INTEGER1);
+						else if (is(p, IS_LETTER))
+							return action(ACTION_SAVE, TYPE_ILLEGAL);
+						else if (is(p, IS_DIGIT))
+							return action(ACTION_SAVE, TYPE_NUMBER);
+						else
+							return action(ACTION_SAVE, TYPE_ILLEGAL);
+					}
+					
+					case TYPE_HEX_INTEGER1:
+					{
+						if (is(p, IS_BREAK_OR_START | IS_POINT))
+							return action(ACTION_BREAK, TYPE_ILLEGAL);
+						else if (is(p, IS_HEX_DIGIT))
+							return action(ACTION_SAVE, TYPE_HEX_INTEGER);
+						else
+							return action(ACTION_SAVE, TYPE_ILLEGAL);
+					}
+					
+					case TYPE_HEX_INTEGER:
+					{
+						if (is(p, IS_BREAK_OR_START))
+							return action(ACTION_BREAK, TYPE_NUMBER);
+						else if (is(p, IS_HEX_DIGIT))
+							return action(ACTION_SAVE, TYPE_HEX_INTEGER);
+						else
+							return action(ACTION_SAVE, TYPE_ILLEGAL);
+					}
+					
+					case TYPE_NUMBER:
+					{
+						if (is(p, IS_BREAK))
+							return action(ACTION_BREAK, TYPE_NUMBER);
+						else if (is(p, IS_POINT))
+							return action(ACTION_SAVE, TYPE_FLOAT);
+						else if (is(p, IS_EXPONENT))
+							return action(ACTION_SAVE, TYPE_EXPONENT);
+						else if (is(p, IS_STRING_START | IS_RAW_STRING_START | IS_DELIMITER_START))
+							return action(ACTION_BREAK, TYPE_NUMBER);
+						else if (is(p, IS_LETTER))
+							return action(ACTION_SAVE, TYPE_ILLEGAL);
+						else if (is(p, IS_DIGIT))
+							return action(ACTION_SAVE, TYPE_NUMBER);
+						else
+							return action(ACTION_SAVE, TYPE_ILLEGAL);
+					}
+					
+					case TYPE_EXPONENT:
+					{
+						if (is(p, IS_BREAK))
+							return action(ACTION_BREAK, TYPE_ILLEGAL);
+						else if (is(p, IS_EXPONENT_SIGN))
+							return action(ACTION_SAVE, TYPE_EXPONENT_POWER);
+						else if (is(p, IS_STRING_START | IS_RAW_STRING_START | IS_DELIMITER_START))
+							return action(ACTION_BREAK, TYPE_ILLEGAL);
+						else if (is(p, IS_LETTER))
+							return action(ACTION_SAVE, TYPE_ILLEGAL);
+						else if (is(p, IS_DIGIT))
+							return action(ACTION_SAVE, TYPE_EXPONENT_POWER);
+						else
+							return action(ACTION_SAVE, TYPE_ILLEGAL);
+					}
+					
+					case TYPE_EXPONENT_POWER:
+					{
+						if (is(p, IS_BREAK | IS_STRING_START | IS_RAW_STRING_START))
+							return action(ACTION_BREAK, TYPE_NUMBER);
+						else if (is(p, IS_DIGIT))
+							return action(ACTION_SAVE, TYPE_EXPONENT_POWER);
+						else if (is(p, IS_DELIMITER_START))
+							return action(ACTION_BREAK, TYPE_NUMBER);
+						else
+							return action(ACTION_SAVE, TYPE_ILLEGAL);
+					}
+					
+					// strings, delimiters, comments.
+					default:
+						return ACTION_SPECIAL;
+				}
+			}
+			
+			private static boolean is(int properties, int test)
+			{
+				return (properties & test) != 0;
+			}
+			
+			private static int action(int action, int state)
+			{
+				return (-state << ACTION_STATE_SHIFT) | action;
+			}
+			
+		}
+		
 	}
 
 	/**
@@ -722,6 +722,8 @@ public class SerialReader
 		return out;
 	}
 
+	// Scratch buffer for reading numbers, one per thread.
+	// Readers only run when loading serialized expressions or libraries, not during evaluation.
 	private static final ThreadLocal<Cache> CACHE = ThreadLocal.withInitial(()->new Cache());
 	
 	private static class Cache
@@ -453,6 +453,8 @@ public class SerialWriter
 		return offset + SIZEOF_LONG;
 	}
 
+	// Scratch buffer for writing numbers, one per thread.
+	// Writers are only used for serializing and digesting expressions, never while evaluating them.
 	private static final ThreadLocal<Cache> CACHE = ThreadLocal.withInitial(()->new Cache());
 	
 	private static class Cache
@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression.struct;
+
+import java.io.OutputStream;
+
+/**
+ * A streaming, non-cryptographic 128-bit hash, built on the MurmurHash3 (x64, 128-bit) mixing functions.
+ * Data is added a 64-bit word at a time, so primitive values can be hashed without serializing them.
+ * Bytes written through the {@link OutputStream} methods are packed into words.
+ * <p>Add all data, call {@link #finish()}, then read the result via {@link #getHigh()} and {@link #getLow()}.
+ * Call {@link #reset()} to reuse this for a new hash.
+ * @author Matthew Tropiano
+ */
+public class StructuralHash extends OutputStream
+{
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	/** Hash seed. */
+	private long seed;
+	/** Hash state, first half. */
+	private long h1;
+	/** Hash state, second half. */
+	private long h2;
+	/** First word of the current block. */
+	private long pendingWord;
+	/** If true, the first word of the current block is set. */
+	private boolean hasPendingWord;
+	/** Packed bytes not yet added as a word. */
+	private long pendingBytes;
+	/** Amount of packed bytes. */
+	private int pendingByteCount;
+	/** Amount of words added. */
+	private long length;
+
+	/** Result, high bits. */
+	private long high;
+	/** Result, low bits. */
+	private long low;
+
+	/**
+	 * Creates a new hash with a seed of 0.
+	 */
+	public StructuralHash()
+	{
+		this(0L);
+	}
+
+	/**
+	 * Creates a new hash.
+	 * @param seed the hash seed.
+	 */
+	public StructuralHash(long seed)
+	{
+		this.seed = seed;
+		reset();
+	}
+
+	/**
+	 * Resets this hash to its initial state.
+	 * @return itself.
+	 */
+	public StructuralHash reset()
+	{
+		this.h1 = seed;
+		this.h2 = seed;
+		this.pendingWord = 0L;
+		this.hasPendingWord = false;
+		this.pendingBytes = 0L;
+		this.pendingByteCount = 0;
+		this.length = 0L;
+		this.high = 0L;
+		this.low = 0L;
+		return this;
+	}
+
+	/**
+	 * Adds a long to the hash.
+	 * @param value the value.
+	 * @return itself.
+	 */
+	public StructuralHash putLong(long value)
+	{
+		flushBytes();
+		putWord(value);
+		return this;
+	}
+
+	/**
+	 * Adds an int to the hash.
+	 * @param value the value.
+	 * @return itself.
+	 */
+	public StructuralHash putInt(int value)
+	{
+		return putLong(value & 0x0ffffffffL);
+	}
+
+	/**
+	 * Adds a double to the hash.
+	 * @param value the value.
+	 * @return itself.
+	 */
+	public StructuralHash putDouble(double value)
+	{
+		return putLong(Double.doubleToLongBits(value));
+	}
+
+	/**
+	 * Adds a boolean to the hash.
+	 * @param value the value.
+	 * @return itself.
+	 */
+	public StructuralHash putBoolean(boolean value)
+	{
+		return putLong(value ? 1L : 0L);
+	}
+
+	/**
+	 * Adds a String to the hash (its length, then its characters).
+	 * @param value the value.
+	 * @return itself.
+	 */
+	public StructuralHash putString(String value)
+	{
+		int len = value.length();
+		putLong(len);
+		int i = 0;
+		for (; i + 4 <= len; i += 4)
+		{
+			putWord(
+				(long)value.charAt(i)
+				| ((long)value.charAt(i + 1) << 16)
+				| ((long)value.charAt(i + 2) << 32)
+				| ((long)value.charAt(i + 3) << 48)
+			);
+		}
+		if (i < len)
+		{
+			long word = 0L;
+			for (int shift = 0; i < len; i++, shift += 16)
+				word |= (long)value.charAt(i) << shift;
+			putWord(word);
+		}
+		return this;
+	}
+
+	@Override
+	public void write(int b)
+	{
+		pendingBytes |= (b & 0x0ffL) << (pendingByteCount * 8);
+		if (++pendingByteCount == 8)
+		{
+			putWord(pendingBytes);
+			pendingBytes = 0L;
+			pendingByteCount = 0;
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len)
+	{
+		for (int i = 0; i < len; i++)
+			write(b[off + i]);
+	}
+
+	/**
+	 * Finishes the hash. Nothing should be added after this until {@link #reset()} is called.
+	 * @return itself.
+	 */
+	public StructuralHash finish()
+	{
+		flushBytes();
+		long a = h1;
+		long b = h2;
+		if (hasPendingWord)
+		{
+			long k = pendingWord;
+			k *= C1;
+			k = Long.rotateLeft(k, 31);
+			k *= C2;
+			a ^= k;
+		}
+
+		a ^= length * 8;
+		b ^= length * 8;
+		a += b;
+		b += a;
+		a = mix(a);
+		b = mix(b);
+		a += b;
+		b += a;
+
+		this.high = a;
+		this.low = b;
+		return this;
+	}
+
+	/**
+	 * @return the high 64 bits of the finished hash.
+	 * @see #finish()
+	 */
+	public long getHigh()
+	{
+		return high;
+	}
+
+	/**
+	 * @return the low 64 bits of the finished hash.
+	 * @see #finish()
+	 */
+	public long getLow()
+	{
+		return low;
+	}
+
+	// Adds the packed bytes as a word, if any. The count is added to the top byte (always 0 if not full).
+	private void flushBytes()
+	{
+		if (pendingByteCount == 0)
+			return;
+		putWord(pendingBytes ^ ((long)pendingByteCount << 56));
+		pendingBytes = 0L;
+		pendingByteCount = 0;
+	}
+
+	// Adds a word, mixing a full block of two words.
+	private void putWord(long word)
+	{
+		length++;
+		if (!hasPendingWord)
+		{
+			pendingWord = word;
+			hasPendingWord = true;
+			return;
+		}
+
+		long k1 = pendingWord;
+		long k2 = word;
+		hasPendingWord = false;
+
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		k1 *= C2;
+		h1 ^= k1;
+		h1 = Long.rotateLeft(h1, 27);
+		h1 += h2;
+		h1 = h1 * 5 + 0x52dce729;
+
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		k2 *= C1;
+		h2 ^= k2;
+		h2 = Long.rotateLeft(h2, 31);
+		h2 += h1;
+		h2 = h2 * 5 + 0x38495ab5;
+	}
+
+	// Final avalanche.
+	private static long mix(long k)
+	{
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+}
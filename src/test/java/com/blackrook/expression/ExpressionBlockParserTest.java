@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import static com.blackrook.expression.TestRunner.assertEquals;
+import static com.blackrook.expression.TestRunner.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.blackrook.expression.exception.ExpressionParseException;
+import com.blackrook.expression.functions.CommonFunctions;
+import com.blackrook.expression.resolver.EnumResolver;
+
+/**
+ * Tests that incremental block parsing gives the same expressions as parsing the whole block.
+ * @author Matthew Tropiano
+ */
+public class ExpressionBlockParserTest
+{
+	private static final ExpressionFunctionResolver RESOLVER = new EnumResolver(CommonFunctions.values());
+	private static final int VARIABLES = 5;
+
+	public void testEditsMatchFullParse()
+	{
+		Random random = new Random(47);
+		List<String> statements = new ArrayList<>();
+		for (int i = 0; i < 40; i++)
+			statements.add(statement(random));
+
+		ExpressionBlockParser parser = new ExpressionBlockParser(RESOLVER);
+		for (int edit = 0; edit < 300; edit++)
+		{
+			int index = random.nextInt(statements.size());
+			switch (random.nextInt(3))
+			{
+				case 0:
+					statements.set(index, statement(random));
+					break;
+				case 1:
+					statements.add(index, statement(random));
+					break;
+				default:
+					if (statements.size() > 1)
+						statements.remove(index);
+					break;
+			}
+
+			String source = join(statements, random.nextInt(4) == 0 ? "return v0 + v1;" : "");
+			Expression incremental = parser.parse(source);
+			Expression full = ExpressionFactory.parseExpressionBlock(source, RESOLVER);
+			assertEquals("Hash high, edit " + edit, full.getHashHigh(), incremental.getHashHigh());
+			assertEquals("Hash low, edit " + edit, full.getHashLow(), incremental.getHashLow());
+			for (int x = -2; x <= 2; x++)
+				assertEquals("Result, edit " + edit + ", x = " + x, evaluate(full, x), evaluate(incremental, x));
+		}
+	}
+
+	public void testUnchangedStatementsAreReused()
+	{
+		Random random = new Random(1);
+		List<String> statements = new ArrayList<>();
+		for (int i = 0; i < 20; i++)
+			statements.add("v" + (i % VARIABLES) + " = v" + ((i + 1) % VARIABLES) + " + " + i + ";");
+
+		ExpressionBlockParser parser = new ExpressionBlockParser(RESOLVER);
+		parser.parse(join(statements, ""));
+		statements.set(10, statement(random));
+		parser.parse(join(statements, ""));
+		assertEquals("Statement count", 20, parser.getStatementCount());
+		assertEquals("Reused statements", 19, parser.getReusedStatementCount());
+	}
+
+	public void testErrorsMatchFullParse()
+	{
+		ExpressionBlockParser parser = new ExpressionBlockParser(RESOLVER);
+		parser.parse("v0 = 1; v1 = v0 + 2;");
+		String source = "v0 = 1; v1 = v0 + ;";
+
+		String expected = null;
+		try {
+			ExpressionFactory.parseExpressionBlock(source, RESOLVER);
+		} catch (ExpressionParseException e) {
+			expected = e.getMessage();
+		}
+		String actual = null;
+		try {
+			parser.parse(source);
+		} catch (ExpressionParseException e) {
+			actual = e.getMessage();
+		}
+		assertTrue("Full parse should fail", expected != null);
+		assertEquals("Error message", expected, actual);
+	}
+
+	// Makes a random statement.
+	private static String statement(Random random)
+	{
+		String target = "v" + random.nextInt(VARIABLES);
+		switch (random.nextInt(4))
+		{
+			case 0:
+				return "if (" + phrase(random) + " > " + random.nextInt(5) + ") { " + target + " = " + phrase(random) + "; } else { " + target + " = " + phrase(random) + "; }";
+			case 1:
+				return "if (" + phrase(random) + ") " + target + " = " + phrase(random) + ";";
+			default:
+				return target + " = " + phrase(random) + ";";
+		}
+	}
+
+	// Makes a random phrase.
+	private static String phrase(Random random)
+	{
+		String[] operators = {"+", "-", "*", "&", "|", "<", "=="};
+		StringBuilder sb = new StringBuilder();
+		int terms = 1 + random.nextInt(3);
+		for (int i = 0; i < terms; i++)
+		{
+			if (i > 0)
+				sb.append(' ').append(operators[random.nextInt(operators.length)]).append(' ');
+			switch (random.nextInt(4))
+			{
+				case 0:
+					sb.append(random.nextInt(10));
+					break;
+				case 1:
+					sb.append("CLAMP(v").append(random.nextInt(VARIABLES)).append(", 0, ").append(random.nextInt(10)).append(')');
+					break;
+				default:
+					sb.append('v').append(random.nextInt(VARIABLES));
+					break;
+			}
+		}
+		return sb.toString();
+	}
+
+	// Joins statements into a block, one per line.
+	private static String join(List<String> statements, String last)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (String statement : statements)
+			sb.append(statement).append('\n');
+		return sb.append(last).toString();
+	}
+
+	// Evaluates an expression with every variable set to x.
+	private static String evaluate(Expression expression, int x)
+	{
+		ExpressionVariableContext context = new ExpressionVariableContext();
+		for (int i = 0; i < VARIABLES; i++)
+			context.set("v" + i, x + i);
+		ExpressionValue out = ExpressionValue.create(false);
+		expression.evaluate(context, out);
+		StringBuilder sb = new StringBuilder(out.toString());
+		for (int i = 0; i < VARIABLES; i++)
+			sb.append(' ').append(context.get("v" + i));
+		return sb.toString();
+	}
+
+}
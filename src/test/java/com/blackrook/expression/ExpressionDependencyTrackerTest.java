@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import static com.blackrook.expression.TestRunner.assertEquals;
+import static com.blackrook.expression.TestRunner.assertTrue;
+
+import java.util.Random;
+
+import com.blackrook.expression.functions.CommonFunctions;
+import com.blackrook.expression.resolver.EnumResolver;
+
+/**
+ * Tests that dependency tracking re-evaluates only what changed, to the same results as evaluating everything.
+ * @author Matthew Tropiano
+ */
+public class ExpressionDependencyTrackerTest
+{
+	private static final ExpressionFunctionResolver RESOLVER = new EnumResolver(CommonFunctions.values());
+	private static final String[] SOURCES = {
+		"a + b",
+		"b * c - 1",
+		"d = a + 1; return d * 2;",
+		"CLAMP(d, c, 10)",
+		"if (e > 2) return a; return b;",
+		"7 * 6",
+	};
+
+	public void testRecomputeMatchesFullEvaluation()
+	{
+		ExpressionVariableContext context = new ExpressionVariableContext();
+		for (char c = 'a'; c <= 'e'; c++)
+			context.set(String.valueOf(c), c - 'a');
+
+		ExpressionDependencyTracker tracker = new ExpressionDependencyTracker(context);
+		Expression[] expressions = new Expression[SOURCES.length];
+		for (int i = 0; i < SOURCES.length; i++)
+		{
+			expressions[i] = parse(SOURCES[i]);
+			assertEquals("Index", i, tracker.add(expressions[i]));
+		}
+		assertEquals("First recompute evaluates everything", SOURCES.length, tracker.recompute());
+		assertEquals("Nothing changed", 0, tracker.recompute());
+
+		Random random = new Random(30);
+		for (int round = 0; round < 500; round++)
+		{
+			String name = String.valueOf((char)('a' + random.nextInt(5)));
+			context.set(name, random.nextInt(6));
+			tracker.recompute();
+
+			ExpressionVariableContext copy = new ExpressionVariableContext();
+			for (char c = 'a'; c <= 'e'; c++)
+				copy.set(String.valueOf(c), context.get(String.valueOf(c)));
+			for (int i = 0; i < expressions.length; i++)
+			{
+				ExpressionValue out = ExpressionValue.create(false);
+				expressions[i].evaluate(copy, out);
+				copy.remove(Expression.RETURN_VARIABLE);
+				assertEquals("Result of " + SOURCES[i] + ", round " + round, out, tracker.getResult(i));
+			}
+		}
+	}
+
+	public void testOnlyDependentsAreDirty()
+	{
+		ExpressionVariableContext context = new ExpressionVariableContext();
+		context.set("a", 1);
+		context.set("b", 2);
+		context.set("c", 3);
+		ExpressionDependencyTracker tracker = new ExpressionDependencyTracker(context);
+		int ab = tracker.add(parse("a + b"));
+		int c = tracker.add(parse("c * 2"));
+		tracker.recompute();
+
+		context.set("c", 3);
+		assertTrue("Same value does not dirty", !tracker.isDirty(c));
+		context.set("a", 5);
+		assertTrue("Reader of a is dirty", tracker.isDirty(ab));
+		assertTrue("Non-reader of a is not dirty", !tracker.isDirty(c));
+		assertEquals("Recomputed", 1, tracker.recompute());
+		assertEquals("Result", ExpressionValue.create(7L), tracker.getResult(ab));
+	}
+
+	public void testSeveralTrackersOnOneContext()
+	{
+		ExpressionVariableContext context = new ExpressionVariableContext();
+		context.set("x", 1);
+		context.set("y", 2);
+		ExpressionDependencyTracker first = new ExpressionDependencyTracker(context);
+		ExpressionDependencyTracker second = new ExpressionDependencyTracker(context);
+		int x = first.add(parse("x + 1"));
+		int y = second.add(parse("y * 2"));
+		first.recompute();
+		second.recompute();
+
+		context.set("x", 5);
+		context.set("y", 5);
+		assertTrue("First tracker is notified", first.isDirty(x));
+		assertTrue("Second tracker is notified", second.isDirty(y));
+
+		first.recompute();
+		first.detach();
+		context.set("x", 9);
+		assertTrue("Detached tracker is not notified", !first.isDirty(x));
+	}
+
+	// Parses an expression or block.
+	private static Expression parse(String source)
+	{
+		return source.indexOf(';') >= 0 ? ExpressionFactory.parseExpressionBlock(source, RESOLVER) : ExpressionFactory.parseExpression(source, RESOLVER);
+	}
+
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import java.util.concurrent.CountDownLatch;
+
+import com.blackrook.expression.functions.CommonFunctions;
+import com.blackrook.expression.resolver.EnumResolver;
+
+/**
+ * Measures what expression evaluation leaves behind on each thread, and how long one evaluation takes.
+ * <p>First, many threads each borrow an evaluator from a pool, evaluate once, return it, and then wait,
+ * so that anything evaluation keeps per thread stays alive. The heap used is measured before and while they wait.
+ * Then one thread evaluates the same expression in a loop.
+ * <p>Command line: <code>ExpressionEvaluationBenchmark [threads]</code>
+ * @author Matthew Tropiano
+ */
+public final class ExpressionEvaluationBenchmark
+{
+	private static final String SOURCE = "if (x > 10) { y = -x * 2 + 1.5; return y % 7; } return !x + (x & 3);";
+	private static final int ITERATIONS = 5000000;
+	private static final int ROUNDS = 8;
+
+	// Private constructor.
+	private ExpressionEvaluationBenchmark()
+	{
+	}
+
+	/**
+	 * Runs the benchmark.
+	 * @param args optional amount of threads (default 10000).
+	 * @throws InterruptedException if interrupted.
+	 */
+	public static void main(String[] args) throws InterruptedException
+	{
+		int threadCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		final CompiledExpression expression = CompiledExpression.create(
+			ExpressionFactory.parseExpressionBlock(SOURCE, new EnumResolver(CommonFunctions.values()))
+		);
+		final ExpressionEvaluatorPool pool = new ExpressionEvaluatorPool();
+
+		final CountDownLatch evaluated = new CountDownLatch(threadCount);
+		final CountDownLatch hold = new CountDownLatch(1);
+		Thread[] threads = new Thread[threadCount];
+		long before = usedMemory();
+		for (int i = 0; i < threadCount; i++)
+		{
+			final int x = i % 20;
+			threads[i] = new Thread(null, () -> {
+				ExpressionEvaluator evaluator = pool.acquire();
+				try {
+					evaluator.getContext().set("x", x);
+					evaluator.evaluate(expression);
+				} finally {
+					pool.release(evaluator);
+				}
+				evaluated.countDown();
+				try {
+					hold.await();
+				} catch (InterruptedException e) {
+					// done.
+				}
+			}, "Evaluator-" + i, 64 * 1024);
+			threads[i].start();
+		}
+		evaluated.await();
+		long during = usedMemory();
+		hold.countDown();
+		for (Thread thread : threads)
+			thread.join();
+
+		ExpressionEvaluator evaluator = new ExpressionEvaluator();
+		ExpressionValue out = ExpressionValue.create(false);
+		long sum = 0L;
+		long best = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			long start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++)
+			{
+				evaluator.getContext().set("x", i & 31);
+				evaluator.evaluate(expression, out);
+				sum += out.asLong();
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		System.out.printf("%d live threads: %d bytes per thread (includes each thread's own overhead).%n", threadCount, (during - before) / threadCount);
+		System.out.printf("One evaluation: %.1f ns (best of %d rounds, checksum %d).%n", best / (double)ITERATIONS, ROUNDS, sum);
+	}
+
+	// Gets the heap in use, after collecting garbage.
+	private static long usedMemory()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
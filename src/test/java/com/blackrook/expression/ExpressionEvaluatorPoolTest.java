@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import static com.blackrook.expression.TestRunner.assertEquals;
+import static com.blackrook.expression.TestRunner.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.blackrook.expression.functions.CommonFunctions;
+import com.blackrook.expression.resolver.EnumResolver;
+
+/**
+ * Tests for compiled expressions evaluated by pooled evaluators.
+ * @author Matthew Tropiano
+ */
+public class ExpressionEvaluatorPoolTest
+{
+	private static final ExpressionFunctionResolver RESOLVER = new EnumResolver(CommonFunctions.values());
+	private static final String SOURCE = "if (x > 10) { y = -x * 2 + 1.5; return y % 7; } return CLAMP(x, 3, 20) + (x & 3);";
+	private static final int VALUES = 32;
+
+	public void testConcurrentEvaluationMatchesInterpreter() throws Exception
+	{
+		Expression expression = ExpressionFactory.parseExpressionBlock(SOURCE, RESOLVER);
+		final CompiledExpression compiled = CompiledExpression.create(expression);
+		final ExpressionValue[] expected = new ExpressionValue[VALUES];
+		for (int x = 0; x < VALUES; x++)
+		{
+			ExpressionVariableContext context = new ExpressionVariableContext();
+			context.set("x", x);
+			expected[x] = ExpressionValue.create(false);
+			expression.evaluate(context, expected[x]);
+		}
+
+		final ExpressionEvaluatorPool pool = new ExpressionEvaluatorPool(2);
+		final AtomicInteger mismatches = new AtomicInteger(0);
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++)
+		{
+			final int seed = t;
+			threads[t] = new Thread(() -> {
+				ExpressionValue out = ExpressionValue.create(false);
+				for (int i = 0; i < 20000; i++)
+				{
+					int x = (i * 7 + seed) % VALUES;
+					ExpressionEvaluator evaluator = pool.acquire();
+					try {
+						evaluator.getContext().set("x", x);
+						evaluator.evaluate(compiled, out);
+					} finally {
+						pool.release(evaluator);
+					}
+					if (!expected[x].equals(out))
+						mismatches.incrementAndGet();
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals("Mismatched results", 0, mismatches.get());
+		assertTrue("Pool holds at most its slots", pool.size() <= 2 * ExpressionEvaluatorPool.STRIPE_SIZE);
+	}
+
+	public void testReleaseResetsEvaluator()
+	{
+		ExpressionEvaluatorPool pool = new ExpressionEvaluatorPool(1);
+		ExpressionEvaluator evaluator = pool.acquire();
+		evaluator.getContext().set("x", 5);
+		assertEquals("Result", ExpressionValue.create(5L), evaluator.evaluate(CompiledExpression.create(ExpressionFactory.parseExpressionBlock("return x;", RESOLVER))));
+		pool.release(evaluator);
+		assertEquals("Pool size", 1, pool.size());
+
+		ExpressionEvaluator reused = pool.acquire();
+		assertTrue("Same evaluator is reused", reused == evaluator);
+		assertTrue("Variables are cleared", reused.getContext().isEmpty());
+		assertEquals("Pool size", 0, pool.size());
+	}
+
+	public void testReturnValueIsNotLeftInContext()
+	{
+		ExpressionEvaluator evaluator = new ExpressionEvaluator();
+		CompiledExpression compiled = CompiledExpression.create(ExpressionFactory.parseExpressionBlock("a = 3; return a * 2;", RESOLVER));
+		assertEquals("Result", ExpressionValue.create(6L), evaluator.evaluate(compiled));
+		assertTrue("Return variable is removed", evaluator.getContext().get(Expression.RETURN_VARIABLE) == null);
+		assertEquals("Set variable is kept", ExpressionValue.create(3L), evaluator.getContext().get("a"));
+	}
+
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.blackrook.expression.functions.CommonFunctions;
+import com.blackrook.expression.resolver.EnumResolver;
+
+/**
+ * Measures {@link ExpressionFactory#parseExpression(String, ExpressionFunctionResolver)} throughput as threads are added,
+ * with the {@link ExpressionInternPool} on and off (the parse cache is off throughout).
+ * <p>Two workloads are run: one where every parsed expression is already in the pool,
+ * and one where the expressions do not fit in the pool, so that most interns add and evict.
+ * <p>Command line: <code>ExpressionInternPoolBenchmark [millisecondsPerRun]</code>
+ * @author Matthew Tropiano
+ */
+public final class ExpressionInternPoolBenchmark
+{
+	private static final ExpressionFunctionResolver RESOLVER = new EnumResolver(CommonFunctions.values());
+
+	// Private constructor.
+	private ExpressionInternPoolBenchmark()
+	{
+	}
+
+	/**
+	 * Runs the benchmark.
+	 * @param args optional milliseconds per run (default 1000).
+	 * @throws InterruptedException if interrupted.
+	 */
+	public static void main(String[] args) throws InterruptedException
+	{
+		long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000L;
+		int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
+		ExpressionInternPool previousPool = Expression.getInternPool();
+		ExpressionParseCache previousCache = ExpressionFactory.getParseCache();
+		ExpressionFactory.setParseCache(null);
+
+		try {
+			System.out.println("Parses per millisecond, " + Runtime.getRuntime().availableProcessors() + " processors.");
+			run("hits (1024 expressions, pool of 4096)", 1024, 4096, maxThreads, millis);
+			run("evictions (8192 expressions, pool of 1024)", 8192, 1024, maxThreads, millis);
+		} finally {
+			Expression.setInternPool(previousPool);
+			ExpressionFactory.setParseCache(previousCache);
+		}
+	}
+
+	// Runs one workload at each thread count.
+	private static void run(String name, int expressionCount, int poolSize, int maxThreads, long millis) throws InterruptedException
+	{
+		String[] sources = new String[expressionCount];
+		for (int i = 0; i < sources.length; i++)
+			sources[i] = "x * " + i + " + CLAMP(y, 0, " + (i % 10) + ") - (x > " + (i % 7) + ")";
+		// warm up the parser, unmeasured.
+		measure(sources, null, 1, millis);
+
+		System.out.println();
+		System.out.println(name);
+		System.out.printf("%8s %12s %12s%n", "threads", "pool on", "pool off");
+		for (int threads = 1; threads <= maxThreads; threads *= 2)
+		{
+			long on = measure(sources, new ExpressionInternPool(poolSize, false), threads, millis);
+			long off = measure(sources, null, threads, millis);
+			System.out.printf("%8d %12d %12d%n", threads, on, off);
+		}
+	}
+
+	// Measures parses per millisecond, after a warmup of the same length.
+	private static long measure(final String[] sources, ExpressionInternPool pool, int threads, long millis) throws InterruptedException
+	{
+		Expression.setInternPool(pool);
+		final AtomicLong total = new AtomicLong(0L);
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicBoolean counting = new AtomicBoolean(false);
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++)
+		{
+			final int seed = t * 7919;
+			workers[t] = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				long count = 0L;
+				int i = seed;
+				while (!stop.get())
+				{
+					i = i * 1103515245 + 12345;
+					ExpressionFactory.parseExpression(sources[(i >>> 1) % sources.length], RESOLVER);
+					if (counting.get())
+						count++;
+				}
+				total.addAndGet(count);
+			});
+			workers[t].start();
+		}
+
+		start.countDown();
+		Thread.sleep(millis);
+		counting.set(true);
+		Thread.sleep(millis);
+		stop.set(true);
+		for (Thread worker : workers)
+			worker.join();
+		return total.get() / millis;
+	}
+
+}
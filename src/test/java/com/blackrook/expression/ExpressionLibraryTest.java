@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import static com.blackrook.expression.TestRunner.assertEquals;
+import static com.blackrook.expression.TestRunner.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.blackrook.expression.functions.CommonFunctions;
+import com.blackrook.expression.resolver.EnumResolver;
+
+/**
+ * Tests that expression libraries read back the expressions that were written, by name and by hash.
+ * @author Matthew Tropiano
+ */
+public class ExpressionLibraryTest
+{
+	private static final ExpressionFunctionResolver RESOLVER = new EnumResolver(CommonFunctions.values());
+
+	public void testRoundTrip() throws IOException
+	{
+		Map<String, Expression> expressions = new LinkedHashMap<>();
+		for (int i = 0; i < 200; i++)
+			expressions.put("expression" + i, parse("x * " + (i % 50) + " + CLAMP(y, 0, " + (i % 50 % 7) + ")"));
+		expressions.put("block", ExpressionFactory.parseExpressionBlock("z = x + y; if (z > 3) return z; return -z;", RESOLVER));
+		expressions.put("value", Expression.create(2.5));
+		expressions.put("\u00e9t\u00e9", parse("x - y"));
+
+		ExpressionLibrary library = ExpressionLibrary.open(write(expressions), RESOLVER);
+		assertEquals("Names", expressions.size(), library.size());
+		assertEquals("Distinct expressions", 53, library.getExpressionCount());
+		assertEquals("Nothing decoded on open", 0, library.getDecodedCount());
+
+		Set<String> names = new HashSet<>();
+		for (int i = 0; i < library.size(); i++)
+			names.add(library.getName(i));
+		assertEquals("Name set", expressions.keySet(), names);
+
+		for (Map.Entry<String, Expression> entry : expressions.entrySet())
+		{
+			String name = entry.getKey();
+			Expression expected = entry.getValue();
+			assertTrue("Contains " + name, library.contains(name));
+			Expression actual = library.get(name);
+			assertTrue("Equal, " + name, expected.equals(actual));
+			assertTrue("By hash, " + name, library.get(expected.getHashHigh(), expected.getHashLow()) == actual);
+			for (int x = -2; x <= 2; x++)
+				assertEquals("Result, " + name + ", x = " + x, evaluate(expected, x), evaluate(actual, x));
+		}
+		assertEquals("Everything decoded", 53, library.getDecodedCount());
+	}
+
+	public void testSharedBodies() throws IOException
+	{
+		Map<String, Expression> expressions = new LinkedHashMap<>();
+		expressions.put("first", parse("x + 1"));
+		expressions.put("second", parse("x + 1"));
+		expressions.put("third", parse("x + 2"));
+
+		ExpressionLibrary library = ExpressionLibrary.open(write(expressions), RESOLVER);
+		assertEquals("Distinct expressions", 2, library.getExpressionCount());
+		Expression first = library.get("first");
+		assertEquals("Decoded once", 1, library.getDecodedCount());
+		assertTrue("Names share a body", library.get("second") == first);
+		assertEquals("Still decoded once", 1, library.getDecodedCount());
+	}
+
+	public void testMissing() throws IOException
+	{
+		Map<String, Expression> expressions = new LinkedHashMap<>();
+		expressions.put("present", parse("x + 1"));
+		ExpressionLibrary library = ExpressionLibrary.open(write(expressions), RESOLVER);
+		Expression absent = parse("x + 3");
+		assertTrue("Missing name", library.get("absent") == null);
+		assertTrue("Missing name is not contained", !library.contains("absent"));
+		assertTrue("Missing hash", library.get(absent.getHashHigh(), absent.getHashLow()) == null);
+
+		ExpressionLibrary empty = ExpressionLibrary.open(write(new LinkedHashMap<String, Expression>()), RESOLVER);
+		assertTrue("Empty", empty.isEmpty());
+		assertTrue("Empty lookup", empty.get("present") == null);
+	}
+
+	// Writes a library to a temporary file.
+	private static File write(Map<String, Expression> expressions) throws IOException
+	{
+		File file = File.createTempFile("library", ".brxl");
+		file.deleteOnExit();
+		ExpressionLibrary.write(file, expressions);
+		return file;
+	}
+
+	// Evaluates an expression with x and y set.
+	private static ExpressionValue evaluate(Expression expression, int x)
+	{
+		ExpressionVariableContext context = new ExpressionVariableContext();
+		context.set("x", x);
+		context.set("y", 1 - x);
+		ExpressionValue out = ExpressionValue.create(false);
+		expression.evaluate(context, out);
+		return out;
+	}
+
+	// Parses an expression.
+	private static Expression parse(String source)
+	{
+		return ExpressionFactory.parseExpression(source, RESOLVER);
+	}
+
+}
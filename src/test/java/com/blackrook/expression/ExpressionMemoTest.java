@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import static com.blackrook.expression.TestRunner.assertEquals;
+import static com.blackrook.expression.TestRunner.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.blackrook.expression.functions.CommonFunctions;
+import com.blackrook.expression.resolver.EnumResolver;
+
+/**
+ * Tests that memoized results always match direct evaluation, as entries are evicted and removed.
+ * @author Matthew Tropiano
+ */
+public class ExpressionMemoTest
+{
+	private static final ExpressionFunctionResolver RESOLVER = new EnumResolver(CommonFunctions.values());
+	private static final int CAPACITY = 8;
+	/** Slot mask of a memo with {@link #CAPACITY}. */
+	private static final int MASK = 15;
+
+	public void testCollidingKeys()
+	{
+		// keys whose home slots are the last two slots, so that probe runs wrap around.
+		List<Long> keys = new ArrayList<>();
+		for (long x = 0; keys.size() < CAPACITY * 3; x++)
+			if ((hash(x, ExpressionValue.Type.LONG) & MASK) >= MASK - 1)
+				keys.add(x);
+
+		Expression expression = ExpressionFactory.parseExpression("x * 3 + 1", RESOLVER);
+		ExpressionMemo memo = new ExpressionMemo(expression, CAPACITY);
+		Random random = new Random(32);
+		for (int i = 0; i < 5000; i++)
+		{
+			// favor a few keys, so that some entries get a second chance.
+			long x = keys.get(random.nextInt(4) == 0 ? random.nextInt(3) : random.nextInt(keys.size()));
+			ExpressionVariableContext context = new ExpressionVariableContext();
+			context.set("x", x);
+			check("x = " + x + ", step " + i, memo, expression, context);
+			assertTrue("Size is at most capacity", memo.size() <= CAPACITY);
+		}
+		assertTrue("Some lookups hit", memo.getHitCount() > 0L);
+		assertTrue("Some entries were evicted", memo.getEvictionCount() > 0L);
+		assertEquals("Lookups", 5000L, memo.getHitCount() + memo.getMissCount());
+		assertEquals("Size", CAPACITY, memo.size());
+	}
+
+	public void testKeyTypesAndMissingVariables()
+	{
+		ExpressionValue[] values = {
+			null,
+			ExpressionValue.create(false),
+			ExpressionValue.create(true),
+			ExpressionValue.create(0L),
+			ExpressionValue.create(1L),
+			ExpressionValue.create(0.0),
+			ExpressionValue.create(-0.0),
+			ExpressionValue.create(1.0),
+			ExpressionValue.create(Double.NaN),
+		};
+		Expression expression = ExpressionFactory.parseExpression("1.0 / (x + y) + (x === y)", RESOLVER);
+		ExpressionMemo memo = new ExpressionMemo(expression, 5);
+		Random random = new Random(2);
+		for (int i = 0; i < 3000; i++)
+		{
+			ExpressionValue x = values[random.nextInt(values.length)];
+			ExpressionValue y = values[random.nextInt(values.length)];
+			ExpressionVariableContext context = new ExpressionVariableContext();
+			if (x != null)
+				context.set("x", x);
+			if (y != null)
+				context.set("y", y);
+			check("x = " + x + ", y = " + y + ", step " + i, memo, expression, context);
+		}
+		assertTrue("Some lookups hit", memo.getHitCount() > 0L);
+	}
+
+	// Checks a memoized result against direct evaluation.
+	private static void check(String message, ExpressionMemo memo, Expression expression, ExpressionVariableContext context)
+	{
+		ExpressionValue expected = ExpressionValue.create(false);
+		expression.evaluate(context, expected);
+		ExpressionValue actual = ExpressionValue.create(false);
+		memo.evaluate(context, actual);
+		assertEquals(message, expected, actual);
+	}
+
+	// Hashes a key of one variable, the same way as the memo.
+	private static int hash(long bits, ExpressionValue.Type type)
+	{
+		long h = 0x9e3779b97f4a7c15L;
+		h ^= bits + type.ordinal();
+		h *= 0xbf58476d1ce4e5b9L;
+		h ^= h >>> 31;
+		return (int)(h ^ (h >>> 32));
+	}
+
+}
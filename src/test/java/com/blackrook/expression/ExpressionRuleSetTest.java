@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import static com.blackrook.expression.TestRunner.assertEquals;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import com.blackrook.expression.functions.CommonFunctions;
+import com.blackrook.expression.resolver.EnumResolver;
+
+/**
+ * Tests that rule set matching gives the same results as evaluating each rule.
+ * @author Matthew Tropiano
+ */
+public class ExpressionRuleSetTest
+{
+	private static final ExpressionFunctionResolver RESOLVER = new EnumResolver(CommonFunctions.values());
+	private static final String[] VARIABLES = {"a", "b", "c", "d"};
+	private static final String[] COMPARISONS = {"==", "!=", "<", "<=", ">", ">="};
+	private static final String[] CONSTANTS = {"0", "1", "2.5", "-1", "0.0", "true", "false"};
+
+	public void testIndexedMatchesEvaluation()
+	{
+		check(ExpressionRuleSet.Mode.INDEXED);
+	}
+
+	public void testBitParallelMatchesEvaluation()
+	{
+		check(ExpressionRuleSet.Mode.BIT_PARALLEL);
+	}
+
+	// Matches random events against random rules, and compares with evaluating each rule.
+	private static void check(ExpressionRuleSet.Mode mode)
+	{
+		Random random = new Random(27);
+		ExpressionRuleSet set = new ExpressionRuleSet(mode);
+		String[] sources = new String[200];
+		for (int i = 0; i < sources.length; i++)
+		{
+			sources[i] = rule(random, 3);
+			assertEquals("Index", i, set.add(ExpressionFactory.parseExpression(sources[i], RESOLVER)));
+		}
+
+		for (int event = 0; event < 500; event++)
+		{
+			ExpressionVariableContext context = new ExpressionVariableContext();
+			for (String name : VARIABLES)
+				setVariable(random, context, name);
+
+			BitSet matched = set.match(context);
+			for (int i = 0; i < sources.length; i++)
+			{
+				ExpressionValue out = ExpressionValue.create(false);
+				ExpressionFactory.parseExpression(sources[i], RESOLVER).evaluate(context, out);
+				assertEquals(mode + ", rule " + sources[i] + ", event " + context, out.asBoolean(), matched.get(i));
+			}
+		}
+	}
+
+	// Makes a random rule.
+	private static String rule(Random random, int depth)
+	{
+		switch (depth > 0 ? random.nextInt(5) : 4)
+		{
+			case 0:
+				return "(" + rule(random, depth - 1) + " && " + rule(random, depth - 1) + ")";
+			case 1:
+				return "(" + rule(random, depth - 1) + " || " + rule(random, depth - 1) + ")";
+			case 2:
+				return "!" + rule(random, depth - 1);
+			case 3:
+				return "(" + term(random) + " " + COMPARISONS[random.nextInt(COMPARISONS.length)] + " " + term(random) + ")";
+			default:
+				if (random.nextInt(4) == 0)
+					return VARIABLES[random.nextInt(VARIABLES.length)];
+				return "(" + VARIABLES[random.nextInt(VARIABLES.length)] + " " + COMPARISONS[random.nextInt(COMPARISONS.length)] + " " + CONSTANTS[random.nextInt(CONSTANTS.length)] + ")";
+		}
+	}
+
+	// Makes a random arithmetic term.
+	private static String term(Random random)
+	{
+		switch (random.nextInt(4))
+		{
+			case 0:
+				return VARIABLES[random.nextInt(VARIABLES.length)] + " + " + CONSTANTS[random.nextInt(4)];
+			case 1:
+				return "CLAMP(" + VARIABLES[random.nextInt(VARIABLES.length)] + ", -1, 1)";
+			case 2:
+				return CONSTANTS[random.nextInt(CONSTANTS.length)];
+			default:
+				return VARIABLES[random.nextInt(VARIABLES.length)];
+		}
+	}
+
+	// Sets a variable to a random value, or leaves it missing.
+	private static void setVariable(Random random, ExpressionVariableContext context, String name)
+	{
+		switch (random.nextInt(7))
+		{
+			case 0:
+				break;
+			case 1:
+				context.set(name, random.nextBoolean());
+				break;
+			case 2:
+				context.set(name, (long)(random.nextInt(5) - 2));
+				break;
+			case 3:
+				context.set(name, (random.nextInt(9) - 4) * 0.5);
+				break;
+			case 4:
+				context.set(name, -0.0);
+				break;
+			case 5:
+				context.set(name, Double.NaN);
+				break;
+			default:
+				context.set(name, 0.0);
+				break;
+		}
+	}
+
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import static com.blackrook.expression.TestRunner.assertEquals;
+import static com.blackrook.expression.TestRunner.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import com.blackrook.expression.exception.ExpressionException;
+import com.blackrook.expression.functions.CommonFunctions;
+import com.blackrook.expression.node.ExpressionFunctionType;
+import com.blackrook.expression.resolver.EnumResolver;
+
+/**
+ * Tests that compiled expressions read back to the same expressions, and that mismatched functions are refused.
+ * @author Matthew Tropiano
+ */
+public class ExpressionSerializerTest
+{
+	private static final ExpressionFunctionResolver RESOLVER = new EnumResolver(CommonFunctions.values());
+	private static final String[] SOURCES = {
+		"x + y * 2 - 7",
+		"x / 3.0 - y % 4 + -0.0",
+		"(x & 6) | (y << 2) ^ ~x >>> 1",
+		"x > y && !(y == 3) || x === 5",
+		"CLAMP(x, -1, y) + SIN(x) * 9223372036854775807",
+		"3 * 4 + 1",
+		"z = x * y; if (z > 4) { return z; } else if (z > 2) { return 2; } else if (z > 0) { return 1; } return -z;",
+		"if (x == 1) return 10; else if (x == 2) return 20; else if (x == 3) return 30; return 0;",
+	};
+
+	public void testRoundTrip() throws IOException
+	{
+		for (String source : SOURCES)
+		{
+			Expression expression = parse(source);
+			Expression read = Expression.readCompiled(new ByteArrayInputStream(compile(expression)), RESOLVER);
+			assertTrue("Equal, " + source, expression.equals(read));
+			assertEquals("Hash high, " + source, expression.getHashHigh(), read.getHashHigh());
+			assertEquals("Hash low, " + source, expression.getHashLow(), read.getHashLow());
+			for (int x = -2; x <= 4; x++)
+			{
+				for (int y = -1; y <= 3; y += 2)
+				{
+					String where = source + ", x = " + x + ", y = " + y;
+					ExpressionVariableContext expected = context(x, y);
+					ExpressionValue expectedOut = ExpressionValue.create(false);
+					expression.evaluate(expected, expectedOut);
+					ExpressionVariableContext actual = context(x, y);
+					ExpressionValue actualOut = ExpressionValue.create(false);
+					read.evaluate(actual, actualOut);
+					assertEquals("Result, " + where, expectedOut, actualOut);
+					assertEquals("Variable z, " + where, expected.get("z"), actual.get("z"));
+				}
+			}
+		}
+	}
+
+	public void testValueRoundTrip() throws IOException
+	{
+		ExpressionValue[] values = {
+			ExpressionValue.create(true),
+			ExpressionValue.create(false),
+			ExpressionValue.create(-3L),
+			ExpressionValue.create(Long.MIN_VALUE),
+			ExpressionValue.create(-0.0),
+			ExpressionValue.create(Double.NaN),
+		};
+		for (ExpressionValue value : values)
+		{
+			Expression read = Expression.readCompiled(new ByteArrayInputStream(compile(Expression.create(value))), RESOLVER);
+			assertEquals("Value", value, read.evaluate());
+		}
+	}
+
+	public void testFunctionMismatch() throws IOException
+	{
+		byte[] compiled = compile(parse("CLAMP(x, 0, 1) + 1"));
+		assertEquals("Different argument count",
+			"Resolver functions do not match the ones that the expression was compiled with.",
+			readError(compiled, new EnumResolver(MismatchedFunctions.values())));
+		assertEquals("Missing function",
+			"Function \"CLAMP\" could not be resolved.",
+			readError(compiled, new EnumResolver(OtherFunctions.values())));
+		assertEquals("Not compiled",
+			"Not a compiled expression.",
+			readError("x + 1".getBytes("UTF-8"), RESOLVER));
+	}
+
+	// Compiles an expression.
+	private static byte[] compile(Expression expression) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		expression.writeCompiled(out);
+		return out.toByteArray();
+	}
+
+	// Reads a compiled expression that should fail, and returns the error message.
+	private static String readError(byte[] compiled, ExpressionFunctionResolver resolver) throws IOException
+	{
+		try {
+			Expression.readCompiled(new ByteArrayInputStream(compiled), resolver);
+		} catch (ExpressionException e) {
+			return e.getMessage();
+		}
+		throw new AssertionError("Expression was read.");
+	}
+
+	// Parses an expression or block.
+	private static Expression parse(String source)
+	{
+		return source.indexOf(';') >= 0 ? ExpressionFactory.parseExpressionBlock(source, RESOLVER) : ExpressionFactory.parseExpression(source, RESOLVER);
+	}
+
+	// Makes a context with x and y set.
+	private static ExpressionVariableContext context(int x, int y)
+	{
+		ExpressionVariableContext context = new ExpressionVariableContext();
+		context.set("x", x);
+		context.set("y", y);
+		return context;
+	}
+
+	/** Has CLAMP with the wrong argument count. */
+	private enum MismatchedFunctions implements ExpressionFunctionType
+	{
+		CLAMP;
+
+		@Override
+		public int getArgumentCount()
+		{
+			return 2;
+		}
+
+		@Override
+		public boolean isCollapsable()
+		{
+			return true;
+		}
+
+		@Override
+		public boolean execute(ExpressionStack stack, ExpressionVariableContext context)
+		{
+			stack.pop();
+			return true;
+		}
+	}
+
+	/** Does not have CLAMP. */
+	private enum OtherFunctions implements ExpressionFunctionType
+	{
+		OTHER;
+
+		@Override
+		public int getArgumentCount()
+		{
+			return 0;
+		}
+
+		@Override
+		public boolean isCollapsable()
+		{
+			return true;
+		}
+
+		@Override
+		public boolean execute(ExpressionStack stack, ExpressionVariableContext context)
+		{
+			stack.push(0L);
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import static com.blackrook.expression.TestRunner.assertEquals;
+import static com.blackrook.expression.TestRunner.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import com.blackrook.expression.functions.CommonFunctions;
+import com.blackrook.expression.resolver.EnumResolver;
+
+/**
+ * Tests that generated Java source evaluates to the same results as the interpreter.
+ * The generated source is compiled with the system Java compiler, so these tests are skipped without a JDK.
+ * @author Matthew Tropiano
+ */
+public class ExpressionSourceGeneratorTest
+{
+	private static final ExpressionFunctionResolver RESOLVER = new EnumResolver(CommonFunctions.values());
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String LIBRARY = String.join("\n",
+		"# single expressions",
+		"constant = 3 * 4 + 1",
+		"sum = x + y * 2",
+		"mixed = x / 3.0 - y % 4",
+		"bits = (x & 6) | (y << 2) ^ ~x",
+		"logic = x > y && !(y == 3) || x === 5",
+		"functions = CLAMP(x, -1, y) + INT(x / 2.0) + LERP(x, y, 0.25)",
+		"divide = y / x",
+		"compare = (x >= y) + (x != 2) - (y <= 1)",
+		"",
+		"branches {",
+		"	if (x > y) { z = x - y; }",
+		"	else if (x == y) { z = 0; }",
+		"	else { z = y - x; }",
+		"	return z * 2;",
+		"}",
+		"",
+		"early {",
+		"	if (x < 0) return -1;",
+		"	a = x * x;",
+		"	if (a > 20) return a;",
+		"	y = y + a;",
+		"	return y;",
+		"}",
+		"",
+		"noReturn {",
+		"	a = x + 1;",
+		"	b = a * y;",
+		"}",
+		""
+	);
+
+	public void testGeneratedMatchesInterpreter() throws Exception
+	{
+		Map<String, Expression> expressions = ExpressionSourceGenerator.readSource(new StringReader(LIBRARY + large()), RESOLVER);
+		StringWriter source = new StringWriter();
+		ExpressionSourceGenerator.generate(source, null, "GeneratedLibrary", expressions);
+		assertTrue("Large block is split into helper methods", source.toString().contains("runLarge$1("));
+
+		Class<?> generated = compile("GeneratedLibrary", source.toString());
+		if (generated == null)
+			return;
+
+		for (Map.Entry<String, Expression> entry : expressions.entrySet())
+		{
+			String name = entry.getKey();
+			Method method = generated.getMethod("evaluate" + Character.toUpperCase(name.charAt(0)) + name.substring(1), ExpressionVariableContext.class, ExpressionValue.class);
+			for (int x = -3; x <= 6; x++)
+			{
+				for (int y = -2; y <= 4; y += 3)
+				{
+					ExpressionVariableContext interpreted = context(x, y);
+					ExpressionValue interpretedOut = ExpressionValue.create(false);
+					entry.getValue().evaluate(interpreted, interpretedOut);
+
+					ExpressionVariableContext compiled = context(x, y);
+					ExpressionValue compiledOut = ExpressionValue.create(false);
+					method.invoke(null, compiled, compiledOut);
+
+					String where = name + ", x = " + x + ", y = " + y;
+					assertEquals("Result, " + where, interpretedOut, compiledOut);
+					for (String variable : new String[]{"x", "y", "z", "a", "b", "total"})
+						assertEquals("Variable " + variable + ", " + where, interpreted.get(variable), compiled.get(variable));
+				}
+			}
+		}
+	}
+
+	// Makes a block too large for one method.
+	private static String large()
+	{
+		StringBuilder sb = new StringBuilder("large {\n\ttotal = 0;\n");
+		for (int i = 0; i < 150; i++)
+		{
+			sb.append("\tif (x > ").append(i % 7 - 3).append(") { total = total + x * ").append(i)
+				.append("; } else { total = total - y; }\n");
+		}
+		return sb.append("\treturn total;\n}\n").toString();
+	}
+
+	// Makes a context with x and y set.
+	private static ExpressionVariableContext context(int x, int y)
+	{
+		ExpressionVariableContext context = new ExpressionVariableContext();
+		context.set("x", x);
+		context.set("y", y);
+		return context;
+	}
+
+	// Compiles and loads a class, or returns null if there is no compiler.
+	private static Class<?> compile(String className, String sourceText) throws IOException, ClassNotFoundException
+	{
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null)
+		{
+			System.out.println("No system Java compiler - skipping generated source tests.");
+			return null;
+		}
+
+		File dir = File.createTempFile("generated", "");
+		dir.delete();
+		dir.mkdirs();
+		File source = new File(dir, className + ".java");
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(source), UTF_8))
+		{
+			writer.write(sourceText);
+		}
+
+		List<String> args = new ArrayList<>();
+		args.add("-classpath");
+		args.add(System.getProperty("java.class.path"));
+		args.add("-d");
+		args.add(dir.getPath());
+		args.add("-nowarn");
+		args.add(source.getPath());
+		assertEquals("Generated source compiles", 0, compiler.run(null, null, null, args.toArray(new String[args.size()])));
+
+		URLClassLoader loader = new URLClassLoader(new URL[]{dir.toURI().toURL()}, ExpressionSourceGeneratorTest.class.getClassLoader());
+		return loader.loadClass(className);
+	}
+
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Objects;
+
+/**
+ * Runs test classes without a test framework.
+ * Each public, non-static, no-argument method of a test class whose name starts with <code>test</code>
+ * is a test, run on a new instance of the class, in name order. A test fails if it throws anything.
+ * <p>Command line: <code>TestRunner classNames...</code>
+ * <br>Each argument can hold several class names, separated by commas or whitespace.
+ * Exits with status 1 if any test fails.
+ * @author Matthew Tropiano
+ */
+public final class TestRunner
+{
+	// Private constructor.
+	private TestRunner()
+	{
+	}
+
+	/**
+	 * Runs test classes.
+	 * @param args the test class names.
+	 * @throws Exception if a test class could not be loaded or created.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int passed = 0;
+		int failed = 0;
+		for (String arg : args)
+		{
+			for (String className : arg.trim().split("[,\\s]+"))
+			{
+				if (className.isEmpty())
+					continue;
+
+				Class<?> type = Class.forName(className);
+				Method[] methods = type.getMethods();
+				Arrays.sort(methods, Comparator.comparing(Method::getName));
+				for (Method method : methods)
+				{
+					if (!method.getName().startsWith("test") || method.getParameterCount() != 0 || Modifier.isStatic(method.getModifiers()))
+						continue;
+
+					String name = type.getSimpleName() + "." + method.getName();
+					try {
+						method.invoke(type.getConstructor().newInstance());
+						System.out.println("PASS " + name);
+						passed++;
+					} catch (InvocationTargetException e) {
+						System.out.println("FAIL " + name + ": " + e.getCause());
+						e.getCause().printStackTrace(System.out);
+						failed++;
+					}
+				}
+			}
+		}
+
+		System.out.println(passed + " passed, " + failed + " failed.");
+		if (failed > 0)
+			System.exit(1);
+	}
+
+	/**
+	 * Fails if a condition is not true.
+	 * @param message the failure message.
+	 * @param condition the condition.
+	 * @throws AssertionError if the condition is false.
+	 */
+	public static void assertTrue(String message, boolean condition)
+	{
+		if (!condition)
+			throw new AssertionError(message);
+	}
+
+	/**
+	 * Fails if two objects are not equal.
+	 * @param message the failure message.
+	 * @param expected the expected object.
+	 * @param actual the actual object.
+	 * @throws AssertionError if the objects are not equal.
+	 */
+	public static void assertEquals(String message, Object expected, Object actual)
+	{
+		if (!Objects.equals(expected, actual))
+			throw new AssertionError(message + ": expected <" + expected + "> but was <" + actual + ">");
+	}
+
+	/**
+	 * Fails if two values are not strictly equal (same type and same bits).
+	 * @param message the failure message.
+	 * @param expected the expected value.
+	 * @param actual the actual value.
+	 * @throws AssertionError if the values are not equal.
+	 */
+	public static void assertEquals(String message, ExpressionValue expected, ExpressionValue actual)
+	{
+		if (expected == null ? actual != null : actual == null || !expected.equals(actual))
+			throw new AssertionError(message + ": expected <" + expected + "> but was <" + actual + ">");
+	}
+
+}
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression.node;
+
+import static com.blackrook.expression.TestRunner.assertEquals;
+import static com.blackrook.expression.TestRunner.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.blackrook.expression.ExpressionNode;
+import com.blackrook.expression.ExpressionStack;
+import com.blackrook.expression.ExpressionValue;
+import com.blackrook.expression.ExpressionVariableContext;
+
+/**
+ * Tests that decisions take the same branches as the branch chains that they were compiled from.
+ * @author Matthew Tropiano
+ */
+public class ExpressionDecisionTest
+{
+	private static final ExpressionDirectiveType[] COMPARISONS = {
+		ExpressionDirectiveType.LESS,
+		ExpressionDirectiveType.LESS_OR_EQUAL,
+		ExpressionDirectiveType.GREATER,
+		ExpressionDirectiveType.GREATER_OR_EQUAL,
+		ExpressionDirectiveType.EQUAL,
+		ExpressionDirectiveType.NOT_EQUAL,
+	};
+	private static final double[] CONSTANTS = {-5.0, -0.0, 0.0, 1.0, 2.5, 10.0, 20.0};
+
+	public void testRandomChainsMatchBranches()
+	{
+		Random random = new Random(29);
+		for (int chain = 0; chain < 300; chain++)
+		{
+			int length = ExpressionDecision.MIN_CHAIN_LENGTH + random.nextInt(6);
+			ExpressionDirectiveType[] types = new ExpressionDirectiveType[length];
+			double[] constants = new double[length];
+			boolean[] literalFirst = new boolean[length];
+			for (int i = 0; i < length; i++)
+			{
+				types[i] = COMPARISONS[random.nextInt(COMPARISONS.length)];
+				constants[i] = CONSTANTS[random.nextInt(CONSTANTS.length)];
+				literalFirst[i] = random.nextInt(4) == 0;
+			}
+			check("Chain " + chain, chain(types, constants, literalFirst, random.nextBoolean()), constants);
+		}
+	}
+
+	public void testNotEqualTakesNaN()
+	{
+		double[] constants = {1.0, 2.0, 3.0};
+		ExpressionBranch branch = chain(
+			new ExpressionDirectiveType[]{ExpressionDirectiveType.LESS, ExpressionDirectiveType.GREATER, ExpressionDirectiveType.NOT_EQUAL},
+			constants, new boolean[3], true
+		);
+		ExpressionDecision decision = check("NaN", branch, constants);
+		assertEquals("NaN branch", 2, decision.getBranch(Double.NaN));
+	}
+
+	public void testEqualityJumpTable()
+	{
+		int length = 12;
+		ExpressionDirectiveType[] types = new ExpressionDirectiveType[length];
+		double[] constants = new double[length];
+		for (int i = 0; i < length; i++)
+		{
+			types[i] = ExpressionDirectiveType.EQUAL;
+			constants[i] = (i * 5) % length - 3;
+		}
+		ExpressionDecision decision = check("Jump table", chain(types, constants, new boolean[length], true), constants);
+		assertTrue("Jump table is used", decision.hasJumpTable());
+
+		types[length / 2] = ExpressionDirectiveType.LESS;
+		decision = check("Not all equality", chain(types, constants, new boolean[length], true), constants);
+		assertTrue("Jump table is not used", !decision.hasJumpTable());
+	}
+
+	public void testOptimizeReplacesChains()
+	{
+		double[] constants = {1.0, 2.0, 3.0};
+		ExpressionDirectiveType[] types = {ExpressionDirectiveType.EQUAL, ExpressionDirectiveType.EQUAL, ExpressionDirectiveType.EQUAL};
+		ExpressionBranch branch = chain(types, constants, new boolean[3], false);
+		ExpressionNode[] block = {ExpressionBranch.create(new ExpressionNode[]{branch})};
+		ExpressionNode[] optimized = ExpressionDecision.optimize(block);
+		ExpressionNode[] inner = ((ExpressionBranch)optimized[0]).getSuccessBlock();
+		assertTrue("Nested chain is replaced", inner[0] instanceof ExpressionDecision);
+
+		ExpressionNode[] shortChain = {chain(new ExpressionDirectiveType[]{ExpressionDirectiveType.EQUAL}, constants, new boolean[1], false)};
+		assertTrue("Short chain is kept", ExpressionDecision.optimize(shortChain) == shortChain);
+	}
+
+	// Compiles a chain and compares it to its branches on values on and around its constants.
+	private static ExpressionDecision check(String message, ExpressionBranch branch, double[] constants)
+	{
+		ExpressionDecision decision = ExpressionDecision.create(branch);
+		assertTrue(message + ": compiled", decision != null);
+
+		List<ExpressionValue> values = new ArrayList<>();
+		values.add(null);
+		values.add(ExpressionValue.create(true));
+		values.add(ExpressionValue.create(false));
+		values.add(ExpressionValue.create(Double.NaN));
+		values.add(ExpressionValue.create(Double.NEGATIVE_INFINITY));
+		values.add(ExpressionValue.create(Double.POSITIVE_INFINITY));
+		values.add(ExpressionValue.create(-0.0));
+		values.add(ExpressionValue.create(Long.MIN_VALUE));
+		values.add(ExpressionValue.create(Long.MAX_VALUE));
+		for (double constant : constants)
+		{
+			values.add(ExpressionValue.create(constant));
+			values.add(ExpressionValue.create(Math.nextDown(constant)));
+			values.add(ExpressionValue.create(Math.nextUp(constant)));
+			values.add(ExpressionValue.create(constant - 0.5));
+			values.add(ExpressionValue.create(constant + 0.5));
+			if (constant == (long)constant)
+			{
+				values.add(ExpressionValue.create((long)constant));
+				values.add(ExpressionValue.create((long)constant - 1));
+				values.add(ExpressionValue.create((long)constant + 1));
+			}
+		}
+
+		for (ExpressionValue value : values)
+		{
+			String where = message + ", " + decision.getSource() + ", x = " + value;
+			ExpressionStack expected = execute(branch, value);
+			ExpressionStack actual = execute(decision, value);
+			assertEquals(where + ": stack size", expected.size(), actual.size());
+			if (!expected.isEmpty())
+				assertEquals(where, expected.pop(), actual.pop());
+		}
+		return decision;
+	}
+
+	// Executes a node with x set to a value (or missing, if null).
+	private static ExpressionStack execute(ExpressionNode node, ExpressionValue value)
+	{
+		ExpressionVariableContext context = new ExpressionVariableContext();
+		if (value != null)
+			context.set("x", value);
+		ExpressionStack stack = new ExpressionStack();
+		node.execute(stack, context);
+		return stack;
+	}
+
+	// Makes a chain of branches that compare x to constants, and push the index of the branch taken.
+	private static ExpressionBranch chain(ExpressionDirectiveType[] types, double[] constants, boolean[] literalFirst, boolean hasDefault)
+	{
+		ExpressionNode[] next = hasDefault ? new ExpressionNode[]{ExpressionDirective.create(ExpressionDirectiveType.PUSH, -1L)} : null;
+		for (int i = types.length - 1; i >= 0; i--)
+		{
+			ExpressionNode variable = ExpressionDirective.create(ExpressionDirectiveType.PUSH_VARIABLE, "x");
+			ExpressionNode constant = constants[i] == (long)constants[i] && i % 2 == 0
+				? ExpressionDirective.create(ExpressionDirectiveType.PUSH, (long)constants[i])
+				: ExpressionDirective.create(ExpressionDirectiveType.PUSH, constants[i]);
+			ExpressionNode compare = ExpressionDirective.create(flip(types[i], literalFirst[i]));
+			ExpressionNode[] conditional = literalFirst[i]
+				? new ExpressionNode[]{constant, variable, compare}
+				: new ExpressionNode[]{variable, constant, compare};
+			ExpressionNode[] success = {ExpressionDirective.create(ExpressionDirectiveType.PUSH, (long)i)};
+			next = new ExpressionNode[]{next != null ? ExpressionBranch.create(conditional, success, next) : ExpressionBranch.create(conditional, success)};
+		}
+		return (ExpressionBranch)next[0];
+	}
+
+	// Gets the comparison that means the same thing with its operands swapped, if swapped.
+	private static ExpressionDirectiveType flip(ExpressionDirectiveType type, boolean swapped)
+	{
+		if (!swapped)
+			return type;
+		switch (type)
+		{
+			case LESS:
+				return ExpressionDirectiveType.GREATER;
+			case LESS_OR_EQUAL:
+				return ExpressionDirectiveType.GREATER_OR_EQUAL;
+			case GREATER:
+				return ExpressionDirectiveType.LESS;
+			case GREATER_OR_EQUAL:
+				return ExpressionDirectiveType.LESS_OR_EQUAL;
+			default:
+				return type;
+		}
+	}
+
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2017-2020 Black Rook Software
+ * This program and the accompanying materials are made available under the 
+ * terms of the GNU Lesser Public License v2.1 which accompanies this 
+ * distribution, and is available at 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.expression.struct;
+
+import static com.blackrook.expression.TestRunner.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Tests for the table-driven lexer.
+ * @author Matthew Tropiano
+ */
+public class LexerTest
+{
+	private static final int TYPE_PLUS = 1;
+	private static final int TYPE_LPAREN = 2;
+	private static final int TYPE_RPAREN = 3;
+	private static final int TYPE_DOUBLEEQUAL = 4;
+	private static final int TYPE_EQUAL = 5;
+	private static final int TYPE_DOT = 6;
+	private static final int TYPE_COMMENT_START = 7;
+	private static final int TYPE_COMMENT_END = 8;
+	private static final int TYPE_COMMENT_LINE = 9;
+	private static final int TYPE_IF = 10;
+
+	public void testTokens() throws IOException
+	{
+		Lexer.Kernel kernel = kernel();
+		assertEquals("Tokens",
+			"10:if 2:( -10:x1 4:== -3:0x1F 3:) -10:y 5:= -3:2.5e+3 1:+ -15:a\"b -10:_z ",
+			tokens(new Lexer(kernel, "if (x1 == 0x1F) y = 2.5e+3 + \"a\\\"b\" /* skip */ _z // skip")));
+	}
+
+	public void testOverriddenCharacterTest() throws IOException
+	{
+		Lexer.Kernel kernel = kernel();
+		assertEquals("Default", "-12:a$b 1:+ -3:1 ", tokens(new Lexer(kernel, "a$b + 1")));
+		assertEquals("Overridden", "-10:a$b 1:+ -3:1 ", tokens(new DollarLexer(kernel, "a$b + 1")));
+
+		// tables are rebuilt after the kernel changes.
+		kernel.setDecimalSeparator(',');
+		assertEquals("Changed kernel", "-10:$x -3:1,5 ", tokens(new DollarLexer(kernel, "$x 1,5")));
+	}
+
+	public void testOverriddenTablesMatchKernelTables() throws IOException
+	{
+		Lexer.Kernel kernel = kernel();
+		Random random = new Random(44);
+		String characters = "ab_xX0e9E. +-=()\"\n\t/*$\\";
+		for (int i = 0; i < 2000; i++)
+		{
+			StringBuilder sb = new StringBuilder();
+			int length = random.nextInt(30);
+			for (int j = 0; j < length; j++)
+				sb.append(characters.charAt(random.nextInt(characters.length())));
+			String input = sb.toString();
+			assertEquals("Tokens of \"" + input + "\"", tokens(new Lexer(kernel, input)), tokens(new SameLexer(kernel, input)));
+		}
+	}
+
+	// Makes the test kernel.
+	private static Lexer.Kernel kernel()
+	{
+		Lexer.Kernel kernel = new Lexer.Kernel();
+		kernel.addDelimiter("+", TYPE_PLUS);
+		kernel.addDelimiter("(", TYPE_LPAREN);
+		kernel.addDelimiter(")", TYPE_RPAREN);
+		kernel.addDelimiter("==", TYPE_DOUBLEEQUAL);
+		kernel.addDelimiter("=", TYPE_EQUAL);
+		kernel.addDelimiter(".", TYPE_DOT);
+		kernel.addStringDelimiter('"', '"');
+		kernel.addCommentStartDelimiter("/*", TYPE_COMMENT_START);
+		kernel.addCommentEndDelimiter("*/", TYPE_COMMENT_END);
+		kernel.addCommentLineDelimiter("//", TYPE_COMMENT_LINE);
+		kernel.addKeyword("if", TYPE_IF);
+		kernel.setDecimalSeparator('.');
+		return kernel;
+	}
+
+	// Reads all tokens into a string.
+	private static String tokens(Lexer lexer) throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		Lexer.Token token;
+		while ((token = lexer.nextToken()) != null)
+			sb.append(token.getType()).append(':').append(token.getLexeme()).append(' ');
+		return sb.toString();
+	}
+
+	/**
+	 * A lexer that also accepts '$' as a letter.
+	 */
+	private static class DollarLexer extends Lexer
+	{
+		DollarLexer(Kernel kernel, String in)
+		{
+			super(kernel, in);
+		}
+
+		@Override
+		protected boolean isLetter(char c)
+		{
+			return c == '$' || super.isLetter(c);
+		}
+	}
+
+	/**
+	 * A lexer that overrides a character test without changing it.
+	 */
+	private static class SameLexer extends Lexer
+	{
+		SameLexer(Kernel kernel, String in)
+		{
+			super(kernel, in);
+		}
+
+		@Override
+		protected boolean isLetter(char c)
+		{
+			return super.isLetter(c);
+		}
+	}
+
+}